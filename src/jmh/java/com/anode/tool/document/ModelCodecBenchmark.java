@@ -0,0 +1,108 @@
+package com.anode.tool.document;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Compares the tree parse followed by the validation walk of new JDocument(type, json) with the
+ * single pass read of the model codec, and getJson() with the model ordered write
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelCodecBenchmark {
+
+  private static final String TYPE = "bench_order";
+
+  private static final String MODEL = "{\n"
+      + "  \"id\": \"{\\\"type\\\":\\\"string\\\"}\",\n"
+      + "  \"created\": \"{\\\"type\\\":\\\"date\\\",\\\"format\\\":\\\"uuuu-MM-dd\\\"}\",\n"
+      + "  \"customer\": {\n"
+      + "    \"name\": \"{\\\"type\\\":\\\"string\\\",\\\"regex\\\":\\\"[A-Za-z ]+\\\"}\",\n"
+      + "    \"vip\": \"{\\\"type\\\":\\\"boolean\\\"}\"\n"
+      + "  },\n"
+      + "  \"items\": [\n"
+      + "    {\n"
+      + "      \"sku\": \"{\\\"type\\\":\\\"string\\\",\\\"regex\\\":\\\"[A-Z]{3}-[0-9]{4}\\\"}\",\n"
+      + "      \"qty\": \"{\\\"type\\\":\\\"integer\\\"}\",\n"
+      + "      \"price\": \"{\\\"type\\\":\\\"decimal\\\"}\",\n"
+      + "      \"shipped\": \"{\\\"type\\\":\\\"date\\\",\\\"format\\\":\\\"uuuu-MM-dd\\\"}\"\n"
+      + "    }\n"
+      + "  ],\n"
+      + "  \"tags\": [\"{\\\"type\\\":\\\"string\\\"}\"]\n"
+      + "}";
+
+  @Param({"10", "1000"})
+  private int items;
+
+  private String json;
+
+  private ModelCodec codec;
+
+  private JDocument doc;
+
+  @Setup
+  public void setup() {
+    JDocument.loadDocumentModel(TYPE, MODEL);
+    codec = ModelCodec.forType(TYPE);
+
+    StringBuilder sb = new StringBuilder(items * 96);
+    sb.append("{\"id\":\"ORD-1\",\"created\":\"2024-01-31\",\"customer\":{\"name\":\"Jane Doe\",\"vip\":true},\"items\":[");
+    for (int i = 0; i < items; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"sku\":\"ABC-").append(String.format("%04d", i % 10000)).append("\",\"qty\":").append(i % 7 + 1)
+          .append(",\"price\":").append(i % 100).append(".25,\"shipped\":\"2024-02-0").append(i % 9 + 1).append("\"}");
+    }
+    sb.append("],\"tags\":[\"a\",\"b\",\"c\"]}");
+    json = sb.toString();
+
+    doc = new JDocument(TYPE, json);
+  }
+
+  @Benchmark
+  public JDocument treeRead() {
+    return new JDocument(TYPE, json);
+  }
+
+  @Benchmark
+  public JDocument codecRead() {
+    return codec.read(json);
+  }
+
+  @Benchmark
+  public String treeWrite() {
+    return doc.getJson();
+  }
+
+  @Benchmark
+  public String codecWrite() {
+    return codec.write(doc);
+  }
+
+  @Benchmark
+  public String treeRoundTrip() {
+    return new JDocument(TYPE, json).getJson();
+  }
+
+  @Benchmark
+  public String codecRoundTrip() {
+    return codec.write(codec.read(json));
+  }
+
+}
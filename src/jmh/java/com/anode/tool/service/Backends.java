@@ -0,0 +1,199 @@
+package com.anode.tool.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.id.HiLoIdFactory;
+import com.anode.tool.service.id.TimeOrderedIdFactory;
+import com.anode.tool.service.lock.LockingCommonService;
+import com.anode.tool.service.log.LogStructuredCommonService;
+import com.anode.tool.service.memory.InMemoryCommonService;
+import com.anode.tool.service.memory.InMemoryRepository;
+import com.anode.tool.service.memory.MvccRepository;
+import com.anode.tool.service.memory.TieredRepository;
+import com.anode.tool.service.snapshot.SnapshotCommonService;
+
+/*
+ * The implementations of the persistence SPI measured by the workload benchmarks, by name. A name
+ * that is not one of these is the name of a class with a public no-arg constructor implementing
+ * Supplier of the implementation, so that an adapter outside of this module is measured with the
+ * same workloads, e.g. -p backend=com.example.JpaCommonServiceSupplier
+ */
+final class Backends {
+
+    private Backends() {
+    }
+
+    // a payload object of a given size, serializable for the backends that serialize
+    public static class Payload implements Persistable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Serializable id;
+
+        private long version;
+
+        private byte[] data;
+
+        public Payload(long id, long version, byte[] data) {
+            this.id = id;
+            this.version = version;
+            this.data = data;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    // a backend and the files it needs, released by close
+    static final class Instance<T> implements Closeable {
+
+        final T service;
+
+        private final Path directory;
+
+        private final MethodHandle endTransaction;
+
+        private Instance(T service, Path directory) {
+            this.service = service;
+            this.directory = directory;
+            this.endTransaction = (service instanceof CommonService) ? null : findEndTransaction(service);
+        }
+
+        /*
+         * Releases the locks of getLocked, for the backends that hold them until the end of a
+         * transaction rather than until the write. The repositories have no common method for it.
+         */
+        void endTransaction() {
+            if (service instanceof CommonService) {
+                ((CommonService)service).endTransaction();
+                return;
+            }
+            if (endTransaction == null) {
+                return;
+            }
+            try {
+                endTransaction.invoke(service);
+            }
+            catch (Throwable e) {
+                throw new PersistenceException("endTransaction failed", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (service instanceof Closeable) {
+                ((Closeable)service).close();
+            }
+            if (directory != null) {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+                }
+            }
+        }
+    }
+
+    static Instance<CommonService> commonService(String name) throws IOException {
+        switch (name) {
+            case "memory":
+                return new Instance<>(new InMemoryCommonService(), null);
+            case "log": {
+                Path directory = Files.createTempDirectory("bench-log");
+                return new Instance<>(new LogStructuredCommonService(directory, LogStructuredCommonService.DEFAULT_MAX_SEGMENT_BYTES, false, 0, null), directory);
+            }
+            case "snapshot": {
+                Path directory = Files.createTempDirectory("bench-snapshot");
+                return new Instance<>(new SnapshotCommonService(new InMemoryCommonService(), directory, 0, 4), directory);
+            }
+            case "cached":
+                return new Instance<>(new CachingCommonService(new InMemoryCommonService(), 100000), null);
+            case "locking":
+                return new Instance<>(new LockingCommonService(new InMemoryCommonService()), null);
+            default:
+                return new Instance<>(supply(name, CommonService.class), null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Instance<CommonRepository<Payload, Long>> repository(String name, int size) throws IOException {
+        Function<Payload, Long> idFunction = p -> (Long)p.getId();
+        switch (name) {
+            case "memory":
+                return new Instance<>(new InMemoryRepository<>(idFunction), null);
+            case "tiered":
+                // a tenth of the objects on the heap
+                return new Instance<>(new TieredRepository<>(idFunction, Math.max(size / 10, 1)), null);
+            case "mvcc":
+                return new Instance<>(new MvccRepository<>(idFunction), null);
+            default:
+                return new Instance<>(supply(name, CommonRepository.class), null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static IdFactory<? extends Serializable> idFactory(String name, CommonService service) {
+        switch (name) {
+            case "hilo":
+                return new HiLoIdFactory(service, "bench", 1000);
+            case "hiloPerThread":
+                return new HiLoIdFactory(service, "bench", 1000, true);
+            case "timeOrdered":
+                return new TimeOrderedIdFactory(1);
+            default:
+                return supply(name, IdFactory.class);
+        }
+    }
+
+    private static <T> T supply(String className, Class<T> type) {
+        Object supplier;
+        try {
+            supplier = Class.forName(className).getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown backend " + className + ", not a name nor a Supplier class", e);
+        }
+        if ((supplier instanceof Supplier) == false) {
+            throw new IllegalArgumentException("Backend class " + className + " is not a Supplier");
+        }
+        Object instance = ((Supplier<?>)supplier).get();
+        if (type.isInstance(instance) == false) {
+            throw new IllegalArgumentException("Backend class " + className + " does not supply a " + type.getSimpleName());
+        }
+        return type.cast(instance);
+    }
+
+    private static MethodHandle findEndTransaction(Object service) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(service.getClass(), "endTransaction", MethodType.methodType(void.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.anode.tool.service;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * newId throughput of any IdFactory over the counters of any CommonService backend, as ids are taken
+ * on every save of a new object. Run main to measure at 1, 4, 16 and 64 threads, with one JSON
+ * report per thread count in target
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdFactoryWorkloadBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+
+    @Param({"hilo", "hiloPerThread", "timeOrdered"})
+    private String factory;
+
+    @Param({"memory", "log"})
+    private String backend;
+
+    private Backends.Instance<CommonService> instance;
+
+    private IdFactory<? extends Serializable> idFactory;
+
+    @Setup
+    public void setup() throws IOException {
+        instance = Backends.commonService(backend);
+        idFactory = Backends.idFactory(factory, instance.service);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        instance.close();
+    }
+
+    @Benchmark
+    public Object newId() {
+        return idFactory.newId();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(IdFactoryWorkloadBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/id-factory-workload-" + threads + "t.json")
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.anode.tool.service;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Standard workloads against any CommonService, on a store preloaded with objects of the given
+ * size, to compare backends and detect regressions between versions of one:
+ * - readHeavy: 90% get, 10% saveOrUpdate of random ids
+ * - writeHeavy: 10% get, 90% saveOrUpdate of random ids
+ * - hotKey: get and saveOrUpdate of 16 ids shared by all the threads
+ * - lockHeavy: getLocked, update and end of transaction of 1024 ids shared by all the threads
+ * - bulkLoad: saveOrUpdateCollection of 100 objects, counted per object
+ * Backends are named in Backends, or given as the class name of a Supplier. Run main to measure
+ * all the workloads at 1, 4, 16 and 64 threads, with one JSON report per thread count in target,
+ * or from the benchmarks jar, e.g.
+ * java -jar target/tool-0.0.1-benchmarks.jar PersistenceWorkload -p backend=memory,log -t 16 -rf json
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceWorkloadBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+
+    private static final int SIZE = 100000;
+
+    private static final int HOT_KEYS = 16;
+
+    private static final int LOCK_KEYS = 1024;
+
+    private static final int BULK_SIZE = 100;
+
+    @Param({"memory", "cached", "locking", "log", "snapshot"})
+    private String backend;
+
+    @Param({"64", "4096"})
+    private int objectBytes;
+
+    private Backends.Instance<CommonService> instance;
+
+    private CommonService service;
+
+    private byte[] data;
+
+    private final AtomicLong bulkIds = new AtomicLong();
+
+    @Setup
+    public void setup() throws IOException {
+        instance = Backends.commonService(backend);
+        service = instance.service;
+        data = new byte[objectBytes];
+        ThreadLocalRandom.current().nextBytes(data);
+        List<Backends.Payload> chunk = new ArrayList<>(1000);
+        for (long i = 0; i < SIZE; i++) {
+            chunk.add(new Backends.Payload(i, 0, data));
+            if (chunk.size() == 1000) {
+                service.saveOrUpdateCollection(chunk);
+                chunk = new ArrayList<>(1000);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        instance.close();
+    }
+
+    private Backends.Payload newPayload(long id) {
+        // a random version rather than a shared counter, which the writing threads would contend on
+        return new Backends.Payload(id, ThreadLocalRandom.current().nextLong(), data);
+    }
+
+    @Benchmark
+    public Object readHeavy() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextInt(SIZE);
+        if (random.nextInt(10) == 0) {
+            service.saveOrUpdate(id, newPayload(id));
+            return null;
+        }
+        return service.get(Backends.Payload.class, id);
+    }
+
+    @Benchmark
+    public Object writeHeavy() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextInt(SIZE);
+        if (random.nextInt(10) == 0) {
+            return service.get(Backends.Payload.class, id);
+        }
+        service.saveOrUpdate(id, newPayload(id));
+        return null;
+    }
+
+    @Benchmark
+    public Object hotKey() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextInt(HOT_KEYS);
+        if (random.nextBoolean()) {
+            return service.get(Backends.Payload.class, id);
+        }
+        service.saveOrUpdate(id, newPayload(id));
+        return null;
+    }
+
+    @Benchmark
+    public Object lockHeavy() {
+        long id = ThreadLocalRandom.current().nextInt(LOCK_KEYS);
+        try {
+            Object object = service.getLocked(Backends.Payload.class, id);
+            service.update(id, newPayload(id));
+            return object;
+        }
+        finally {
+            instance.endTransaction();
+        }
+    }
+
+    /*
+     * Upserts chunks of the ids past the preloaded ones, wrapping around so that the store does not
+     * grow for the length of the run
+     */
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public void bulkLoad() {
+        long first = SIZE + (bulkIds.getAndAdd(BULK_SIZE) % SIZE);
+        List<Serializable> chunk = new ArrayList<>(BULK_SIZE);
+        for (int i = 0; i < BULK_SIZE; i++) {
+            chunk.add(newPayload(first + i));
+        }
+        service.saveOrUpdateCollection(chunk);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(PersistenceWorkloadBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/persistence-workload-" + threads + "t.json")
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.anode.tool.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * The workloads of PersistenceWorkloadBenchmark against any CommonRepository of payloads by long id,
+ * on a repository preloaded with objects of the given size. The tiered repository keeps a tenth of
+ * them on the heap, so random reads mostly deserialize. The mvcc repository copies every entity
+ * written. Run main to measure at 1, 4, 16 and 64 threads, with one JSON report per thread count in
+ * target
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryWorkloadBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+
+    private static final int SIZE = 100000;
+
+    private static final int HOT_KEYS = 16;
+
+    private static final int LOCK_KEYS = 1024;
+
+    private static final int BULK_SIZE = 100;
+
+    @Param({"memory", "tiered", "mvcc"})
+    private String backend;
+
+    @Param({"64", "4096"})
+    private int objectBytes;
+
+    private Backends.Instance<CommonRepository<Backends.Payload, Long>> instance;
+
+    private CommonRepository<Backends.Payload, Long> repository;
+
+    private byte[] data;
+
+    private final AtomicLong bulkIds = new AtomicLong();
+
+    @Setup
+    public void setup() throws IOException {
+        instance = Backends.repository(backend, SIZE);
+        repository = instance.service;
+        data = new byte[objectBytes];
+        ThreadLocalRandom.current().nextBytes(data);
+        for (long i = 0; i < SIZE; i++) {
+            repository.save(new Backends.Payload(i, 0, data));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        instance.close();
+    }
+
+    private Backends.Payload newPayload(long id) {
+        // a random version rather than a shared counter, which the writing threads would contend on
+        return new Backends.Payload(id, ThreadLocalRandom.current().nextLong(), data);
+    }
+
+    @Benchmark
+    public Object readHeavy() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextInt(SIZE);
+        if (random.nextInt(10) == 0) {
+            return repository.saveOrUpdate(newPayload(id));
+        }
+        return repository.get(id);
+    }
+
+    @Benchmark
+    public Object writeHeavy() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextInt(SIZE);
+        if (random.nextInt(10) == 0) {
+            return repository.get(id);
+        }
+        return repository.saveOrUpdate(newPayload(id));
+    }
+
+    @Benchmark
+    public Object hotKey() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextInt(HOT_KEYS);
+        if (random.nextBoolean()) {
+            return repository.get(id);
+        }
+        return repository.saveOrUpdate(newPayload(id));
+    }
+
+    @Benchmark
+    public Object lockHeavy() {
+        long id = ThreadLocalRandom.current().nextInt(LOCK_KEYS);
+        try {
+            Object object = repository.getLocked(id);
+            repository.update(newPayload(id));
+            return object;
+        }
+        finally {
+            instance.endTransaction();
+        }
+    }
+
+    // upserts chunks of the ids past the preloaded ones, wrapping around
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public void bulkLoad() {
+        long first = SIZE + (bulkIds.getAndAdd(BULK_SIZE) % SIZE);
+        List<Backends.Payload> chunk = new ArrayList<>(BULK_SIZE);
+        for (int i = 0; i < BULK_SIZE; i++) {
+            chunk.add(newPayload(first + i));
+        }
+        repository.saveOrUpdateCollection(chunk);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(RepositoryWorkloadBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/repository-workload-" + threads + "t.json")
+                    .build()).run();
+        }
+    }
+}
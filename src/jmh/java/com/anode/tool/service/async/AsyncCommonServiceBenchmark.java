@@ -0,0 +1,101 @@
+package com.anode.tool.service.async;
+
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+/*
+ * Time to run 10k concurrent workflows, each a get, a save and a counter increment against a store
+ * answering in 1 ms, on virtual threads and on a pool of 200 platform threads. Before Java 21 the
+ * virtual case falls back to platform threads, one per concurrent call
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AsyncCommonServiceBenchmark {
+
+    private static final int WORKFLOWS = 10000;
+
+    private static final long LATENCY_MILLIS = 1;
+
+    @Param({ "virtual", "platform" })
+    public String threads;
+
+    private ExecutorService executor;
+
+    private AsyncCommonServiceAdapter service;
+
+    // an in-memory store with the latency of a remote one
+    private static final class RemoteCommonService extends InMemoryCommonService {
+
+        @Override
+        public <T> T get(Class<T> objectClass, Serializable id) {
+            pause();
+            return super.get(objectClass, id);
+        }
+
+        @Override
+        public void saveOrUpdate(Serializable id, Object object) {
+            pause();
+            super.saveOrUpdate(id, object);
+        }
+
+        @Override
+        public long incrCounter(String key) {
+            pause();
+            return super.incrCounter(key);
+        }
+
+        private static void pause() {
+            try {
+                Thread.sleep(LATENCY_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Setup
+    public void setup() {
+        executor = "virtual".equals(threads) ? AsyncCommonServiceAdapter.newVirtualThreadExecutor() : Executors.newFixedThreadPool(200);
+        service = new AsyncCommonServiceAdapter(new RemoteCommonService(), executor, WORKFLOWS, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public Object workflows() {
+        CompletableFuture<?>[] workflows = new CompletableFuture<?>[WORKFLOWS];
+        for (int i = 0; i < WORKFLOWS; i++) {
+            String caseId = "case" + i;
+            workflows[i] = service.get(String.class, caseId)
+                .thenCompose(state -> service.saveOrUpdate(caseId, "started"))
+                .thenCompose(v -> service.incrCounter("steps"));
+        }
+        return CompletableFuture.allOf(workflows).join();
+    }
+}
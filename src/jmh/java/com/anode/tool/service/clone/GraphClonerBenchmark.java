@@ -0,0 +1,141 @@
+package com.anode.tool.service.clone;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.memory.SerializationCloner;
+
+/*
+ * Clones per second of a workflow like graph, a root with steps pointing back to it and to each
+ * other, by the graph cloner and by serialization
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GraphClonerBenchmark {
+
+    public static class Step implements Persistable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Serializable id;
+
+        private String name;
+
+        private int retries;
+
+        private long timeoutMillis;
+
+        private Workflow workflow;
+
+        private Step next;
+
+        private Map<String, Object> variables = new LinkedHashMap<>();
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    public static class Workflow implements Persistable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Serializable id;
+
+        private String name;
+
+        private List<Step> steps = new ArrayList<>();
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    @Param({ "10", "100" })
+    public int steps;
+
+    private Workflow workflow;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final IdFactory<Long> idFactory = new IdFactory<Long>() {
+
+        @Override
+        public Long newId() {
+            return ids.incrementAndGet();
+        }
+
+        @Override
+        public void consumeId(Long id) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        workflow = new Workflow();
+        workflow.id = ids.incrementAndGet();
+        workflow.name = "workflow";
+        Step previous = null;
+        for (int i = 0; i < steps; i++) {
+            Step step = new Step();
+            step.id = ids.incrementAndGet();
+            step.name = "step" + i;
+            step.retries = 3;
+            step.timeoutMillis = 1000L * i;
+            step.workflow = workflow;
+            step.variables.put("index", i);
+            step.variables.put("label", "label" + i);
+            if (previous != null) {
+                previous.next = step;
+            }
+            workflow.steps.add(step);
+            previous = step;
+        }
+    }
+
+    @Benchmark
+    public List<Persistable> graphCloner() {
+        return GraphCloner.cloneGraph(workflow, idFactory, new HashMap<>());
+    }
+
+    @Benchmark
+    public List<Persistable> serialization() {
+        return SerializationCloner.cloneGraph(workflow, idFactory, new HashMap<>());
+    }
+}
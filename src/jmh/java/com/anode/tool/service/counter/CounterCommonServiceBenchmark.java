@@ -0,0 +1,69 @@
+package com.anode.tool.service.counter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.anode.tool.service.log.LogStructuredCommonService;
+
+/*
+ * incrCounter throughput per counter mode, over the log store with synced writes so that every
+ * backend call costs a disk sync
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class CounterCommonServiceBenchmark {
+
+    @Param({"GAPLESS", "LEASED", "STATISTIC"})
+    private CounterMode mode;
+
+    private Path directory;
+
+    private LogStructuredCommonService store;
+
+    private CounterCommonService service;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("counter-bench");
+        store = new LogStructuredCommonService(directory, LogStructuredCommonService.DEFAULT_MAX_SEGMENT_BYTES, true, 1000, null);
+        service = new CounterCommonService(store, null, 1000, 100);
+        service.setDefaultMode(mode);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.close();
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long incrCounter() {
+        return service.incrCounter("bench");
+    }
+}
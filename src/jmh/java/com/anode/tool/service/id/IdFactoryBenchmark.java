@@ -0,0 +1,69 @@
+package com.anode.tool.service.id;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+/*
+ * newId throughput at 64 threads of a counter increment per id, against the hi/lo factory in shared
+ * and per thread mode and the time ordered factory. The counters are in memory, so the per id
+ * baseline does not even pay for a backend round trip
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class IdFactoryBenchmark {
+
+    private CommonService service;
+
+    private HiLoIdFactory sharedHiLo;
+
+    private HiLoIdFactory perThreadHiLo;
+
+    private TimeOrderedIdFactory timeOrdered;
+
+    @Setup
+    public void setup() {
+        service = new InMemoryCommonService();
+        sharedHiLo = new HiLoIdFactory(service, "shared", 1000);
+        perThreadHiLo = new HiLoIdFactory(service, "perThread", 1000, true);
+        timeOrdered = new TimeOrderedIdFactory(1);
+    }
+
+    @Benchmark
+    public long counterPerId() {
+        return service.incrCounter("perId");
+    }
+
+    @Benchmark
+    public Long sharedHiLo() {
+        return sharedHiLo.newId();
+    }
+
+    @Benchmark
+    public Long perThreadHiLo() {
+        return perThreadHiLo.newId();
+    }
+
+    @Benchmark
+    public Long timeOrdered() {
+        return timeOrdered.newId();
+    }
+}
@@ -0,0 +1,104 @@
+package com.anode.tool.service.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Synced saveOrUpdate throughput of the log store, where concurrent writers share fsyncs, against
+ * writing and syncing one file per object
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class LogStructuredCommonServiceBenchmark {
+
+    private static final int IDS = 10000;
+
+    @Param({"128", "4096"})
+    private int objectBytes;
+
+    private Path logDirectory;
+
+    private Path fileDirectory;
+
+    private LogStructuredCommonService service;
+
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        logDirectory = Files.createTempDirectory("log-bench");
+        fileDirectory = Files.createTempDirectory("file-bench");
+        service = new LogStructuredCommonService(logDirectory, LogStructuredCommonService.DEFAULT_MAX_SEGMENT_BYTES, true, 1000, null);
+        payload = new byte[objectBytes];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.close();
+        delete(logDirectory);
+        delete(fileDirectory);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void logSaveOrUpdate() {
+        service.saveOrUpdate((long)ThreadLocalRandom.current().nextInt(IDS), payload);
+    }
+
+    @Benchmark
+    public void fileSaveOrUpdate() throws IOException {
+        Serializable id = (long)ThreadLocalRandom.current().nextInt(IDS);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(payload);
+        }
+        Path path = fileDirectory.resolve(id + ".bin");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    @Benchmark
+    public long logIncrCounter() {
+        return service.incrCounter("bench");
+    }
+}
@@ -0,0 +1,115 @@
+package com.anode.tool.service.memory;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.anode.tool.persistance.Persistable;
+
+/*
+ * Throughput of get, saveOrUpdate, getLocked and incrCounter of the in-memory service on a preloaded
+ * store, with each thread working on random ids. Run main to measure at 1, 4, 16 and 64 threads
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryCommonServiceBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+
+    @Param({"10000", "1000000"})
+    private int size;
+
+    private InMemoryCommonService service;
+
+    public static class Item implements Persistable {
+
+        private Serializable id;
+
+        private long value;
+
+        public Item(long id) {
+            this.id = id;
+            this.value = id;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        service = new InMemoryCommonService();
+        for (long i = 0; i < size; i++) {
+            service.save(i, new Item(i));
+        }
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextInt(size);
+    }
+
+    @Benchmark
+    public Item get() {
+        return service.get(Item.class, randomId());
+    }
+
+    @Benchmark
+    public void saveOrUpdate() {
+        long id = randomId();
+        service.saveOrUpdate(id, new Item(id));
+    }
+
+    @Benchmark
+    public Item getLocked() {
+        try {
+            return service.getLocked(Item.class, randomId());
+        }
+        finally {
+            service.endTransaction();
+        }
+    }
+
+    @Benchmark
+    public long incrCounter() {
+        return service.incrCounter("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder()
+                    .include(InMemoryCommonServiceBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
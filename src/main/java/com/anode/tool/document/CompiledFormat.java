@@ -0,0 +1,220 @@
+package com.anode.tool.document;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.format.DateTimeFormatter;
+import java.time.format.ResolverStyle;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/*
+ * The compiled form of a leaf format string of a model document, for example
+ * {"type":"string","regex":"[a-z]+"}
+ *
+ * The format json, the regex pattern and the date formatter are resolved once per format string
+ * instead of once per validated value. Instances are immutable and shared across threads
+ */
+final class CompiledFormat {
+
+  // one compiled format per distinct format string across all the loaded models
+  private static Map<String, CompiledFormat> compiledFormats = new ConcurrentHashMap<>();
+
+  private final DataType dataType;
+
+  private final boolean isNullAllowed;
+
+  private final boolean ignoreRegexIfEmptyString;
+
+  private final boolean isEmptyDateAllowed;
+
+  // null if no regex is specified
+  private final Pattern pattern;
+
+  // only for dates. Empty if not specified
+  private final String dateFormat;
+
+  // only for dates. Null if the date format could not be compiled, in which case every non empty value fails
+  private final DateTimeFormatter dateFormatter;
+
+  static CompiledFormat get(String type, String path, String format) {
+    CompiledFormat cf = compiledFormats.get(format);
+    if (cf == null) {
+      JsonNode node = null;
+      try {
+        node = JDocument.objectMapper.readTree(format);
+      }
+      catch (IOException e) {
+        throw new RuntimeException("jdoc_err_63"+type+ path+format);
+      }
+      cf = new CompiledFormat(node);
+      compiledFormats.put(format, cf);
+    }
+    return cf;
+  }
+
+  private CompiledFormat(JsonNode node) {
+    dataType = DataType.valueOf(node.get(FormatFields.TYPE).asText().toUpperCase());
+    isNullAllowed = getBoolean(node, FormatFields.NULL_ALLOWED, false);
+    ignoreRegexIfEmptyString = getBoolean(node, FormatFields.IGNORE_REGEX_IF_EMPTY_STRING, false);
+    isEmptyDateAllowed = getBoolean(node, FormatFields.EMPTY_DATE_ALLOWED, true);
+
+    JsonNode regexNode = node.get(FormatFields.REGEX);
+    if (regexNode != null) {
+      pattern = Pattern.compile(regexNode.asText());
+    }
+    else {
+      pattern = null;
+    }
+
+    JsonNode formatNode = node.get(FormatFields.FORMAT);
+    if (formatNode != null) {
+      dateFormat = formatNode.asText();
+    }
+    else {
+      dateFormat = "";
+    }
+
+    DateTimeFormatter dtf = null;
+    if ((dataType == DataType.DATE) && (dateFormat.isEmpty() == false)) {
+      try {
+        dtf = DateTimeFormatter.ofPattern(dateFormat).withResolverStyle(ResolverStyle.STRICT);
+      }
+      catch (IllegalArgumentException e) {
+        // reported as a validation failure for every value, as it was when the formatter was built per value
+        dtf = null;
+      }
+    }
+    dateFormatter = dtf;
+  }
+
+  private static boolean getBoolean(JsonNode node, String field, boolean defaultValue) {
+    JsonNode node1 = node.get(field);
+    if (node1 == null) {
+      return defaultValue;
+    }
+    return node1.booleanValue();
+  }
+
+  DataType getDataType() {
+    return dataType;
+  }
+
+  void validate(Object value, String path, List<String> errorList) {
+    validate(value, path, "", errorList);
+  }
+
+  /*
+   * The path is passed as a base path and a field name so that the full path string is only built
+   * when a violation is reported
+   */
+  void validate(Object value, String basePath, String field, List<String> errorList) {
+    String failure = check(value, basePath, field);
+    if (failure != null) {
+      throw new RuntimeException(failure + errorList);
+    }
+  }
+
+  boolean isValid(Object value) {
+    return (check(value, "", "") == null);
+  }
+
+  /*
+   * Returns null if the value is valid, else the error code followed by the path. The caller appends
+   * the errors collected so far when reporting it
+   */
+  String check(Object value, String basePath, String field) {
+    while (true) {
+      // check that a date field has to have a format. Whether the format is correct or not will be validated later
+      if ((dataType == DataType.DATE) && dateFormat.isEmpty()) {
+        return "jdoc_err_71"+basePath+field;
+      }
+
+      // if the value is null, check if nulls are allowed
+      if (value == null) {
+        if (isNullAllowed == false) {
+          return "jdoc_err_36"+basePath+field;
+        }
+        break;
+      }
+
+      // check data types
+      switch (dataType) {
+        case STRING:
+        case DATE:
+          if ((value instanceof String) == false) {
+            return "jdoc_err_37"+basePath+field;
+          }
+          break;
+
+        case BOOLEAN:
+          if ((value instanceof Boolean) == false) {
+            return "jdoc_err_37"+basePath+field;
+          }
+          break;
+
+        case INTEGER:
+          if ((value instanceof Integer) == false) {
+            return "jdoc_err_37"+basePath+field;
+          }
+          break;
+
+        case LONG:
+          if ((value instanceof Long) == false) {
+            return "jdoc_err_37"+basePath+field;
+          }
+          break;
+
+        case DECIMAL:
+          // Couchbase stores a decimal value of 10.00 as 10 in the json document
+          // hence when we read the document and construct the typed document we
+          // will need to check against int and long data types as well
+          if (((value instanceof BigDecimal) == false) && ((value instanceof Integer) == false) && ((value instanceof Long) == false)) {
+            return "jdoc_err_37"+basePath+field;
+          }
+          break;
+
+        default:
+          break;
+      }
+
+      // check if value is empty and if so do we need to ignore regex
+      if ((dataType == DataType.STRING) && ignoreRegexIfEmptyString && value.toString().isEmpty()) {
+        break;
+      }
+
+      if (dataType == DataType.DATE) {
+        String s = value.toString();
+
+        // check if value is empty and if it is allowed
+        if (s.isEmpty()) {
+          if (isEmptyDateAllowed == true) {
+            break;
+          }
+          return "jdoc_err_70"+basePath+field;
+        }
+
+        // match input date with the format provided
+        try {
+          dateFormatter.parse(s);
+        }
+        catch (Exception e) {
+          return "jdoc_err_51"+basePath+field;
+        }
+        break;
+      }
+
+      // check against regex pattern
+      if ((pattern != null) && (pattern.matcher(value.toString()).matches() == false)) {
+        return "jdoc_err_54"+basePath+field;
+      }
+
+      break;
+    }
+    return null;
+  }
+
+}
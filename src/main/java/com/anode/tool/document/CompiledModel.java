@@ -0,0 +1,186 @@
+package com.anode.tool.document;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/*
+ * A model document compiled into a tree of states, one per model node, with a transition per field
+ * of an object node and a transition from an array node to its (first) element
+ *
+ * Checking a path of a typed document against its model is then a walk over the tokens of the path
+ * instead of building the model path string and looking it up in the model document. The walk has
+ * the semantics of pathExists on the model document for the model path i.e. every array filter is
+ * taken to be [0]. The validation of a whole document walks the states along with the document nodes
+ * and uses the formats compiled in the leaf states
+ */
+final class CompiledModel {
+
+  // one compiled model per type, recompiled if the model of the type is replaced
+  private static Map<String, CompiledModel> compiledModels = new ConcurrentHashMap<>();
+
+  private final Document model;
+
+  private final State root;
+
+  static CompiledModel get(String type, Document model) {
+    CompiledModel cm = compiledModels.get(type);
+    if ((cm == null) || (cm.model != model)) {
+      cm = new CompiledModel(model);
+      compiledModels.put(type, cm);
+    }
+    return cm;
+  }
+
+  private CompiledModel(Document model) {
+    this.model = model;
+    root = new State(((JDocument)model).rootNode, "$");
+  }
+
+  State getRoot() {
+    return root;
+  }
+
+  /*
+   * Returns the state of the model node at the path made of the tokens, null if there is no such node.
+   * Like pathExists, an empty token list (the root) is reported as not found
+   */
+  State getState(List<Token> tokenList) {
+    if (tokenList.isEmpty()) {
+      return null;
+    }
+
+    State state = root;
+    for (Token token : tokenList) {
+      state = state.next(token, true);
+      if (state == null) {
+        break;
+      }
+    }
+    return state;
+  }
+
+  static final class State {
+
+    private final JsonNode node;
+
+    // the model path of the node
+    private final String path;
+
+    // null if the node is not an object
+    private final Map<String, State> fields;
+
+    // the state of the first element if the node is an array, else null
+    private final State element;
+
+    // compiled on first use, only for leaf nodes
+    private volatile CompiledFormat compiledFormat = null;
+
+    private State(JsonNode node, String path) {
+      this.node = node;
+      this.path = path;
+
+      if (node.isObject()) {
+        fields = new HashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> iter = node.fields();
+        while (iter.hasNext()) {
+          Map.Entry<String, JsonNode> entry = iter.next();
+          fields.put(entry.getKey(), new State(entry.getValue(), path + "." + entry.getKey()));
+        }
+      }
+      else {
+        fields = null;
+      }
+
+      if (node.isArray() && (node.size() > 0)) {
+        String elementPath = path.equals("$") ? "$.[0]" : path + "[0]";
+        element = new State(node.get(0), elementPath);
+      }
+      else {
+        element = null;
+      }
+    }
+
+    JsonNode getNode() {
+      return node;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    boolean isLeaf() {
+      return node.isTextual();
+    }
+
+    boolean isArray() {
+      return node.isArray();
+    }
+
+    boolean isObject() {
+      return node.isObject();
+    }
+
+    // the state of the first element of an array node, null if there is none
+    State getElement() {
+      return element;
+    }
+
+    String getFormat() {
+      return node.asText();
+    }
+
+    CompiledFormat getCompiledFormat(String type) {
+      CompiledFormat cf = compiledFormat;
+      if (cf == null) {
+        cf = CompiledFormat.get(type, path, node.asText());
+        compiledFormat = cf;
+      }
+      return cf;
+    }
+
+    State getField(String field) {
+      return (fields == null) ? null : fields.get(field);
+    }
+
+    /*
+     * Returns the state reached from this one by the token, null if there is none. As in the traversal of
+     * the model document, an array token on a node that is not an array is an error, unless throwException
+     * is false in which case null is returned
+     */
+    State next(Token token, boolean throwException) {
+      if (token.isArray() == false) {
+        return getField(token.getField());
+      }
+
+      // an empty field name is the array at the root of a document that starts with an array
+      String field = token.getField();
+      State arrayState = null;
+      if (field.isEmpty()) {
+        arrayState = node.isArray() ? this : null;
+      }
+      else {
+        arrayState = getField(field);
+      }
+
+      if (arrayState == null) {
+        return null;
+      }
+
+      if (arrayState.node.isArray() == false) {
+        if (throwException == true) {
+          throw new RuntimeException("Path mismatch. Path specifies array but the field in document is not. Field ->"+field);
+        }
+        return null;
+      }
+
+      return arrayState.element;
+    }
+
+  }
+
+}
@@ -306,6 +306,22 @@ public interface Document {
    */
   Document getDocument(String path, String... vargs);
 
+  /**
+   * Get a read only view of a non leaf node. Unlike getDocument, nothing is copied - the view reads
+   * through to this document so it reflects later changes made to this document. Paths passed to the
+   * view are relative to the node, i.e. $ is the node itself, and for a typed document are validated
+   * against the part of the model at the node. For a view of an array, elements are addressed as
+   * $.[n] and the array itself as $.[]. Name value filters in the path are resolved to indexes when
+   * the view is created. XML documents do not support views
+   *
+   * @param path  the path
+   * @param vargs the values to replace the % characters in path
+   * @return Document
+   * @throws UnifyException If path is not found or path is a leaf node
+   * @throws UnsupportedOperationException If this document is an XML document
+   */
+  Document getView(String path, String... vargs);
+
   /**
    * Returns the content of the specified path as a new document
    * The path can only point to a complex object or an array element. It can also point to an array only if
@@ -337,6 +353,21 @@ public interface Document {
    */
   void setContent(Document fromDoc, String fromPath, String toPath, String... vargs);
 
+  /**
+   * Moves content from document to this document. Same as setContent except that the content is not
+   * copied - it is transferred to this document and removed from the from path of the from document.
+   * Use this in place of setContent when the from document is discarded afterwards. XML documents do
+   * not support moving content
+   *
+   * @param fromDoc  the document to move from
+   * @param fromPath the path in the document to move from (may contain % placeholders)
+   * @param toPath   the path in this document to move to (may contain % placeholders)
+   * @param vargs    the values to replace the % characters in from path and to path
+   * @throws UnifyException in the same cases as setContent
+   * @throws UnsupportedOperationException If this document is an XML document
+   */
+  void moveContent(Document fromDoc, String fromPath, String toPath, String... vargs);
+
   /**
    * Set the specified value in the specified path
    *
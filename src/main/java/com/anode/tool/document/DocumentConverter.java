@@ -0,0 +1,376 @@
+package com.anode.tool.document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.namespace.QName;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+
+/*
+ * Converts between json and xml in one pass over streams, without building either document in memory
+ *
+ * Json to xml pipes the json parser tokens into the xml generator. Fields become elements, arrays
+ * become repeated elements named after the field and a root array becomes repeated item elements.
+ *
+ * Xml to json pipes the xml parser tokens into the json generator. Xml has no arrays, so consecutive
+ * sibling elements with the same name become an array, as they do when xml is read into an XDocument.
+ * To know whether an element is the first of such a group, the tokens of each element are held back
+ * until its next sibling is seen. At most MAX_BUFFERED_TOKENS tokens are held back per nesting level.
+ * A larger element is written out as is, and it is an error for it to then be repeated
+ *
+ * Streams are not closed
+ */
+public final class DocumentConverter {
+
+  public static final String DEFAULT_ROOT_NAME = "root";
+
+  // name of the elements of an array at the root of a json document
+  public static final String ROOT_ARRAY_ITEM_NAME = "item";
+
+  private static final int MAX_BUFFERED_TOKENS = 65536;
+
+  private DocumentConverter() {
+  }
+
+  public static void jsonToXml(InputStream json, OutputStream xml) {
+    jsonToXml(json, xml, DEFAULT_ROOT_NAME);
+  }
+
+  public static void jsonToXml(InputStream json, OutputStream xml, String rootName) {
+    try (JsonParser parser = JDocument.objectMapper.getFactory().createParser(json)) {
+      writeXml(parser, xml, rootName);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1" + ex);
+    }
+  }
+
+  public static void xmlToJson(InputStream xml, OutputStream json) {
+    try (JsonParser parser = XDocument.xmlMapper.getFactory().createParser(xml);
+         JsonGenerator generator = JDocument.objectMapper.getFactory().createGenerator(json, JsonEncoding.UTF8)) {
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      copyXml(parser, new GeneratorSink(generator));
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1" + ex);
+    }
+  }
+
+  /**
+   * Writes a JDocument or an XDocument as xml directly from its tree
+   */
+  public static void writeXml(Document doc, OutputStream xml) {
+    writeXml(doc, xml, DEFAULT_ROOT_NAME);
+  }
+
+  public static void writeXml(Document doc, OutputStream xml, String rootName) {
+    try (JsonParser parser = getTreeParser(doc)) {
+      writeXml(parser, xml, rootName);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1" + ex);
+    }
+  }
+
+  /**
+   * Reads xml into an untyped JDocument
+   */
+  public static JDocument readXml(InputStream xml) {
+    try (JsonParser parser = XDocument.xmlMapper.getFactory().createParser(xml)) {
+      TokenBuffer buffer = new TokenBuffer(JDocument.objectMapper, false);
+      copyXml(parser, new GeneratorSink(buffer));
+      JsonNode node = JDocument.objectMapper.readTree(buffer.asParser());
+      return JDocument.newDocument(node);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1" + ex);
+    }
+  }
+
+  private static JsonParser getTreeParser(Document doc) throws IOException {
+    if (doc instanceof JDocument) {
+      return JDocument.objectMapper.treeAsTokens(((JDocument)doc).rootNode);
+    }
+    if (doc instanceof XDocument) {
+      return JDocument.objectMapper.treeAsTokens(((XDocument)doc).rootNode);
+    }
+    return JDocument.objectMapper.getFactory().createParser(doc.getJson());
+  }
+
+  private static void writeXml(JsonParser parser, OutputStream xml, String rootName) throws IOException {
+    try (ToXmlGenerator generator = XDocument.xmlMapper.getFactory().createGenerator(xml)) {
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.setNextName(new QName(rootName));
+      generator.initGenerator();
+
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        generator.writeStartObject();
+        generator.writeEndObject();
+      }
+      else if (token == JsonToken.START_ARRAY) {
+        // xml needs a single root element
+        generator.writeStartObject();
+        generator.writeFieldName(ROOT_ARRAY_ITEM_NAME);
+        generator.copyCurrentStructure(parser);
+        generator.writeEndObject();
+      }
+      else {
+        generator.copyCurrentStructure(parser);
+      }
+    }
+  }
+
+  private static void copyXml(JsonParser parser, Sink sink) throws IOException {
+    if (parser.nextToken() != null) {
+      copyValue(parser, sink);
+    }
+  }
+
+  // the parser is at the first token of the value
+  private static void copyValue(JsonParser parser, Sink sink) throws IOException {
+    JsonToken token = parser.currentToken();
+    if (token == JsonToken.START_OBJECT) {
+      copyObject(parser, sink);
+    }
+    else if (token == JsonToken.START_ARRAY) {
+      sink.writeStartArray();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        copyValue(parser, sink);
+      }
+      sink.writeEndArray();
+    }
+    else {
+      sink.copyCurrentEvent(parser);
+    }
+  }
+
+  private static void copyObject(JsonParser parser, Sink sink) throws IOException {
+    sink.writeStartObject();
+
+    // the group of consecutive siblings with the same name being copied
+    String groupName = null;
+    PendingValue pending = null;
+    boolean isArray = false;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.currentName();
+      parser.nextToken();
+
+      if (name.equals(groupName)) {
+        if (isArray == false) {
+          if (pending.isSpilled()) {
+            throw new RuntimeException("jdoc_err_75" + name);
+          }
+          sink.writeFieldName(name);
+          sink.writeStartArray();
+          pending.replay(sink);
+          pending = null;
+          isArray = true;
+        }
+        copyValue(parser, sink);
+        continue;
+      }
+
+      endGroup(sink, groupName, pending, isArray);
+      groupName = name;
+      pending = new PendingValue(sink, name);
+      isArray = false;
+      copyValue(parser, pending);
+    }
+
+    endGroup(sink, groupName, pending, isArray);
+    sink.writeEndObject();
+  }
+
+  private static void endGroup(Sink sink, String groupName, PendingValue pending, boolean isArray) throws IOException {
+    if (isArray == true) {
+      sink.writeEndArray();
+    }
+    else if ((pending != null) && (pending.isSpilled() == false)) {
+      sink.writeFieldName(groupName);
+      pending.replay(sink);
+    }
+  }
+
+  // the json tokens written by the xml to json copy
+  private interface Sink {
+
+    void copyCurrentEvent(JsonParser parser) throws IOException;
+
+    void writeFieldName(String name) throws IOException;
+
+    void writeStartObject() throws IOException;
+
+    void writeEndObject() throws IOException;
+
+    void writeStartArray() throws IOException;
+
+    void writeEndArray() throws IOException;
+
+  }
+
+  private static final class GeneratorSink implements Sink {
+
+    private final JsonGenerator generator;
+
+    GeneratorSink(JsonGenerator generator) {
+      this.generator = generator;
+    }
+
+    @Override
+    public void copyCurrentEvent(JsonParser parser) throws IOException {
+      generator.copyCurrentEvent(parser);
+    }
+
+    @Override
+    public void writeFieldName(String name) throws IOException {
+      generator.writeFieldName(name);
+    }
+
+    @Override
+    public void writeStartObject() throws IOException {
+      generator.writeStartObject();
+    }
+
+    @Override
+    public void writeEndObject() throws IOException {
+      generator.writeEndObject();
+    }
+
+    @Override
+    public void writeStartArray() throws IOException {
+      generator.writeStartArray();
+    }
+
+    @Override
+    public void writeEndArray() throws IOException {
+      generator.writeEndArray();
+    }
+
+  }
+
+  /*
+   * The value of the first element of a group, held back until it is known whether the group has more
+   * than one element. Once MAX_BUFFERED_TOKENS tokens are held back, the element is written out as a
+   * single field and the rest of its value goes straight to the target
+   */
+  private static final class PendingValue implements Sink {
+
+    private final Sink target;
+
+    private final String name;
+
+    private TokenBuffer buffer = new TokenBuffer(null, false);
+
+    private int count = 0;
+
+    PendingValue(Sink target, String name) {
+      this.target = target;
+      this.name = name;
+    }
+
+    boolean isSpilled() {
+      return (buffer == null);
+    }
+
+    void replay(Sink sink) throws IOException {
+      try (JsonParser parser = buffer.asParser()) {
+        while (parser.nextToken() != null) {
+          sink.copyCurrentEvent(parser);
+        }
+      }
+      buffer = null;
+    }
+
+    // returns the generator to write the next token to
+    private JsonGenerator next() throws IOException {
+      if (buffer == null) {
+        return null;
+      }
+      count++;
+      if (count > MAX_BUFFERED_TOKENS) {
+        target.writeFieldName(name);
+        replay(target);
+        return null;
+      }
+      return buffer;
+    }
+
+    @Override
+    public void copyCurrentEvent(JsonParser parser) throws IOException {
+      JsonGenerator generator = next();
+      if (generator == null) {
+        target.copyCurrentEvent(parser);
+      }
+      else {
+        generator.copyCurrentEvent(parser);
+      }
+    }
+
+    @Override
+    public void writeFieldName(String name) throws IOException {
+      JsonGenerator generator = next();
+      if (generator == null) {
+        target.writeFieldName(name);
+      }
+      else {
+        generator.writeFieldName(name);
+      }
+    }
+
+    @Override
+    public void writeStartObject() throws IOException {
+      JsonGenerator generator = next();
+      if (generator == null) {
+        target.writeStartObject();
+      }
+      else {
+        generator.writeStartObject();
+      }
+    }
+
+    @Override
+    public void writeEndObject() throws IOException {
+      JsonGenerator generator = next();
+      if (generator == null) {
+        target.writeEndObject();
+      }
+      else {
+        generator.writeEndObject();
+      }
+    }
+
+    @Override
+    public void writeStartArray() throws IOException {
+      JsonGenerator generator = next();
+      if (generator == null) {
+        target.writeStartArray();
+      }
+      else {
+        generator.writeStartArray();
+      }
+    }
+
+    @Override
+    public void writeEndArray() throws IOException {
+      JsonGenerator generator = next();
+      if (generator == null) {
+        target.writeEndArray();
+      }
+      else {
+        generator.writeEndArray();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,314 @@
+package com.anode.tool.document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.ValueNode;
+
+/*
+ * Validates the content of a document against its compiled model
+ *
+ * Documents with at least parallelThreshold nodes are validated on the common fork join pool. The
+ * children of any object or array node with at least MIN_SPLIT_SIZE children are split into ranges
+ * that are validated as separate tasks, each with its own error buffer. The buffers are merged in
+ * document order, so the error list, and the exception thrown by a failing leaf, are the same as
+ * those of a sequential validation
+ */
+final class DocumentValidator {
+
+  // number of children of a node above which its children are validated in parallel
+  private static final int MIN_SPLIT_SIZE = 64;
+
+  // number of document nodes above which a document is validated in parallel
+  private static volatile int parallelThreshold = 100000;
+
+  private DocumentValidator() {
+  }
+
+  static void setParallelThreshold(int nodes) {
+    parallelThreshold = nodes;
+  }
+
+  static int getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  /*
+   * Returns the list of validation errors. A leaf whose value does not match its format stops the
+   * validation and is thrown with the errors found before it, as in the sequential walk
+   */
+  static List<String> validate(CompiledModel.State modelState, JsonNode docNode, String basePath, String type, validationTypes validationType) {
+    boolean isParallel = (ForkJoinPool.getCommonPoolParallelism() > 1) && isLarge(docNode, parallelThreshold);
+    Errors errors = null;
+    if (isParallel == true) {
+      errors = ForkJoinPool.commonPool().invoke(new RootTask(modelState, docNode, basePath, type, validationType));
+    }
+    else {
+      errors = new Errors();
+      new Walker(type, validationType, false).walk(modelState, docNode, basePath, errors);
+    }
+
+    if (errors.exception != null) {
+      throw errors.exception;
+    }
+    if (errors.failure != null) {
+      throw new RuntimeException(errors.failure + errors.list);
+    }
+    return errors.list;
+  }
+
+  // counts the nodes of the document, stopping as soon as the threshold is reached. A node is counted
+  // with the children of its parent, the root on its own
+  static boolean isLarge(JsonNode docNode, int threshold) {
+    int count = 1;
+    Deque<JsonNode> stack = new ArrayDeque<>();
+    stack.push(docNode);
+    while (stack.isEmpty() == false) {
+      JsonNode node = stack.pop();
+      count = count + node.size();
+      if (count >= threshold) {
+        return true;
+      }
+      if (node.isContainerNode()) {
+        for (JsonNode child : node) {
+          if (child.isContainerNode()) {
+            stack.push(child);
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  // the errors of a part of the document
+  private static final class Errors {
+
+    private final List<String> list = new ArrayList<>();
+
+    // error code and path of the leaf that failed validation, the errors found before it are appended when thrown
+    private String failure = null;
+
+    // any other exception, thrown as is
+    private RuntimeException exception = null;
+
+    boolean isFailed() {
+      return (failure != null) || (exception != null);
+    }
+
+    // appends the errors of the part of the document that follows this one
+    void append(Errors errors) {
+      list.addAll(errors.list);
+      failure = errors.failure;
+      exception = errors.exception;
+    }
+
+  }
+
+  private static final class Walker {
+
+    private final String type;
+
+    private final validationTypes validationType;
+
+    private final boolean isParallel;
+
+    Walker(String type, validationTypes validationType, boolean isParallel) {
+      this.type = type;
+      this.validationType = validationType;
+      this.isParallel = isParallel;
+    }
+
+    void walk(CompiledModel.State modelState, JsonNode docNode, String basePath, Errors errors) {
+      // special handling in case the document starts with an array
+      if (modelState.isArray() && (basePath.equals("$."))) {
+        modelState = modelState.getElement();
+      }
+
+      // if the docNode is an array node then it will not have any fields and we need to handle it differently
+      if (docNode.getNodeType() == JsonNodeType.ARRAY) {
+        walkElements(modelState, docNode, basePath, errors);
+        return;
+      }
+
+      if (isParallel && (docNode.size() >= MIN_SPLIT_SIZE)) {
+        String[] fieldNames = new String[docNode.size()];
+        Iterator<String> iter = docNode.fieldNames();
+        for (int i = 0; iter.hasNext(); i++) {
+          fieldNames[i] = iter.next();
+        }
+        errors.append(new RangeTask(this, modelState, docNode, fieldNames, basePath, 0, fieldNames.length).invoke());
+        return;
+      }
+
+      Iterator<String> fieldNames = docNode.fieldNames();
+      while (fieldNames.hasNext()) {
+        walkField(modelState, docNode, fieldNames.next(), basePath, errors);
+        if (errors.isFailed()) {
+          return;
+        }
+      }
+    }
+
+    // all the elements of docNode are validated against elementModelState
+    void walkElements(CompiledModel.State elementModelState, JsonNode docNode, String basePath, Errors errors) {
+      if (isParallel && (docNode.size() >= MIN_SPLIT_SIZE)) {
+        errors.append(new RangeTask(this, elementModelState, docNode, null, basePath, 0, docNode.size()).invoke());
+        return;
+      }
+
+      walkRange(elementModelState, docNode, null, basePath, 0, docNode.size(), errors);
+    }
+
+    void walkRange(CompiledModel.State modelState, JsonNode docNode, String[] fieldNames, String basePath, int from, int to, Errors errors) {
+      for (int i = from; i < to; i++) {
+        if (fieldNames == null) {
+          walk(modelState, docNode.get(i), basePath + "[" + i + "]" + ".", errors);
+        }
+        else {
+          walkField(modelState, docNode, fieldNames[i], basePath, errors);
+        }
+        if (errors.isFailed()) {
+          return;
+        }
+      }
+    }
+
+    void walkField(CompiledModel.State modelState, JsonNode docNode, String docFieldName, String basePath, Errors errors) {
+      JsonNode docFieldNode = docNode.get(docFieldName);
+      CompiledModel.State modelFieldState = modelState.getField(docFieldName);
+
+      if (modelFieldState == null) {
+        // means that the field is not found in the data model. If we are not validating paths not found
+        // in the model we continue to the next path
+        if (validationType == validationTypes.ALL_DATA_PATHS) {
+          errors.list.add(basePath + docFieldName + " -> path not found in data model -> " + type);
+        }
+        return;
+      }
+
+      // if node is an @ArrayNode
+      if (docFieldNode.isArray() && modelFieldState.isArray()) {
+        walkElements(modelFieldState.getElement(), docFieldNode, basePath + docFieldName, errors);
+        return;
+      }
+
+      if (docFieldNode.isObject() && modelFieldState.isObject()) {
+        walk(modelFieldState, docFieldNode, basePath + docFieldName + ".", errors);
+        return;
+      }
+
+      if (docFieldNode instanceof ValueNode) {
+        // we have reached a property object, whose format is compiled once in the state of its model leaf
+        Object value = JDocument.getValidationValue(docFieldNode, basePath, docFieldName, type);
+        CompiledFormat cf = modelFieldState.isLeaf() ? modelFieldState.getCompiledFormat(type)
+            : CompiledFormat.get(type, basePath + docFieldName, modelFieldState.getFormat());
+        errors.failure = cf.check(value, basePath, docFieldName);
+        return;
+      }
+
+      errors.list.add(basePath + docFieldName + " -> mismatch in object type between document and data model -> " + type);
+    }
+
+  }
+
+  private static final class RootTask extends RecursiveTask<Errors> {
+
+    private static final long serialVersionUID = -6318840462513712530L;
+
+    private final CompiledModel.State modelState;
+
+    private final JsonNode docNode;
+
+    private final String basePath;
+
+    private final String type;
+
+    private final validationTypes validationType;
+
+    RootTask(CompiledModel.State modelState, JsonNode docNode, String basePath, String type, validationTypes validationType) {
+      this.modelState = modelState;
+      this.docNode = docNode;
+      this.basePath = basePath;
+      this.type = type;
+      this.validationType = validationType;
+    }
+
+    @Override
+    protected Errors compute() {
+      Errors errors = new Errors();
+      try {
+        new Walker(type, validationType, true).walk(modelState, docNode, basePath, errors);
+      }
+      catch (RuntimeException e) {
+        errors.exception = e;
+      }
+      return errors;
+    }
+
+  }
+
+  // validates the children from..to of an object (fieldNames not null) or of an array
+  private static final class RangeTask extends RecursiveTask<Errors> {
+
+    private static final long serialVersionUID = 2750392617048853104L;
+
+    private final Walker walker;
+
+    private final CompiledModel.State modelState;
+
+    private final JsonNode docNode;
+
+    private final String[] fieldNames;
+
+    private final String basePath;
+
+    private final int from;
+
+    private final int to;
+
+    RangeTask(Walker walker, CompiledModel.State modelState, JsonNode docNode, String[] fieldNames, String basePath, int from, int to) {
+      this.walker = walker;
+      this.modelState = modelState;
+      this.docNode = docNode;
+      this.fieldNames = fieldNames;
+      this.basePath = basePath;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Errors compute() {
+      if ((to - from) >= MIN_SPLIT_SIZE) {
+        int mid = (from + to) >>> 1;
+        RangeTask right = new RangeTask(walker, modelState, docNode, fieldNames, basePath, mid, to);
+        right.fork();
+        Errors errors = new RangeTask(walker, modelState, docNode, fieldNames, basePath, from, mid).compute();
+        if (errors.isFailed()) {
+          // the rest of the document is not looked at by a sequential validation either
+          right.cancel(false);
+          return errors;
+        }
+        errors.append(right.join());
+        return errors;
+      }
+
+      Errors errors = new Errors();
+      try {
+        walker.walkRange(modelState, docNode, fieldNames, basePath, from, to, errors);
+      }
+      catch (RuntimeException e) {
+        errors.exception = e;
+      }
+      return errors;
+    }
+
+  }
+
+}
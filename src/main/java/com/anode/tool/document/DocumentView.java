@@ -0,0 +1,332 @@
+package com.anode.tool.document;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/*
+ * A read only view of a non leaf node of a JDocument, returned by getView
+ *
+ * Nothing is copied. Every call is translated to the corresponding path in the parent document by
+ * prefixing it with the path of the node, so reads see the current content of the parent and, for a
+ * typed parent, are validated against the part of the model at the node
+ */
+class DocumentView implements Document {
+
+  private final JDocument parent;
+
+  // static path of the node in the parent, name value filters already resolved to indexes
+  private final String prefix;
+
+  DocumentView(JDocument parent, String prefix) {
+    this.parent = parent;
+    this.prefix = prefix;
+  }
+
+  JDocument getParent() {
+    return parent;
+  }
+
+  /*
+   * The vargs are substituted here, before the prefix is added, so that a % in a field name of the
+   * prefix is not taken for one, and the path given to the parent has none left
+   */
+  String toParentPath(String path, String... vargs) {
+    if (vargs.length > 0) {
+      path = JDocument.getStaticPath(path, vargs);
+    }
+    if (path.equals("$")) {
+      return prefix;
+    }
+
+    // path is of the form $.<rest>, or $[<filter>]<rest> or $.[<filter>]<rest> for a view of an array
+    String rest = path.substring(1);
+    if (rest.startsWith(".[")) {
+      rest = rest.substring(1);
+    }
+    return prefix + rest;
+  }
+
+  // the document rooted at the node without copying it
+  private JDocument getNodeDocument() {
+    return JDocument.newDocument(parent.getJsonNode(prefix));
+  }
+
+  @Override
+  public boolean isTyped() {
+    return parent.isTyped();
+  }
+
+  @Override
+  public String getType() {
+    return parent.getType();
+  }
+
+  @Override
+  public validationTypes getValidationType() {
+    return parent.getValidationType();
+  }
+
+  @Override
+  public DataType getLeafNodeDataType(String path, String... vargs) {
+    return parent.getLeafNodeDataType(toParentPath(path, vargs));
+  }
+
+  @Override
+  public DataType getArrayValueLeafNodeDataType(String path, String... vargs) {
+    return parent.getArrayValueLeafNodeDataType(toParentPath(path, vargs));
+  }
+
+  @Override
+  public void setType(String type) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  @Deprecated
+  public void setType(String type, boolean validateAtReadWriteOnly) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setType(String type, validationTypes validationType) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void empty() {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void deletePaths(List<String> pathsToDelete) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void deletePath(String path, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public int getArraySize(String path, String... vargs) {
+    return parent.getArraySize(toParentPath(path, vargs));
+  }
+
+  @Override
+  public int getArrayIndex(String path, String... vargs) {
+    return parent.getArrayIndex(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Boolean getBoolean(String path, String... vargs) {
+    return parent.getBoolean(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Integer getInteger(String path, String... vargs) {
+    return parent.getInteger(toParentPath(path, vargs));
+  }
+
+  @Override
+  public String getString(String path, String... vargs) {
+    return parent.getString(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Long getLong(String path, String... vargs) {
+    return parent.getLong(toParentPath(path, vargs));
+  }
+
+  @Override
+  public BigDecimal getBigDecimal(String path, String... vargs) {
+    return parent.getBigDecimal(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Object getValue(String path, String... vargs) {
+    return parent.getValue(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Object getArrayValue(String path, String... vargs) {
+    return parent.getArrayValue(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Boolean getArrayValueBoolean(String path, String... vargs) {
+    return parent.getArrayValueBoolean(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Integer getArrayValueInteger(String path, String... vargs) {
+    return parent.getArrayValueInteger(toParentPath(path, vargs));
+  }
+
+  @Override
+  public String getArrayValueString(String path, String... vargs) {
+    return parent.getArrayValueString(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Long getArrayValueLong(String path, String... vargs) {
+    return parent.getArrayValueLong(toParentPath(path, vargs));
+  }
+
+  @Override
+  public BigDecimal getArrayValueBigDecimal(String path, String... vargs) {
+    return parent.getArrayValueBigDecimal(toParentPath(path, vargs));
+  }
+
+  @Override
+  public String getJson() {
+    return getNodeDocument().getJson();
+  }
+
+  @Override
+  public String getPrettyPrintJson() {
+    return getNodeDocument().getPrettyPrintJson();
+  }
+
+  @Override
+  public boolean pathExists(String path, String... vargs) {
+    return parent.pathExists(toParentPath(path, vargs));
+  }
+
+  @Override
+  public boolean isArray(String path, String... vargs) {
+    return parent.isArray(toParentPath(path, vargs));
+  }
+
+  @Override
+  public boolean isLeafNode(String path, String... vargs) {
+    return parent.isLeafNode(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Document getDocument(String path, String... vargs) {
+    return parent.getDocument(toParentPath(path, vargs));
+  }
+
+  @Override
+  public Document getView(String path, String... vargs) {
+    return parent.getView(toParentPath(path, vargs));
+  }
+
+  /**
+   * If includeFullPath is true, the full path is the path from the root of the parent document
+   */
+  @Override
+  public Document getContent(String path, boolean returnTypedDocument, boolean includeFullPath, String... vargs) {
+    return parent.getContent(toParentPath(path, vargs), returnTypedDocument, includeFullPath);
+  }
+
+  @Override
+  public void setContent(Document fromDoc, String fromPath, String toPath, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void moveContent(Document fromDoc, String fromPath, String toPath, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setBoolean(String path, boolean value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setInteger(String path, int value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setLong(String path, long value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setBigDecimal(String path, BigDecimal value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setString(String path, String value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setArrayValueBoolean(String path, boolean value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setArrayValueInteger(String path, int value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setArrayValueLong(String path, long value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setArrayValueBigDecimal(String path, BigDecimal value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void setArrayValueString(String path, String value, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  /**
+   * Returns an untyped copy of the node
+   */
+  @Override
+  public Document deepCopy() {
+    return getNodeDocument().deepCopy();
+  }
+
+  @Override
+  public void merge(Document d, List<String> pathsToDelete) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public List<String> flatten() {
+    return getNodeDocument().flatten();
+  }
+
+  @Override
+  public List<PathValue> flattenWithValues() {
+    return getNodeDocument().flattenWithValues();
+  }
+
+  @Override
+  public List<DiffInfo> getDifferences(Document right, boolean onlyDifferences) {
+    return getNodeDocument().getDifferences(right, onlyDifferences);
+  }
+
+  @Override
+  public List<DiffInfo> getDifferences(String leftPath, Document right, String rightPath, boolean onlyDifferences) {
+    return parent.getDifferences(toParentPath(leftPath), right, rightPath, onlyDifferences);
+  }
+
+  @Override
+  @Deprecated
+  public void validate(String type) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void validateAllPaths(String type) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+  @Override
+  public void validateModelPaths(String type) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
+}
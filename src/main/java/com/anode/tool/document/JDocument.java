@@ -3,8 +3,6 @@ package com.anode.tool.document;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.text.MessageFormat;
-import java.time.format.DateTimeFormatter;
-import java.time.format.ResolverStyle;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -13,11 +11,10 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.core.JsonParser;
@@ -52,9 +49,6 @@ public class JDocument implements Document {
     // for each model document, store a map of the constraint string and the corresponding JsonNode
     private static Map<String, JsonNode> docModelPaths = new ConcurrentHashMap<>();
     
-    // for each regular expression pattern, store the compiled pattern
-    private static Map<String, Pattern> compiledPatterns = new ConcurrentHashMap<>();
-  
     private static validationTypes defaultValidationType = validationTypes.ALL_DATA_PATHS;
   
     // type of the document
@@ -106,6 +100,19 @@ public class JDocument implements Document {
           return defaultValidationType;
         }
       
+        /**
+         * Sets the number of nodes at or above which a typed document is validated in parallel on the common
+         * fork join pool. The errors reported are the same as for a sequential validation. Set to
+         * Integer.MAX_VALUE to always validate sequentially. Defaults to 100000
+         */
+        public static void setParallelValidationThreshold(int nodes) {
+          DocumentValidator.setParallelThreshold(nodes);
+        }
+      
+        public static int getParallelValidationThreshold() {
+          return DocumentValidator.getParallelThreshold();
+        }
+      
         /**
          * This method is deprecated - use the new method getDefaultValidationType()
          */
@@ -133,6 +140,11 @@ public class JDocument implements Document {
           }
         }
       
+        // wraps an already built tree without parsing
+        private JDocument(JsonNode rootNode) {
+          this.rootNode = rootNode;
+        }
+      
         public JDocument(String json) {
           try {
             rootNode = objectMapper.readTree(json);
@@ -199,16 +211,9 @@ public class JDocument implements Document {
             throw new RuntimeException("jdoc_err_60");
           }
           path = getStaticPath(path, vargs);
-          validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = getModelPath(path);
-          checkPathExistsInModel(modelPath);
-          String format = getFieldFormat(path, modelPath, false);
-          JsonNode node = getFormatNode(type, path, format);
-          String type = node.get(FormatFields.TYPE).asText();
-          if (type == null) {
-            throw new RuntimeException("Type value not found for model path "+modelPath);
-          }
-          return DataType.valueOf(type.toUpperCase());
+          List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
+          CompiledModel.State modelState = checkPathExistsInModel(path, tokenList);
+          return getCompiledFormat(path, tokenList, modelState, false).getDataType();
         }
       
         @Override
@@ -217,16 +222,9 @@ public class JDocument implements Document {
             throw new RuntimeException("jdoc_err_60");
           }
           path = getStaticPath(path, vargs);
-          validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = getModelPath(path);
-          checkPathExistsInModel(modelPath);
-          String format = getFieldFormat(path, modelPath, true);
-          JsonNode node = getFormatNode(type, path, format);
-          String type = node.get(FormatFields.TYPE).asText();
-          if (type == null) {
-            throw new RuntimeException("Type value not found for model path "+ modelPath);
-          }
-          return DataType.valueOf(type.toUpperCase());
+          List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
+          CompiledModel.State modelState = checkPathExistsInModel(path, tokenList);
+          return getCompiledFormat(path, tokenList, modelState, true).getDataType();
         }
       
         @Override
@@ -318,7 +316,7 @@ public class JDocument implements Document {
           if (md == null) {
             throw new RuntimeException("Document model not found for "+ type);
           }
-          List<String> errorList = validate(((JDocument)md).rootNode, rootNode, "$.",type, validationType);
+          List<String> errorList = validate(CompiledModel.get(type, md).getRoot(), rootNode, "$.",type, validationType);
           processErrors(errorList);
           if (isTyped() == true) {
             isValidated = true;
@@ -418,7 +416,7 @@ public class JDocument implements Document {
       
             if (isTyped() == true) {
               validateFilterNames(path, tokens);
-              checkPathExistsInModel(getModelPath(path));
+              checkPathExistsInModel(path, tokens);
             }
       
             String s = replaceNameValuePairsWithIndexes(tokens);
@@ -499,7 +497,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.PATH_EXISTS, PathAccessType.OBJECT);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
       
           JsonNode node = getJsonNode(tokenList);
@@ -522,7 +520,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.PATH_EXISTS, PathAccessType.OBJECT);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
       
           JsonNode node = getJsonNode(tokenList);
@@ -550,7 +548,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.PATH_EXISTS, PathAccessType.OBJECT);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
       
           JsonNode node = getJsonNode(tokenList);
@@ -563,10 +561,73 @@ public class JDocument implements Document {
             throw new RuntimeException("Path specified cannot be a leaf node. Path -> "+ path);
           }
       
-          node = node.deepCopy();
-          JDocument d = new JDocument();
-          d.rootNode = node;
-          return d;
+          return new JDocument(node.deepCopy());
+        }
+      
+        @Override
+        public Document getView(String path, String... vargs) {
+          path = getStaticPath(path, vargs);
+          List<Token> tokenList = validatePath(path, api.PATH_EXISTS, PathAccessType.OBJECT);
+          if (tokenList.isEmpty()) {
+            return new DocumentView(this, "$");
+          }
+      
+          if (isTyped()) {
+            validateFilterNames(path, tokenList);
+            checkPathExistsInModel(path, tokenList);
+          }
+      
+          JsonNode node = getJsonNode(tokenList);
+      
+          if (node == null) {
+            throw new RuntimeException("Path does not exist in document. Path -> "+ path);
+          }
+      
+          if (node.isValueNode()) {
+            throw new RuntimeException("Path specified cannot be a leaf node. Path -> "+ path);
+          }
+      
+          return new DocumentView(this, getIndexedPath(tokenList));
+        }
+      
+        // returns the path with name value filters replaced by the index of the matched element and a
+        // trailing empty array filter removed. The path must exist in the document
+        private String getIndexedPath(List<Token> tokenList) {
+          StringBuilder sb = new StringBuilder("$");
+          JsonNode node = rootNode;
+      
+          for (Token token : tokenList) {
+            String field = token.getField();
+            sb.append('.').append(StringUtils.escapeChars(field, '\\', '.', '[', ']', '='));
+      
+            if (token.isArray() == false) {
+              node = node.get(field);
+              continue;
+            }
+      
+            ArrayToken.Filter filter = ((ArrayToken)token).getFilter();
+            JsonNode arrayNode = field.isEmpty() ? node : node.get(field);
+            int index = -1;
+            switch (filter.getType()) {
+              case INDEX:
+                index = filter.getIndex();
+                break;
+      
+              case NAME_VALUE:
+                index = getMatchingArrayElementIndex((ArrayNode)arrayNode, filter.getField(), filter.getValue());
+                break;
+      
+              default:
+                // only the leaf token can be an empty array filter
+                node = arrayNode;
+                continue;
+            }
+      
+            sb.append('[').append(index).append(']');
+            node = arrayNode.get(index);
+          }
+      
+          return sb.toString();
         }
       
         /**
@@ -651,7 +712,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_INDEX, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
           return getArrayIndex(path, tokenList);
         }
@@ -682,7 +743,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_SIZE, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
           return getArraySize(path, tokenList);
         }
@@ -1400,6 +1461,11 @@ public class JDocument implements Document {
         }
       
         public static String getStaticPath(String path, String... vargs) {
+          // a path without vargs is already static, a % in it is part of a field name
+          if (vargs.length == 0) {
+            return path;
+          }
+      
           int size = path.length();
           StringBuffer sb = new StringBuffer();
           int counter = 0;
@@ -1412,7 +1478,8 @@ public class JDocument implements Document {
                 sb.append(StringUtils.escapeChars(vargs[counter++], '\\', '.', '[', ']', '='));
               }
               else {
-                if (sb.charAt(i - 1) == '\\') {
+                // the previous character of the path, the vargs substituted before may be longer than a %
+                if (path.charAt(i - 1) == '\\') {
                   sb.append(c);
                 }
                 else {
@@ -1438,12 +1505,12 @@ public class JDocument implements Document {
         public Object getValue(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, null, tokenList);
           Object value = tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, false);
+            checkFieldValue(path, tokenList, modelState, value, false);
           }
           return value;
         }
@@ -1452,43 +1519,41 @@ public class JDocument implements Document {
         public String getString(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, String.class, tokenList);
           String value = (String)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, false);
+            checkFieldValue(path, tokenList, modelState, value, false);
           }
           return value;
         }
       
-        private void checkFieldValue(String path, String modelPath, Object value, boolean isValueArray) {
+        private void checkFieldValue(String path, List<Token> tokenList, CompiledModel.State modelState, Object value, boolean isValueArray) {
           if ((isTyped() == true) && (isValidated == false) && (validationType == validationTypes.ONLY_AT_READ_WRITE)) {
-            String format = getFieldFormat(path, modelPath, isValueArray);
-            validateField(format, value, modelPath, null, type);
+            validateField(path, tokenList, modelState, value, isValueArray);
           }
         }
       
-        private String checkPathInModel(String path, List<Token> tokenList) {
-          String modelPath = null;
+        private CompiledModel.State checkPathInModel(String path, List<Token> tokenList) {
+          CompiledModel.State modelState = null;
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            modelPath = getModelPath(path);
-            checkPathExistsInModel(modelPath);
+            modelState = checkPathExistsInModel(path, tokenList);
           }
-          return modelPath;
+          return modelState;
         }
       
         @Override
         public Integer getInteger(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, Integer.class, tokenList);
           Integer value = (Integer)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, false);
+            checkFieldValue(path, tokenList, modelState, value, false);
           }
           return value;
         }
@@ -1497,12 +1562,12 @@ public class JDocument implements Document {
         public Boolean getBoolean(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, Boolean.class, tokenList);
           Boolean value = (Boolean)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, false);
+            checkFieldValue(path, tokenList, modelState, value, false);
           }
           return value;
         }
@@ -1511,12 +1576,12 @@ public class JDocument implements Document {
         public Long getLong(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, Long.class, tokenList);
           Long value = (Long)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, false);
+            checkFieldValue(path, tokenList, modelState, value, false);
           }
           return value;
         }
@@ -1525,12 +1590,12 @@ public class JDocument implements Document {
         public BigDecimal getBigDecimal(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, BigDecimal.class, tokenList);
           BigDecimal value = (BigDecimal)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, false);
+            checkFieldValue(path, tokenList, modelState, value, false);
           }
           return value;
         }
@@ -1539,12 +1604,12 @@ public class JDocument implements Document {
         public Object getArrayValue(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_VALUE, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, null, tokenList);
           Object value = tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, true);
+            checkFieldValue(path, tokenList, modelState, value, true);
           }
           return value;
         }
@@ -1553,12 +1618,12 @@ public class JDocument implements Document {
         public String getArrayValueString(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_VALUE, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, String.class, tokenList);
           String value = (String)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, true);
+            checkFieldValue(path, tokenList, modelState, value, true);
           }
           return value;
         }
@@ -1567,12 +1632,12 @@ public class JDocument implements Document {
         public Integer getArrayValueInteger(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_VALUE, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, Integer.class, tokenList);
           Integer value = (Integer)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, true);
+            checkFieldValue(path, tokenList, modelState, value, true);
           }
           return value;
         }
@@ -1581,12 +1646,12 @@ public class JDocument implements Document {
         public Boolean getArrayValueBoolean(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_VALUE, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, Boolean.class, tokenList);
           Boolean value = (Boolean)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, true);
+            checkFieldValue(path, tokenList, modelState, value, true);
           }
           return value;
         }
@@ -1595,12 +1660,12 @@ public class JDocument implements Document {
         public Long getArrayValueLong(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_VALUE, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, Long.class, tokenList);
           Long value = (Long)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, true);
+            checkFieldValue(path, tokenList, modelState, value, true);
           }
           return value;
         }
@@ -1609,12 +1674,12 @@ public class JDocument implements Document {
         public BigDecimal getArrayValueBigDecimal(String path, String... vargs) {
           path = getStaticPath(path, vargs);
           List<Token> tokenList = validatePath(path, api.GET_ARRAY_VALUE, PathAccessType.VALUE);
-          String modelPath = checkPathInModel(path, tokenList);
+          CompiledModel.State modelState = checkPathInModel(path, tokenList);
           Tuple2<Object, Boolean> tuple2 = getValue(path, BigDecimal.class, tokenList);
           BigDecimal value = (BigDecimal)tuple2._1;
           boolean isPathPresent = tuple2._2;
           if (isPathPresent == true) {
-            checkFieldValue(path, modelPath, value, true);
+            checkFieldValue(path, tokenList, modelState, value, true);
           }
           return value;
         }
@@ -1625,7 +1690,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value);
+            validateField(path, tokenList, value);
           }
           setValue(path, tokenList, value);
         }
@@ -1636,7 +1701,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value);
+            validateField(path, tokenList, value);
           }
           setValue(path, tokenList, value);
         }
@@ -1647,7 +1712,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value);
+            validateField(path, tokenList, value);
           }
           setValue(path, tokenList, value);
         }
@@ -1658,7 +1723,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value);
+            validateField(path, tokenList, value);
           }
           setValue(path, tokenList, value);
         }
@@ -1669,7 +1734,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value);
+            validateField(path, tokenList, value);
           }
           setValue(path, tokenList, value);
         }
@@ -1680,7 +1745,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET_ARRAY_VALUE, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value, true);
+            validateField(path, tokenList, value, true);
           }
           setValue(path, tokenList, value);
         }
@@ -1691,7 +1756,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET_ARRAY_VALUE, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value, true);
+            validateField(path, tokenList, value, true);
           }
           setValue(path, tokenList, value);
         }
@@ -1702,7 +1767,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET_ARRAY_VALUE, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value, true);
+            validateField(path, tokenList, value, true);
           }
           setValue(path, tokenList, value);
         }
@@ -1713,7 +1778,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET_ARRAY_VALUE, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value, true);
+            validateField(path, tokenList, value, true);
           }
           setValue(path, tokenList, value);
         }
@@ -1724,13 +1789,25 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.SET_ARRAY_VALUE, PathAccessType.VALUE);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            validateField(path, value, true);
+            validateField(path, tokenList, value, true);
           }
           setValue(path, tokenList, value);
         }
       
         @Override
         public void setContent(Document fromDoc, String fromPath, String toPath, String... vargs) {
+          setContent(fromDoc, fromPath, toPath, false, vargs);
+        }
+      
+        @Override
+        public void moveContent(Document fromDoc, String fromPath, String toPath, String... vargs) {
+          if (fromDoc instanceof DocumentView) {
+            throw new RuntimeException("jdoc_err_19");
+          }
+          setContent(fromDoc, fromPath, toPath, true, vargs);
+        }
+      
+        private void setContent(Document fromDoc, String fromPath, String toPath, boolean isMove, String... vargs) {
           if (vargs.length > 0) {
             int count = StringUtils.getCount(fromPath, '%');
             fromPath = getStaticPath(fromPath, vargs);
@@ -1742,6 +1819,13 @@ public class JDocument implements Document {
             toPath = getStaticPath(toPath, vargs1);
           }
       
+          // a view reads from the document it was created on
+          if (fromDoc instanceof DocumentView) {
+            DocumentView view = (DocumentView)fromDoc;
+            fromPath = view.toParentPath(fromPath);
+            fromDoc = view.getParent();
+          }
+      
           if (isTyped()) {
             validate(fromDoc, fromPath, toPath);
           }
@@ -1752,10 +1836,10 @@ public class JDocument implements Document {
             // from node handling
             JsonNodeType fromNodeType = null;
       
-            List<Token> tokenList = parse(fromPath);
-            validatePath1(fromPath, api.CONTENT, tokenList, PathAccessType.OBJECT);
+            List<Token> fromTokenList = parse(fromPath);
+            validatePath1(fromPath, api.CONTENT, fromTokenList, PathAccessType.OBJECT);
       
-            JsonNode fromNode = traverse(((JDocument)fromDoc).rootNode, tokenList, false);
+            JsonNode fromNode = traverse(((JDocument)fromDoc).rootNode, fromTokenList, false);
             if (fromNode == null) {
               throw new RuntimeException("jdoc_err_21"+fromPath);
             }
@@ -1763,14 +1847,28 @@ public class JDocument implements Document {
             if ((fromNodeType != JsonNodeType.ARRAY) && (fromNodeType != JsonNodeType.OBJECT)) {
               throw new RuntimeException("jdoc_err_22"+fromPath);
             }
-            fromNode = fromNode.deepCopy();
+      
+            // when moving, the children are transferred as is and the from node is detached from the
+            // from document below so that the two documents never share nodes
+            if (isMove == false) {
+              fromNode = fromNode.deepCopy();
+            }
       
             // to node handling
             JsonNodeType toNodeType = null;
       
-            tokenList = parse(toPath);
+            List<Token> tokenList = parse(toPath);
             validatePath1(toPath, api.CONTENT, tokenList, PathAccessType.OBJECT);
       
+            // a node moved into one of its descendants would contain itself, and one moved into one of
+            // its ancestors would be deleted with the from path after the move
+            if (isMove && (fromDoc == this) && (fromTokenList.size() != tokenList.size())) {
+              boolean fromIsShorter = fromTokenList.size() < tokenList.size();
+              if (isPrefix(fromIsShorter ? fromTokenList : tokenList, fromIsShorter ? tokenList : fromTokenList)) {
+                throw new RuntimeException("jdoc_err_76"+fromPath);
+              }
+            }
+      
             JsonNode toNode = traverse(rootNode, tokenList, true);
             toNodeType = toNode.getNodeType();
             if ((toNodeType != JsonNodeType.ARRAY) && (toNodeType != JsonNodeType.OBJECT)) {
@@ -1781,6 +1879,11 @@ public class JDocument implements Document {
               throw new RuntimeException("jdoc_err_24");
             }
       
+            if (toNode == fromNode) {
+              // moving a node onto itself
+              break;
+            }
+      
             if (fromNodeType == JsonNodeType.OBJECT) {
               ((ObjectNode)toNode).setAll((ObjectNode)fromNode);
             }
@@ -1788,10 +1891,57 @@ public class JDocument implements Document {
               ((ArrayNode)toNode).removeAll();
               ((ArrayNode)toNode).addAll((ArrayNode)fromNode);
             }
+      
+            if (isMove == true) {
+              JDocument fd = (JDocument)fromDoc;
+              if (fromTokenList.isEmpty()) {
+                fd.empty();
+              }
+              else {
+                fd.deletePath(fromPath, fromTokenList);
+              }
+            }
             break;
           }
         }
       
+        // whether the path of the shorter token list is the start of the path of the longer one
+        private static boolean isPrefix(List<Token> shorter, List<Token> longer) {
+          for (int i = 0; i < shorter.size(); i++) {
+            Token t1 = shorter.get(i);
+            Token t2 = longer.get(i);
+            if ((t1.getField().equals(t2.getField()) == false) || (t1.isArray() != t2.isArray())) {
+              return false;
+            }
+            if (t1.isArray() == false) {
+              continue;
+            }
+      
+            ArrayToken.Filter f1 = ((ArrayToken)t1).getFilter();
+            ArrayToken.Filter f2 = ((ArrayToken)t2).getFilter();
+            // an empty filter is the whole array, which holds any of its elements
+            if (f1.getType() == ArrayToken.FilterType.EMPTY) {
+              continue;
+            }
+            if ((f1.getType() != f2.getType()) || (f1.getIndex() != f2.getIndex())
+                || (Objects.equals(f1.getField(), f2.getField()) == false) || (Objects.equals(f1.getValue(), f2.getValue()) == false)) {
+              return false;
+            }
+          }
+          return true;
+        }
+      
+        // used by ModelCodec to wrap a tree that has been validated against the model while it was parsed
+        static JDocument newDocument(JsonNode rootNode) {
+          return new JDocument(rootNode);
+        }
+      
+        static JDocument newTypedDocument(String type, JsonNode rootNode, validationTypes validationType, boolean isValidated) {
+          JDocument d = new JDocument(rootNode);
+          d.copyInstanceFields(d, type, validationType, isValidated);
+          return d;
+        }
+      
         private void copyInstanceFields(JDocument d, String type, validationTypes validationType, boolean isValidated) {
           d.type = type;
           d.validationType = validationType;
@@ -1895,7 +2045,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.DELETE_PATH, PathAccessType.OBJECT);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
       
           // we first check if the path exists in the document only then do we go ahead to delete it
@@ -1911,7 +2061,7 @@ public class JDocument implements Document {
           List<Token> tokenList = validatePath(path, api.PATH_EXISTS, PathAccessType.OBJECT);
           if (isTyped()) {
             validateFilterNames(path, tokenList);
-            checkPathExistsInModel(getModelPath(path));
+            checkPathExistsInModel(path, tokenList);
           }
       
           JsonNode node = getJsonNode(tokenList);
@@ -2102,25 +2252,51 @@ public class JDocument implements Document {
           return format;
         }
       
-        private void checkPathExistsInModel(String path) {
+        private CompiledModel getCompiledModel() {
           Document md = docModels.get(type);
-          boolean b = md.pathExists(path);
-          if (b == false) {
-            throw new RuntimeException("jdoc_err_38"+type+ path);
+          if (md == null) {
+            throw new RuntimeException("jdoc_err_29"+type);
           }
+          return CompiledModel.get(type, md);
         }
       
-        private void validateField(String path, Object value) {
-          validateField(path, value, false);
+        // returns the state of the path in the compiled model. The model path string is only built for the error
+        private CompiledModel.State checkPathExistsInModel(String path, List<Token> tokenList) {
+          CompiledModel.State modelState = getCompiledModel().getState(tokenList);
+          if (modelState == null) {
+            throw new RuntimeException("jdoc_err_38"+type+ getModelPath(path));
+          }
+          return modelState;
         }
       
-        private void validateField(String path, Object value, boolean isValueArray) {
+        private CompiledFormat getCompiledFormat(String path, List<Token> tokenList, CompiledModel.State modelState, boolean isValueArray) {
+          boolean isArrayToken = tokenList.get(tokenList.size() - 1).isArray();
+          if ((modelState != null) && modelState.isLeaf() && (isArrayToken == isValueArray)) {
+            return modelState.getCompiledFormat(type);
+          }
+      
+          // the path does not lead to a leaf of the model. Look it up in the model document which reports the error
           String modelPath = getModelPath(path);
           String format = getFieldFormat(path, modelPath, isValueArray);
-          validateField(format, value, modelPath, null, type);
+          return CompiledFormat.get(type, modelPath, format);
+        }
+      
+        private void validateField(String path, List<Token> tokenList, Object value) {
+          validateField(path, tokenList, value, false);
+        }
+      
+        private void validateField(String path, List<Token> tokenList, Object value, boolean isValueArray) {
+          validateField(path, tokenList, getCompiledModel().getState(tokenList), value, isValueArray);
         }
       
-        private void processErrors(List<String> errorList) {
+        private void validateField(String path, List<Token> tokenList, CompiledModel.State modelState, Object value, boolean isValueArray) {
+          CompiledFormat cf = getCompiledFormat(path, tokenList, modelState, isValueArray);
+          if (cf.isValid(value) == false) {
+            cf.validate(value, getModelPath(path), null);
+          }
+        }
+      
+        static void processErrors(List<String> errorList) {
           if (errorList.size() > 0) {
             StringBuffer sb = new StringBuffer();
             errorList.stream().forEach(s -> {
@@ -2345,181 +2521,24 @@ public class JDocument implements Document {
 
   
     private void validateField(String format, Object value, String path, List<String> errorList, String type) {
-      JsonNode node = getFormatNode(type, path, format);
-  
-      while (true) {
-        // check that the format field is specified if we are dealing with a date
-        DataType dataType = DataType.valueOf(node.get(FormatFields.TYPE).asText().toUpperCase());
-  
-        // check that a date field has to have a format. Whether the format is correct or not will be validated later
-        if (dataType == DataType.DATE) {
-          String formatValue = node.get(FormatFields.FORMAT).asText();
-          if (formatValue.isEmpty() == true) {
-            throw new RuntimeException("jdoc_err_71"+path+ errorList);
-          }
-        }
-  
-        // if the value is null, check if nulls are allowed
-        if (value == null) {
-          JsonNode node1 = node.get(FormatFields.NULL_ALLOWED);
-          boolean isNullAllowed = false;
-          if (node1 != null) {
-            isNullAllowed = node.get(FormatFields.NULL_ALLOWED).booleanValue();
-          }
-          if (isNullAllowed == false) {
-            throw new RuntimeException("jdoc_err_36"+path+ errorList);
-          }
-          break;
-        }
-  
-        // check data types
-        switch (dataType) {
-          case STRING:
-            if ((value instanceof String) == false) {
-                throw new RuntimeException("jdoc_err_37"+path+ errorList);
-            }
-            break;
-  
-          case BOOLEAN:
-            if ((value instanceof Boolean) == false) {
-                throw new RuntimeException("jdoc_err_37"+path+errorList);
-            }
-            break;
-  
-          case DATE:
-            if ((value instanceof String) == false) {
-                throw new RuntimeException("jdoc_err_37"+path+errorList);
-            }
-            break;
-  
-          case INTEGER:
-            if (((value instanceof Integer) == false)) {
-                throw new RuntimeException("jdoc_err_37"+path+errorList);
-            }
-            break;
-  
-          case LONG:
-            if (((value instanceof Long) == false)) {
-                throw new RuntimeException("jdoc_err_37"+path+errorList);
-            }
-            break;
-  
-          case DECIMAL:
-            // Couchbase stores a decimal value of 10.00 as 10 in the json document
-            // hence when we read the document and construct the typed document we
-            // will need to check against int and long data types as well
-            if (((value instanceof BigDecimal) == false) && ((value instanceof Integer) == false) && ((value instanceof Long) == false)) {
-                throw new RuntimeException(
-                    "jdoc_err_37"+path+errorList);
-            }
-            break;
-  
-          default:
-            break;
-        }
-  
-        // check if value is empty and if so do we need to ignore regex
-        if (dataType == DataType.STRING) {
-          String s = value.toString();
-          if (s.isEmpty()) {
-            JsonNode node1 = node.get(FormatFields.IGNORE_REGEX_IF_EMPTY_STRING);
-  
-            // by default do not ignore. Historically we have been disallowing an empty string if it does not match
-            // regex pattern. The new requirement is to be able to ignore regex if the value is empty
-            boolean ignoreRegex = false;
-            if (node1 != null) {
-              ignoreRegex = node.get(FormatFields.IGNORE_REGEX_IF_EMPTY_STRING).booleanValue();
-            }
-            if (ignoreRegex == true) {
-              break;
-            }
-          }
-        }
-  
-        // check if value is empty and if it is allowed
-        if (dataType == DataType.DATE) {
-          String s = value.toString();
-          if (s.isEmpty()) {
-            JsonNode node1 = node.get(FormatFields.EMPTY_DATE_ALLOWED);
-  
-            // by default we ignore. Historically we have been ignoring the format if an empty date value
-            // is provided. The new requirement is to not allow an empty date value
-            boolean emptyDateAllowed = true;
-            if (node1 != null) {
-              emptyDateAllowed = node.get(FormatFields.EMPTY_DATE_ALLOWED).booleanValue();
-            }
-            if (emptyDateAllowed == true) {
-              break;
-            }
-            else {
-                throw new RuntimeException("jdoc_err_70"+path+errorList);
-            }
-          }
-        }
-  
-        // check against regex pattern and format
-        switch (dataType) {
-          case STRING:
-          case BOOLEAN:
-          case INTEGER:
-          case LONG:
-          case DECIMAL: {
-            String s = value.toString();
-            JsonNode node1 = node.get(FormatFields.REGEX);
-            if (node1 != null) {
-              String regex = node1.asText();
-              Pattern pattern = compiledPatterns.get(regex);
-              if (pattern == null) {
-                pattern = Pattern.compile(regex);
-                compiledPatterns.put(regex, pattern);
-              }
-              Matcher matcher = pattern.matcher(s);
-              boolean matches = matcher.matches();
-              if (matches == false) {
-                throw new RuntimeException("jdoc_err_54"+path+errorList);
-              }
-            }
-            break;
-          }
-  
-          case DATE:
-            // Match input date with the format provided
-            String formatValue = node.get(FormatFields.FORMAT).asText();
-            try {
-              DateTimeFormatter dfs = DateTimeFormatter.ofPattern(formatValue).withResolverStyle(ResolverStyle.STRICT);
-              dfs.parse(value.toString());
-            }
-            catch (Exception e) {
-                throw new RuntimeException("jdoc_err_51"+path+errorList);
-            }
-            break;
-  
-          default:
-            break;
-        }
-  
-        break;
-      }
+      CompiledFormat.get(type, path, format).validate(value, path, errorList);
     }
   
     private void validateFilterNames(String path, List<Token> tokenList) {
-      String tokenPath = "$";
+      CompiledModel.State modelState = getCompiledModel().getRoot();
   
       for (int i = 0; i < tokenList.size(); i++) {
         Token token = tokenList.get(i);
-        tokenPath = tokenPath + "." + token.getField();
+        if (modelState != null) {
+          modelState = modelState.next(token, false);
+        }
         if (token.isArray() == true) {
-          tokenPath = tokenPath + "[0]";
           ArrayToken arrayToken = (ArrayToken)token;
           ArrayToken.Filter filter = arrayToken.getFilter();
           if (filter.getType() == ArrayToken.FilterType.NAME_VALUE) {
             String fieldName = filter.getField();
             String fieldValue = filter.getValue();
-            String modelPath = tokenPath + "." + fieldName;
-            String format = getFieldFormat(path, modelPath, false);
-  
-            JsonNode node = getFormatNode(type, modelPath, format);
-            DataType dataType = DataType.valueOf(node.get(FormatFields.TYPE).asText().toUpperCase());
+            DataType dataType = getFilterFieldDataType(path, tokenList, i, modelState, fieldName);
   
             // this value is not used anywhere except to make sure that no exception is thrown in this method
             Object value = null;
@@ -2572,20 +2591,43 @@ public class JDocument implements Document {
       }
     }
   
-    private JsonNode validatePath(Document doc, String path) {
-      JsonNode modelNode = null;
+    // modelState is the state of the array element the filter applies to, null if not in the model
+    private DataType getFilterFieldDataType(String path, List<Token> tokenList, int index, CompiledModel.State modelState, String fieldName) {
+      CompiledModel.State fieldState = (modelState == null) ? null : modelState.getField(fieldName);
+      if ((fieldState != null) && fieldState.isLeaf()) {
+        return fieldState.getCompiledFormat(type).getDataType();
+      }
+  
+      // not a leaf of the model. Look it up in the model document which reports the error
+      String tokenPath = "$";
+      for (int i = 0; i <= index; i++) {
+        Token token = tokenList.get(i);
+        tokenPath = tokenPath + "." + token.getField();
+        if (token.isArray() == true) {
+          tokenPath = tokenPath + "[0]";
+        }
+      }
+      String modelPath = tokenPath + "." + fieldName;
+      String format = getFieldFormat(path, modelPath, false);
+      JsonNode node = getFormatNode(type, modelPath, format);
+      return DataType.valueOf(node.get(FormatFields.TYPE).asText().toUpperCase());
+    }
+  
+    private CompiledModel.State validatePath(Document doc, String path) {
+      CompiledModel.State modelState = null;
       JDocument jd = (JDocument)doc;
       if (jd.isTyped()) {
         JDocument fromTypedDoc = jd;
         Document modelDoc = docModels.get(fromTypedDoc.type);
-        String modelPath = getModelPath(path);
-        modelNode = ((JDocument)modelDoc).getJsonNode(modelPath);
-        if (modelNode == null) {
+        CompiledModel cm = CompiledModel.get(fromTypedDoc.type, modelDoc);
+        List<Token> tokenList = parse(path);
+        modelState = tokenList.isEmpty() ? cm.getRoot() : cm.getState(tokenList);
+        if (modelState == null) {
           throw new RuntimeException("jdoc_err_38"+fromTypedDoc.type+ path);
         }
       }
   
-      return modelNode;
+      return modelState;
     }
   
     private void validate(Document fromDoc, String fromPath, String toPath) {
@@ -2602,7 +2644,7 @@ public class JDocument implements Document {
       String toBasePath = toPath + ".";
   
       // validate the path that we want to write to
-      JsonNode toModelNode = validatePath(this, toPath);
+      CompiledModel.State toModelState = validatePath(this, toPath);
   
       // now validate the path we want to read from
       validatePath(fromDoc, fromPath);
@@ -2614,117 +2656,56 @@ public class JDocument implements Document {
       }
   
       // validate the contents now
-      List<String> errorList = validate(toModelNode, fromDocNode, toBasePath, type, validationTypes.ALL_DATA_PATHS);
+      List<String> errorList = validate(toModelState, fromDocNode, toBasePath, type, validationTypes.ALL_DATA_PATHS);
   
       processErrors(errorList);
     }
   
-    private List<String> validate(JsonNode modelNode, JsonNode docNode, String basePath, String type, validationTypes validationType) {
-      // function that invokes the recursive validation
-      List<String> errorList = new ArrayList<>();
-      validate(modelNode, docNode, basePath, errorList, type, validationType);
-      return errorList;
+    private List<String> validate(CompiledModel.State modelState, JsonNode docNode, String basePath, String type, validationTypes validationType) {
+      // large documents are validated in parallel, with the same result as a sequential validation
+      return DocumentValidator.validate(modelState, docNode, basePath, type, validationType);
     }
   
-    private void validate(JsonNode modelNode, JsonNode docNode, String basePath, List<String> errorList, String type, validationTypes validationType) {
-      // special handling in case the document starts with an array
-      if ((modelNode.getNodeType().equals(JsonNodeType.ARRAY) == true) && (basePath.equals("$."))) {
-        modelNode = modelNode.get(0);
-      }
-  
-      // if the docNode is an array node then it will not have any fields and we need to handle it differently
-      if (docNode.getNodeType() == JsonNodeType.ARRAY) {
-        // running a loop for all elements of the updated ArrayNode
-        for (int i = 0; i < docNode.size(); i++) {
-          JsonNode docChildNode = docNode.get(i);
-          JsonNode dmChildNode = modelNode;
-          validate(dmChildNode, docChildNode, basePath + "[" + i + "]" + "."+errorList, type, validationType);
-        }
-      }
-      else {
-        // recursive function to validate the document
-        Iterator<String> fieldNames = docNode.fieldNames();
-  
-        while (fieldNames.hasNext()) {
-          String docFieldName = fieldNames.next();
-          JsonNode docFieldNode = docNode.get(docFieldName);
-          JsonNode modelFieldNode = modelNode.get(docFieldName);
-  
-          loop:
-          while (true) {
-            if (modelFieldNode == null) {
-              // means that the field is not found in the data model
-              if (validationType == validationTypes.ALL_DATA_PATHS) {
-                errorList.add(basePath + docFieldName + " -> path not found in data model -> " + type);
-                break loop;
-              }
-              else {
-                // we continue to the next path as we are not going to be validating paths not found in the model
-                break;
-              }
-            }
-  
-            // if node is an @ArrayNode
-            if (docFieldNode.isArray() && modelFieldNode.isArray()) {
-              // running a loop for all elements of the updated ArrayNode
-              for (int i = 0; i < docFieldNode.size(); i++) {
-                JsonNode docChildNode = docFieldNode.get(i);
-                JsonNode dmChildNode = modelFieldNode.get(0);
-                validate(dmChildNode, docChildNode, basePath + docFieldName + "[" + i + "]" + "."+errorList, type, validationType);
-              }
-              break loop;
-            }
-  
-            if (docFieldNode.isObject() && modelFieldNode.isObject()) {
-              validate(modelFieldNode, docFieldNode, basePath + docFieldName + "."+errorList, type, validationType);
-              break loop;
-            }
-  
-            if (docFieldNode instanceof ValueNode) {
-              // we have reached a property object
-              switch (docFieldNode.getNodeType()) {
-                case BOOLEAN:
-                  validateField(modelFieldNode.asText(), docFieldNode.asBoolean(), basePath + docFieldName, errorList, type);
-                  break;
-  
-                case NUMBER:
-                  if (docFieldNode.isInt()) {
-                    validateField(modelFieldNode.asText(), docFieldNode.asInt(), basePath + docFieldName, errorList, type);
-                  }
-                  else if (docFieldNode.isLong()) {
-                    validateField(modelFieldNode.asText(), docFieldNode.asLong(), basePath + docFieldName, errorList, type);
-                  }
-                  else if (docFieldNode.isDouble()) {
-                    validateField(modelFieldNode.asText(), docFieldNode.decimalValue(), basePath + docFieldName, errorList, type);
-                  }
-                  else if (docFieldNode.isBigDecimal()) {
-                    validateField(modelFieldNode.asText(), docFieldNode.decimalValue(), basePath + docFieldName, errorList, type);
-                  }
-                  else {
-                    throw new RuntimeException("jdoc_err_44"+basePath + docFieldName+ docFieldNode.toString());
-                  }
-                  break;
+    // returns the value of a leaf node as the java object that the leaf formats are validated against
+    static Object getValidationValue(JsonNode docFieldNode, String basePath, String docFieldName, String type) {
+      Object value = null;
   
-                case STRING:
-                  validateField(modelFieldNode.asText(), docFieldNode.asText(), basePath + docFieldName, errorList, type);
-                  break;
+      switch (docFieldNode.getNodeType()) {
+        case BOOLEAN:
+          value = docFieldNode.asBoolean();
+          break;
   
-                case NULL:
-                  validateField(modelFieldNode.asText(), null, basePath + docFieldName, errorList, type);
-                  break;
+        case NUMBER:
+          if (docFieldNode.isInt()) {
+            value = docFieldNode.asInt();
+          }
+          else if (docFieldNode.isLong()) {
+            value = docFieldNode.asLong();
+          }
+          else if (docFieldNode.isDouble()) {
+            value = docFieldNode.decimalValue();
+          }
+          else if (docFieldNode.isBigDecimal()) {
+            value = docFieldNode.decimalValue();
+          }
+          else {
+            throw new RuntimeException("jdoc_err_44"+basePath + docFieldName+ docFieldNode.toString());
+          }
+          break;
   
-                default:
-                  throw new RuntimeException("jdoc_err_42"+type+" "+ basePath + docFieldName);
-              }
+        case STRING:
+          value = docFieldNode.asText();
+          break;
   
-              break loop;
-            }
+        case NULL:
+          value = null;
+          break;
   
-            errorList.add(basePath + docFieldName + " -> mismatch in object type between document and data model -> " + type);
-            break loop;
-          }
-        }
+        default:
+          throw new RuntimeException("jdoc_err_42"+type+" "+ basePath + docFieldName);
       }
+  
+      return value;
     }
   
     // protected as this method is called from the base class
@@ -2783,7 +2764,7 @@ public class JDocument implements Document {
       // this function will provide a list of all paths in the document
       List<PathValue> list = new LinkedList<>();
       List<String> list1 = new LinkedList<>();
-      getJsonPaths(list, rootNode, "$",false);
+      getJsonPaths(list, rootNode, "$",false, null);
       list.stream().forEach(s -> list1.add(s.getPath()));
       return list1;
     }
@@ -2791,15 +2772,16 @@ public class JDocument implements Document {
     public List<PathValue> flattenWithValues() {
       // this function will provide a list of all paths in the document along with the value as a string
       List<PathValue> list = new LinkedList<>();
-      getJsonPaths(list, rootNode, "$",true);
+      getJsonPaths(list, rootNode, "$",true, isTyped() ? getCompiledModel().getRoot() : null);
       return list;
     }
   
-    private void getJsonPaths(List<PathValue> list, JsonNode rootNode, String path, boolean getValue) {
+    // modelState is the state of rootNode in the compiled model when the data types are wanted, else null
+    private void getJsonPaths(List<PathValue> list, JsonNode rootNode, String path, boolean getValue, CompiledModel.State modelState) {
       JsonNodeType nodeType = rootNode.getNodeType();
       if ((nodeType != JsonNodeType.ARRAY) && (nodeType != JsonNodeType.OBJECT)) {
         // it is an array value node
-        processValueNode(list, path, "",rootNode, getValue);
+        processValueNode(list, path, "",rootNode, getValue, modelState);
       }
       else {
         Iterator<Map.Entry<String, JsonNode>> iter = rootNode.fields();
@@ -2807,32 +2789,35 @@ public class JDocument implements Document {
           Map.Entry<String, JsonNode> entry = iter.next();
           String fieldName = entry.getKey();
           JsonNode fieldNode = entry.getValue();
+          CompiledModel.State fieldState = (modelState == null) ? null : modelState.getField(fieldName);
   
           switch (fieldNode.getNodeType()) {
             case ARRAY: {
+              // every element has the model of the first one
+              CompiledModel.State elementState = (fieldState == null) ? null : fieldState.getElement();
               int size = fieldNode.size();
               for (int i = 0; i < size; i++) {
                 JsonNode node = fieldNode.get(i);
                 // recurse
-                getJsonPaths(list, node, path + "." + fieldName + "[" + i + "]",getValue);
+                getJsonPaths(list, node, path + "." + fieldName + "[" + i + "]",getValue, elementState);
               }
             }
             break;
   
             case OBJECT:
               // recurse
-              getJsonPaths(list, fieldNode, path + "." + fieldName, getValue);
+              getJsonPaths(list, fieldNode, path + "." + fieldName, getValue, fieldState);
               break;
   
             default:
-              processValueNode(list, path, fieldName, fieldNode, getValue);
+              processValueNode(list, path, fieldName, fieldNode, getValue, fieldState);
               break;
           }
         }
       }
     }
   
-    private void processValueNode(List<PathValue> list, String path, String fieldName, JsonNode fieldNode, boolean getValue) {
+    private void processValueNode(List<PathValue> list, String path, String fieldName, JsonNode fieldNode, boolean getValue, CompiledModel.State modelState) {
       Object value = null;
       DataType dt = null;
   
@@ -2841,7 +2826,11 @@ public class JDocument implements Document {
       }
   
       if (getValue == true) {
-        if (isTyped() == true) {
+        if ((isTyped() == true) && (modelState != null) && modelState.isLeaf()) {
+          dt = modelState.getCompiledFormat(type).getDataType();
+        }
+        else if (isTyped() == true) {
+          // the path does not lead to a leaf of the model. Look it up in the model document which reports the error
           String mp = getModelPath(path);
           boolean isValueArray = false;
           if (path.charAt(path.length() - 1) == ']') {
@@ -3004,7 +2993,7 @@ public class JDocument implements Document {
       if (md == null) {
         throw new RuntimeException("jdoc_err_29"+type);
       }
-      List<String> errorList = validate(((JDocument)md).rootNode, rootNode, "$.",type, validationTypes.ALL_DATA_PATHS);
+      List<String> errorList = validate(CompiledModel.get(type, md).getRoot(), rootNode, "$.",type, validationTypes.ALL_DATA_PATHS);
       processErrors(errorList);
       if (isTyped() == true) {
         isValidated = true;
@@ -3018,7 +3007,7 @@ public class JDocument implements Document {
       if (md == null) {
         throw new RuntimeException("jdoc_err_29"+type);
       }
-      List<String> errorList = validate(((JDocument)md).rootNode, rootNode, "$.",type, validationTypes.ONLY_MODEL_PATHS);
+      List<String> errorList = validate(CompiledModel.get(type, md).getRoot(), rootNode, "$.",type, validationTypes.ONLY_MODEL_PATHS);
       processErrors(errorList);
       if (isTyped() == true) {
         isValidated = true;
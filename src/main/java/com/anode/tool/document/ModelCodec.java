@@ -0,0 +1,467 @@
+package com.anode.tool.document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * A json reader and writer specialised for one document model
+ *
+ * The model is compiled once into a tree of nodes that hold the field names in model order, their
+ * pre-encoded form for writing and the compiled leaf formats. Reading streams the json through a
+ * parser and validates every value against the model as it is read, so a typed document is built
+ * in a single pass instead of a tree parse followed by a separate validation walk. The errors
+ * raised are the same as those of new JDocument(type, json). Writing emits the fields of every
+ * object in model order followed by any fields that are not in the model
+ *
+ * Codecs are cached per type and recompiled if the model of the type is reloaded
+ */
+public final class ModelCodec {
+
+  private static Map<String, ModelCodec> codecs = new ConcurrentHashMap<>();
+
+  private final String type;
+
+  // the model this codec was compiled from, used to detect that the type has been reloaded
+  private final Document model;
+
+  private final ModelNode rootModel;
+
+  private final JsonNodeFactory nodeFactory = JDocument.objectMapper.getNodeFactory();
+
+  public static ModelCodec forType(String type) {
+    Document md = JDocument.getDocumentModel(type);
+    if (md == null) {
+      throw new RuntimeException("jdoc_err_29"+type);
+    }
+
+    ModelCodec codec = codecs.get(type);
+    if ((codec == null) || (codec.model != md)) {
+      codec = new ModelCodec(type, md);
+      codecs.put(type, codec);
+    }
+    return codec;
+  }
+
+  private ModelCodec(String type, Document model) {
+    this.type = type;
+    this.model = model;
+    this.rootModel = new ModelNode(((JDocument)model).rootNode);
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public JDocument read(String json) {
+    return read(json, JDocument.getDefaultValidationType());
+  }
+
+  /**
+   * Equivalent to new JDocument(type, json, validationType)
+   */
+  public JDocument read(String json, validationTypes validationType) {
+    if (json == null) {
+      json = "{}";
+    }
+
+    try (JsonParser p = JDocument.objectMapper.getFactory().createParser(json)) {
+      return read(p, validationType);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1"+ex);
+    }
+  }
+
+  /**
+   * Reads a typed document from a stream. The stream is not closed
+   */
+  public JDocument read(InputStream in, validationTypes validationType) {
+    try (JsonParser p = JDocument.objectMapper.getFactory().createParser(in)) {
+      p.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      return read(p, validationType);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1"+ex);
+    }
+  }
+
+  private JDocument read(JsonParser p, validationTypes validationType) throws IOException {
+    JsonNode rootNode = null;
+
+    if (validationType == validationTypes.ONLY_AT_READ_WRITE) {
+      rootNode = JDocument.objectMapper.readTree(p);
+      if (rootNode == null) {
+        rootNode = MissingNode.getInstance();
+      }
+      return JDocument.newTypedDocument(type, rootNode, validationType, false);
+    }
+
+    // special handling in case the model starts with an array
+    ModelNode m = rootModel;
+    if (m.nodeType == JsonNodeType.ARRAY) {
+      m = m.element;
+    }
+
+    List<String> errorList = new ArrayList<>();
+    JsonToken token = p.nextToken();
+    if (token == null) {
+      rootNode = MissingNode.getInstance();
+    }
+    else if (token == JsonToken.START_OBJECT) {
+      rootNode = readObject(p, m, "$.", errorList, validationType);
+    }
+    else if (token == JsonToken.START_ARRAY) {
+      rootNode = readArray(p, m, "$.", errorList, validationType);
+    }
+    else {
+      rootNode = readValue(p, token);
+    }
+
+    JDocument.processErrors(errorList);
+    return JDocument.newTypedDocument(type, rootNode, validationType, true);
+  }
+
+  private ObjectNode readObject(JsonParser p, ModelNode m, String basePath, List<String> errorList, validationTypes validationType) throws IOException {
+    ObjectNode node = nodeFactory.objectNode();
+
+    String field = null;
+    while ((field = p.nextFieldName()) != null) {
+      JsonToken token = p.nextToken();
+      ModelNode fm = (m == null) ? null : m.getField(field);
+      JsonNode fieldNode = null;
+
+      while (true) {
+        if (fm == null) {
+          // means that the field is not found in the data model
+          if (validationType == validationTypes.ALL_DATA_PATHS) {
+            errorList.add(basePath + field + " -> path not found in data model -> " + type);
+          }
+          fieldNode = JDocument.objectMapper.readTree(p);
+          break;
+        }
+
+        if ((token == JsonToken.START_ARRAY) && (fm.nodeType == JsonNodeType.ARRAY)) {
+          fieldNode = readArray(p, fm.element, basePath + field, errorList, validationType);
+          break;
+        }
+
+        if ((token == JsonToken.START_OBJECT) && (fm.nodeType == JsonNodeType.OBJECT)) {
+          fieldNode = readObject(p, fm, basePath + field + ".", errorList, validationType);
+          break;
+        }
+
+        if (token.isScalarValue() && (fm.nodeType == JsonNodeType.STRING)) {
+          // we have reached a property object
+          fieldNode = readValue(p, token);
+          Object value = JDocument.getValidationValue(fieldNode, basePath, field, type);
+          fm.getFormat(type, basePath + field).validate(value, basePath, field, errorList);
+          break;
+        }
+
+        errorList.add(basePath + field + " -> mismatch in object type between document and data model -> " + type);
+        fieldNode = JDocument.objectMapper.readTree(p);
+        break;
+      }
+
+      node.set(field, fieldNode);
+    }
+
+    return node;
+  }
+
+  /*
+   * The elements of an array are validated against the element model. Elements that are themselves
+   * arrays are validated against the same element model
+   */
+  private ArrayNode readArray(JsonParser p, ModelNode em, String pathPrefix, List<String> errorList, validationTypes validationType) throws IOException {
+    ArrayNode node = nodeFactory.arrayNode();
+
+    JsonToken token = null;
+    int i = 0;
+    while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == JsonToken.START_OBJECT) {
+        node.add(readObject(p, em, pathPrefix + "[" + i + "].", errorList, validationType));
+      }
+      else if (token == JsonToken.START_ARRAY) {
+        node.add(readArray(p, em, pathPrefix + "[" + i + "].", errorList, validationType));
+      }
+      else {
+        node.add(readValue(p, token));
+      }
+      i++;
+    }
+
+    return node;
+  }
+
+  // builds value nodes the same way as the tree parser of the object mapper
+  private JsonNode readValue(JsonParser p, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_STRING:
+        return nodeFactory.textNode(p.getText());
+
+      case VALUE_NUMBER_INT:
+        switch (p.getNumberType()) {
+          case INT:
+            return nodeFactory.numberNode(p.getIntValue());
+
+          case LONG:
+            return nodeFactory.numberNode(p.getLongValue());
+
+          default:
+            return nodeFactory.numberNode(p.getBigIntegerValue());
+        }
+
+      case VALUE_NUMBER_FLOAT:
+        if (p.getNumberType() == JsonParser.NumberType.BIG_DECIMAL) {
+          return nodeFactory.numberNode(p.getDecimalValue());
+        }
+        return nodeFactory.numberNode(p.getDoubleValue());
+
+      case VALUE_TRUE:
+        return nodeFactory.booleanNode(true);
+
+      case VALUE_FALSE:
+        return nodeFactory.booleanNode(false);
+
+      case VALUE_NULL:
+        return nodeFactory.nullNode();
+
+      default:
+        return JDocument.objectMapper.readTree(p);
+    }
+  }
+
+  public String write(Document d) {
+    StringWriter sw = new StringWriter();
+    try (JsonGenerator g = JDocument.objectMapper.getFactory().createGenerator(sw)) {
+      write(g, d);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1"+ex);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * Writes the document to a stream. The stream is not closed
+   */
+  public void write(Document d, OutputStream out) {
+    try (JsonGenerator g = JDocument.objectMapper.getFactory().createGenerator(out)) {
+      g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      write(g, d);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("jdoc_err_1"+ex);
+    }
+  }
+
+  private void write(JsonGenerator g, Document d) throws IOException {
+    if (d.isTyped() && (type.equals(d.getType()) == false)) {
+      throw new RuntimeException("Types of document and codec do not match -> " + d.getType() + ", " + type);
+    }
+
+    ModelNode m = rootModel;
+    if (m.nodeType == JsonNodeType.ARRAY) {
+      m = m.element;
+    }
+    writeNode(g, ((JDocument)d).rootNode, m);
+  }
+
+  private void writeNode(JsonGenerator g, JsonNode node, ModelNode m) throws IOException {
+    switch (node.getNodeType()) {
+      case OBJECT:
+        writeObject(g, (ObjectNode)node, m);
+        break;
+
+      case ARRAY:
+        g.writeStartArray();
+        for (int i = 0; i < node.size(); i++) {
+          writeNode(g, node.get(i), m);
+        }
+        g.writeEndArray();
+        break;
+
+      case STRING:
+        g.writeString(node.textValue());
+        break;
+
+      case BOOLEAN:
+        g.writeBoolean(node.booleanValue());
+        break;
+
+      case NULL:
+        g.writeNull();
+        break;
+
+      case NUMBER:
+        switch (node.numberType()) {
+          case INT:
+            g.writeNumber(node.intValue());
+            break;
+
+          case LONG:
+            g.writeNumber(node.longValue());
+            break;
+
+          case BIG_INTEGER:
+            g.writeNumber(node.bigIntegerValue());
+            break;
+
+          case FLOAT:
+            g.writeNumber(node.floatValue());
+            break;
+
+          case DOUBLE:
+            g.writeNumber(node.doubleValue());
+            break;
+
+          default:
+            g.writeNumber(node.decimalValue());
+            break;
+        }
+        break;
+
+      default:
+        g.writeTree(node);
+        break;
+    }
+  }
+
+  private void writeObject(JsonGenerator g, ObjectNode node, ModelNode m) throws IOException {
+    g.writeStartObject();
+
+    int written = 0;
+    if ((m != null) && (m.fieldNames != null)) {
+      for (int i = 0; i < m.fieldNames.length; i++) {
+        JsonNode fieldNode = node.get(m.fieldNames[i].getValue());
+        if (fieldNode != null) {
+          g.writeFieldName(m.fieldNames[i]);
+          ModelNode fm = m.fieldModels[i];
+          writeNode(g, fieldNode, (fm.nodeType == JsonNodeType.ARRAY) ? fm.element : fm);
+          written++;
+        }
+      }
+    }
+
+    // fields not present in the model are written after the model fields in document order
+    if (written < node.size()) {
+      Iterator<Map.Entry<String, JsonNode>> iter = node.fields();
+      while (iter.hasNext()) {
+        Map.Entry<String, JsonNode> entry = iter.next();
+        if ((m == null) || (m.getField(entry.getKey()) == null)) {
+          g.writeFieldName(entry.getKey());
+          writeNode(g, entry.getValue(), null);
+        }
+      }
+    }
+
+    g.writeEndObject();
+  }
+
+  /*
+   * A node of the compiled model. Object nodes hold their fields in model order, array nodes their
+   * element model and leaf nodes (STRING) the format string and its compiled form
+   */
+  private static final class ModelNode {
+
+    private final JsonNodeType nodeType;
+
+    private final Map<String, ModelNode> fields;
+
+    private final SerializedString[] fieldNames;
+
+    private final ModelNode[] fieldModels;
+
+    // null for an empty model array
+    private final ModelNode element;
+
+    private final String format;
+
+    // resolved on first use so that unused formats fail the same way as with the tree validation
+    private CompiledFormat compiledFormat = null;
+
+    private ModelNode(JsonNode node) {
+      Map<String, ModelNode> fields = null;
+      SerializedString[] fieldNames = null;
+      ModelNode[] fieldModels = null;
+      ModelNode element = null;
+      String format = null;
+
+      switch (node.getNodeType()) {
+        case OBJECT: {
+          nodeType = JsonNodeType.OBJECT;
+          fields = new LinkedHashMap<>();
+          fieldNames = new SerializedString[node.size()];
+          fieldModels = new ModelNode[node.size()];
+          int i = 0;
+          Iterator<Map.Entry<String, JsonNode>> iter = node.fields();
+          while (iter.hasNext()) {
+            Map.Entry<String, JsonNode> entry = iter.next();
+            ModelNode fm = new ModelNode(entry.getValue());
+            fields.put(entry.getKey(), fm);
+            fieldNames[i] = new SerializedString(entry.getKey());
+            fieldModels[i] = fm;
+            i++;
+          }
+          break;
+        }
+
+        case ARRAY:
+          nodeType = JsonNodeType.ARRAY;
+          if (node.size() > 0) {
+            element = new ModelNode(node.get(0));
+          }
+          break;
+
+        default:
+          nodeType = JsonNodeType.STRING;
+          format = node.asText();
+          break;
+      }
+
+      this.fields = fields;
+      this.fieldNames = fieldNames;
+      this.fieldModels = fieldModels;
+      this.element = element;
+      this.format = format;
+    }
+
+    private ModelNode getField(String field) {
+      if (fields == null) {
+        return null;
+      }
+      return fields.get(field);
+    }
+
+    private CompiledFormat getFormat(String type, String path) {
+      CompiledFormat cf = compiledFormat;
+      if (cf == null) {
+        cf = CompiledFormat.get(type, path, format);
+        compiledFormat = cf;
+      }
+      return cf;
+    }
+
+  }
+
+}
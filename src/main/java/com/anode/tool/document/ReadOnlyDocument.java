@@ -166,6 +166,11 @@ public class ReadOnlyDocument implements Document {
     return d.getDocument(path, vargs);
   }
 
+  @Override
+  public Document getView(String path, String... vargs) {
+    return d.getView(path, vargs);
+  }
+
   @Override
   public Document getContent(String path, boolean returnTypedDocument, boolean includeFullPath, String... vargs) {
     return d.getContent(path, returnTypedDocument, includeFullPath, vargs);
@@ -181,6 +186,11 @@ public class ReadOnlyDocument implements Document {
     throw new RuntimeException("jdoc_err_19");
   }
 
+  @Override
+  public void moveContent(Document fromDoc, String fromPath, String toPath, String... vargs) {
+    throw new RuntimeException("jdoc_err_19");
+  }
+
   @Override
   public void setInteger(String path, int value, String... vargs) {
     throw new RuntimeException("jdoc_err_19");
@@ -274,6 +274,14 @@ public class XDocument implements Document {
         throw new UnsupportedOperationException("Unimplemented method 'getDocument'");
     }
 
+    /**
+     * Not supported, XML documents have no views. Use getDocument, which copies the node
+     */
+    @Override
+    public Document getView(String path, String... vargs) {
+        throw new UnsupportedOperationException("XML documents do not support views");
+    }
+
     @Override
     public Document getContent(String path, boolean returnTypedDocument, boolean includeFullPath, String... vargs) {
         // TODO Auto-generated method stub
@@ -286,6 +294,15 @@ public class XDocument implements Document {
         throw new UnsupportedOperationException("Unimplemented method 'setContent'");
     }
 
+    /**
+     * Not supported, XML documents cannot take over the content of another document. Use setContent,
+     * which copies it
+     */
+    @Override
+    public void moveContent(Document fromDoc, String fromPath, String toPath, String... vargs) {
+        throw new UnsupportedOperationException("XML documents do not support moving content");
+    }
+
     @Override
     public void setBoolean(String path, boolean value, String... vargs) {
         // TODO Auto-generated method stub
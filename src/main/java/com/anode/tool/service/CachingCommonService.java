@@ -0,0 +1,434 @@
+package com.anode.tool.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+
+/**
+ * Read-through {@link CommonService} decorator that caches {@link #get} and {@link #getUniqueItem}.
+ *
+ * <h2>Eviction</h2>
+ * Entries are evicted by W-TinyLFU, see {@link ObjectCache}, when there are more than
+ * {@code maxEntries} of them or their estimated sizes add up to more than {@code maxWeight}. Entries
+ * expire after the time to live of their class, or the default one, if set.
+ *
+ * <h2>Negative caching</h2>
+ * A {@code get} that finds no object is cached as a miss for the negative time to live, so repeated
+ * lookups of an id that does not exist do not hit the backend either. Unique item lookups are
+ * cached the same way.
+ *
+ * <h2>Invalidation</h2>
+ * Every write through the decorator invalidates the entries of its ids for all the classes, and
+ * drops the cached unique item lookups of the class of the written object and of its superclasses
+ * and interfaces, as the object may now match or no longer match one. Deletes, and writes whose
+ * objects are not known, e.g. {@link #makeClone}, drop the unique item lookups of all the classes.
+ * Writes that do not reach the decorator, e.g. by another process, are only seen when the
+ * entries expire. {@link #getLocked} always reads the backend and invalidates the id, since the
+ * caller is about to change the object, and {@link #endTransaction()} releases its lock in the
+ * backend.
+ */
+public class CachingCommonService implements CommonService {
+
+    // the cached value of an id or unique key that has no object
+    private static final Object NONE = new Object();
+
+    // a class, its superclasses and its interfaces, the types its objects can be looked up by
+    private static final ClassValue<List<Class<?>>> supertypes = new ClassValue<List<Class<?>>>() {
+        @Override
+        protected List<Class<?>> computeValue(Class<?> type) {
+            Set<Class<?>> types = new LinkedHashSet<>();
+            List<Class<?>> pending = new ArrayList<>();
+            pending.add(type);
+            while (pending.isEmpty() == false) {
+                Class<?> t = pending.remove(pending.size() - 1);
+                if (types.add(t)) {
+                    if (t.getSuperclass() != null) {
+                        pending.add(t.getSuperclass());
+                    }
+                    for (Class<?> i : t.getInterfaces()) {
+                        pending.add(i);
+                    }
+                }
+            }
+            return List.copyOf(types);
+        }
+    };
+
+    private final CommonService delegate;
+
+    private final ObjectCache<CacheKey, Object> cache;
+
+    private final ObjectCache<UniqueKey, Object> uniqueCache;
+
+    private final ConcurrentHashMap<Class<?>, Long> ttlNanos = new ConcurrentHashMap<>();
+
+    private volatile long defaultTtlNanos = 0;
+
+    private volatile long negativeTtlNanos = TimeUnit.SECONDS.toNanos(1);
+
+    public CachingCommonService(CommonService delegate, int maxEntries) {
+        this(delegate, maxEntries, Long.MAX_VALUE, o -> 1);
+    }
+
+    /**
+     * @param delegate   the service the cache reads through
+     * @param maxEntries the maximum number of cached objects, and of cached unique item lookups
+     * @param maxWeight  the maximum total estimated size of the cached objects
+     * @param weigher    the estimated size of an object
+     */
+    public CachingCommonService(CommonService delegate, int maxEntries, long maxWeight, ToLongFunction<Object> weigher) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate must not be null");
+        }
+        if (weigher == null) {
+            throw new IllegalArgumentException("Weigher must not be null");
+        }
+        this.delegate = delegate;
+        ToLongFunction<Object> w = o -> (o == NONE) ? 1 : weigher.applyAsLong(o);
+        this.cache = new ObjectCache<>(maxEntries, maxWeight, w, (k, v) -> k.id);
+        this.uniqueCache = new ObjectCache<>(maxEntries, Long.MAX_VALUE, o -> 1, (k, v) -> k.type);
+    }
+
+    // the id is the group of the key, to invalidate all the classes of an id
+    private static final class CacheKey {
+
+        private final Class<?> type;
+
+        private final Serializable id;
+
+        private CacheKey(Class<?> type, Serializable id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if ((o instanceof CacheKey) == false) {
+                return false;
+            }
+            CacheKey k = (CacheKey)o;
+            return (type == k.type) && id.equals(k.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + id.hashCode();
+        }
+    }
+
+    // the type is the group of the key, to invalidate the lookups of the classes of a written object
+    private static final class UniqueKey {
+
+        private final Class<?> type;
+
+        private final String name;
+
+        private final String value;
+
+        private UniqueKey(Class<?> type, String name, String value) {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if ((o instanceof UniqueKey) == false) {
+                return false;
+            }
+            UniqueKey k = (UniqueKey)o;
+            return (type == k.type) && Objects.equals(name, k.name) && Objects.equals(value, k.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, name, value);
+        }
+    }
+
+    /**
+     * Sets the time to live of the cached objects of the classes without one, 0 for no limit.
+     */
+    public void setDefaultTimeToLive(long millis) {
+        defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Sets the time to live of the cached objects of the class, 0 for no limit.
+     */
+    public void setTimeToLive(Class<?> type, long millis) {
+        ttlNanos.put(type, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Sets the time to live of cached misses, 0 to not cache misses.
+     */
+    public void setNegativeTimeToLive(long millis) {
+        negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        if ((objectClass == null) || (id == null)) {
+            return delegate.get(objectClass, id);
+        }
+
+        CacheKey key = new CacheKey(objectClass, id);
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return (cached == NONE) ? null : objectClass.cast(cached);
+        }
+
+        long stamp = cache.getStamp(id);
+        T object = delegate.get(objectClass, id);
+        cacheValue(cache, key, objectClass, object, stamp);
+        return object;
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        if (type == null) {
+            return delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+        }
+
+        UniqueKey key = new UniqueKey(type, uniqueKeyName, uniqueKeyValue);
+        Object cached = uniqueCache.get(key);
+        if (cached != null) {
+            return (cached == NONE) ? null : type.cast(cached);
+        }
+
+        long stamp = uniqueCache.getStamp(type);
+        T object = delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+        cacheValue(uniqueCache, key, type, object, stamp);
+        return object;
+    }
+
+    private <K> void cacheValue(ObjectCache<K, Object> c, K key, Class<?> type, Object object, long stamp) {
+        if (object == null) {
+            long ttl = negativeTtlNanos;
+            if (ttl > 0) {
+                c.putIfNotInvalidated(key, NONE, ttl, stamp);
+            }
+        }
+        else {
+            c.putIfNotInvalidated(key, object, getTtlNanos(type), stamp);
+        }
+    }
+
+    private long getTtlNanos(Class<?> type) {
+        Long ttl = ttlNanos.get(type);
+        return (ttl == null) ? defaultTtlNanos : ttl;
+    }
+
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        T object = delegate.getLocked(objectClass, id);
+        invalidate(id, object);
+        return object;
+    }
+
+    @Override
+    public void endTransaction() {
+        delegate.endTransaction();
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        return delegate.getAll(type);
+    }
+
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        return delegate.stream(type, fetchSize);
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        return delegate.getPage(type, afterId, pageSize, comparator);
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        try {
+            delegate.saveOrUpdate(id, object);
+        }
+        finally {
+            invalidate(id, object);
+        }
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        try {
+            delegate.save(id, object);
+        }
+        finally {
+            invalidate(id, object);
+        }
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        try {
+            delegate.update(id, object);
+        }
+        finally {
+            invalidate(id, object);
+        }
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        try {
+            delegate.saveCollection(objects);
+        }
+        finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        try {
+            delegate.saveOrUpdateCollection(objects);
+        }
+        finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        try {
+            delegate.delete(id);
+        }
+        finally {
+            invalidate(id);
+        }
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        Map<Serializable, Serializable> ids = delegate.makeClone(object, idFactory);
+        if (ids != null) {
+            for (Serializable id : ids.values()) {
+                invalidate(id);
+            }
+        }
+        else {
+            invalidateAll();
+        }
+        return ids;
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        return delegate.getMinimalId(comparator);
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        return delegate.incrCounter(key);
+    }
+
+    /**
+     * Drops the cached entries of the id, for all the classes, and the cached unique item lookups, as
+     * the class of the object of the id is not known.
+     */
+    public void invalidate(Serializable id) {
+        if (id == null) {
+            invalidateAll();
+            return;
+        }
+        cache.invalidateGroup(id);
+        uniqueCache.invalidateAll();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+        uniqueCache.invalidateAll();
+    }
+
+    private void invalidate(Serializable id, Object object) {
+        if ((id == null) && (object instanceof Persistable)) {
+            // the backend may have set the id
+            id = ((Persistable)object).getId();
+        }
+        if ((id == null) || (object == null)) {
+            invalidate(id);
+            return;
+        }
+        cache.invalidateGroup(id);
+        invalidateUniqueItems(object.getClass());
+    }
+
+    private void invalidateUniqueItems(Class<?> type) {
+        for (Class<?> t : supertypes.get(type)) {
+            uniqueCache.invalidateGroup(t);
+        }
+    }
+
+    private void invalidate(Collection objects) {
+        if (objects == null) {
+            return;
+        }
+        boolean all = false;
+        Set<Class<?>> types = new LinkedHashSet<>();
+        for (Object object : objects) {
+            if (object == null) {
+                continue;
+            }
+            types.add(object.getClass());
+            if (all == false) {
+                if ((object instanceof Persistable) && (((Persistable)object).getId() != null)) {
+                    cache.invalidateGroup(((Persistable)object).getId());
+                }
+                else {
+                    cache.invalidateAll();
+                    all = true;
+                }
+            }
+        }
+        for (Class<?> type : types) {
+            invalidateUniqueItems(type);
+        }
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount() + uniqueCache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount() + uniqueCache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount() + uniqueCache.getEvictionCount();
+    }
+
+    public long getExpirationCount() {
+        return cache.getExpirationCount() + uniqueCache.getExpirationCount();
+    }
+}
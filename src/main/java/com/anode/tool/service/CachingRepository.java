@@ -0,0 +1,294 @@
+package com.anode.tool.service;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Read-through {@link CommonRepository} decorator that caches {@link #get} and
+ * {@link #getUniqueItem}, with the eviction, negative caching and invalidation of
+ * {@link CachingCommonService}.
+ *
+ * <p>As the entities of a repository are of one type, a write drops the cached unique item lookups
+ * that found the written entity, and those that found none, which it may now match, rather than
+ * those of its class.
+ */
+public class CachingRepository<T, ID extends Serializable> implements CommonRepository<T, ID> {
+
+    // the cached value of an id or unique key that has no entity
+    private static final Object NONE = new Object();
+
+    private final CommonRepository<T, ID> delegate;
+
+    private final Function<? super T, ID> idFunction;
+
+    private final ObjectCache<ID, Object> cache;
+
+    private final ObjectCache<UniqueKey, Object> uniqueCache;
+
+    private volatile long ttlNanos = 0;
+
+    private volatile long negativeTtlNanos = TimeUnit.SECONDS.toNanos(1);
+
+    public CachingRepository(CommonRepository<T, ID> delegate, Function<? super T, ID> idFunction, int maxEntries) {
+        this(delegate, idFunction, maxEntries, Long.MAX_VALUE, o -> 1);
+    }
+
+    /**
+     * @param delegate   the repository the cache reads through
+     * @param idFunction returns the id of an entity, to invalidate it when it is written
+     * @param maxEntries the maximum number of cached entities, and of cached unique item lookups
+     * @param maxWeight  the maximum total estimated size of the cached entities
+     * @param weigher    the estimated size of an entity
+     */
+    public CachingRepository(CommonRepository<T, ID> delegate, Function<? super T, ID> idFunction, int maxEntries, long maxWeight, ToLongFunction<? super T> weigher) {
+        if ((delegate == null) || (idFunction == null) || (weigher == null)) {
+            throw new IllegalArgumentException("Delegate, id function and weigher must not be null");
+        }
+        this.delegate = delegate;
+        this.idFunction = idFunction;
+        this.cache = new ObjectCache<>(maxEntries, maxWeight, o -> (o == NONE) ? 1 : weigher.applyAsLong(cast(o)), null);
+        // the id of the entity found is the group of a unique key, misses are in the group of NONE
+        this.uniqueCache = new ObjectCache<>(maxEntries, Long.MAX_VALUE, o -> 1, (k, v) -> (v == NONE) ? NONE : idFunction.apply(cast(v)));
+    }
+
+    private static final class UniqueKey {
+
+        private final String name;
+
+        private final String value;
+
+        private UniqueKey(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if ((o instanceof UniqueKey) == false) {
+                return false;
+            }
+            UniqueKey k = (UniqueKey)o;
+            return Objects.equals(name, k.name) && Objects.equals(value, k.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> S cast(Object o) {
+        return (S)o;
+    }
+
+    /**
+     * Sets the time to live of the cached entities, 0 for no limit.
+     */
+    public void setTimeToLive(long millis) {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Sets the time to live of cached misses, 0 to not cache misses.
+     */
+    public void setNegativeTimeToLive(long millis) {
+        negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public Optional<T> get(ID id) {
+        if (id == null) {
+            return delegate.get(id);
+        }
+
+        Object cached = cache.get(id);
+        if (cached != null) {
+            return (cached == NONE) ? Optional.empty() : Optional.of(cast(cached));
+        }
+
+        long stamp = cache.getStamp(id);
+        Optional<T> entity = delegate.get(id);
+        cacheValue(cache, id, (entity == null) ? null : entity.orElse(null), stamp);
+        return entity;
+    }
+
+    @Override
+    public <S extends T> S getUniqueItem(String uniqueKeyName, String uniqueKeyValue) {
+        UniqueKey key = new UniqueKey(uniqueKeyName, uniqueKeyValue);
+        Object cached = uniqueCache.get(key);
+        if (cached != null) {
+            return (cached == NONE) ? null : cast(cached);
+        }
+
+        // the entity found is not known yet, and any write may change it, which drops the misses
+        long stamp = uniqueCache.getStamp(NONE);
+        S entity = delegate.getUniqueItem(uniqueKeyName, uniqueKeyValue);
+        cacheValue(uniqueCache, key, entity, stamp);
+        return entity;
+    }
+
+    private <K> void cacheValue(ObjectCache<K, Object> c, K key, Object entity, long stamp) {
+        if (entity == null) {
+            long ttl = negativeTtlNanos;
+            if (ttl > 0) {
+                c.putIfNotInvalidated(key, NONE, ttl, stamp);
+            }
+        }
+        else {
+            c.putIfNotInvalidated(key, entity, ttlNanos, stamp);
+        }
+    }
+
+    @Override
+    public <S extends T> S getLocked(ID id) {
+        S entity = delegate.getLocked(id);
+        invalidate(id);
+        return entity;
+    }
+
+    @Override
+    public <S extends T> List<S> getAll() {
+        return delegate.getAll();
+    }
+
+    @Override
+    public <S extends T> Stream<S> stream(int fetchSize) {
+        return delegate.stream(fetchSize);
+    }
+
+    @Override
+    public <S extends T> Page<S> getPage(ID afterId, int pageSize, Comparator<? super ID> comparator) {
+        return delegate.getPage(afterId, pageSize, comparator);
+    }
+
+    @Override
+    public <S extends T> S save(S entity) {
+        try {
+            return delegate.save(entity);
+        }
+        finally {
+            invalidateEntity(entity);
+        }
+    }
+
+    @Override
+    public <S extends T> S saveOrUpdate(S entity) {
+        try {
+            return delegate.saveOrUpdate(entity);
+        }
+        finally {
+            invalidateEntity(entity);
+        }
+    }
+
+    @Override
+    public <S extends T> S update(S entity) {
+        try {
+            return delegate.update(entity);
+        }
+        finally {
+            invalidateEntity(entity);
+        }
+    }
+
+    @Override
+    public <S extends T> void saveCollection(Collection<S> objects) {
+        try {
+            delegate.saveCollection(objects);
+        }
+        finally {
+            invalidateEntities(objects);
+        }
+    }
+
+    @Override
+    public <S extends T> void saveOrUpdateCollection(Collection<S> objects) {
+        try {
+            delegate.saveOrUpdateCollection(objects);
+        }
+        finally {
+            invalidateEntities(objects);
+        }
+    }
+
+    @Override
+    public void delete(ID id) {
+        try {
+            delegate.delete(id);
+        }
+        finally {
+            invalidate(id);
+        }
+    }
+
+    /**
+     * Drops the cached entity of the id, the cached unique item lookups that found it, and those that
+     * found none.
+     */
+    public void invalidate(ID id) {
+        if (id == null) {
+            invalidateAll();
+            return;
+        }
+        cache.invalidate(id);
+        uniqueCache.invalidateGroup(id);
+        uniqueCache.invalidateGroup(NONE);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+        uniqueCache.invalidateAll();
+    }
+
+    private void invalidateEntity(T entity) {
+        invalidate((entity == null) ? null : idFunction.apply(entity));
+    }
+
+    private <S extends T> void invalidateEntities(Collection<S> objects) {
+        if (objects == null) {
+            return;
+        }
+        for (S entity : objects) {
+            ID id = (entity == null) ? null : idFunction.apply(entity);
+            if (id == null) {
+                invalidateAll();
+                return;
+            }
+            cache.invalidate(id);
+            uniqueCache.invalidateGroup(id);
+        }
+        uniqueCache.invalidateGroup(NONE);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount() + uniqueCache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount() + uniqueCache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount() + uniqueCache.getEvictionCount();
+    }
+
+    public long getExpirationCount() {
+        return cache.getExpirationCount() + uniqueCache.getExpirationCount();
+    }
+}
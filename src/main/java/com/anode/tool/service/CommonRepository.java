@@ -1,11 +1,16 @@
 package com.anode.tool.service;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
 
 public interface CommonRepository<T,ID extends Serializable> {
 
@@ -17,6 +22,48 @@ public interface CommonRepository<T,ID extends Serializable> {
     <S extends T> void saveOrUpdateCollection(Collection<S> objects);
     void delete(ID id);
     <S extends T> List<S> getAll();
+
+    /**
+     * Streams the entities, reading them {@code fetchSize} at a time. The stream may hold storage
+     * resources until it is closed. By default, streams the list of {@link #getAll()}.
+     *
+     * @see CommonService#stream(Class, int)
+     */
+    default <S extends T> Stream<S> stream(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        return this.<S>getAll().stream();
+    }
+
+    /**
+     * Reads the entities whose id comes after {@code afterId}, in id order. By default, selects them
+     * from the list of {@link #getAll()} by the ids of the {@link Persistable} entities.
+     *
+     * @see CommonService#getPage(Class, Serializable, int, Comparator)
+     */
+    @SuppressWarnings("unchecked")
+    default <S extends T> Page<S> getPage(ID afterId, int pageSize, Comparator<? super ID> comparator) {
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        Map<ID, S> entities = new HashMap<>();
+        for (S entity : this.<S>getAll()) {
+            if ((entity instanceof Persistable) == false) {
+                throw new PersistenceException("Cannot page entities of type " + entity.getClass().getName() + " that are not Persistable");
+            }
+            entities.put((ID)((Persistable)entity).getId(), entity);
+        }
+
+        List<ID> ids = Page.keysAfter(entities.keySet().iterator(), afterId, pageSize + 1, comparator);
+        boolean hasNext = ids.size() > pageSize;
+        List<S> items = new ArrayList<>();
+        for (ID id : hasNext ? ids.subList(0, pageSize) : ids) {
+            items.add(entities.get(id));
+        }
+        return new Page<>(items, items.isEmpty() ? null : ids.get(items.size() - 1), hasNext);
+    }
     <S extends T> S getUniqueItem(String uniqueKeyName, String uniqueKeyValue);
 
     /**
@@ -1,10 +1,15 @@
 package com.anode.tool.service;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
 
 /**
  * Generic data access service providing CRUD operations and persistence management.
@@ -20,6 +25,7 @@ import java.util.Map;
  *   <li><b>Single Object Persistence</b> - {@link #save}, {@link #update}, {@link #saveOrUpdate}</li>
  *   <li><b>Collection Operations</b> - {@link #saveCollection}, {@link #saveOrUpdateCollection}</li>
  *   <li><b>Retrieval</b> - {@link #get}, {@link #getAll}, {@link #getUniqueItem}</li>
+ *   <li><b>Streaming and Pagination</b> - {@link #stream}, {@link #getPage} for large types</li>
  *   <li><b>Deletion</b> - {@link #delete}</li>
  *   <li><b>Concurrency Control</b> - {@link #getLocked} for pessimistic locking</li>
  *   <li><b>Cloning</b> - {@link #makeClone} for creating deep copies with new IDs</li>
@@ -284,8 +290,8 @@ public interface CommonService {
      * Retrieves all objects of a given type from storage.
      *
      * <p>This method loads all instances of the specified class. Use with caution on large
-     * datasets as it may cause memory issues. For large result sets, consider implementing
-     * pagination or streaming APIs in your storage layer.
+     * datasets as it may cause memory issues. For large result sets, use {@link #stream} or
+     * {@link #getPage}.
      *
      * <h3>Example Usage</h3>
      * <pre>{@code
@@ -309,6 +315,83 @@ public interface CommonService {
      */
     public <T> List<T> getAll(Class<T> type);
 
+    /**
+     * Streams the objects of a given type without loading them all in memory.
+     *
+     * <p>The stream reads the objects as it is consumed, {@code fetchSize} at a time, and may hold
+     * storage resources (a cursor, a connection) until it is closed, so it should be used in a
+     * try-with-resources block. The stream can be made parallel, in which case implementations
+     * should split the objects between threads rather than read them from one cursor. Objects saved
+     * or deleted while the stream is consumed may or may not be seen.
+     *
+     * <p>The default implementation streams the list of {@link #getAll}, and should be overridden by
+     * implementations that can do better.
+     *
+     * <h3>Example Usage</h3>
+     * <pre>{@code
+     * try (Stream<WorkflowInfo> infos = commonService.stream(WorkflowInfo.class, 1000)) {
+     *     infos.parallel()
+     *          .filter(WorkflowInfo::isCompleted)
+     *          .forEach(archiver::archive);
+     * }
+     * }</pre>
+     *
+     * @param <T> the type of objects to retrieve
+     * @param type the class of objects to retrieve; must not be null
+     * @param fetchSize the number of objects to read from storage at a time; at least 1
+     * @return a stream of the objects of the given type, to be closed
+     * @throws IllegalArgumentException if type is null or fetchSize is less than 1
+     * @throws PersistenceException if the retrieval operation fails
+     */
+    public default <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        return getAll(type).stream();
+    }
+
+    /**
+     * Retrieves a page of the objects of a given type by keyset pagination: the objects whose id
+     * comes after {@code afterId}, in id order.
+     *
+     * <p>The id of the last object of a page, {@link Page#getLastId()}, is the {@code afterId} of
+     * the next one, so reading a page does not depend on the number of pages before it.
+     *
+     * <p>The default implementation selects the page from the list of {@link #getAll}, by the ids of
+     * objects that are {@link com.anode.tool.persistance.Persistable}, and should be overridden by
+     * implementations that can do better.
+     *
+     * @param <T> the type of objects to retrieve
+     * @param type the class of objects to retrieve; must not be null
+     * @param afterId the id after which the page starts, null for the first page
+     * @param pageSize the maximum number of objects of the page; at least 1
+     * @param comparator the order of the ids; must not be null
+     * @return the page, empty if no object comes after {@code afterId}
+     * @throws IllegalArgumentException if type or comparator is null or pageSize is less than 1
+     * @throws PersistenceException if the retrieval operation fails
+     */
+    public default <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        Map<Serializable, T> objects = new HashMap<>();
+        for (T object : getAll(type)) {
+            if ((object instanceof Persistable) == false) {
+                throw new PersistenceException("Cannot page objects of type " + object.getClass().getName() + " that are not Persistable");
+            }
+            objects.put(((Persistable)object).getId(), object);
+        }
+
+        List<Serializable> ids = Page.keysAfter(objects.keySet().iterator(), afterId, pageSize + 1, comparator);
+        boolean hasNext = ids.size() > pageSize;
+        List<T> items = new ArrayList<>();
+        for (Serializable id : hasNext ? ids.subList(0, pageSize) : ids) {
+            items.add(objects.get(id));
+        }
+        return new Page<>(items, items.isEmpty() ? null : ids.get(items.size() - 1), hasNext);
+    }
+
     /**
      * Retrieves a single object by a unique key-value pair.
      *
@@ -415,6 +498,16 @@ public interface CommonService {
      */
     public <T> T getLocked(Class<T> objectClass, Serializable id);
 
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}, for implementations that
+     * lock in process rather than in a transaction of the storage.
+     *
+     * <p>The default implementation does nothing. Decorators should pass the call on to the service
+     * they decorate.
+     */
+    public default void endTransaction() {
+    }
+
     /**
      * Creates a deep copy of an object with new identifiers assigned by the provided factory.
      *
@@ -0,0 +1,14 @@
+package com.anode.tool.service;
+
+/**
+ * Thrown by {@code getLocked} when waiting for the lock on an object would close a cycle of threads
+ * waiting for each other. The transaction of the calling thread should be rolled back and retried.
+ */
+public class DeadlockException extends PersistenceException {
+
+    private static final long serialVersionUID = 3290452867137214170L;
+
+    public DeadlockException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package com.anode.tool.service;
+
+/**
+ * Thrown by {@code save} when an object with the same id already exists.
+ */
+public class DuplicateKeyException extends PersistenceException {
+
+    private static final long serialVersionUID = 4706912093415538702L;
+
+    public DuplicateKeyException(String message) {
+        super(message);
+    }
+}
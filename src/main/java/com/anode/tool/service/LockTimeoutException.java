@@ -0,0 +1,13 @@
+package com.anode.tool.service;
+
+/**
+ * Thrown by {@code getLocked} when the lock on an object cannot be acquired within the lock timeout.
+ */
+public class LockTimeoutException extends PersistenceException {
+
+    private static final long serialVersionUID = -6125834413178409551L;
+
+    public LockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,566 @@
+package com.anode.tool.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded cache with W-TinyLFU eviction, used by the caching decorators.
+ *
+ * <h2>Eviction</h2>
+ * New entries go to a small LRU window (1% of the entries). Entries leaving the window enter the
+ * main LRU, split into a probation and a protected (80%) segment, only if they have been accessed
+ * more often than the entry they would evict. Access frequencies are estimated by a count-min sketch
+ * of 4 bit counters that are halved periodically, so that old popularity fades. Entries are evicted
+ * while there are more than {@code maxEntries} of them or their weights add up to more than
+ * {@code maxWeight}.
+ *
+ * <h2>Concurrency</h2>
+ * Reads go to a {@link ConcurrentHashMap} without locking. The access is then recorded in the
+ * eviction policy only if its lock is free, so a read never waits: under contention some accesses
+ * are not recorded, which only makes the policy less precise. Writes take the lock.
+ *
+ * <h2>Groups</h2>
+ * If a group function is given, the entries of a group can be invalidated together, e.g. the entries
+ * of all the classes of an id. The group of an entry may depend on its value.
+ *
+ * <h2>Stamps</h2>
+ * A value loaded while its key is invalidated may be older than the write that invalidated it, so
+ * it is cached only if the group the stamp was taken for, usually the group of the loaded entry or
+ * its key if there are no groups, was not invalidated since the load started. Invalidations are
+ * counted by stripes of groups, so that they only drop the loads of the groups sharing their stripe.
+ */
+final class ObjectCache<K, V> {
+
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    // the number of invalidation stripes, a power of 2, kept in the low bits of the stamps
+    private static final int STRIPE_BITS = 6;
+
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+
+    // guards the lists, the counts, the sketch and the groups
+    private final ReentrantLock policyLock = new ReentrantLock();
+
+    private final AccessList<K, V> window = new AccessList<>();
+
+    private final AccessList<K, V> probation = new AccessList<>();
+
+    private final AccessList<K, V> protectedList = new AccessList<>();
+
+    private final FrequencySketch sketch;
+
+    private final long maxEntries;
+
+    private final long maxWeight;
+
+    private final long windowMax;
+
+    private final long protectedMax;
+
+    private final ToLongFunction<? super V> weigher;
+
+    private final BiFunction<? super K, ? super V, ?> grouper;
+
+    private final Map<Object, List<K>> groups;
+
+    private long windowCount = 0;
+
+    private long protectedCount = 0;
+
+    private long totalWeight = 0;
+
+    // the invalidations of the groups of each stripe, see putIfNotInvalidated
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongAdder expirationCount = new LongAdder();
+
+    /**
+     * @param maxEntries the maximum number of entries
+     * @param maxWeight  the maximum total weight of the entries
+     * @param weigher    the estimated size of a value
+     * @param grouper    the group of a key and its value, null for no groups
+     */
+    ObjectCache(int maxEntries, long maxWeight, ToLongFunction<? super V> weigher, BiFunction<? super K, ? super V, ?> grouper) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max entries must be at least 1");
+        }
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException("Max weight must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.grouper = grouper;
+        this.groups = (grouper == null) ? null : new HashMap<>();
+        this.windowMax = Math.max(1, maxEntries / 100);
+        this.protectedMax = (maxEntries - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    private static final class Node<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final long weight;
+
+        // System.nanoTime() after which the entry is expired, 0 if never
+        private final long expireAt;
+
+        private int queue;
+
+        private Node<K, V> prev;
+
+        private Node<K, V> next;
+
+        private Node(K key, V value, long weight, long expireAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+
+        private boolean isExpired(long now) {
+            return (expireAt != 0) && (now - expireAt > 0);
+        }
+    }
+
+    /**
+     * Returns the value of the key, null if it is not cached or expired.
+     */
+    V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount.increment();
+            recordMiss(key);
+            return null;
+        }
+
+        if (node.isExpired(System.nanoTime())) {
+            missCount.increment();
+            expirationCount.increment();
+            policyLock.lock();
+            try {
+                if (data.remove(key, node)) {
+                    unlink(node);
+                }
+            }
+            finally {
+                policyLock.unlock();
+            }
+            return null;
+        }
+
+        hitCount.increment();
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (data.get(key) == node) {
+                    onAccess(node);
+                }
+            }
+            finally {
+                policyLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Returns the invalidation stamp of the group, or of the key if the cache has no groups, to pass to
+     * {@link #putIfNotInvalidated} when a value is loaded.
+     */
+    long getStamp(Object group) {
+        int stripe = stripe(group);
+        return (stamps.get(stripe) << STRIPE_BITS) | stripe;
+    }
+
+    /**
+     * Caches the value unless the group of the stamp was invalidated since the stamp was taken, as the
+     * value may then have been loaded before the write that invalidated it.
+     *
+     * @param ttlNanos the time to live of the entry, 0 for no limit
+     */
+    void putIfNotInvalidated(K key, V value, long ttlNanos, long stamp) {
+        Node<K, V> node = newNode(key, value, ttlNanos);
+        policyLock.lock();
+        try {
+            if (stamps.get((int)stamp & (STRIPES - 1)) == (stamp >>> STRIPE_BITS)) {
+                add(node);
+            }
+        }
+        finally {
+            policyLock.unlock();
+        }
+    }
+
+    void put(K key, V value, long ttlNanos) {
+        Node<K, V> node = newNode(key, value, ttlNanos);
+        policyLock.lock();
+        try {
+            add(node);
+        }
+        finally {
+            policyLock.unlock();
+        }
+    }
+
+    void invalidate(K key) {
+        policyLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+            stamps.incrementAndGet(stripe(((node == null) || (grouper == null)) ? key : grouper.apply(key, node.value)));
+        }
+        finally {
+            policyLock.unlock();
+        }
+    }
+
+    void invalidateGroup(Object group) {
+        policyLock.lock();
+        try {
+            stamps.incrementAndGet(stripe(group));
+            List<K> keys = groups.get(group);
+            if (keys != null) {
+                for (K key : new ArrayList<>(keys)) {
+                    Node<K, V> node = data.remove(key);
+                    if (node != null) {
+                        unlink(node);
+                    }
+                }
+            }
+        }
+        finally {
+            policyLock.unlock();
+        }
+    }
+
+    void invalidateAll() {
+        policyLock.lock();
+        try {
+            for (int i = 0; i < STRIPES; i++) {
+                stamps.incrementAndGet(i);
+            }
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedList.clear();
+            if (groups != null) {
+                groups.clear();
+            }
+            windowCount = 0;
+            protectedCount = 0;
+            totalWeight = 0;
+        }
+        finally {
+            policyLock.unlock();
+        }
+    }
+
+    int size() {
+        return data.size();
+    }
+
+    long getWeight() {
+        policyLock.lock();
+        try {
+            return totalWeight;
+        }
+        finally {
+            policyLock.unlock();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    long getExpirationCount() {
+        return expirationCount.sum();
+    }
+
+    private static int stripe(Object group) {
+        int h = (group == null) ? 0 : group.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private Node<K, V> newNode(K key, V value, long ttlNanos) {
+        long weight = Math.max(1, weigher.applyAsLong(value));
+        long expireAt = 0;
+        if (ttlNanos > 0) {
+            expireAt = System.nanoTime() + ttlNanos;
+            if (expireAt == 0) {
+                expireAt = 1;
+            }
+        }
+        return new Node<>(key, value, weight, expireAt);
+    }
+
+    // a miss counts as an access for the admission of the key when it is put
+    private void recordMiss(K key) {
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(key);
+            }
+            finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    private void add(Node<K, V> node) {
+        Node<K, V> old = data.put(node.key, node);
+        if (old != null) {
+            unlink(old);
+        }
+        else {
+            sketch.increment(node.key);
+        }
+
+        if (groups != null) {
+            groups.computeIfAbsent(grouper.apply(node.key, node.value), g -> new ArrayList<>(2)).add(node.key);
+        }
+        node.queue = WINDOW;
+        window.addLast(node);
+        windowCount++;
+        totalWeight += node.weight;
+        evict();
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == PROBATION) {
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedList.addLast(node);
+            protectedCount++;
+            while (protectedCount > protectedMax) {
+                Node<K, V> demoted = protectedList.first();
+                protectedList.remove(demoted);
+                protectedCount--;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+        }
+        else if (node.queue == PROTECTED) {
+            protectedList.remove(node);
+            protectedList.addLast(node);
+        }
+        else {
+            window.remove(node);
+            window.addLast(node);
+        }
+    }
+
+    private void evict() {
+        // the entries leaving the window are appended to probation, the first of them is the candidate
+        Node<K, V> candidate = null;
+        while (windowCount > windowMax) {
+            Node<K, V> node = window.first();
+            window.remove(node);
+            windowCount--;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while ((data.size() > maxEntries) || (totalWeight > maxWeight)) {
+            Node<K, V> victim = probation.first();
+            if (victim == null) {
+                victim = protectedList.first();
+                if (victim == null) {
+                    victim = window.first();
+                }
+                evict(victim);
+                continue;
+            }
+
+            if ((candidate == null) || (candidate == victim)) {
+                if (candidate == victim) {
+                    candidate = probation.next(candidate);
+                }
+                evict(victim);
+                continue;
+            }
+
+            // admit the candidate only if it is more popular than the victim
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            }
+            else {
+                Node<K, V> next = probation.next(candidate);
+                evict(candidate);
+                candidate = next;
+            }
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        data.remove(node.key, node);
+        unlink(node);
+        evictionCount.increment();
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+            windowCount--;
+        }
+        else if (node.queue == PROBATION) {
+            probation.remove(node);
+        }
+        else {
+            protectedList.remove(node);
+            protectedCount--;
+        }
+        totalWeight -= node.weight;
+
+        if (groups != null) {
+            Object group = grouper.apply(node.key, node.value);
+            List<K> keys = groups.get(group);
+            if (keys != null) {
+                keys.remove(node.key);
+                if (keys.isEmpty()) {
+                    groups.remove(group);
+                }
+            }
+        }
+    }
+
+    // doubly linked list of nodes, from least to most recently used
+    private static final class AccessList<K, V> {
+
+        private final Node<K, V> head = new Node<>(null, null, 0, 0);
+
+        private AccessList() {
+            clear();
+        }
+
+        private void clear() {
+            head.next = head;
+            head.prev = head;
+        }
+
+        private Node<K, V> first() {
+            return (head.next == head) ? null : head.next;
+        }
+
+        private Node<K, V> next(Node<K, V> node) {
+            return (node.next == head) ? null : node.next;
+        }
+
+        private void addLast(Node<K, V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+        }
+
+        private void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+
+    /*
+     * Count-min sketch of 4 rows of 4 bit counters, 16 counters per long. When the number of increments
+     * reaches 10 times the number of counters of a row, all the counters are halved
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+
+        // longs per row
+        private final int rowLength;
+
+        private final int counterMask;
+
+        private final int sampleSize;
+
+        private int additions = 0;
+
+        private FrequencySketch(int maxEntries) {
+            int counters = Integer.highestOneBit(Math.max(16, Math.min(maxEntries, 1 << 26)) - 1) << 1;
+            rowLength = counters >>> 4;
+            counterMask = counters - 1;
+            table = new long[rowLength * SEEDS.length];
+            sampleSize = 10 * counters;
+        }
+
+        private int counterIndex(Object key, int row) {
+            long h = (key.hashCode() + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int)h & counterMask;
+        }
+
+        private void increment(Object key) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = counterIndex(key, row);
+                int i = row * rowLength + (index >>> 4);
+                int shift = (index & 15) << 2;
+                if (((table[i] >>> shift) & 15) < 15) {
+                    table[i] += 1L << shift;
+                    added = true;
+                }
+            }
+
+            if (added && (++additions == sampleSize)) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions = additions / 2;
+            }
+        }
+
+        private int frequency(Object key) {
+            int frequency = 15;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = counterIndex(key, row);
+                int shift = (index & 15) << 2;
+                int count = (int)((table[row * rowLength + (index >>> 4)] >>> shift) & 15);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+    }
+}
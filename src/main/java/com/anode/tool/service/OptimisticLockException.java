@@ -0,0 +1,14 @@
+package com.anode.tool.service;
+
+/**
+ * Thrown by a versioned update when the object was written by someone else since its version was
+ * read. The object should be read again and the update retried.
+ */
+public class OptimisticLockException extends PersistenceException {
+
+    private static final long serialVersionUID = -4482915023311907453L;
+
+    public OptimisticLockException(String message) {
+        super(message);
+    }
+}
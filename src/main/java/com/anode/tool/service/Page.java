@@ -0,0 +1,100 @@
+package com.anode.tool.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A page of objects read by keyset pagination: the objects whose id comes after the last id of the
+ * previous page, in id order.
+ *
+ * <p>Unlike offset pagination, a page costs the same whatever its position, and objects inserted or
+ * deleted before the position do not shift the following pages.
+ *
+ * <pre>{@code
+ * Serializable after = null;
+ * Page<WorkflowInfo> page;
+ * do {
+ *     page = commonService.getPage(WorkflowInfo.class, after, 1000, comparator);
+ *     process(page.getItems());
+ *     after = page.getLastId();
+ * } while (page.hasNext());
+ * }</pre>
+ *
+ * @param <T> the type of the objects
+ */
+public class Page<T> {
+
+    private final List<T> items;
+
+    private final Serializable lastId;
+
+    private final boolean hasNext;
+
+    /**
+     * @param items   the objects of the page, in id order
+     * @param lastId  the id of the last object of the page, null if the page is empty
+     * @param hasNext true if objects come after the page
+     */
+    public Page(List<T> items, Serializable lastId, boolean hasNext) {
+        this.items = Collections.unmodifiableList(items);
+        this.lastId = lastId;
+        this.hasNext = hasNext;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the id to read the next page after, null if the page is empty
+     */
+    public Serializable getLastId() {
+        return lastId;
+    }
+
+    public boolean hasNext() {
+        return hasNext;
+    }
+
+    /**
+     * Selects the first keys after a key, for stores that keep their keys unordered. The keys are
+     * scanned once and at most {@code limit} of them are kept, in a heap, so the memory used does not
+     * depend on the number of keys.
+     *
+     * @param keys       the keys to select from, in any order
+     * @param afterKey   the keys up to this one are skipped, null to select from the first key
+     * @param limit      the maximum number of keys to select
+     * @param comparator the order of the keys
+     * @return the selected keys, in order
+     */
+    public static <K> List<K> keysAfter(Iterator<? extends K> keys, K afterKey, int limit, Comparator<? super K> comparator) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be at least 1");
+        }
+
+        // the greatest kept key on top, to be replaced by a smaller one
+        PriorityQueue<K> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, comparator.reversed());
+        while (keys.hasNext()) {
+            K key = keys.next();
+            if ((afterKey != null) && (comparator.compare(key, afterKey) <= 0)) {
+                continue;
+            }
+            if (heap.size() < limit) {
+                heap.add(key);
+            }
+            else if (comparator.compare(key, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(key);
+            }
+        }
+
+        List<K> selected = new ArrayList<>(heap);
+        selected.sort(comparator);
+        return selected;
+    }
+}
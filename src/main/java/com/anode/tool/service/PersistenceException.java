@@ -0,0 +1,18 @@
+package com.anode.tool.service;
+
+/**
+ * Thrown by {@link CommonService} and {@link CommonRepository} implementations when a persistence
+ * operation fails.
+ */
+public class PersistenceException extends RuntimeException {
+
+    private static final long serialVersionUID = -2916486284350436912L;
+
+    public PersistenceException(String message) {
+        super(message);
+    }
+
+    public PersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
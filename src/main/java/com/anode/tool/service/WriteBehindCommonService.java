@@ -0,0 +1,452 @@
+package com.anode.tool.service;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link CommonService} decorator that defers {@link #saveOrUpdate} and writes the deferred objects
+ * in batches.
+ *
+ * <h2>Buffering</h2>
+ * Each {@code saveOrUpdate} replaces the pending object of its id, so an object saved many times
+ * between two flushes is written once. The buffer is flushed with
+ * {@link CommonService#saveOrUpdateCollection} when it holds {@code maxPending} ids, every
+ * {@code flushIntervalMillis}, on {@link #flush()} and on {@link #close()}. Objects that are not a
+ * {@link Persistable} whose id is the id they were saved with cannot be batched and are written one
+ * by one with {@code saveOrUpdate}.
+ *
+ * <h2>Consistency</h2>
+ * {@link #get} returns the pending object of an id, so a process reads its own writes. Every other
+ * method flushes the buffer first and then calls the backend, so the backend sees the writes in the
+ * order the methods were called and queries see the pending objects.
+ *
+ * <h2>Locking</h2>
+ * The ids locked with {@link #getLocked} stay locked in the backend until {@link #endTransaction()}.
+ * A flush leaves the objects of the ids locked by other threads in the buffer, so that it does not
+ * wait for their transactions while the other flushes wait for it, and writes them once the locks
+ * are released. The thread holding the locks flushes them as any other.
+ *
+ * <h2>Backpressure</h2>
+ * A {@code saveOrUpdate} of a new id on a full buffer flushes it in the calling thread, so writers
+ * are slowed down to the pace of the backend and the buffer never holds more than
+ * {@code maxPending} ids, those of a flush in progress included. If the buffer only holds ids locked
+ * by other threads, the object is written to the backend at once. If a flush fails its objects go
+ * back to the buffer, unless they were saved again meanwhile, and the exception is thrown to the
+ * thread that flushed. A failed background flush is logged and retried at the next interval.
+ */
+@Slf4j
+public class WriteBehindCommonService implements CommonService, Closeable {
+
+    private final CommonService delegate;
+
+    private final int maxPending;
+
+    // guards pending, inFlight and inFlightOnly
+    private final Object lock = new Object();
+
+    private LinkedHashMap<Serializable, Object> pending = new LinkedHashMap<>();
+
+    // the objects being written by the current flush, still read by get
+    private Map<Serializable, Object> inFlight = Collections.emptyMap();
+
+    // the ids of inFlight not in pending, counted in maxPending as they go back to pending on failure
+    private int inFlightOnly = 0;
+
+    // id -> number of threads holding or waiting for its lock through getLocked
+    private final ConcurrentHashMap<Serializable, Integer> lockedIds = new ConcurrentHashMap<>();
+
+    // the ids locked by the thread
+    private final ThreadLocal<Set<Serializable>> heldIds = ThreadLocal.withInitial(HashSet::new);
+
+    // one flush at a time so that batches reach the backend in order
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong backpressureCount = new AtomicLong();
+
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private final AtomicLong flushedCount = new AtomicLong();
+
+    private final AtomicLong failedFlushCount = new AtomicLong();
+
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    /**
+     * @param delegate            the service the objects are written to
+     * @param maxPending          the number of ids buffered before the buffer is flushed
+     * @param flushIntervalMillis the time between background flushes, 0 for none
+     */
+    public WriteBehindCommonService(CommonService delegate, int maxPending, long flushIntervalMillis) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate must not be null");
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Max pending must be at least 1");
+        }
+        this.delegate = delegate;
+        this.maxPending = maxPending;
+
+        if (flushIntervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "write-behind-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::backgroundFlush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        if (object == null) {
+            throw new IllegalArgumentException("Object must not be null");
+        }
+        if ((id == null) && (object instanceof Persistable)) {
+            id = ((Persistable)object).getId();
+        }
+        if (id == null) {
+            // the backend gives the id, which the caller may need at once
+            flush();
+            delegate.saveOrUpdate(null, object);
+            return;
+        }
+
+        while (true) {
+            synchronized (lock) {
+                if (pending.containsKey(id)) {
+                    pending.put(id, object);
+                    coalescedCount.incrementAndGet();
+                    return;
+                }
+                if (inFlight.containsKey(id)) {
+                    pending.put(id, object);
+                    inFlightOnly--;
+                    return;
+                }
+                if (pending.size() + inFlightOnly < maxPending) {
+                    pending.put(id, object);
+                    return;
+                }
+            }
+            backpressureCount.incrementAndGet();
+            if (flushBatch() == false) {
+                delegate.saveOrUpdate(id, object);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        flush();
+        delegate.save(id, object);
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        flush();
+        delegate.update(id, object);
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        flush();
+        delegate.saveCollection(objects);
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        flush();
+        delegate.saveOrUpdateCollection(objects);
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        flush();
+        delegate.delete(id);
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        Object object = null;
+        synchronized (lock) {
+            object = pending.get(id);
+            if (object == null) {
+                object = inFlight.get(id);
+            }
+        }
+        if ((object != null) && objectClass.isInstance(object)) {
+            return objectClass.cast(object);
+        }
+        return delegate.get(objectClass, id);
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        flush();
+        return delegate.getAll(type);
+    }
+
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        flush();
+        return delegate.stream(type, fetchSize);
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        flush();
+        return delegate.getPage(type, afterId, pageSize, comparator);
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        flush();
+        return delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+    }
+
+    /**
+     * Flushes the buffer, then locks the id in the backend until {@link #endTransaction()}.
+     */
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        if ((objectClass == null) || (id == null)) {
+            throw new IllegalArgumentException("Class and id must not be null");
+        }
+        // before the flush: the flushes that did not see it are over when the backend locks the id
+        if (heldIds.get().add(id)) {
+            lockedIds.merge(id, 1, Integer::sum);
+        }
+        flush();
+        return delegate.getLocked(objectClass, id);
+    }
+
+    /**
+     * Releases the locks of the backend taken by the calling thread. The objects of the ids it locked
+     * that other threads left in the buffer are written by the next flush.
+     */
+    @Override
+    public void endTransaction() {
+        try {
+            delegate.endTransaction();
+        }
+        finally {
+            Set<Serializable> ids = heldIds.get();
+            for (Serializable id : ids) {
+                lockedIds.computeIfPresent(id, (k, n) -> (n == 1) ? null : n - 1);
+            }
+            ids.clear();
+        }
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        flush();
+        return delegate.makeClone(object, idFactory);
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        flush();
+        return delegate.getMinimalId(comparator);
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        return delegate.incrCounter(key);
+    }
+
+    /**
+     * Writes the pending objects to the backend and waits for it, but those of the ids locked by other
+     * threads.
+     */
+    public void flush() {
+        flushBatch();
+    }
+
+    /*
+     * Returns false if nothing could be written as the buffer only holds ids locked by other threads,
+     * whose objects are left in it.
+     */
+    private boolean flushBatch() {
+        flushLock.lock();
+        try {
+            LinkedHashMap<Serializable, Object> batch = null;
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                if (lockedIds.isEmpty()) {
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                }
+                else {
+                    batch = new LinkedHashMap<>();
+                    LinkedHashMap<Serializable, Object> deferred = new LinkedHashMap<>();
+                    for (Map.Entry<Serializable, Object> entry : pending.entrySet()) {
+                        (isLockedByOther(entry.getKey()) ? deferred : batch).put(entry.getKey(), entry.getValue());
+                    }
+                    if (batch.isEmpty()) {
+                        return false;
+                    }
+                    pending = deferred;
+                }
+                inFlight = batch;
+                inFlightOnly = batch.size();
+            }
+
+            long start = System.nanoTime();
+            boolean written = false;
+            try {
+                write(batch);
+                written = true;
+            }
+            finally {
+                synchronized (lock) {
+                    if (written == false) {
+                        // objects saved again during the flush are newer than the ones that failed
+                        batch.putAll(pending);
+                        pending = batch;
+                    }
+                    inFlight = Collections.emptyMap();
+                    inFlightOnly = 0;
+                }
+
+                long nanos = System.nanoTime() - start;
+                totalFlushNanos.addAndGet(nanos);
+                maxFlushNanos.accumulateAndGet(nanos, Math::max);
+                if (written == true) {
+                    flushCount.incrementAndGet();
+                    flushedCount.addAndGet(batch.size());
+                }
+                else {
+                    failedFlushCount.incrementAndGet();
+                }
+            }
+            return true;
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean isLockedByOther(Serializable id) {
+        Integer users = lockedIds.get(id);
+        return (users != null) && (users > (heldIds.get().contains(id) ? 1 : 0));
+    }
+
+    private void write(Map<Serializable, Object> batch) {
+        List<Object> objects = new ArrayList<>(batch.size());
+        for (Map.Entry<Serializable, Object> entry : batch.entrySet()) {
+            Object object = entry.getValue();
+            if ((object instanceof Persistable) && entry.getKey().equals(((Persistable)object).getId())) {
+                objects.add(object);
+            }
+            else {
+                delegate.saveOrUpdate(entry.getKey(), object);
+            }
+        }
+        if (objects.isEmpty() == false) {
+            delegate.saveOrUpdateCollection(objects);
+        }
+    }
+
+    private void backgroundFlush() {
+        try {
+            flush();
+        }
+        catch (RuntimeException e) {
+            log.warn("Write behind flush failed, will retry", e);
+        }
+    }
+
+    /**
+     * Stops the background flushes and flushes the pending objects, but those of the ids still locked
+     * by other threads.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of ids waiting to be written
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return the number of saves that replaced a pending object instead of adding a write
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return the number of times a writer found the buffer full and had to flush it
+     */
+    public long getBackpressureCount() {
+        return backpressureCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getFailedFlushCount() {
+        return failedFlushCount.get();
+    }
+
+    /**
+     * @return the number of objects written by the successful flushes
+     */
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    /**
+     * @return the time spent in flushes, successful or not
+     */
+    public long getTotalFlushNanos() {
+        return totalFlushNanos.get();
+    }
+
+    public long getMaxFlushNanos() {
+        return maxFlushNanos.get();
+    }
+}
@@ -0,0 +1,54 @@
+package com.anode.tool.service.async;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.anode.tool.service.CommonService;
+
+/**
+ * Non blocking variant of the {@link CommonService} calls, returning a {@link CompletableFuture}
+ * completed with the result of the call, or exceptionally with its exception.
+ *
+ * <p>{@link CommonService#getLocked} has no asynchronous variant, as the locks of the services are
+ * held by the thread that takes them until it ends its transaction, and a future completes on
+ * another thread.
+ *
+ * <h2>Timeouts</h2>
+ * {@link #withTimeout} returns a view of the service whose calls complete with a
+ * {@link java.util.concurrent.TimeoutException} if they do not complete in time, e.g.
+ * {@code async.withTimeout(200, TimeUnit.MILLISECONDS).get(WorkflowInfo.class, caseId)}. A call may
+ * still have taken effect when it times out.
+ *
+ * @see AsyncCommonServiceAdapter
+ */
+public interface AsyncCommonService {
+
+    public <T> CompletableFuture<T> get(Class<T> objectClass, Serializable id);
+
+    public <T> CompletableFuture<List<T>> getAll(Class<T> type);
+
+    public <T> CompletableFuture<T> getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue);
+
+    public CompletableFuture<Void> save(Serializable id, Object object);
+
+    public CompletableFuture<Void> saveOrUpdate(Serializable id, Object object);
+
+    public CompletableFuture<Void> update(Serializable id, Object object);
+
+    public CompletableFuture<Void> saveCollection(Collection<?> objects);
+
+    public CompletableFuture<Void> saveOrUpdateCollection(Collection<?> objects);
+
+    public CompletableFuture<Void> delete(Serializable id);
+
+    public CompletableFuture<Long> incrCounter(String key);
+
+    /**
+     * @param timeout the time for a call to complete, counted from the call, 0 for none
+     * @return a view of the service whose calls time out after the given time
+     */
+    public AsyncCommonService withTimeout(long timeout, TimeUnit unit);
+}
@@ -0,0 +1,372 @@
+package com.anode.tool.service.async;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.anode.tool.service.CommonService;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link AsyncCommonService} running the calls of a blocking {@link CommonService} on an executor,
+ * by default on virtual threads.
+ *
+ * <h2>Threads</h2>
+ * A blocking call holds its thread until the storage answers. On a virtual thread, the carrier thread
+ * is released meanwhile, so thousands of calls can wait at the same time on a few platform threads.
+ * Virtual threads are only available from Java 21; on older runtimes {@link #newVirtualThreadExecutor()}
+ * falls back to a pool of platform threads, and {@link #isVirtualThreadsAvailable()} tells which one
+ * is used.
+ *
+ * <h2>Concurrency</h2>
+ * At most {@code maxInFlight} calls run at the same time, to protect the storage, e.g. a connection
+ * pool, from the number of calls virtual threads make possible. Further calls wait in a queue,
+ * without blocking the caller or holding a thread, and start as running calls complete.
+ *
+ * <h2>Timeouts</h2>
+ * A call that does not complete within the timeout of the view it was made on completes with a
+ * {@link TimeoutException}. If it is still waiting, it never starts. If it is running, its thread is
+ * interrupted, which aborts blocking I/O in most services.
+ */
+@Slf4j
+public class AsyncCommonServiceAdapter implements AsyncCommonService, Closeable {
+
+    private final CommonService delegate;
+
+    private final ExecutorService executor;
+
+    private final boolean ownsExecutor;
+
+    private final int maxInFlight;
+
+    private final long timeoutNanos;
+
+    // the state below is shared with the views of other timeouts
+
+    private final AtomicInteger inFlight;
+
+    private final ConcurrentLinkedQueue<Call<?>> waiting;
+
+    private final AtomicInteger waitingCount;
+
+    private final AtomicLong completedCalls;
+
+    private final AtomicLong failedCalls;
+
+    private final AtomicLong timedOutCalls;
+
+    /**
+     * Runs the calls on virtual threads, or on a pool of platform threads before Java 21.
+     *
+     * @param delegate      the blocking service
+     * @param maxInFlight   the maximum number of calls running at the same time
+     * @param timeoutMillis the time for a call to complete, 0 for none
+     */
+    public AsyncCommonServiceAdapter(CommonService delegate, int maxInFlight, long timeoutMillis) {
+        this(delegate, newVirtualThreadExecutor(), true, maxInFlight, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /**
+     * Runs the calls on the executor, which is not shut down on {@link #close()}.
+     *
+     * @param delegate      the blocking service
+     * @param executor      the executor of the calls
+     * @param maxInFlight   the maximum number of calls running at the same time
+     * @param timeoutMillis the time for a call to complete, 0 for none
+     */
+    public AsyncCommonServiceAdapter(CommonService delegate, ExecutorService executor, int maxInFlight, long timeoutMillis) {
+        this(delegate, executor, false, maxInFlight, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    private AsyncCommonServiceAdapter(CommonService delegate, ExecutorService executor, boolean ownsExecutor, int maxInFlight, long timeoutNanos) {
+        if ((delegate == null) || (executor == null)) {
+            throw new IllegalArgumentException("Delegate and executor must not be null");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in flight must be at least 1");
+        }
+        if (timeoutNanos < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxInFlight = maxInFlight;
+        this.timeoutNanos = timeoutNanos;
+        this.inFlight = new AtomicInteger();
+        this.waiting = new ConcurrentLinkedQueue<>();
+        this.waitingCount = new AtomicInteger();
+        this.completedCalls = new AtomicLong();
+        this.failedCalls = new AtomicLong();
+        this.timedOutCalls = new AtomicLong();
+    }
+
+    // a view of the adapter with another timeout
+    private AsyncCommonServiceAdapter(AsyncCommonServiceAdapter adapter, long timeoutNanos) {
+        this.delegate = adapter.delegate;
+        this.executor = adapter.executor;
+        this.ownsExecutor = false;
+        this.maxInFlight = adapter.maxInFlight;
+        this.timeoutNanos = timeoutNanos;
+        this.inFlight = adapter.inFlight;
+        this.waiting = adapter.waiting;
+        this.waitingCount = adapter.waitingCount;
+        this.completedCalls = adapter.completedCalls;
+        this.failedCalls = adapter.failedCalls;
+        this.timedOutCalls = adapter.timedOutCalls;
+    }
+
+    private static final class Call<T> {
+
+        private final Callable<T> callable;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        // the task running the call, cancelled on timeout
+        private final FutureTask<Void> running;
+
+        // whether the slot taken by the call was given back
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Call(Callable<T> callable, Consumer<Call<T>> runner) {
+            this.callable = callable;
+            this.running = new FutureTask<>(() -> runner.accept(this), null);
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or a pool of daemon platform threads if
+     *         the runtime has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Java 21, looked up so that the code runs on older runtimes
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            AtomicInteger threads = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "async-common-service-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public static boolean isVirtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public AsyncCommonService withTimeout(long timeout, TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("Unit must not be null");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        return new AsyncCommonServiceAdapter(this, unit.toNanos(timeout));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> get(Class<T> objectClass, Serializable id) {
+        return submit(() -> delegate.get(objectClass, id));
+    }
+
+    @Override
+    public <T> CompletableFuture<List<T>> getAll(Class<T> type) {
+        return submit(() -> delegate.getAll(type));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        return submit(() -> delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue));
+    }
+
+    @Override
+    public CompletableFuture<Void> save(Serializable id, Object object) {
+        return submit(() -> {
+            delegate.save(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveOrUpdate(Serializable id, Object object) {
+        return submit(() -> {
+            delegate.saveOrUpdate(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> update(Serializable id, Object object) {
+        return submit(() -> {
+            delegate.update(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveCollection(Collection<?> objects) {
+        return submit(() -> {
+            delegate.saveCollection(objects);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveOrUpdateCollection(Collection<?> objects) {
+        return submit(() -> {
+            delegate.saveOrUpdateCollection(objects);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(Serializable id) {
+        return submit(() -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> incrCounter(String key) {
+        return submit(() -> delegate.incrCounter(key));
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> callable) {
+        Call<T> call = new Call<>(callable, this::run);
+        if (timeoutNanos > 0) {
+            call.result.orTimeout(timeoutNanos, TimeUnit.NANOSECONDS).whenComplete((value, e) -> {
+                if (e instanceof TimeoutException) {
+                    timedOutCalls.incrementAndGet();
+                    // a call not started yet never runs
+                    call.running.cancel(true);
+                }
+            });
+        }
+
+        waitingCount.incrementAndGet();
+        waiting.add(call);
+        startWaiting();
+        return call.result;
+    }
+
+    // starts waiting calls while fewer than maxInFlight are running
+    private void startWaiting() {
+        while (waiting.isEmpty() == false) {
+            int running = inFlight.get();
+            if (running >= maxInFlight) {
+                // the running calls start the waiting ones as they complete
+                return;
+            }
+            if (inFlight.compareAndSet(running, running + 1) == false) {
+                continue;
+            }
+
+            Call<?> call = waiting.poll();
+            if (call == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            waitingCount.decrementAndGet();
+            if (call.result.isDone()) {
+                // timed out while waiting
+                call.released.set(true);
+                inFlight.decrementAndGet();
+                continue;
+            }
+
+            // the slot is given back however the call completes, also if it is cancelled before it runs
+            call.result.whenComplete((value, e) -> release(call));
+            try {
+                executor.execute(call.running);
+            }
+            catch (RejectedExecutionException e) {
+                call.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void release(Call<?> call) {
+        if (call.released.compareAndSet(false, true)) {
+            inFlight.decrementAndGet();
+            startWaiting();
+        }
+    }
+
+    private <T> void run(Call<T> call) {
+        try {
+            if (call.result.isDone() == false) {
+                call.result.complete(call.callable.call());
+                completedCalls.incrementAndGet();
+            }
+        }
+        catch (Throwable e) {
+            failedCalls.incrementAndGet();
+            call.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Shuts the executor down if it was created by the adapter, waiting for the running calls. Calls
+     * still waiting then fail with a {@link RejectedExecutionException}.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES) == false) {
+                    log.warn("Async calls still running after close");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getWaiting() {
+        return waitingCount.get();
+    }
+
+    public long getCompletedCalls() {
+        return completedCalls.get();
+    }
+
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+
+    public long getTimedOutCalls() {
+        return timedOutCalls.get();
+    }
+}
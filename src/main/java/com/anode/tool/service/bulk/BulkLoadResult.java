@@ -0,0 +1,95 @@
+package com.anode.tool.service.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The chunks of a {@link BulkLoader#load}, by index.
+ */
+public class BulkLoadResult {
+
+    private final List<ChunkResult> chunks;
+
+    private final long elapsedNanos;
+
+    public BulkLoadResult(List<ChunkResult> chunks, long elapsedNanos) {
+        List<ChunkResult> sorted = new ArrayList<>(chunks);
+        sorted.sort(Comparator.comparingInt(ChunkResult::getIndex));
+        this.chunks = Collections.unmodifiableList(sorted);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public List<ChunkResult> getChunks() {
+        return chunks;
+    }
+
+    public List<ChunkResult> getFailedChunks() {
+        List<ChunkResult> failed = new ArrayList<>();
+        for (ChunkResult chunk : chunks) {
+            if (chunk.isFailed()) {
+                failed.add(chunk);
+            }
+        }
+        return failed;
+    }
+
+    public boolean isSuccessful() {
+        return getFailedChunks().isEmpty();
+    }
+
+    /**
+     * @return the number of objects of the chunks written
+     */
+    public long getWritten() {
+        long written = 0;
+        for (ChunkResult chunk : chunks) {
+            if (chunk.isFailed() == false) {
+                written += chunk.getSize();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return the number of objects of the chunks that failed
+     */
+    public long getFailed() {
+        long failed = 0;
+        for (ChunkResult chunk : chunks) {
+            if (chunk.isFailed()) {
+                failed += chunk.getSize();
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return the number of retries of all the chunks
+     */
+    public long getRetries() {
+        long retries = 0;
+        for (ChunkResult chunk : chunks) {
+            retries += chunk.getAttempts() - 1;
+        }
+        return retries;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the objects written per second over the whole load
+     */
+    public double getThroughput() {
+        return (elapsedNanos == 0) ? 0 : getWritten() * (double)TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return getWritten() + " objects written, " + getFailed() + " failed in " + chunks.size() + " chunks, " + getRetries() + " retries in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, " + (long)getThroughput() + " objects/s";
+    }
+}
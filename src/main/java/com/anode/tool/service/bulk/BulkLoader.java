@@ -0,0 +1,296 @@
+package com.anode.tool.service.bulk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.async.AsyncCommonServiceAdapter;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes a large number of objects to a {@link CommonService} in chunks written concurrently.
+ *
+ * <h2>Chunks</h2>
+ * The objects are read from their {@link Iterable} or {@link Stream} as the chunks are written, so
+ * at most {@code parallelism} chunks of {@code chunkSize} objects are in memory, whatever the number
+ * of objects. Each chunk is a single {@code saveCollection} or {@code saveOrUpdateCollection} call,
+ * and at most {@code parallelism} calls run at the same time. The chunks are not written in order.
+ *
+ * <h2>Retries</h2>
+ * A chunk that fails is retried up to {@code maxRetries} times, waiting twice as long before each
+ * retry. {@link DuplicateKeyException} and {@link IllegalArgumentException} are not retried, as they
+ * would fail again. A chunk may have been written in part when it fails, so retries are only safe
+ * with {@link Mode#SAVE_OR_UPDATE}; with {@link Mode#SAVE}, the retry of such a chunk fails with a
+ * {@link DuplicateKeyException}. A chunk still failing is reported in the result, and the other
+ * chunks are written unless {@link #setStopOnFailure} is set.
+ *
+ * <h2>Reporting</h2>
+ * Every chunk written or failed is passed to the listener, if any, as it completes, with its size,
+ * attempts and duration, e.g. to log the progress of an import. The {@link BulkLoadResult} sums them
+ * up.
+ *
+ * <pre>{@code
+ * BulkLoader<WorkflowInfo> loader = new BulkLoader<>(commonService, 1000, 8);
+ * loader.setListener(chunk -> log.info("{}", chunk));
+ * BulkLoadResult result = loader.load(infos, BulkLoader.Mode.SAVE_OR_UPDATE);
+ * }</pre>
+ *
+ * @param <T> the type of the objects
+ */
+@Slf4j
+public class BulkLoader<T> {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+
+    private final CommonService service;
+
+    private final int chunkSize;
+
+    private final int parallelism;
+
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    private volatile long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+
+    private volatile boolean stopOnFailure = false;
+
+    private volatile Consumer<? super ChunkResult> listener;
+
+    private volatile ExecutorService executor;
+
+    /**
+     * The write of the chunks.
+     */
+    public enum Mode {
+        SAVE,
+        SAVE_OR_UPDATE
+    }
+
+    /**
+     * @param service     the service written to
+     * @param chunkSize   the number of objects of a write
+     * @param parallelism the maximum number of writes at the same time
+     */
+    public BulkLoader(CommonService service, int chunkSize, int parallelism) {
+        if (service == null) {
+            throw new IllegalArgumentException("Service must not be null");
+        }
+        if ((chunkSize < 1) || (parallelism < 1)) {
+            throw new IllegalArgumentException("Chunk size and parallelism must be at least 1");
+        }
+        this.service = service;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets the time to wait before the first retry of a chunk, doubled for each next one.
+     */
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        if (retryBackoffMillis < 0) {
+            throw new IllegalArgumentException("Retry backoff must not be negative");
+        }
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * Sets whether no more chunks are written once one has failed all its attempts.
+     */
+    public void setStopOnFailure(boolean stopOnFailure) {
+        this.stopOnFailure = stopOnFailure;
+    }
+
+    /**
+     * Sets the listener called with the result of every chunk, from the thread that wrote it.
+     */
+    public void setListener(Consumer<? super ChunkResult> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the executor writing the chunks, not shut down by the loader. By default, every load
+     * writes its chunks on virtual threads, or on platform threads before Java 21.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public BulkLoadResult load(Stream<? extends T> objects, Mode mode) {
+        if (objects == null) {
+            throw new IllegalArgumentException("Objects must not be null");
+        }
+        try (Stream<? extends T> s = objects) {
+            return load(s.iterator(), mode);
+        }
+    }
+
+    /**
+     * Writes the objects and waits for all the chunks.
+     *
+     * @return the chunks written and failed
+     */
+    public BulkLoadResult load(Iterable<? extends T> objects, Mode mode) {
+        if (objects == null) {
+            throw new IllegalArgumentException("Objects must not be null");
+        }
+        return load(objects.iterator(), mode);
+    }
+
+    private BulkLoadResult load(Iterator<? extends T> objects, Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode must not be null");
+        }
+
+        Load load = new Load(objects, mode);
+        ExecutorService e = executor;
+        boolean ownsExecutor = (e == null);
+        if (ownsExecutor) {
+            e = AsyncCommonServiceAdapter.newVirtualThreadExecutor();
+        }
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> workers = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(e.submit(load::run));
+            }
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            }
+            catch (InterruptedException ex) {
+                load.stopped.set(true);
+                workers.forEach(w -> w.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Interrupted while loading");
+            }
+            catch (ExecutionException ex) {
+                // a failure of the source or the listener, the chunk failures are in the results
+                load.stopped.set(true);
+                workers.forEach(w -> w.cancel(true));
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                throw new PersistenceException("Bulk load failed", cause);
+            }
+        }
+        finally {
+            if (ownsExecutor) {
+                e.shutdown();
+            }
+        }
+        return new BulkLoadResult(load.results, System.nanoTime() - start);
+    }
+
+    private static final class Chunk {
+
+        private final int index;
+
+        private final List<Object> objects;
+
+        private Chunk(int index, List<Object> objects) {
+            this.index = index;
+            this.objects = objects;
+        }
+    }
+
+    // the state of a load, shared by its workers
+    private final class Load {
+
+        private final Iterator<? extends T> objects;
+
+        private final Mode mode;
+
+        // under the monitor of the load
+        private int nextChunk = 0;
+
+        private final List<ChunkResult> results = new ArrayList<>();
+
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private Load(Iterator<? extends T> objects, Mode mode) {
+            this.objects = objects;
+            this.mode = mode;
+        }
+
+        // the next chunk, null when there are no more objects
+        private synchronized Chunk next() {
+            if (stopped.get() || (objects.hasNext() == false)) {
+                return null;
+            }
+            List<Object> chunk = new ArrayList<>(chunkSize);
+            while ((chunk.size() < chunkSize) && objects.hasNext()) {
+                chunk.add(objects.next());
+            }
+            return new Chunk(nextChunk++, chunk);
+        }
+
+        private void run() {
+            Chunk chunk;
+            while ((chunk = next()) != null) {
+                ChunkResult result = write(chunk.index, chunk.objects);
+                synchronized (this) {
+                    results.add(result);
+                }
+                if (result.isFailed() && stopOnFailure) {
+                    stopped.set(true);
+                }
+                Consumer<? super ChunkResult> l = listener;
+                if (l != null) {
+                    l.accept(result);
+                }
+            }
+        }
+
+        private ChunkResult write(int index, List<Object> chunk) {
+            long start = System.nanoTime();
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                try {
+                    if (mode == Mode.SAVE) {
+                        service.saveCollection(chunk);
+                    }
+                    else {
+                        service.saveOrUpdateCollection(chunk);
+                    }
+                    return new ChunkResult(index, chunk.size(), attempts, System.nanoTime() - start, null);
+                }
+                catch (RuntimeException e) {
+                    if ((attempts > maxRetries) || (e instanceof DuplicateKeyException) || (e instanceof IllegalArgumentException) || stopped.get()) {
+                        log.warn("Chunk {} of {} objects failed after {} attempts", index, chunk.size(), attempts, e);
+                        return new ChunkResult(index, chunk.size(), attempts, System.nanoTime() - start, e);
+                    }
+                    log.debug("Retrying chunk {} after attempt {}", index, attempts, e);
+                    try {
+                        Thread.sleep(retryBackoffMillis << Math.min(attempts - 1, 20));
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return new ChunkResult(index, chunk.size(), attempts, System.nanoTime() - start, e);
+                    }
+                }
+            }
+        }
+    }
+}
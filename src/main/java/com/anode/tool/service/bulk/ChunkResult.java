@@ -0,0 +1,75 @@
+package com.anode.tool.service.bulk;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of the write of a chunk by a {@link BulkLoader}.
+ */
+public class ChunkResult {
+
+    private final int index;
+
+    private final int size;
+
+    private final int attempts;
+
+    private final long elapsedNanos;
+
+    private final RuntimeException failure;
+
+    public ChunkResult(int index, int size, int attempts, long elapsedNanos, RuntimeException failure) {
+        this.index = index;
+        this.size = size;
+        this.attempts = attempts;
+        this.elapsedNanos = elapsedNanos;
+        this.failure = failure;
+    }
+
+    /**
+     * @return the position of the chunk in the objects, from 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of writes of the chunk, 1 if it was not retried
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the time of all the attempts, including the waits between them
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return the exception of the last attempt, null if the chunk was written
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the objects written per second, 0 if the chunk failed
+     */
+    public double getThroughput() {
+        return ((failure != null) || (elapsedNanos == 0)) ? 0 : size * (double)TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "chunk " + index + " of " + size + " objects " + (isFailed() ? "failed" : "written") + " in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, " + attempts + " attempts, " + (long)getThroughput() + " objects/s";
+    }
+}
@@ -0,0 +1,354 @@
+package com.anode.tool.service.clone;
+
+import java.io.Externalizable;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Currency;
+import java.util.Date;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * How the objects of a class are copied, worked out once per class.
+ *
+ * <p>The fields of a class are read and written with method handles typed
+ * {@code (Object)Object} and {@code (Object, Object)void}, and primitive fields are copied with a
+ * single {@code (Object, Object)void} handle that never boxes. Objects are created without running
+ * a constructor, as serialization does, so transient fields, which are not copied, keep their
+ * default value.
+ */
+final class ClassCopier {
+
+    enum Kind {
+        // shared, not copied
+        IMMUTABLE,
+        PRIMITIVE_ARRAY,
+        OBJECT_ARRAY,
+        // Date and its subclasses, copied with clone()
+        DATE,
+        ENUM_SET,
+        // a collection filled in order, e.g. a list
+        SEQUENCE,
+        // a collection whose elements must be complete before they are added, e.g. a set
+        HASHED_COLLECTION,
+        MAP,
+        ENUM_MAP,
+        // a jdk collection that cannot be instantiated, e.g. List.of(), copied to a list, set or map
+        // exposed the way the original is, see Wrapper
+        WRAPPED_LIST,
+        WRAPPED_SET,
+        WRAPPED_MAP,
+        WRAPPED_COLLECTION,
+        RECORD,
+        FIELDS,
+        // copied by serialization, for classes whose fields cannot be accessed
+        SERIALIZED
+    }
+
+    // how the copy of a jdk collection that cannot be instantiated is exposed
+    enum Wrapper {
+        // e.g. List.of() or Collections.unmodifiableList(), copied to an unmodifiable view
+        UNMODIFIABLE,
+        // e.g. Collections.synchronizedList(), copied to a synchronized view
+        SYNCHRONIZED,
+        // e.g. Arrays.asList(), copied to a plain list, set or map
+        NONE
+    }
+
+    private static final ClassValue<ClassCopier> copiers = new ClassValue<ClassCopier>() {
+        @Override
+        protected ClassCopier computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final Set<Class<?>> immutableClasses = Set.of(String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class, UUID.class, URI.class, URL.class, Locale.class, Currency.class, Pattern.class, Class.class, Object.class);
+
+    final Kind kind;
+
+    final Class<?> type;
+
+    // creates an empty instance, typed ()Object, or (Comparator)Object for sorted collections
+    final MethodHandle constructor;
+
+    // copy the primitive fields, typed (Object dst, Object src)void
+    final MethodHandle[] primitiveCopiers;
+
+    // the reference fields, typed (Object)Object and (Object, Object)void
+    final MethodHandle[] getters;
+
+    final MethodHandle[] setters;
+
+    // for records, the canonical constructor spread over an Object[]
+    final MethodHandle recordConstructor;
+
+    // for wrapped collections
+    final Wrapper wrapper;
+
+    private ClassCopier(Kind kind, Class<?> type, MethodHandle constructor, MethodHandle[] primitiveCopiers, MethodHandle[] getters, MethodHandle[] setters, MethodHandle recordConstructor, Wrapper wrapper) {
+        this.kind = kind;
+        this.type = type;
+        this.constructor = constructor;
+        this.primitiveCopiers = primitiveCopiers;
+        this.getters = getters;
+        this.setters = setters;
+        this.recordConstructor = recordConstructor;
+        this.wrapper = wrapper;
+    }
+
+    private ClassCopier(Kind kind, Class<?> type) {
+        this(kind, type, null, null, null, null, null, null);
+    }
+
+    private ClassCopier(Kind kind, Class<?> type, Wrapper wrapper) {
+        this(kind, type, null, null, null, null, null, wrapper);
+    }
+
+    static ClassCopier of(Class<?> type) {
+        return copiers.get(type);
+    }
+
+    boolean isSorted() {
+        return constructor.type().parameterCount() == 1;
+    }
+
+    Object newInstance(Object original) throws Throwable {
+        if (isSorted()) {
+            Comparator<?> comparator;
+            if (original instanceof SortedMap) {
+                comparator = ((SortedMap<?, ?>)original).comparator();
+            }
+            else if (original instanceof SortedSet) {
+                comparator = ((SortedSet<?>)original).comparator();
+            }
+            else {
+                comparator = ((PriorityQueue<?>)original).comparator();
+            }
+            return constructor.invokeExact((Comparator)comparator);
+        }
+        return constructor.invokeExact();
+    }
+
+    private static ClassCopier create(Class<?> type) {
+        if (type.isPrimitive() || type.isEnum() || ((type.getSuperclass() != null) && type.getSuperclass().isEnum()) || immutableClasses.contains(type) || isJavaTime(type)) {
+            return new ClassCopier(Kind.IMMUTABLE, type);
+        }
+        if (type.isArray()) {
+            return new ClassCopier(type.getComponentType().isPrimitive() ? Kind.PRIMITIVE_ARRAY : Kind.OBJECT_ARRAY, type);
+        }
+        if (Date.class.isAssignableFrom(type)) {
+            return new ClassCopier(Kind.DATE, type);
+        }
+        if (EnumSet.class.isAssignableFrom(type)) {
+            return new ClassCopier(Kind.ENUM_SET, type);
+        }
+        if (EnumMap.class.isAssignableFrom(type)) {
+            return new ClassCopier(Kind.ENUM_MAP, type);
+        }
+        if (type.isRecord()) {
+            return createRecordCopier(type);
+        }
+
+        boolean isMap = Map.class.isAssignableFrom(type);
+        boolean isCollection = Collection.class.isAssignableFrom(type);
+        if (isMap || isCollection) {
+            Kind kind = isMap ? Kind.MAP : (isSequence(type) ? Kind.SEQUENCE : Kind.HASHED_COLLECTION);
+            MethodHandle constructor = findCollectionConstructor(type);
+            if (constructor != null) {
+                // the fields of subclasses outside the jdk are copied too
+                return createFieldCopier(kind, type, constructor, true);
+            }
+            Wrapper wrapper = wrapperOf(type);
+            if (isMap) {
+                return new ClassCopier(Kind.WRAPPED_MAP, type, wrapper);
+            }
+            if (List.class.isAssignableFrom(type)) {
+                return new ClassCopier(Kind.WRAPPED_LIST, type, wrapper);
+            }
+            return new ClassCopier(Set.class.isAssignableFrom(type) ? Kind.WRAPPED_SET : Kind.WRAPPED_COLLECTION, type, wrapper);
+        }
+
+        if (Externalizable.class.isAssignableFrom(type)) {
+            return new ClassCopier(Kind.SERIALIZED, type);
+        }
+
+        try {
+            return createFieldCopier(Kind.FIELDS, type, findAllocator(type), false);
+        }
+        catch (RuntimeException e) {
+            // e.g. a jdk class whose fields are not open to reflection
+            if (Serializable.class.isAssignableFrom(type)) {
+                return new ClassCopier(Kind.SERIALIZED, type);
+            }
+            throw new PersistenceException("Cannot copy objects of " + type.getName(), e);
+        }
+    }
+
+    private static Wrapper wrapperOf(Class<?> type) {
+        String name = type.getName();
+        if (name.startsWith("java.util.ImmutableCollections$") || name.startsWith("java.util.Collections$Unmodifiable") || name.startsWith("java.util.Collections$Empty") || name.startsWith("java.util.Collections$Singleton") || name.startsWith("java.util.Collections$CopiesList")) {
+            return Wrapper.UNMODIFIABLE;
+        }
+        if (name.startsWith("java.util.Collections$Synchronized")) {
+            return Wrapper.SYNCHRONIZED;
+        }
+        return Wrapper.NONE;
+    }
+
+    private static boolean isJavaTime(Class<?> type) {
+        // every class of java.time is immutable
+        return type.getName().startsWith("java.time.");
+    }
+
+    private static boolean isJdk(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") || name.startsWith("sun.");
+    }
+
+    private static boolean isSequence(Class<?> type) {
+        return List.class.isAssignableFrom(type) || Deque.class.isAssignableFrom(type);
+    }
+
+    // the public no arg constructor of a collection, or its comparator constructor if it is sorted
+    private static MethodHandle findCollectionConstructor(Class<?> type) {
+        if (Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
+        try {
+            if (SortedMap.class.isAssignableFrom(type) || SortedSet.class.isAssignableFrom(type) || PriorityQueue.class.isAssignableFrom(type)) {
+                Constructor<?> c = type.getConstructor(Comparator.class);
+                return MethodHandles.publicLookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class, Comparator.class));
+            }
+            Constructor<?> c = type.getConstructor();
+            return MethodHandles.publicLookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // creates instances without running a constructor, as deserialization does
+    private static MethodHandle findAllocator(Class<?> type) {
+        if (Modifier.isAbstract(type.getModifiers())) {
+            throw new PersistenceException("Abstract class " + type.getName());
+        }
+        try {
+            Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+            Constructor<?> c = (Constructor<?>)factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class).invoke(factory, type, Object.class.getDeclaredConstructor());
+            // a method handle of this constructor would allocate an Object, so it is called reflectively
+            MethodHandle newInstance = MethodHandles.lookup().findVirtual(Constructor.class, "newInstance", MethodType.methodType(Object.class, Object[].class));
+            return MethodHandles.insertArguments(newInstance, 0, c, new Object[0]);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // no reflection factory, fall back to the no arg constructor
+        }
+
+        try {
+            Constructor<?> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new PersistenceException("Cannot instantiate " + type.getName(), e);
+        }
+    }
+
+    private static ClassCopier createFieldCopier(Kind kind, Class<?> type, MethodHandle constructor, boolean skipJdkFields) {
+        List<MethodHandle> primitiveCopiers = new ArrayList<>();
+        List<MethodHandle> getters = new ArrayList<>();
+        List<MethodHandle> setters = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        for (Class<?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+            if (skipJdkFields && isJdk(c)) {
+                continue;
+            }
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                try {
+                    MethodHandle getter = lookup.unreflectGetter(field);
+                    MethodHandle setter = lookup.unreflectSetter(field);
+                    if (field.getType().isPrimitive()) {
+                        // (dst, src) -> dst.f = src.f
+                        MethodHandle copier = MethodHandles.filterArguments(setter, 1, getter);
+                        primitiveCopiers.add(copier.asType(SETTER_TYPE));
+                    }
+                    else {
+                        getters.add(getter.asType(GETTER_TYPE));
+                        setters.add(setter.asType(SETTER_TYPE));
+                    }
+                }
+                catch (IllegalAccessException e) {
+                    throw new PersistenceException("Cannot access field " + field, e);
+                }
+            }
+        }
+
+        return new ClassCopier(kind, type, constructor, primitiveCopiers.toArray(new MethodHandle[0]), getters.toArray(new MethodHandle[0]), setters.toArray(new MethodHandle[0]), null, null);
+    }
+
+    private static ClassCopier createRecordCopier(Class<?> type) {
+        RecordComponent[] components = type.getRecordComponents();
+        Class<?>[] types = new Class<?>[components.length];
+        MethodHandle[] getters = new MethodHandle[components.length];
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            for (int i = 0; i < components.length; i++) {
+                types[i] = components[i].getType();
+                Method accessor = components[i].getAccessor();
+                accessor.setAccessible(true);
+                getters[i] = lookup.unreflect(accessor).asType(GETTER_TYPE);
+            }
+            Constructor<?> c = type.getDeclaredConstructor(types);
+            c.setAccessible(true);
+            MethodHandle constructor = lookup.unreflectConstructor(c).asSpreader(Object[].class, components.length).asType(MethodType.methodType(Object.class, Object[].class));
+            return new ClassCopier(Kind.RECORD, type, null, null, getters, null, constructor, null);
+        }
+        catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            throw new PersistenceException("Cannot copy record " + type.getName(), e);
+        }
+    }
+
+    static Object copyPrimitiveArray(Object array) {
+        int length = Array.getLength(array);
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+}
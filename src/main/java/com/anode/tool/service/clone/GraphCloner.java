@@ -0,0 +1,423 @@
+package com.anode.tool.service.clone;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * Deep copies object graphs field by field, for the {@code makeClone} of the stores.
+ *
+ * <h2>Copy</h2>
+ * The way each class is copied is worked out once, on first use, and kept in a class value: method
+ * handles for the non transient, non static fields of the class and its superclasses, and the way
+ * to create an instance without running a constructor. Immutable jdk values (strings, boxed
+ * primitives, enums, {@code java.time} values, ...) are shared, arrays, collections and maps are
+ * copied element by element, and records through their canonical constructor. Jdk collections that
+ * cannot be instantiated are copied to a list, set or map, behind an unmodifiable view if the original
+ * is unmodifiable, e.g. {@code List.of()}, or a synchronized view if it is synchronized, and other jdk objects whose fields are
+ * not open to reflection are copied by serialization, without sharing objects with the rest of the
+ * graph.
+ *
+ * <h2>Graph</h2>
+ * Objects are copied once, whatever the number of references to them, so cycles and shared
+ * references are kept. The graph is walked with a work list rather than recursively, so long chains
+ * do not overflow the stack. Sets and maps are filled last, once their elements and keys are fully
+ * copied, each one after the sets and maps reachable from its elements and keys, so that these have
+ * their final hash codes.
+ *
+ * <h2>Ids</h2>
+ * When a factory is given, every {@link Persistable} of the copy is given a new id in the same pass,
+ * as soon as its fields are copied.
+ *
+ * <p>Unlike serialization, the graph does not have to be {@link Serializable}, and custom
+ * {@code readObject} or {@code readResolve} methods are not called.
+ */
+public final class GraphCloner {
+
+    private final IdFactory idFactory;
+
+    private final Map<Serializable, Serializable> ids;
+
+    private final List<Persistable> persistables = new ArrayList<>();
+
+    // original -> copy
+    private final IdentityHashMap<Object, Object> copies = new IdentityHashMap<>();
+
+    // {copier, original, copy} of the objects whose content is still to be copied
+    private final ArrayDeque<Object[]> pending = new ArrayDeque<>();
+
+    // original -> {copy, elements or keys, values} of the sets and maps to fill at the end
+    private final IdentityHashMap<Object, Object[]> deferred = new IdentityHashMap<>();
+
+    private GraphCloner(IdFactory idFactory, Map<Serializable, Serializable> ids) {
+        this.idFactory = idFactory;
+        this.ids = ids;
+    }
+
+    /**
+     * @return a deep copy of the object, with the same ids
+     * @throws PersistenceException if an object of the graph cannot be copied
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T copy(T object) {
+        GraphCloner cloner = new GraphCloner(null, null);
+        return (T)cloner.run(object);
+    }
+
+    /**
+     * Copies the graph of the object. Every {@link Persistable} of the copy is given a new id from the
+     * factory.
+     *
+     * @param ids receives the old id to new id mapping of the copied Persistables
+     * @return the Persistables of the copy, to be saved by the caller
+     * @throws PersistenceException if an object of the graph cannot be copied
+     */
+    public static List<Persistable> cloneGraph(Object object, IdFactory idFactory, Map<Serializable, Serializable> ids) {
+        if (idFactory == null) {
+            throw new IllegalArgumentException("Id factory must not be null");
+        }
+        GraphCloner cloner = new GraphCloner(idFactory, ids);
+        cloner.run(object);
+        return cloner.persistables;
+    }
+
+    private Object run(Object object) {
+        try {
+            Object copy = copyOf(object);
+            while (pending.isEmpty() == false) {
+                Object[] task = pending.pop();
+                fill((ClassCopier)task[0], task[1], task[2]);
+            }
+            if (deferred.size() == 1) {
+                fillDeferred(deferred.values().iterator().next());
+            }
+            else if (deferred.isEmpty() == false) {
+                for (Object[] task : fillOrder(object)) {
+                    fillDeferred(task);
+                }
+            }
+            return copy;
+        }
+        catch (PersistenceException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new PersistenceException("Cannot clone object of type " + object.getClass().getName(), e);
+        }
+    }
+
+    // returns the copy of the object, created empty and queued to be filled if it is new
+    private Object copyOf(Object original) throws Throwable {
+        if (original == null) {
+            return null;
+        }
+        Object copy = copies.get(original);
+        if (copy != null) {
+            return copy;
+        }
+
+        ClassCopier copier = ClassCopier.of(original.getClass());
+        switch (copier.kind) {
+            case IMMUTABLE:
+                return original;
+            case PRIMITIVE_ARRAY:
+                copy = ClassCopier.copyPrimitiveArray(original);
+                break;
+            case DATE:
+                copy = ((Date)original).clone();
+                break;
+            case ENUM_SET:
+                copy = ((EnumSet<?>)original).clone();
+                break;
+            case SERIALIZED:
+                copy = serializedCopy(original);
+                break;
+            case RECORD:
+                Object[] components = new Object[copier.getters.length];
+                for (int i = 0; i < components.length; i++) {
+                    components[i] = copyOf(copier.getters[i].invokeExact(original));
+                }
+                copy = copier.recordConstructor.invokeExact(components);
+                break;
+            case OBJECT_ARRAY:
+                copy = Array.newInstance(original.getClass().getComponentType(), ((Object[])original).length);
+                pending.push(new Object[] { copier, original, copy });
+                break;
+            case ENUM_MAP:
+                EnumMap<?, ?> map = ((EnumMap<?, ?>)original).clone();
+                map.clear();
+                copy = map;
+                pending.push(new Object[] { copier, original, copy });
+                break;
+            case WRAPPED_LIST:
+                List<Object> list = new ArrayList<>(((Collection<?>)original).size());
+                copy = wrapList(copier.wrapper, list);
+                pending.push(new Object[] { copier, original, list });
+                break;
+            case WRAPPED_COLLECTION:
+                List<Object> elements = new ArrayList<>(((Collection<?>)original).size());
+                copy = wrapCollection(copier.wrapper, elements);
+                pending.push(new Object[] { copier, original, elements });
+                break;
+            case WRAPPED_SET:
+                LinkedHashSet<Object> set = new LinkedHashSet<>();
+                copy = wrapSet(copier.wrapper, set);
+                pending.push(new Object[] { copier, original, set });
+                break;
+            case WRAPPED_MAP:
+                LinkedHashMap<Object, Object> wrapped = new LinkedHashMap<>();
+                copy = wrapMap(copier.wrapper, wrapped);
+                pending.push(new Object[] { copier, original, wrapped });
+                break;
+            default:
+                copy = copier.newInstance(original);
+                pending.push(new Object[] { copier, original, copy });
+                break;
+        }
+        copies.put(original, copy);
+        return copy;
+    }
+
+    private static Object wrapList(ClassCopier.Wrapper wrapper, List<Object> list) {
+        switch (wrapper) {
+            case UNMODIFIABLE:
+                return Collections.unmodifiableList(list);
+            case SYNCHRONIZED:
+                return Collections.synchronizedList(list);
+            default:
+                return list;
+        }
+    }
+
+    private static Object wrapCollection(ClassCopier.Wrapper wrapper, Collection<Object> collection) {
+        switch (wrapper) {
+            case UNMODIFIABLE:
+                return Collections.unmodifiableCollection(collection);
+            case SYNCHRONIZED:
+                return Collections.synchronizedCollection(collection);
+            default:
+                return collection;
+        }
+    }
+
+    private static Object wrapSet(ClassCopier.Wrapper wrapper, Set<Object> set) {
+        switch (wrapper) {
+            case UNMODIFIABLE:
+                return Collections.unmodifiableSet(set);
+            case SYNCHRONIZED:
+                return Collections.synchronizedSet(set);
+            default:
+                return set;
+        }
+    }
+
+    private static Object wrapMap(ClassCopier.Wrapper wrapper, Map<Object, Object> map) {
+        switch (wrapper) {
+            case UNMODIFIABLE:
+                return Collections.unmodifiableMap(map);
+            case SYNCHRONIZED:
+                return Collections.synchronizedMap(map);
+            default:
+                return map;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fill(ClassCopier copier, Object original, Object copy) throws Throwable {
+        switch (copier.kind) {
+            case OBJECT_ARRAY:
+                Object[] from = (Object[])original;
+                Object[] to = (Object[])copy;
+                for (int i = 0; i < from.length; i++) {
+                    to[i] = copyOf(from[i]);
+                }
+                return;
+            case SEQUENCE:
+            case WRAPPED_LIST:
+            case WRAPPED_COLLECTION:
+                Collection<Object> sequence = (Collection<Object>)copy;
+                for (Object element : (Collection<?>)original) {
+                    sequence.add(copyOf(element));
+                }
+                break;
+            case HASHED_COLLECTION:
+            case WRAPPED_SET:
+                Collection<?> elements = (Collection<?>)original;
+                Object[] copiedElements = new Object[elements.size()];
+                int e = 0;
+                for (Object element : elements) {
+                    copiedElements[e++] = copyOf(element);
+                }
+                deferred.put(original, new Object[] { copy, copiedElements, null });
+                break;
+            case MAP:
+            case ENUM_MAP:
+            case WRAPPED_MAP:
+                Map<?, ?> map = (Map<?, ?>)original;
+                Object[] keys = new Object[map.size()];
+                Object[] values = new Object[map.size()];
+                int m = 0;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    keys[m] = copyOf(entry.getKey());
+                    values[m++] = copyOf(entry.getValue());
+                }
+                deferred.put(original, new Object[] { copy, keys, values });
+                break;
+            default:
+                break;
+        }
+
+        if (copier.primitiveCopiers != null) {
+            for (MethodHandle c : copier.primitiveCopiers) {
+                c.invokeExact(copy, original);
+            }
+            for (int i = 0; i < copier.getters.length; i++) {
+                Object value = copier.getters[i].invokeExact(original);
+                copier.setters[i].invokeExact(copy, copyOf(value));
+            }
+        }
+
+        if ((idFactory != null) && (copy instanceof Persistable)) {
+            Persistable p = (Persistable)copy;
+            Serializable oldId = ((Persistable)original).getId();
+            Serializable newId = idFactory.newId();
+            p.setId(newId);
+            if (oldId != null) {
+                ids.put(oldId, newId);
+            }
+            persistables.add(p);
+        }
+    }
+
+    /*
+     * The sets and maps to fill, each one after those reachable from it, so that the elements and keys
+     * added to a set or map have their final hash codes: the order they are left in by a depth first
+     * walk of the original graph. The order of the sets and maps of a cycle does not matter, the hash
+     * codes of their elements cannot depend on one another.
+     */
+    private List<Object[]> fillOrder(Object root) throws Throwable {
+        List<Object[]> order = new ArrayList<>(deferred.size());
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+        // {object, iterator of its references}
+        ArrayDeque<Object[]> path = new ArrayDeque<>();
+        visited.put(root, Boolean.TRUE);
+        path.push(new Object[] { root, references(root).iterator() });
+        while (path.isEmpty() == false) {
+            Object[] top = path.peek();
+            Iterator<?> references = (Iterator<?>)top[1];
+            if (references.hasNext()) {
+                Object reference = references.next();
+                if ((reference != null) && (visited.put(reference, Boolean.TRUE) == null)) {
+                    path.push(new Object[] { reference, references(reference).iterator() });
+                }
+                continue;
+            }
+            path.pop();
+            Object[] task = deferred.get(top[0]);
+            if (task != null) {
+                order.add(task);
+            }
+        }
+        return order;
+    }
+
+    // the objects the original refers to, as they are copied
+    private static List<Object> references(Object original) throws Throwable {
+        ClassCopier copier = ClassCopier.of(original.getClass());
+        List<Object> references = new ArrayList<>();
+        switch (copier.kind) {
+            case IMMUTABLE:
+            case PRIMITIVE_ARRAY:
+            case DATE:
+            case ENUM_SET:
+            case SERIALIZED:
+                return references;
+            case OBJECT_ARRAY:
+                Collections.addAll(references, (Object[])original);
+                return references;
+            case RECORD:
+                for (MethodHandle getter : copier.getters) {
+                    references.add((Object)getter.invokeExact(original));
+                }
+                return references;
+            case SEQUENCE:
+            case WRAPPED_LIST:
+            case WRAPPED_COLLECTION:
+            case HASHED_COLLECTION:
+            case WRAPPED_SET:
+                references.addAll((Collection<?>)original);
+                break;
+            case MAP:
+            case ENUM_MAP:
+            case WRAPPED_MAP:
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>)original).entrySet()) {
+                    references.add(entry.getKey());
+                    references.add(entry.getValue());
+                }
+                break;
+            default:
+                break;
+        }
+        if (copier.primitiveCopiers != null) {
+            for (MethodHandle getter : copier.getters) {
+                references.add((Object)getter.invokeExact(original));
+            }
+        }
+        return references;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void fillDeferred(Object[] task) {
+        Object[] keys = (Object[])task[1];
+        Object[] values = (Object[])task[2];
+        if (values == null) {
+            Collection<Object> collection = (Collection<Object>)task[0];
+            for (Object element : keys) {
+                collection.add(element);
+            }
+            return;
+        }
+        Map<Object, Object> map = (Map<Object, Object>)task[0];
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], values[i]);
+        }
+    }
+
+    private static Object serializedCopy(Object object) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(object);
+            }
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+                return ois.readObject();
+            }
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Cannot clone object of type " + object.getClass().getName(), e);
+        }
+    }
+}
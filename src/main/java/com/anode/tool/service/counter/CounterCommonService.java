@@ -0,0 +1,362 @@
+package com.anode.tool.service.counter;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link CommonService} decorator that serves {@link #incrCounter} according to the
+ * {@link CounterMode} of each counter, all other calls going to the delegate.
+ *
+ * <h2>Modes</h2>
+ * {@link CounterMode#GAPLESS} counters call the delegate for every increment.
+ * {@link CounterMode#LEASED} counters lease ranges of {@code leaseSize} values by adding
+ * {@code leaseSize} to the backend counter, and hand them out with an atomic increment, so the
+ * backend counter is always the highest value given out by any process.
+ * {@link CounterMode#STATISTIC} counters add up increments in striped {@link LongAdder} cells, which
+ * threads update without contending, and their totals are added to the backend every
+ * {@code flushIntervalMillis}, on {@link #flush()} and on {@link #close()}.
+ *
+ * <h2>Backend</h2>
+ * Ranges and flushed totals are added with a {@link CounterStore}. If none is given and the delegate
+ * is not one, only the GAPLESS mode is allowed: a range is only given to a single process by an
+ * atomic add, and adding a flushed total with one {@code incrCounter} per unit would cost as many
+ * backend calls as the increments it batches.
+ */
+@Slf4j
+public class CounterCommonService implements CommonService, Closeable {
+
+    private final CommonService delegate;
+
+    // null if there is none, which allows only GAPLESS counters
+    private final CounterStore store;
+
+    private final long leaseSize;
+
+    private final ConcurrentHashMap<String, CounterMode> modes = new ConcurrentHashMap<>();
+
+    private volatile CounterMode defaultMode = CounterMode.GAPLESS;
+
+    private final ConcurrentHashMap<String, LeasedCounter> leased = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Statistic> statistics = new ConcurrentHashMap<>();
+
+    // one flush at a time, so that the flushed totals are not added twice
+    private final Object flushLock = new Object();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong backendCalls = new AtomicLong();
+
+    /**
+     * @param delegate            the service of the other calls, and of the counters if no store is given
+     * @param store               the backend of the counters, null to use the delegate
+     * @param leaseSize           the number of values leased at a time by the LEASED counters
+     * @param flushIntervalMillis the time between flushes of the STATISTIC counters, 0 for none
+     */
+    public CounterCommonService(CommonService delegate, CounterStore store, long leaseSize, long flushIntervalMillis) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate must not be null");
+        }
+        if (leaseSize < 1) {
+            throw new IllegalArgumentException("Lease size must be at least 1");
+        }
+        this.delegate = delegate;
+        if (store != null) {
+            this.store = store;
+        }
+        else if (delegate instanceof CounterStore) {
+            this.store = (CounterStore)delegate;
+        }
+        else {
+            this.store = null;
+        }
+        this.leaseSize = leaseSize;
+
+        if (flushIntervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "counter-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::backgroundFlush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            scheduler = null;
+        }
+    }
+
+    private static final class Lease {
+
+        private final AtomicLong next;
+
+        private final long last;
+
+        private Lease(long first, long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
+        }
+    }
+
+    private static final class LeasedCounter {
+
+        private volatile Lease lease = new Lease(1, 0);
+    }
+
+    private static final class Statistic {
+
+        // all the increments of the process, never reset so that none is lost by a flush
+        private final LongAdder increments = new LongAdder();
+
+        // the increments already added to the backend, under the flush lock
+        private long flushed = 0;
+
+        private volatile Flushed last = new Flushed(0, 0);
+    }
+
+    // the backend value after a flush and the increments of the process it includes
+    private static final class Flushed {
+
+        private final long backendValue;
+
+        private final long increments;
+
+        private Flushed(long backendValue, long increments) {
+            this.backendValue = backendValue;
+            this.increments = increments;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the mode is not GAPLESS and there is no {@link CounterStore}
+     */
+    public void setDefaultMode(CounterMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode must not be null");
+        }
+        checkMode(mode);
+        defaultMode = mode;
+    }
+
+    /**
+     * Sets the mode of a counter. The mode of a counter should not change once it is used.
+     *
+     * @throws IllegalArgumentException if the mode is not GAPLESS and there is no {@link CounterStore}
+     */
+    public void setMode(String key, CounterMode mode) {
+        if ((key == null) || (mode == null)) {
+            throw new IllegalArgumentException("Key and mode must not be null");
+        }
+        checkMode(mode);
+        modes.put(key, mode);
+    }
+
+    private void checkMode(CounterMode mode) {
+        if ((mode != CounterMode.GAPLESS) && (store == null)) {
+            throw new IllegalArgumentException(mode + " counters need a CounterStore, the delegate " + delegate.getClass().getName() + " is not one");
+        }
+    }
+
+    public CounterMode getMode(String key) {
+        return modes.getOrDefault(key, defaultMode);
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        if ((key == null) || key.isEmpty()) {
+            throw new IllegalArgumentException("Counter key must not be null or empty");
+        }
+
+        CounterMode mode = getMode(key);
+        if (mode == CounterMode.LEASED) {
+            return nextLeased(key);
+        }
+        if (mode == CounterMode.STATISTIC) {
+            Statistic s = statistics.computeIfAbsent(key, k -> new Statistic());
+            s.increments.increment();
+            Flushed f = s.last;
+            return f.backendValue + (s.increments.sum() - f.increments);
+        }
+
+        backendCalls.incrementAndGet();
+        return delegate.incrCounter(key);
+    }
+
+    private long nextLeased(String key) {
+        LeasedCounter counter = leased.computeIfAbsent(key, k -> new LeasedCounter());
+        while (true) {
+            Lease lease = counter.lease;
+            long value = lease.next.getAndIncrement();
+            if (value <= lease.last) {
+                return value;
+            }
+            renew(key, counter, lease);
+        }
+    }
+
+    // one thread leases the next range of the counter, the others wait for it
+    private void renew(String key, LeasedCounter counter, Lease expired) {
+        synchronized (counter) {
+            if (counter.lease == expired) {
+                backendCalls.incrementAndGet();
+                long last = addToCounter(key, leaseSize);
+                counter.lease = new Lease(last - leaseSize + 1, last);
+            }
+        }
+    }
+
+    private long addToCounter(String key, long delta) {
+        Map<String, Long> deltas = new HashMap<>();
+        deltas.put(key, delta);
+        return store.addToCounters(deltas).get(key);
+    }
+
+    /**
+     * Adds the increments of the STATISTIC counters since the last flush to the backend, in one call.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Long> deltas = new HashMap<>();
+            Map<String, Long> totals = new HashMap<>();
+            for (Map.Entry<String, Statistic> entry : statistics.entrySet()) {
+                Statistic s = entry.getValue();
+                long total = s.increments.sum();
+                if (total > s.flushed) {
+                    deltas.put(entry.getKey(), total - s.flushed);
+                    totals.put(entry.getKey(), total);
+                }
+            }
+            if (deltas.isEmpty()) {
+                return;
+            }
+
+            backendCalls.incrementAndGet();
+            Map<String, Long> values = store.addToCounters(deltas);
+            for (Map.Entry<String, Long> entry : totals.entrySet()) {
+                Statistic s = statistics.get(entry.getKey());
+                s.flushed = entry.getValue();
+                s.last = new Flushed(values.get(entry.getKey()), s.flushed);
+            }
+        }
+    }
+
+    private void backgroundFlush() {
+        try {
+            flush();
+        }
+        catch (RuntimeException e) {
+            log.warn("Counter flush failed, will retry", e);
+        }
+    }
+
+    /**
+     * Stops the background flushes and flushes the STATISTIC counters. The rest of the leased ranges is
+     * lost.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of calls made to the backend for the counters
+     */
+    public long getBackendCalls() {
+        return backendCalls.get();
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        delegate.saveOrUpdate(id, object);
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        delegate.save(id, object);
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        delegate.update(id, object);
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        delegate.saveCollection(objects);
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        delegate.saveOrUpdateCollection(objects);
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        delegate.delete(id);
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        return delegate.get(objectClass, id);
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        return delegate.getAll(type);
+    }
+
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        return delegate.stream(type, fetchSize);
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        return delegate.getPage(type, afterId, pageSize, comparator);
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        return delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+    }
+
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        return delegate.getLocked(objectClass, id);
+    }
+
+    @Override
+    public void endTransaction() {
+        delegate.endTransaction();
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        return delegate.makeClone(object, idFactory);
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        return delegate.getMinimalId(comparator);
+    }
+}
@@ -0,0 +1,28 @@
+package com.anode.tool.service.counter;
+
+/**
+ * How the values of a counter of the {@link CounterCommonService} are given.
+ */
+public enum CounterMode {
+
+    /**
+     * Every value is written to the backend before it is returned. The values of all the processes
+     * are unique and follow each other without gaps. One backend write per increment.
+     */
+    GAPLESS,
+
+    /**
+     * Values come from ranges leased from the backend. The values of all the processes are unique and
+     * the values of a process increase, but the values of a range not used up when the process stops
+     * are lost. One backend write per range. Needs a {@link CounterStore}, whose adds are atomic.
+     */
+    LEASED,
+
+    /**
+     * Increments are added up in memory and written to the backend in batches. The value returned is
+     * the total as last read from the backend plus the increments of the process since, so values
+     * are neither unique nor exact. For statistics only. One backend write per flush. Needs a
+     * {@link CounterStore}.
+     */
+    STATISTIC
+}
@@ -0,0 +1,22 @@
+package com.anode.tool.service.counter;
+
+import java.util.Map;
+
+/**
+ * Backend of counters that can add any amount to several counters in one call.
+ *
+ * <p>{@link com.anode.tool.service.CommonService#incrCounter} adds 1 to one counter per call. The
+ * counter service uses this interface instead to lease ranges of values and to flush the increments
+ * of many counters at once. Backends should implement it with a single write per call, e.g. one
+ * statement or one log record batch.
+ */
+public interface CounterStore {
+
+    /**
+     * Atomically adds each delta to its counter, creating the counters that do not exist with 0.
+     *
+     * @param deltas the amount to add per counter key, each at least 1
+     * @return the new value per counter key
+     */
+    Map<String, Long> addToCounters(Map<String, Long> deltas);
+}
@@ -0,0 +1,547 @@
+package com.anode.tool.service.dirty;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+
+/**
+ * {@link CommonService} decorator that does not write the {@link Persistable} objects that have not
+ * changed since they were read or written through it.
+ *
+ * <h2>Snapshots</h2>
+ * When a {@code Persistable} is read, by {@link #get}, {@link #getLocked}, {@link #getAll},
+ * {@link #getPage} or {@link #getUniqueItem}, or written, the decorator keeps a snapshot of it by id:
+ * a 64 bit hash of each of its fields, covering the objects they reference. {@link #update},
+ * {@link #saveOrUpdate} and {@link #saveOrUpdateCollection} compare the object with the snapshot of
+ * its id and skip it if no hash changed. Objects of other classes, objects without a snapshot and
+ * objects referencing an object that cannot be hashed are always written. {@link #stream} does not
+ * take snapshots, to scan large types without keeping a snapshot per object.
+ *
+ * <p>At most {@code maxTracked} snapshots are kept. Once there are that many, the objects read are
+ * not tracked any more until some are deleted or {@link #forget forgotten}, so they are written in
+ * full.
+ *
+ * <h2>Partial updates</h2>
+ * If the delegate implements {@link PartialUpdateSupport}, {@link #update} of a changed object with a
+ * snapshot writes only the fields whose hash changed. {@code saveOrUpdate} always writes the whole
+ * object, as it may have been deleted since it was read.
+ *
+ * <h2>Consistency</h2>
+ * The snapshot of an id is only as recent as the last read or write through the decorator: an object
+ * changed in the backend by another process, then changed back to the snapshot by the caller, is not
+ * written back. {@link #forget} drops the snapshot of such an id. The writes of an id, and the taking
+ * of its snapshots, are serialized on one of {@value #STRIPES} locks, so writes to different ids of
+ * the same stripe wait for one another.
+ */
+public class DirtyTrackingCommonService implements CommonService {
+
+    public static final int DEFAULT_MAX_TRACKED = 100_000;
+
+    private static final int STRIPES = 256;
+
+    private final CommonService delegate;
+
+    private final int maxTracked;
+
+    private final ConcurrentHashMap<Serializable, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder skippedWrites = new LongAdder();
+
+    private final LongAdder partialUpdates = new LongAdder();
+
+    private final LongAdder fullWrites = new LongAdder();
+
+    public DirtyTrackingCommonService(CommonService delegate) {
+        this(delegate, DEFAULT_MAX_TRACKED);
+    }
+
+    /**
+     * @param delegate   the service written to
+     * @param maxTracked the maximum number of snapshots kept
+     */
+    public DirtyTrackingCommonService(CommonService delegate, int maxTracked) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate must not be null");
+        }
+        if (maxTracked < 0) {
+            throw new IllegalArgumentException("Max tracked must not be negative");
+        }
+        this.delegate = delegate;
+        this.maxTracked = maxTracked;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // the hashes of the fields of an object
+    private static final class Snapshot {
+
+        private final Class<?> type;
+
+        private final long[] hashes;
+
+        private Snapshot(Class<?> type, long[] hashes) {
+            this.type = type;
+            this.hashes = hashes;
+        }
+
+        private boolean isSameType(Snapshot other) {
+            return type == other.type;
+        }
+
+        private Set<String> changedFields(Snapshot current) {
+            String[] names = EntityHasher.of(type).getNames();
+            Set<String> changed = new LinkedHashSet<>();
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != current.hashes[i]) {
+                    changed.add(names[i]);
+                }
+            }
+            return changed;
+        }
+    }
+
+    // the lock of the writes of the ids of a stripe, and their count, odd while a write runs
+    private static final class Stripe {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile long writes = 0;
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        write(id, object, false);
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        Serializable key = idOf(id, object);
+        if (key == null) {
+            // the backend sets the id
+            delegate.save(id, object);
+            fullWrites.increment();
+            observe(idOf(id, object), object);
+            return;
+        }
+
+        Stripe stripe = stripe(key);
+        lock(stripe);
+        try {
+            snapshots.remove(key);
+            delegate.save(id, object);
+            fullWrites.increment();
+            track(key, snapshot(object));
+        }
+        finally {
+            unlock(stripe);
+        }
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        write(id, object, true);
+    }
+
+    private void write(Serializable id, Object object, boolean update) {
+        Serializable key = idOf(id, object);
+        if (key == null) {
+            writeFully(id, object, update);
+            observe(idOf(id, object), object);
+            return;
+        }
+
+        Stripe stripe = stripe(key);
+        lock(stripe);
+        try {
+            Snapshot current = snapshot(object);
+            Snapshot read = snapshots.get(key);
+            if ((current != null) && (read != null) && read.isSameType(current)) {
+                if (Arrays.equals(read.hashes, current.hashes)) {
+                    skippedWrites.increment();
+                    return;
+                }
+                if (update && (delegate instanceof PartialUpdateSupport)) {
+                    snapshots.remove(key);
+                    ((PartialUpdateSupport)delegate).updateFields(key, object, read.changedFields(current));
+                    partialUpdates.increment();
+                    track(key, current);
+                    return;
+                }
+            }
+            snapshots.remove(key);
+            writeFully(id, object, update);
+            track(key, current);
+        }
+        finally {
+            unlock(stripe);
+        }
+    }
+
+    private void writeFully(Serializable id, Object object, boolean update) {
+        if (update) {
+            delegate.update(id, object);
+        }
+        else {
+            delegate.saveOrUpdate(id, object);
+        }
+        fullWrites.increment();
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            delegate.saveCollection(objects);
+            return;
+        }
+
+        List<Stripe> locked = lockAll(objects);
+        try {
+            for (Object object : objects) {
+                Serializable key = idOf(null, object);
+                if (key != null) {
+                    snapshots.remove(key);
+                }
+            }
+            delegate.saveCollection(objects);
+            fullWrites.add(objects.size());
+            for (Object object : objects) {
+                Serializable key = idOf(null, object);
+                if (key != null) {
+                    track(key, snapshot(object));
+                }
+            }
+        }
+        finally {
+            locked.forEach(this::unlock);
+        }
+    }
+
+    /**
+     * Writes the objects that changed, and nothing if none did.
+     */
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            delegate.saveOrUpdateCollection(objects);
+            return;
+        }
+
+        List<Stripe> locked = lockAll(objects);
+        try {
+            List<Object> changed = new ArrayList<>(objects.size());
+            List<Snapshot> current = new ArrayList<>(objects.size());
+            for (Object object : objects) {
+                Serializable key = idOf(null, object);
+                Snapshot snapshot = snapshot(object);
+                Snapshot read = (key == null) ? null : snapshots.get(key);
+                if ((snapshot != null) && (read != null) && read.isSameType(snapshot) && Arrays.equals(read.hashes, snapshot.hashes)) {
+                    skippedWrites.increment();
+                    continue;
+                }
+                if (key != null) {
+                    snapshots.remove(key);
+                }
+                changed.add(object);
+                current.add(snapshot);
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+
+            delegate.saveOrUpdateCollection((changed.size() == objects.size()) ? objects : changed);
+            fullWrites.add(changed.size());
+            for (int i = 0; i < changed.size(); i++) {
+                Serializable key = idOf(null, changed.get(i));
+                if (key != null) {
+                    track(key, current.get(i));
+                }
+            }
+        }
+        finally {
+            locked.forEach(this::unlock);
+        }
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        if (id == null) {
+            delegate.delete(id);
+            return;
+        }
+
+        Stripe stripe = stripe(id);
+        lock(stripe);
+        try {
+            snapshots.remove(id);
+            delegate.delete(id);
+        }
+        finally {
+            unlock(stripe);
+        }
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        if (id == null) {
+            return delegate.get(objectClass, id);
+        }
+        Stripe stripe = stripe(id);
+        long writes = stripe.writes;
+        T object = delegate.get(objectClass, id);
+        observe(id, object, stripe, writes);
+        return object;
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        long[] writes = writes();
+        List<T> objects = delegate.getAll(type);
+        observe(objects, writes);
+        return objects;
+    }
+
+    /**
+     * Streams the objects of the delegate without taking snapshots of them.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        return delegate.stream(type, fetchSize);
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        long[] writes = writes();
+        Page<T> page = delegate.getPage(type, afterId, pageSize, comparator);
+        observe(page.getItems(), writes);
+        return page;
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        long[] writes = writes();
+        T object = delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+        if (object != null) {
+            observe(List.of(object), writes);
+        }
+        return object;
+    }
+
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        if (id == null) {
+            return delegate.getLocked(objectClass, id);
+        }
+        Stripe stripe = stripe(id);
+        long writes = stripe.writes;
+        T object = delegate.getLocked(objectClass, id);
+        observe(id, object, stripe, writes);
+        return object;
+    }
+
+    @Override
+    public void endTransaction() {
+        delegate.endTransaction();
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        return delegate.makeClone(object, idFactory);
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        return delegate.getMinimalId(comparator);
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        return delegate.incrCounter(key);
+    }
+
+    /**
+     * Drops the snapshot of the id, so that its next write is not skipped, e.g. after the object was
+     * changed in the backend by another process.
+     */
+    public void forget(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+        Stripe stripe = stripe(id);
+        lock(stripe);
+        try {
+            snapshots.remove(id);
+        }
+        finally {
+            unlock(stripe);
+        }
+    }
+
+    /**
+     * Drops all the snapshots.
+     */
+    public void forgetAll() {
+        for (Stripe stripe : stripes) {
+            lock(stripe);
+        }
+        try {
+            snapshots.clear();
+        }
+        finally {
+            for (Stripe stripe : stripes) {
+                unlock(stripe);
+            }
+        }
+    }
+
+    public int getTrackedCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return the number of objects not written as they had not changed
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.sum();
+    }
+
+    /**
+     * @return the number of updates of the changed fields only
+     */
+    public long getPartialUpdates() {
+        return partialUpdates.sum();
+    }
+
+    /**
+     * @return the number of objects written in full
+     */
+    public long getFullWrites() {
+        return fullWrites.sum();
+    }
+
+    private static Serializable idOf(Serializable id, Object object) {
+        if ((id == null) && (object instanceof Persistable)) {
+            return ((Persistable)object).getId();
+        }
+        return id;
+    }
+
+    // the snapshot of a Persistable, null for other objects and those that cannot be hashed
+    private static Snapshot snapshot(Object object) {
+        if ((object instanceof Persistable) == false) {
+            return null;
+        }
+        long[] hashes = EntityHasher.of(object.getClass()).hashFields(object);
+        return (hashes == null) ? null : new Snapshot(object.getClass(), hashes);
+    }
+
+    // under the lock of the stripe of the id
+    private void track(Serializable id, Snapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        if ((snapshots.size() < maxTracked) || snapshots.containsKey(id)) {
+            snapshots.put(id, snapshot);
+        }
+    }
+
+    // takes the snapshot of an object read, unless its id was written meanwhile
+    private void observe(Serializable id, Object object, Stripe stripe, long writes) {
+        if (((writes & 1) != 0) || (id == null)) {
+            return;
+        }
+        Snapshot snapshot = snapshot(object);
+        if (snapshot == null) {
+            return;
+        }
+        stripe.lock.lock();
+        try {
+            if (stripe.writes == writes) {
+                track(id, snapshot);
+            }
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void observe(Serializable id, Object object) {
+        if (id != null) {
+            Stripe stripe = stripe(id);
+            observe(id, object, stripe, stripe.writes);
+        }
+    }
+
+    private void observe(Collection<?> objects, long[] writes) {
+        for (Object object : objects) {
+            Serializable id = idOf(null, object);
+            if (id != null) {
+                observe(id, object, stripe(id), writes[index(id)]);
+            }
+        }
+    }
+
+    // the writes of all the stripes
+    private long[] writes() {
+        long[] writes = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            writes[i] = stripes[i].writes;
+        }
+        return writes;
+    }
+
+    private static int index(Serializable id) {
+        return (id.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private Stripe stripe(Serializable id) {
+        return stripes[index(id)];
+    }
+
+    private void lock(Stripe stripe) {
+        stripe.lock.lock();
+        stripe.writes++;
+    }
+
+    private void unlock(Stripe stripe) {
+        stripe.writes++;
+        stripe.lock.unlock();
+    }
+
+    // locks the stripes of the ids of the objects in the order of the stripes, so that two
+    // collections cannot wait for each other
+    private List<Stripe> lockAll(Collection<?> objects) {
+        boolean[] used = new boolean[STRIPES];
+        for (Object object : objects) {
+            Serializable id = idOf(null, object);
+            if (id != null) {
+                used[index(id)] = true;
+            }
+        }
+        List<Stripe> locked = new ArrayList<>();
+        for (int i = 0; i < STRIPES; i++) {
+            if (used[i]) {
+                lock(stripes[i]);
+                locked.add(stripes[i]);
+            }
+        }
+        return locked;
+    }
+}
@@ -0,0 +1,316 @@
+package com.anode.tool.service.dirty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Currency;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * The 64 bit hashes of the fields of the objects of a class, worked out once per class.
+ *
+ * <p>The hash of a field covers the whole graph of objects it references: strings, boxes and other
+ * values by content, arrays, lists and sorted collections in order, sets and maps in any order, and
+ * other objects by their non transient, non static fields. An object met again in the graph is
+ * hashed by the order it was first met in, so cycles end. JDK objects whose fields cannot be accessed
+ * are hashed by their serialized form, and the fields of an object graph holding one that cannot be
+ * hashed at all, or deeper than {@link #MAX_DEPTH} objects, are not hashed, the object being then
+ * always dirty. The depth bound keeps the recursive walk within the stack of the writing thread.
+ */
+final class EntityHasher {
+
+    private static final long NULL = 0x3c6ef372fe94f82bL;
+
+    private static final long CYCLE = 0xa54ff53a5f1d36f1L;
+
+    static final int MAX_DEPTH = 512;
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final Set<Class<?>> valueClasses = Set.of(String.class, BigInteger.class, BigDecimal.class, UUID.class, URI.class, URL.class, Locale.class, Currency.class, Pattern.class, Class.class);
+
+    private static final ClassValue<EntityHasher> hashers = new ClassValue<EntityHasher>() {
+        @Override
+        protected EntityHasher computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+
+    private final long seed;
+
+    // hashed by its string form
+    private final boolean value;
+
+    private final String[] names;
+
+    // the fields, typed (Object)Object, null if they cannot be accessed
+    private final MethodHandle[] getters;
+
+    private EntityHasher(Class<?> type, String[] names, MethodHandle[] getters) {
+        this.seed = hashString(type.getName());
+        this.value = valueClasses.contains(type) || type.getName().startsWith("java.time.");
+        this.names = names;
+        this.getters = getters;
+    }
+
+    static EntityHasher of(Class<?> type) {
+        return hashers.get(type);
+    }
+
+    private static EntityHasher create(Class<?> type) {
+        List<String> names = new ArrayList<>();
+        List<MethodHandle> getters = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            for (Class<?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    names.add(field.getName());
+                    getters.add(lookup.unreflectGetter(field).asType(GETTER_TYPE));
+                }
+            }
+        }
+        catch (IllegalAccessException | RuntimeException e) {
+            // a class of a module that is not open, e.g. of the JDK
+            return new EntityHasher(type, null, null);
+        }
+        return new EntityHasher(type, names.toArray(new String[0]), getters.toArray(new MethodHandle[0]));
+    }
+
+    /**
+     * @return the names of the fields, in the order of their hashes, null if they cannot be accessed
+     */
+    String[] getNames() {
+        return names;
+    }
+
+    /**
+     * @return the hashes of the fields of the object, null if they cannot be accessed
+     */
+    long[] hashFields(Object object) {
+        if (getters == null) {
+            return null;
+        }
+        Walk visited = new Walk();
+        visited.visit(object);
+        long[] hashes = new long[getters.length];
+        for (int i = 0; i < getters.length; i++) {
+            hashes[i] = hash(get(getters[i], object), visited);
+        }
+        return visited.unknown ? null : hashes;
+    }
+
+    // the objects met, by the order they were met in
+    private static final class Walk {
+
+        private final IdentityHashMap<Object, Integer> met = new IdentityHashMap<>();
+
+        private boolean unknown = false;
+
+        // the number of objects being hashed, each holding the next
+        private int depth = 0;
+
+        // the order the object was first met in, null if it was not met before
+        Integer visit(Object object) {
+            return met.putIfAbsent(object, met.size());
+        }
+    }
+
+    private static Object get(MethodHandle getter, Object object) {
+        try {
+            return getter.invokeExact(object);
+        }
+        catch (Throwable e) {
+            throw new PersistenceException("Cannot read field of " + object.getClass().getName(), e);
+        }
+    }
+
+    private static long hash(Object value, Walk visited) {
+        if (value == null) {
+            return NULL;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            return hashString((String)value);
+        }
+        EntityHasher hasher = of(type);
+        long h = hasher.seed;
+        if ((value instanceof Long) || (value instanceof Integer) || (value instanceof Short) || (value instanceof Byte)) {
+            return mix(h, ((Number)value).longValue());
+        }
+        if ((value instanceof Double) || (value instanceof Float)) {
+            return mix(h, Double.doubleToLongBits(((Number)value).doubleValue()));
+        }
+        if (value instanceof Character) {
+            return mix(h, (Character)value);
+        }
+        if (value instanceof Boolean) {
+            return mix(h, ((Boolean)value) ? 1 : 0);
+        }
+        if (value instanceof Enum) {
+            return mix(of(((Enum<?>)value).getDeclaringClass()).seed, hashString(((Enum<?>)value).name()));
+        }
+        if (hasher.value) {
+            return mix(h, hashString(value.toString()));
+        }
+        if (value instanceof Date) {
+            return mix(h, ((Date)value).getTime());
+        }
+        if (value instanceof Optional) {
+            return mix(h, hash(((Optional<?>)value).orElse(null), visited));
+        }
+
+        Integer seen = visited.visit(value);
+        if (seen != null) {
+            return mix(CYCLE, seen);
+        }
+        if (visited.unknown || (visited.depth >= MAX_DEPTH)) {
+            // the fields are not hashed anyway
+            visited.unknown = true;
+            return 0;
+        }
+
+        visited.depth++;
+        try {
+            return hashGraph(value, type, hasher, h, visited);
+        }
+        finally {
+            visited.depth--;
+        }
+    }
+
+    // the hash of an array, a collection or an object by its fields
+    private static long hashGraph(Object value, Class<?> type, EntityHasher hasher, long h, Walk visited) {
+        if (type.isArray()) {
+            int length = Array.getLength(value);
+            h = mix(h, length);
+            if (value instanceof byte[]) {
+                for (byte b : (byte[])value) {
+                    h = mix(h, b);
+                }
+            }
+            else if (value instanceof Object[]) {
+                for (Object o : (Object[])value) {
+                    h = mix(h, hash(o, visited));
+                }
+            }
+            else {
+                for (int i = 0; i < length; i++) {
+                    h = mix(h, hash(Array.get(value, i), visited));
+                }
+            }
+            return h;
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>)value;
+            boolean ordered = (map instanceof SortedMap) || (map instanceof LinkedHashMap);
+            long sum = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                long e = mix(hash(entry.getKey(), visited), hash(entry.getValue(), visited));
+                if (ordered) {
+                    h = mix(h, e);
+                }
+                else {
+                    sum += fmix(e);
+                }
+            }
+            return mix(h, ordered ? map.size() : sum);
+        }
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>)value;
+            boolean ordered = ((collection instanceof Set) == false) || (collection instanceof SortedSet) || (collection instanceof LinkedHashSet);
+            long sum = 0;
+            for (Object o : collection) {
+                long e = hash(o, visited);
+                if (ordered) {
+                    h = mix(h, e);
+                }
+                else {
+                    sum += fmix(e);
+                }
+            }
+            return mix(h, ordered ? collection.size() : sum);
+        }
+
+        if (hasher.getters == null) {
+            return hashSerialized(value, visited);
+        }
+        for (MethodHandle getter : hasher.getters) {
+            h = mix(h, hash(get(getter, value), visited));
+        }
+        return h;
+    }
+
+    private static long hashSerialized(Object value, Walk visited) {
+        if ((value instanceof Serializable) == false) {
+            visited.unknown = true;
+            return 0;
+        }
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(value);
+            oos.flush();
+            long h = NULL;
+            for (byte b : bos.toByteArray()) {
+                h = (h ^ b) * 0x100000001b3L;
+            }
+            return fmix(h);
+        }
+        catch (IOException e) {
+            visited.unknown = true;
+            return 0;
+        }
+    }
+
+    // FNV-1a over the chars, finished with fmix64
+    private static long hashString(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return fmix(h ^ s.length());
+    }
+
+    private static long mix(long h, long value) {
+        return Long.rotateLeft(h ^ fmix(value), 27) * 0x9e3779b97f4a7c15L + 0x632be59bd9b4e019L;
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
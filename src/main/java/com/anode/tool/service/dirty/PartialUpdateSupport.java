@@ -0,0 +1,23 @@
+package com.anode.tool.service.dirty;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Implemented by the {@link com.anode.tool.service.CommonService} backends that can write some of the
+ * fields of an object only, e.g. with an SQL {@code UPDATE} of the changed columns or a document
+ * store {@code $set}, for {@link DirtyTrackingCommonService} to call instead of a full
+ * {@code update}.
+ */
+public interface PartialUpdateSupport {
+
+    /**
+     * Writes the fields of the object with the names, leaving the others as stored.
+     *
+     * @param id         the id of the object, which must exist
+     * @param object     the object, whose other fields may have changed too since it was read
+     * @param fieldNames the names of the fields declared by the class of the object or its
+     *                   superclasses, never empty
+     */
+    public void updateFields(Serializable id, Object object, Set<String> fieldNames);
+}
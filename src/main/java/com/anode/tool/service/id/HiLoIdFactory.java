@@ -0,0 +1,125 @@
+package com.anode.tool.service.id;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.IdFactory;
+
+/**
+ * {@link IdFactory} that reserves blocks of ids with one {@link CommonService#incrCounter} each and
+ * hands them out in memory.
+ *
+ * <p>The n-th value of the counter reserves the ids {@code (n - 1) * blockSize + 1} to
+ * {@code n * blockSize}, so factories of any number of processes sharing the counter never give the
+ * same id, and the backend is called once per {@code blockSize} ids. The ids of a block not used up
+ * before the factory is dropped are lost.
+ *
+ * <p>In shared mode, all the threads take ids from the same block with an atomic increment, so ids
+ * are handed out roughly in order. In per thread mode, each thread reserves its own blocks, so taking
+ * an id involves no shared memory at all, but the ids of different threads interleave.
+ */
+public class HiLoIdFactory implements IdFactory<Long> {
+
+    private final CommonService service;
+
+    private final String counterKey;
+
+    private final int blockSize;
+
+    private final boolean perThread;
+
+    // shared mode
+    private volatile Block block = new Block(1, 0);
+
+    private final Object refillLock = new Object();
+
+    // per thread mode, {next, last}
+    private final ThreadLocal<long[]> threadBlocks;
+
+    public HiLoIdFactory(CommonService service, String counterKey, int blockSize) {
+        this(service, counterKey, blockSize, false);
+    }
+
+    /**
+     * @param service    the service of the counter
+     * @param counterKey the counter of the blocks, shared by all the factories of the same ids
+     * @param blockSize  the number of ids reserved at a time
+     * @param perThread  true for each thread to reserve its own blocks
+     */
+    public HiLoIdFactory(CommonService service, String counterKey, int blockSize, boolean perThread) {
+        if ((service == null) || (counterKey == null)) {
+            throw new IllegalArgumentException("Service and counter key must not be null");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1");
+        }
+        this.service = service;
+        this.counterKey = counterKey;
+        this.blockSize = blockSize;
+        this.perThread = perThread;
+        this.threadBlocks = perThread ? ThreadLocal.withInitial(() -> new long[] { 1, 0 }) : null;
+    }
+
+    private static final class Block {
+
+        private final AtomicLong next;
+
+        private final long last;
+
+        private Block(long first, long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
+        }
+    }
+
+    @Override
+    public Long newId() {
+        if (perThread) {
+            long[] b = threadBlocks.get();
+            if (b[0] > b[1]) {
+                long hi = service.incrCounter(counterKey);
+                b[0] = (hi - 1) * blockSize + 1;
+                b[1] = hi * blockSize;
+            }
+            return b[0]++;
+        }
+
+        while (true) {
+            Block b = block;
+            long id = b.next.getAndIncrement();
+            if (id <= b.last) {
+                return id;
+            }
+            refill(b);
+        }
+    }
+
+    // one thread reserves the next block, the others wait for it
+    private void refill(Block exhausted) {
+        synchronized (refillLock) {
+            if (block == exhausted) {
+                long hi = service.incrCounter(counterKey);
+                block = new Block((hi - 1) * blockSize + 1, hi * blockSize);
+            }
+        }
+    }
+
+    /**
+     * In shared mode, skips the ids of the current block up to the id if it is in the block. Ids of
+     * other blocks cannot be given by this factory anyway.
+     */
+    @Override
+    public void consumeId(Long id) {
+        if ((id == null) || perThread) {
+            return;
+        }
+        Block b = block;
+        if (id <= b.last) {
+            b.next.accumulateAndGet(id + 1, Math::max);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+}
@@ -0,0 +1,89 @@
+package com.anode.tool.service.id;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anode.tool.service.IdFactory;
+
+/**
+ * {@link IdFactory} of 64 bit ids made of a timestamp, a node number and a sequence, generated
+ * without any coordination between nodes.
+ *
+ * <p>An id is, from the high to the low bits, 41 bits of milliseconds since {@link #EPOCH_MILLIS}
+ * (enough for 69 years), 10 bits of node number and 12 bits of sequence within the millisecond. Ids
+ * of a node are strictly increasing and ids of different nodes never collide, so each process
+ * sharing a store needs its own node number.
+ *
+ * <p>The timestamp and the sequence are kept in a single {@link AtomicLong} advanced by compare and
+ * swap. When more than 4096 ids are taken in a millisecond, or when the clock goes back, the
+ * generator goes on from its last value, i.e. runs ahead of the clock until the clock catches up,
+ * rather than waiting or giving duplicates.
+ */
+public class TimeOrderedIdFactory implements IdFactory<Long> {
+
+    // 2024-01-01T00:00:00Z
+    public static final long EPOCH_MILLIS = 1704067200000L;
+
+    public static final int NODE_BITS = 10;
+
+    public static final int SEQUENCE_BITS = 12;
+
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long node;
+
+    // (milliseconds since the epoch << SEQUENCE_BITS) | sequence, of the last id
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * @param node the number of the node, from 0 to {@link #MAX_NODE}, unique among the processes
+     */
+    public TimeOrderedIdFactory(int node) {
+        if ((node < 0) || (node > MAX_NODE)) {
+            throw new IllegalArgumentException("Node must be between 0 and " + MAX_NODE);
+        }
+        this.node = node;
+    }
+
+    @Override
+    public Long newId() {
+        while (true) {
+            long prev = state.get();
+            long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+            // a sequence overflow carries into the timestamp
+            long next = (now > prev) ? now : prev + 1;
+            if (state.compareAndSet(prev, next)) {
+                return toId(next);
+            }
+        }
+    }
+
+    /**
+     * Makes sure that the next ids are greater than the id, e.g. one read from storage after a restart
+     * with a clock that went back.
+     */
+    @Override
+    public void consumeId(Long id) {
+        if (id != null) {
+            long consumed = ((id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (id & SEQUENCE_MASK);
+            state.accumulateAndGet(consumed, Math::max);
+        }
+    }
+
+    private long toId(long s) {
+        return ((s >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | (s & SEQUENCE_MASK);
+    }
+
+    /**
+     * @return the time in milliseconds at which the id was generated, or a little later if the
+     *         generator was running ahead of the clock
+     */
+    public static long getTimestamp(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+    }
+
+    public static int getNode(long id) {
+        return (int)((id >>> SEQUENCE_BITS) & MAX_NODE);
+    }
+}
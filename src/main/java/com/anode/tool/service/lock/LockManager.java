@@ -0,0 +1,449 @@
+package com.anode.tool.service.lock;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.anode.tool.service.DeadlockException;
+import com.anode.tool.service.LockTimeoutException;
+import com.anode.tool.service.PersistenceException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-process pessimistic locks on ids, held by threads, with leases, fair queuing and deadlock
+ * detection.
+ *
+ * <h2>Locks</h2>
+ * A lock is held by a thread, reentrantly, until it is unlocked as many times as it was locked or
+ * {@link #releaseAll()} is called at the end of the transaction. An id only has an entry while it is
+ * locked or waited for, and locking a free id costs a map lookup and an uncontended monitor.
+ *
+ * <h2>Fairness</h2>
+ * Threads waiting for a lock are queued, and a released lock is handed to the first of them, so a
+ * lock cannot be taken by a thread arriving later and waiters are never starved.
+ *
+ * <h2>Leases</h2>
+ * A lock is granted for {@code leaseMillis}. Once the lease of the holder has expired, the lock is
+ * handed to the first waiter, so a thread that forgot to release its locks, or is stuck, blocks the
+ * others for the lease at most. The holder is not told: its later unlock does nothing. A lock nobody
+ * waits for is kept past its lease.
+ *
+ * <h2>Deadlocks</h2>
+ * The threads waiting for locks form a wait-for graph: a waiting thread points to the holder of the
+ * lock it waits for. Before a thread starts waiting, the graph is followed from the holder; if it
+ * leads back to the thread, waiting would never end, and a {@link DeadlockException} is thrown to the
+ * thread instead. The graph is only updated, under a single monitor, when a thread starts or stops
+ * waiting, so uncontended locks never touch it.
+ *
+ * <h2>Statistics</h2>
+ * The acquisitions, waits, wait times, timeouts, deadlocks and expired leases are counted per type of
+ * the locked objects, see {@link #getStatistics()}.
+ */
+@Slf4j
+public class LockManager {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    public static final long DEFAULT_LEASE_MILLIS = 60000;
+
+    // bound of the walk of the wait-for graph
+    private static final int MAX_WAIT_CHAIN = 1000;
+
+    private final ConcurrentHashMap<Serializable, LockState> locks = new ConcurrentHashMap<>();
+
+    // thread -> id it waits for, under the graph monitor
+    private final Map<Thread, Serializable> waitingFor = new HashMap<>();
+
+    private final Object graph = new Object();
+
+    // the ids locked by the thread, once per lock, in the order they were locked
+    private final ThreadLocal<List<Serializable>> held = ThreadLocal.withInitial(ArrayList::new);
+
+    private final ConcurrentHashMap<Class<?>, LockStatistics> statistics = new ConcurrentHashMap<>();
+
+    private final long timeoutNanos;
+
+    private final long leaseNanos;
+
+    public LockManager() {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_LEASE_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis the time to wait for a lock before giving up
+     * @param leaseMillis   the time a lock is granted for, once other threads wait for it
+     */
+    public LockManager(long timeoutMillis, long leaseMillis) {
+        if ((timeoutMillis < 0) || (leaseMillis <= 0)) {
+            throw new IllegalArgumentException("Timeout must not be negative and lease must be positive");
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    }
+
+    // the state of the lock of an id, under its monitor; the owner of an id with waiters only changes
+    // under the graph monitor too
+    private static final class LockState {
+
+        private final Serializable id;
+
+        private volatile Thread owner;
+
+        private int holds;
+
+        private long leaseEnd;
+
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+        // removed from the table, to be created again
+        private boolean removed = false;
+
+        private LockState(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Thread thread = Thread.currentThread();
+
+        private volatile boolean granted = false;
+    }
+
+    /**
+     * The lock statistics of a type.
+     */
+    public static final class LockStatistics {
+
+        private final LongAdder acquisitions = new LongAdder();
+
+        private final LongAdder waits = new LongAdder();
+
+        private final LongAdder waitNanos = new LongAdder();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private final LongAdder timeouts = new LongAdder();
+
+        private final LongAdder deadlocks = new LongAdder();
+
+        private final LongAdder expiredLeases = new LongAdder();
+
+        public long getAcquisitions() {
+            return acquisitions.sum();
+        }
+
+        /**
+         * @return the number of acquisitions that had to wait for another thread
+         */
+        public long getWaits() {
+            return waits.sum();
+        }
+
+        public long getTotalWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long getDeadlocks() {
+            return deadlocks.sum();
+        }
+
+        public long getExpiredLeases() {
+            return expiredLeases.sum();
+        }
+
+        /**
+         * @return the part of the acquisitions that had to wait
+         */
+        public double getContention() {
+            long n = getAcquisitions();
+            return (n == 0) ? 0 : (double)getWaits() / n;
+        }
+
+        private void waited(long nanos) {
+            waits.increment();
+            waitNanos.add(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /**
+     * Locks the id for the calling thread, waiting for the holder if any. Reentrant.
+     *
+     * @param type the type of the locked object, for the statistics, may be null
+     * @throws LockTimeoutException if the lock is not acquired within the timeout
+     * @throws DeadlockException    if waiting would deadlock
+     */
+    public void lock(Serializable id, Class<?> type) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+        LockStatistics stats = statistics.computeIfAbsent((type == null) ? Object.class : type, k -> new LockStatistics());
+        Thread current = Thread.currentThread();
+
+        while (true) {
+            LockState state = locks.computeIfAbsent(id, LockState::new);
+            synchronized (state) {
+                if (state.removed) {
+                    continue;
+                }
+                if (state.owner == current) {
+                    state.holds++;
+                    held.get().add(id);
+                    stats.acquisitions.increment();
+                    return;
+                }
+                if ((state.owner == null) && state.queue.isEmpty()) {
+                    grant(state, current);
+                    held.get().add(id);
+                    stats.acquisitions.increment();
+                    return;
+                }
+            }
+
+            Boolean acquired = await(state, current, stats);
+            if (acquired == null) {
+                // the state was removed meanwhile
+                continue;
+            }
+            held.get().add(id);
+            stats.acquisitions.increment();
+            return;
+        }
+    }
+
+    // null if the state was removed before the thread could queue
+    private Boolean await(LockState state, Thread current, LockStatistics stats) {
+        long start = System.nanoTime();
+        Waiter waiter = new Waiter();
+        synchronized (graph) {
+            synchronized (state) {
+                if (state.removed) {
+                    return null;
+                }
+                if ((state.owner == null) && state.queue.isEmpty()) {
+                    grant(state, current);
+                    return Boolean.TRUE;
+                }
+                state.queue.add(waiter);
+            }
+            waitingFor.put(current, state.id);
+
+            if (closesCycle(state, current)) {
+                cancel(state, waiter);
+                stats.deadlocks.increment();
+                throw new DeadlockException("Waiting for the lock on id " + state.id + " would deadlock");
+            }
+        }
+
+        long deadline = start + timeoutNanos;
+        while (waiter.granted == false) {
+            long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                synchronized (graph) {
+                    if (waiter.granted == false) {
+                        cancel(state, waiter);
+                        stats.timeouts.increment();
+                        throw new LockTimeoutException("Lock on id " + state.id + " not acquired within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+                    }
+                }
+                break;
+            }
+
+            long leaseEnd;
+            synchronized (state) {
+                leaseEnd = state.leaseEnd;
+            }
+            if (now - leaseEnd >= 0) {
+                expire(state, now, stats);
+                continue;
+            }
+
+            LockSupport.parkNanos(this, Math.min(deadline - now, leaseEnd - now));
+            if (Thread.interrupted()) {
+                synchronized (graph) {
+                    if (waiter.granted == false) {
+                        cancel(state, waiter);
+                        Thread.currentThread().interrupt();
+                        throw new PersistenceException("Interrupted while waiting for the lock on id " + state.id);
+                    }
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        stats.waited(System.nanoTime() - start);
+        return Boolean.TRUE;
+    }
+
+    // under the graph monitor: follows the holders and the locks they wait for from the state
+    private boolean closesCycle(LockState state, Thread current) {
+        Thread holder = state.owner;
+        for (int i = 0; (holder != null) && (i < MAX_WAIT_CHAIN); i++) {
+            if (holder == current) {
+                return true;
+            }
+            Serializable next = waitingFor.get(holder);
+            if (next == null) {
+                return false;
+            }
+            LockState nextState = locks.get(next);
+            holder = (nextState == null) ? null : nextState.owner;
+        }
+        return false;
+    }
+
+    // under the graph monitor
+    private void cancel(LockState state, Waiter waiter) {
+        waitingFor.remove(waiter.thread);
+        synchronized (state) {
+            state.queue.remove(waiter);
+            // the lock may have been waiting for this thread to be handed over
+            if ((state.owner == null) && (state.queue.isEmpty() == false)) {
+                handOff(state);
+            }
+            removeIfUnused(state);
+        }
+    }
+
+    // takes the lock from a holder whose lease has ended, for the first waiter
+    private void expire(LockState state, long now, LockStatistics stats) {
+        Thread expired = null;
+        synchronized (graph) {
+            synchronized (state) {
+                if ((state.owner != null) && (now - state.leaseEnd >= 0) && (state.queue.isEmpty() == false)) {
+                    expired = state.owner;
+                    handOff(state);
+                }
+            }
+        }
+        if (expired != null) {
+            stats.expiredLeases.increment();
+            log.warn("Lease of thread {} on the lock of id {} expired, lock handed to the next waiter", expired.getName(), state.id);
+        }
+    }
+
+    // under the monitor of the state
+    private void grant(LockState state, Thread thread) {
+        state.owner = thread;
+        state.holds = 1;
+        state.leaseEnd = System.nanoTime() + leaseNanos;
+    }
+
+    // under the graph monitor and the monitor of the state, with waiters
+    private void handOff(LockState state) {
+        Waiter next = state.queue.poll();
+        waitingFor.remove(next.thread);
+        grant(state, next.thread);
+        next.granted = true;
+        LockSupport.unpark(next.thread);
+    }
+
+    // under the monitor of the state
+    private void removeIfUnused(LockState state) {
+        if ((state.owner == null) && state.queue.isEmpty() && (state.removed == false)) {
+            state.removed = true;
+            locks.remove(state.id, state);
+        }
+    }
+
+    /**
+     * Releases one hold of the lock of the id by the calling thread. Does nothing if the thread does
+     * not hold it, e.g. after its lease expired.
+     */
+    public void unlock(Serializable id) {
+        List<Serializable> ids = held.get();
+        int i = ids.lastIndexOf(id);
+        if (i >= 0) {
+            ids.remove(i);
+        }
+        release(id);
+    }
+
+    /**
+     * Releases all the locks held by the calling thread, in the reverse order they were taken.
+     */
+    public void releaseAll() {
+        List<Serializable> ids = held.get();
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            release(ids.get(i));
+        }
+        ids.clear();
+    }
+
+    private void release(Serializable id) {
+        LockState state = locks.get(id);
+        if (state == null) {
+            return;
+        }
+        Thread current = Thread.currentThread();
+        synchronized (state) {
+            if ((state.owner != current) || (--state.holds > 0)) {
+                return;
+            }
+            if (state.queue.isEmpty()) {
+                state.owner = null;
+                removeIfUnused(state);
+                return;
+            }
+        }
+
+        // the owner of a lock with waiters changes under the graph monitor
+        synchronized (graph) {
+            synchronized (state) {
+                if (state.owner != current) {
+                    return;
+                }
+                if (state.queue.isEmpty()) {
+                    state.owner = null;
+                    removeIfUnused(state);
+                }
+                else {
+                    handOff(state);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if another thread holds the lock of the id
+     */
+    public boolean isLockedByOther(Serializable id) {
+        LockState state = locks.get(id);
+        if (state == null) {
+            return false;
+        }
+        Thread owner = state.owner;
+        return (owner != null) && (owner != Thread.currentThread());
+    }
+
+    public boolean isHeldByCurrentThread(Serializable id) {
+        LockState state = locks.get(id);
+        return (state != null) && (state.owner == Thread.currentThread());
+    }
+
+    /**
+     * @return the statistics of the types locked so far
+     */
+    public Map<Class<?>, LockStatistics> getStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+}
@@ -0,0 +1,368 @@
+package com.anode.tool.service.lock;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.OptimisticLockException;
+import com.anode.tool.service.Page;
+
+/**
+ * {@link CommonService} decorator taking the locks of {@link #getLocked} in process, with a
+ * {@link LockManager}, instead of in the backend.
+ *
+ * <h2>Pessimistic locking</h2>
+ * {@link #getLocked} locks the id for the calling thread until {@link #endTransaction()}, then reads
+ * the object. Writes through the decorator lock their ids for the time of the write, so they wait for
+ * the locks of other threads; the thread holding the lock writes right away. The backend locks are
+ * not taken unless {@link #setBackendLocking(boolean)} is set, e.g. when other processes share it,
+ * in which case {@link #endTransaction()} ends the backend transaction too.
+ *
+ * <h2>Optimistic locking</h2>
+ * When conflicts are rare, {@link #getVersioned} and {@link #updateVersioned} are a cheaper
+ * alternative holding no lock between the read and the write: the update fails with an
+ * {@link OptimisticLockException} if the object was written through the decorator since it was read.
+ * The versions are kept for the ids read with {@link #getVersioned}, from their first read on, until
+ * the id is deleted or more than {@code maxVersions} ids are kept. A version dropped that way is
+ * replaced by one above all the versions dropped, so that an update with an older version still fails.
+ *
+ * <h2>Metrics</h2>
+ * The lock waits and contention per type are available from {@link #getLockManager()}.
+ */
+public class LockingCommonService implements CommonService {
+
+    public static final int DEFAULT_MAX_VERSIONS = 100000;
+
+    // a total order of the ids, the same for all the threads
+    private static final Comparator<Serializable> LOCK_ORDER = Comparator.<Serializable>comparingInt(Object::hashCode)
+        .thenComparing(id -> id.getClass().getName())
+        .thenComparing(Object::toString);
+
+    private final CommonService delegate;
+
+    private final LockManager lockManager;
+
+    // id -> number of writes since the first versioned read
+    private final ConcurrentHashMap<Serializable, Long> versions = new ConcurrentHashMap<>();
+
+    // above the versions dropped from the map, the first version of an id read again
+    private final AtomicLong versionFloor = new AtomicLong();
+
+    private volatile int maxVersions = DEFAULT_MAX_VERSIONS;
+
+    private volatile boolean backendLocking = false;
+
+    public LockingCommonService(CommonService delegate) {
+        this(delegate, new LockManager());
+    }
+
+    public LockingCommonService(CommonService delegate, LockManager lockManager) {
+        if ((delegate == null) || (lockManager == null)) {
+            throw new IllegalArgumentException("Delegate and lock manager must not be null");
+        }
+        this.delegate = delegate;
+        this.lockManager = lockManager;
+    }
+
+    /**
+     * Sets whether {@link #getLocked} also locks the object in the backend.
+     */
+    public void setBackendLocking(boolean backendLocking) {
+        this.backendLocking = backendLocking;
+    }
+
+    /**
+     * Sets the number of ids whose versions are kept, beyond which the versions of other ids are dropped.
+     */
+    public void setMaxVersions(int maxVersions) {
+        if (maxVersions < 1) {
+            throw new IllegalArgumentException("Max versions must be at least 1");
+        }
+        this.maxVersions = maxVersions;
+    }
+
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #endTransaction()}, then reads the object.
+     *
+     * @throws com.anode.tool.service.LockTimeoutException if the lock is not acquired in time
+     * @throws com.anode.tool.service.DeadlockException    if waiting for the lock would deadlock
+     */
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        if ((objectClass == null) || (id == null)) {
+            throw new IllegalArgumentException("Class and id must not be null");
+        }
+        lockManager.lock(id, objectClass);
+        return backendLocking ? delegate.getLocked(objectClass, id) : delegate.get(objectClass, id);
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    @Override
+    public void endTransaction() {
+        try {
+            lockManager.releaseAll();
+        }
+        finally {
+            delegate.endTransaction();
+        }
+    }
+
+    /**
+     * Reads the object with its version, for {@link #updateVersioned}.
+     */
+    public <T> Versioned<T> getVersioned(Class<T> objectClass, Serializable id) {
+        if ((objectClass == null) || (id == null)) {
+            throw new IllegalArgumentException("Class and id must not be null");
+        }
+        // read before the object, so that a write in between makes the version older, not newer
+        long version = versions.computeIfAbsent(id, k -> versionFloor.get());
+        if (versions.size() > maxVersions) {
+            evictVersion(id);
+        }
+        return new Versioned<>(delegate.get(objectClass, id), version);
+    }
+
+    /**
+     * Updates the object unless it was written since its version was read.
+     *
+     * @param expectedVersion the version of {@link #getVersioned}
+     * @throws OptimisticLockException if the object was written meanwhile, nothing is written
+     */
+    public void updateVersioned(Serializable id, Object object, long expectedVersion) {
+        if ((id == null) || (object == null)) {
+            throw new IllegalArgumentException("Id and object must not be null");
+        }
+        lockManager.lock(id, object.getClass());
+        try {
+            long version = versions.getOrDefault(id, versionFloor.get());
+            if (version != expectedVersion) {
+                throw new OptimisticLockException("Object of id " + id + " is at version " + version + ", not " + expectedVersion);
+            }
+            delegate.update(id, object);
+            // above the floor if the version was dropped meanwhile
+            versions.compute(id, (k, v) -> (v == null) ? Math.max(version, versionFloor.get()) + 1 : v + 1);
+        }
+        finally {
+            lockManager.unlock(id);
+        }
+    }
+
+    /**
+     * @return the version of the object, as {@link #getVersioned} would read it
+     */
+    public long getVersion(Serializable id) {
+        return versions.getOrDefault(id, versionFloor.get());
+    }
+
+    /**
+     * @return the number of ids whose versions are kept
+     */
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        Serializable lockId = lockId(id, object);
+        lock(lockId, object);
+        try {
+            delegate.saveOrUpdate(id, object);
+            written(lockId);
+        }
+        finally {
+            unlock(lockId);
+        }
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        Serializable lockId = lockId(id, object);
+        lock(lockId, object);
+        try {
+            delegate.save(id, object);
+            written(lockId);
+        }
+        finally {
+            unlock(lockId);
+        }
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        Serializable lockId = lockId(id, object);
+        lock(lockId, object);
+        try {
+            delegate.update(id, object);
+            written(lockId);
+        }
+        finally {
+            unlock(lockId);
+        }
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        List<Serializable> ids = lockAll(objects);
+        try {
+            delegate.saveCollection(objects);
+            ids.forEach(this::written);
+        }
+        finally {
+            ids.forEach(lockManager::unlock);
+        }
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        List<Serializable> ids = lockAll(objects);
+        try {
+            delegate.saveOrUpdateCollection(objects);
+            ids.forEach(this::written);
+        }
+        finally {
+            ids.forEach(lockManager::unlock);
+        }
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        lock(id, null);
+        try {
+            delegate.delete(id);
+            // an object saved again under the id gets a version above the dropped one
+            dropVersion(id);
+        }
+        finally {
+            unlock(id);
+        }
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        return delegate.get(objectClass, id);
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        return delegate.getAll(type);
+    }
+
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        return delegate.stream(type, fetchSize);
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        return delegate.getPage(type, afterId, pageSize, comparator);
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        return delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        return delegate.makeClone(object, idFactory);
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        return delegate.getMinimalId(comparator);
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        return delegate.incrCounter(key);
+    }
+
+    // the id the object is written under, null if the backend assigns it
+    private static Serializable lockId(Serializable id, Object object) {
+        if ((id == null) && (object instanceof Persistable)) {
+            return ((Persistable)object).getId();
+        }
+        return id;
+    }
+
+    private void lock(Serializable id, Object object) {
+        if (id != null) {
+            lockManager.lock(id, (object == null) ? null : object.getClass());
+        }
+    }
+
+    private void unlock(Serializable id) {
+        if (id != null) {
+            lockManager.unlock(id);
+        }
+    }
+
+    // locks the ids of the persistable objects in the order of the ids, so that two collections
+    // cannot wait for each other
+    private List<Serializable> lockAll(Collection objects) {
+        List<Serializable> ids = new ArrayList<>();
+        if (objects == null) {
+            return ids;
+        }
+        Map<Serializable, Class<?>> types = new HashMap<>();
+        for (Object object : objects) {
+            Serializable id = lockId(null, object);
+            if ((id != null) && (types.putIfAbsent(id, object.getClass()) == null)) {
+                ids.add(id);
+            }
+        }
+        ids.sort(LOCK_ORDER);
+
+        int locked = 0;
+        try {
+            for (Serializable id : ids) {
+                lockManager.lock(id, types.get(id));
+                locked++;
+            }
+        }
+        catch (RuntimeException e) {
+            ids.subList(0, locked).forEach(lockManager::unlock);
+            throw e;
+        }
+        return ids;
+    }
+
+    private void written(Serializable id) {
+        if (id != null) {
+            versions.computeIfPresent(id, (k, version) -> version + 1);
+        }
+    }
+
+    private void dropVersion(Serializable id) {
+        Long version = versions.remove(id);
+        if (version != null) {
+            versionFloor.accumulateAndGet(version + 1, Math::max);
+        }
+    }
+
+    // drops the version of another id than the one just read
+    private void evictVersion(Serializable read) {
+        for (Serializable id : versions.keySet()) {
+            if (id.equals(read) == false) {
+                dropVersion(id);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.anode.tool.service.lock;
+
+/**
+ * An object read with its version, to update it with
+ * {@link LockingCommonService#updateVersioned} unless it was written meanwhile.
+ *
+ * @param <T> the type of the object
+ */
+public class Versioned<T> {
+
+    private final T object;
+
+    private final long version;
+
+    public Versioned(T object, long version) {
+        this.object = object;
+        this.version = version;
+    }
+
+    /**
+     * @return the object, null if there was none
+     */
+    public T getObject() {
+        return object;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
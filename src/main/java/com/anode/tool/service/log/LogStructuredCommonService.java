@@ -0,0 +1,1437 @@
+package com.anode.tool.service.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.clone.GraphCloner;
+import com.anode.tool.service.counter.CounterStore;
+import com.anode.tool.service.memory.InMemoryCommonService;
+import com.anode.tool.service.memory.IndexTable;
+import com.anode.tool.service.memory.LockTable;
+import com.anode.tool.service.memory.PropertyAccessor;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link CommonService} stored in a local directory as an append-only log, for deployments without
+ * a database.
+ *
+ * <h2>Log</h2>
+ * Every write appends a record to the last segment file of the directory: the serialized object
+ * with its id and class for a save, the id for a delete, the new value for a counter increment.
+ * Records are never changed in place. A new segment is started when the last one reaches
+ * {@code maxSegmentBytes}. Objects and ids are stored with Java serialization, so they must be
+ * {@link Serializable}.
+ *
+ * <h2>Index</h2>
+ * The position of the latest record of every id and counter is kept in memory. A get is a single
+ * positional read of the segment holding the record, without locking. Objects are deserialized on
+ * every get, so the caller always gets its own copy.
+ *
+ * <h2>Unique indexes</h2>
+ * {@link #addUniqueIndex} declares a unique index of a type by a property, kept in memory and updated
+ * under the write lock, which makes {@link #getUniqueItem} a lookup and rejects a second object with
+ * the same value before its record is written.
+ *
+ * <h2>Ordered indexes</h2>
+ * {@link #addOrderedIndex} declares an index of all the ids sorted by a comparator, kept in memory
+ * and updated under the write lock. {@link #getMinimalId} and {@link #getPage} with that comparator
+ * then take O(log n) instead of a scan of the index.
+ *
+ * <h2>Durability</h2>
+ * With {@code syncOnWrite}, a write returns once its record is on disk. Writers waiting for the disk
+ * at the same time share a single fsync: the first one syncs everything written so far and the
+ * others wait for it, so the number of fsyncs does not grow with the number of writers. Without
+ * {@code syncOnWrite}, records reach the disk when the operating system decides or on
+ * {@link #sync()}, and a crash may lose the latest writes.
+ *
+ * <h2>Recovery</h2>
+ * On opening, the segments are replayed in order to rebuild the index. Every record has a checksum,
+ * and a torn record at the end of the last segment, left by a crash during a write, is cut off.
+ *
+ * <h2>Compaction</h2>
+ * A background task rewrites the live records of the segments that are mostly made of superseded
+ * records to the end of the log, then deletes the segments. The latest delete record of an id that is
+ * still deleted is live, as it hides the records of the id in older segments, except in the oldest
+ * segment. A delete record superseded by a later write of the id is garbage like a superseded write.
+ */
+@Slf4j
+public class LogStructuredCommonService implements CommonService, CounterStore, Closeable {
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L << 20;
+
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 60000;
+
+    // a segment is compacted when less than this part of it is live
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+    private static final byte PUT = 1;
+
+    private static final byte DELETE = 2;
+
+    private static final byte COUNTER = 3;
+
+    // body length and checksum
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+
+    private final long maxSegmentBytes;
+
+    private final boolean syncOnWrite;
+
+    private final IdFactory<? extends Serializable> idFactory;
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // the segment appended to, only changed under the write lock
+    private volatile Segment active;
+
+    // class name -> id -> latest record
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Serializable, Location>> index = new ConcurrentHashMap<>();
+
+    // id -> the latest delete record of the ids that are deleted, only changed under the write lock
+    private final ConcurrentHashMap<Serializable, Location> tombstones = new ConcurrentHashMap<>();
+
+    // class name -> the class of the objects last written with the name
+    private final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    // class loader -> class name -> class, for the names only read from the log
+    private final ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Class<?>>> resolved = new ConcurrentHashMap<>();
+
+    // only changed under the write lock
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    // serializes the appends and the index updates, so that the index follows the order of the log
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // the number of bytes appended since opening, under the write lock
+    private long appendedPosition = 0;
+
+    private final Object syncMonitor = new Object();
+
+    // guarded by syncMonitor
+    private long syncedPosition = 0;
+
+    private boolean syncing = false;
+
+    // taken to force a segment and to close one after compaction
+    private final ReentrantLock forceLock = new ReentrantLock();
+
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    private final LockTable locks = new LockTable(InMemoryCommonService.DEFAULT_LOCK_TIMEOUT_MILLIS);
+
+    // maintained under the write lock
+    private final IndexTable indexes = new IndexTable();
+
+    private final ScheduledExecutorService compactor;
+
+    private volatile boolean closed = false;
+
+    public LogStructuredCommonService(Path directory) {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, true, DEFAULT_COMPACTION_INTERVAL_MILLIS, null);
+    }
+
+    /**
+     * Opens the store in the directory, creating it if needed, and replays its log.
+     *
+     * @param directory                the directory of the segment files
+     * @param maxSegmentBytes          the size after which a new segment is started
+     * @param syncOnWrite              true for writes to return once on disk
+     * @param compactionIntervalMillis the time between background compactions, 0 for none
+     * @param idFactory                the factory of the ids of objects saved without one, may be null
+     */
+    public LogStructuredCommonService(Path directory, long maxSegmentBytes, boolean syncOnWrite, long compactionIntervalMillis, IdFactory<? extends Serializable> idFactory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory must not be null");
+        }
+        if (maxSegmentBytes < 1) {
+            throw new IllegalArgumentException("Max segment bytes must be at least 1");
+        }
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncOnWrite = syncOnWrite;
+        this.idFactory = idFactory;
+
+        try {
+            Files.createDirectories(directory);
+            open();
+        }
+        catch (IOException e) {
+            closeSegments();
+            throw new PersistenceException("Cannot open log in " + directory, e);
+        }
+
+        if (compactionIntervalMillis > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-compaction");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::backgroundCompact, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            compactor = null;
+        }
+    }
+
+    private static final class Location {
+
+        private final int segment;
+
+        private final long offset;
+
+        private final int length;
+
+        private Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private boolean isAt(int segment, long offset) {
+            return (this.segment == segment) && (this.offset == offset);
+        }
+    }
+
+    private static final class Counter {
+
+        private long value;
+
+        private Location location;
+    }
+
+    // the decoded body of a record
+    private static final class Record {
+
+        private byte type;
+
+        private byte[] id;
+
+        // the class name of a put, the key of a counter
+        private String name;
+
+        private byte[] object;
+
+        private long value;
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    @Override
+    public void endTransaction() {
+        locks.releaseAll();
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        checkObject(object);
+        id = getId(id, object);
+        lockedPut(id, object, null);
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        checkObject(object);
+        id = getId(id, object);
+        lockedPut(id, object, Boolean.FALSE);
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        checkId(id);
+        checkObject(object);
+        lockedPut(id, object, Boolean.TRUE);
+    }
+
+    // holds the lock of the id, so that no getLocked reads it in the middle of the write
+    private void lockedPut(Serializable id, Object object, Boolean mustExist) {
+        locks.lockWrite(id);
+        try {
+            put(id, object, mustExist);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        checkCollection(objects);
+        for (Object object : objects) {
+            save(null, object);
+        }
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        checkCollection(objects);
+        for (Object object : objects) {
+            saveOrUpdate(null, object);
+        }
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        checkId(id);
+        locks.lockWrite(id);
+        try {
+            doDelete(id);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    private void doDelete(Serializable id) {
+        byte[] record = encode(DELETE, serialize(id), null, null, 0);
+
+        long end = 0;
+        writeLock.lock();
+        try {
+            checkOpen();
+            if (isIndexed(id) == false) {
+                return;
+            }
+
+            setTombstone(id, append(record));
+            indexes.remove(id);
+            end = appendedPosition;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        awaitDurable(end);
+    }
+
+    // mustExist is null for save or update, false for save, true for update
+    private void put(Serializable id, Object object, Boolean mustExist) {
+        String className = object.getClass().getName();
+        byte[] record = encode(PUT, serialize(id), className, serialize(object), 0);
+        classes.put(className, object.getClass());
+
+        long end = 0;
+        writeLock.lock();
+        try {
+            checkOpen();
+            ConcurrentHashMap<Serializable, Location> locations = index.computeIfAbsent(className, k -> new ConcurrentHashMap<>());
+            if (mustExist != null) {
+                // an id has one object, whatever its class
+                boolean exists = isIndexed(id);
+                if ((mustExist == false) && exists) {
+                    throw new DuplicateKeyException("Object of type " + className + " with id " + id + " already exists");
+                }
+                if (mustExist && (exists == false)) {
+                    throw new PersistenceException("Object of type " + className + " with id " + id + " not found");
+                }
+            }
+
+            if (indexes.isEmpty() == false) {
+                indexes.update(id, object);
+            }
+            Location location;
+            try {
+                location = append(record);
+            }
+            catch (RuntimeException e) {
+                if (indexes.isEmpty() == false) {
+                    // back to the object of the record still in the index, if any
+                    Object previous = readAny(id);
+                    if ((previous == null) && (isIndexed(id) == false)) {
+                        indexes.remove(id);
+                    }
+                    else {
+                        indexes.update(id, previous);
+                    }
+                }
+                throw e;
+            }
+            setIndexed(className, locations, id, location);
+            end = appendedPosition;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        awaitDurable(end);
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        checkClass(objectClass);
+        checkId(id);
+
+        String name = objectClass.getName();
+        Object object = read(name, id);
+        if (object != null) {
+            return objectClass.cast(object);
+        }
+
+        for (String className : index.keySet()) {
+            if ((className.equals(name) == false) && isAssignable(objectClass, className)) {
+                object = read(className, id);
+                if (object != null) {
+                    return objectClass.cast(object);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        checkClass(type);
+        List<T> list = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<Serializable, Location>> entry : index.entrySet()) {
+            if (isAssignable(type, entry.getKey())) {
+                for (Serializable id : entry.getValue().keySet()) {
+                    Object object = read(entry.getKey(), id);
+                    if (object != null) {
+                        list.add(type.cast(object));
+                    }
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Streams the objects of the type and its subclasses, taking their ids from the index as the
+     * stream is consumed. The objects are read {@code fetchSize} at a time, in the order of their
+     * records in the log, so that the reads of a batch are mostly sequential. A parallel stream splits
+     * the ids between threads. The stream holds no file open and does not need closing, although it
+     * should be closed like that of any store.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        checkClass(type);
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+
+        Stream<T> objects = Stream.empty();
+        for (Map.Entry<String, ConcurrentHashMap<Serializable, Location>> entry : index.entrySet()) {
+            if (isAssignable(type, entry.getKey())) {
+                Spliterator<Serializable> ids = entry.getValue().keySet().spliterator();
+                objects = Stream.concat(objects, StreamSupport.stream(new FetchSpliterator<>(type, entry.getKey(), ids, fetchSize), false));
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Walks the ordered index of the comparator from {@code afterId} if one was declared with
+     * {@link #addOrderedIndex}, otherwise selects the ids of the page in one scan of the index, then
+     * reads only the objects of the page.
+     */
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        checkClass(type);
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        List<ConcurrentHashMap<Serializable, Location>> typeLocations = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<Serializable, Location>> entry : index.entrySet()) {
+            if (isAssignable(type, entry.getKey())) {
+                typeLocations.add(entry.getValue());
+            }
+        }
+
+        List<Serializable> ids;
+        NavigableSet<Serializable> ordered = indexes.getOrderedIndex(comparator);
+        if (ordered != null) {
+            ids = new ArrayList<>(pageSize + 1);
+            for (Serializable id : (afterId == null) ? ordered : ordered.tailSet(afterId, false)) {
+                // the ordered index has the ids of all the types
+                if (containsKey(typeLocations, id)) {
+                    ids.add(id);
+                    if (ids.size() > pageSize) {
+                        break;
+                    }
+                }
+            }
+        }
+        else {
+            Iterator<Serializable> keys = typeLocations.stream().flatMap(locations -> locations.keySet().stream()).iterator();
+            ids = Page.keysAfter(keys, afterId, pageSize + 1, comparator);
+        }
+        boolean hasNext = ids.size() > pageSize;
+        if (hasNext) {
+            ids = ids.subList(0, pageSize);
+        }
+        List<T> items = new ArrayList<>(ids.size());
+        for (Serializable id : ids) {
+            // skips the objects deleted since the scan
+            T object = get(type, id);
+            if (object != null) {
+                items.add(object);
+            }
+        }
+        return new Page<>(items, ids.isEmpty() ? null : ids.get(ids.size() - 1), hasNext);
+    }
+
+    // reads the objects of ids of a class a batch at a time, each batch in log order
+    private final class FetchSpliterator<T> implements Spliterator<T> {
+
+        private final Class<T> type;
+
+        private final String className;
+
+        private final Spliterator<Serializable> ids;
+
+        private final int fetchSize;
+
+        private final ArrayDeque<T> fetched = new ArrayDeque<>();
+
+        private FetchSpliterator(Class<T> type, String className, Spliterator<Serializable> ids, int fetchSize) {
+            this.type = type;
+            this.className = className;
+            this.ids = ids;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (fetched.isEmpty()) {
+                if (fetch() == false) {
+                    return false;
+                }
+            }
+            action.accept(fetched.poll());
+            return true;
+        }
+
+        private boolean fetch() {
+            ConcurrentHashMap<Serializable, Location> locations = index.get(className);
+            List<Map.Entry<Serializable, Location>> batch = new ArrayList<>();
+            while ((batch.size() < fetchSize) && ids.tryAdvance(id -> {
+                Location location = locations.get(id);
+                if (location != null) {
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(id, location));
+                }
+            })) {
+                // next id
+            }
+            if (batch.isEmpty()) {
+                return false;
+            }
+
+            batch.sort(Comparator.comparingInt((Map.Entry<Serializable, Location> entry) -> entry.getValue().segment).thenComparingLong(entry -> entry.getValue().offset));
+            for (Map.Entry<Serializable, Location> entry : batch) {
+                // read again from the index, the record may have moved or been deleted since
+                Object object = read(className, entry.getKey());
+                if (object != null) {
+                    fetched.add(type.cast(object));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<Serializable> split = ids.trySplit();
+            return (split == null) ? null : new FetchSpliterator<>(type, className, split, fetchSize);
+        }
+
+        @Override
+        public long estimateSize() {
+            return ids.estimateSize() + fetched.size();
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Declares a unique index of the objects of the type and its subclasses by a property, built by
+     * reading the objects of the type with the writes blocked. The index is kept in memory and has to
+     * be declared again after the service is reopened.
+     *
+     * @throws DuplicateKeyException if objects already stored have the same value
+     */
+    public void addUniqueIndex(Class<?> type, String keyName) {
+        checkClass(type);
+        writeLock.lock();
+        try {
+            checkOpen();
+            List<Map.Entry<Serializable, Object>> objects = new ArrayList<>();
+            for (Map.Entry<String, ConcurrentHashMap<Serializable, Location>> entry : index.entrySet()) {
+                if (isAssignable(type, entry.getKey())) {
+                    for (Serializable id : entry.getValue().keySet()) {
+                        Object object = read(entry.getKey(), id);
+                        if (object != null) {
+                            objects.add(new AbstractMap.SimpleImmutableEntry<>(id, object));
+                        }
+                    }
+                }
+            }
+            indexes.addIndex(type, keyName, objects);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Declares an ordered index of the ids of all the objects by the comparator, built from the index
+     * with the writes blocked, so that {@link #getMinimalId} and {@link #getPage} with this
+     * comparator, or an equal one, do not scan the index. The index is kept in memory and has to be
+     * declared again after the service is reopened.
+     */
+    public void addOrderedIndex(Comparator<Serializable> comparator) {
+        writeLock.lock();
+        try {
+            checkOpen();
+            List<Serializable> ids = new ArrayList<>();
+            for (ConcurrentHashMap<Serializable, Location> locations : index.values()) {
+                ids.addAll(locations.keySet());
+            }
+            indexes.addOrderedIndex(comparator, ids);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Looks the value up in the unique index of the property if one was declared with
+     * {@link #addUniqueIndex}, otherwise reads all the objects of the type. The value of the property
+     * is compared as a string.
+     *
+     * @throws PersistenceException if more than one object matches
+     */
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        if ((uniqueKeyName == null) || (uniqueKeyValue == null)) {
+            throw new IllegalArgumentException("Unique key name and value must not be null");
+        }
+
+        checkClass(type);
+        IndexTable.UniqueIndex uniqueIndex = indexes.getIndex(type, uniqueKeyName);
+        if (uniqueIndex != null) {
+            Serializable id = uniqueIndex.getId(uniqueKeyValue);
+            return (id == null) ? null : get(type, id);
+        }
+
+        T found = null;
+        for (T object : getAll(type)) {
+            Object value = PropertyAccessor.get(object, uniqueKeyName);
+            if ((value != null) && uniqueKeyValue.equals(value.toString())) {
+                if (found != null) {
+                    throw new PersistenceException("More than one object of type " + type.getName() + " with " + uniqueKeyName + " " + uniqueKeyValue);
+                }
+                found = object;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #endTransaction()}, then reads the object.
+     */
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        checkClass(objectClass);
+        checkId(id);
+        locks.lock(id);
+        return get(objectClass, id);
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        checkObject(object);
+        if (idFactory == null) {
+            throw new IllegalArgumentException("Id factory must not be null");
+        }
+
+        Map<Serializable, Serializable> ids = new HashMap<>();
+        for (Persistable clone : GraphCloner.cloneGraph(object, idFactory, ids)) {
+            saveOrUpdate(clone.getId(), clone);
+        }
+        return ids;
+    }
+
+    /**
+     * Takes the first id of the ordered index of the comparator if one was declared with
+     * {@link #addOrderedIndex}, otherwise scans the index.
+     */
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        if (comparator == null) {
+            throw new IllegalArgumentException("Comparator must not be null");
+        }
+
+        NavigableSet<Serializable> ordered = indexes.getOrderedIndex(comparator);
+        if (ordered != null) {
+            // rather than first(), which throws if the last id is deleted meanwhile
+            Iterator<Serializable> ids = ordered.iterator();
+            return ids.hasNext() ? ids.next() : null;
+        }
+
+        Serializable min = null;
+        for (ConcurrentHashMap<Serializable, Location> locations : index.values()) {
+            for (Serializable id : locations.keySet()) {
+                if ((min == null) || (comparator.compare(id, min) < 0)) {
+                    min = id;
+                }
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Increments the counter and logs its new value, which is on disk before it is returned if
+     * {@code syncOnWrite} is set.
+     */
+    @Override
+    public long incrCounter(String key) {
+        if ((key == null) || key.isEmpty()) {
+            throw new IllegalArgumentException("Counter key must not be null or empty");
+        }
+        Map<String, Long> deltas = new HashMap<>();
+        deltas.put(key, 1L);
+        return addToCounters(deltas).get(key);
+    }
+
+    /**
+     * Adds to the counters and logs their new values with a single sync.
+     */
+    @Override
+    public Map<String, Long> addToCounters(Map<String, Long> deltas) {
+        Map<String, Long> values = new HashMap<>();
+        long end = 0;
+        writeLock.lock();
+        try {
+            checkOpen();
+            for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+                Counter counter = counters.computeIfAbsent(entry.getKey(), k -> new Counter());
+                long value = counter.value + entry.getValue();
+                Location location = append(encode(COUNTER, null, entry.getKey(), null, value));
+                counter.value = value;
+                release(counter.location);
+                counter.location = location;
+                addLive(location);
+                values.put(entry.getKey(), value);
+            }
+            end = appendedPosition;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        awaitDurable(end);
+        return values;
+    }
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public void sync() {
+        long end = 0;
+        writeLock.lock();
+        try {
+            end = appendedPosition;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        groupSync(end);
+    }
+
+    /**
+     * Rewrites the live records of the segments that are mostly superseded and deletes the segments.
+     * Runs in the background if a compaction interval was given.
+     */
+    public void compact() {
+        compactionLock.lock();
+        try {
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                if (closed || (segment == active)) {
+                    continue;
+                }
+                if (segment.getLiveBytes().get() < segment.getSize() * COMPACTION_LIVE_RATIO) {
+                    compact(segment);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot compact log in " + directory, e);
+        }
+        finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void backgroundCompact() {
+        try {
+            compact();
+        }
+        catch (RuntimeException e) {
+            log.warn("Log compaction failed, will retry", e);
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // nothing older can be shadowed by the tombstones of the oldest segment
+        boolean oldest = (segments.firstKey() == segment.getId());
+        int segmentId = segment.getId();
+
+        long offset = 0;
+        while (offset < segment.getSize()) {
+            byte[] raw = readRaw(segment, offset);
+            Record record = decode(raw);
+            long recordOffset = offset;
+            offset += raw.length;
+
+            writeLock.lock();
+            try {
+                checkOpen();
+                if (record.type == PUT) {
+                    ConcurrentHashMap<Serializable, Location> locations = index.get(record.name);
+                    Serializable id = (Serializable)deserialize(record.id);
+                    Location location = (locations == null) ? null : locations.get(id);
+                    if ((location != null) && location.isAt(segmentId, recordOffset)) {
+                        setLocation(locations, id, append(raw));
+                    }
+                }
+                else if (record.type == DELETE) {
+                    Serializable id = (Serializable)deserialize(record.id);
+                    Location location = tombstones.get(id);
+                    if ((location != null) && location.isAt(segmentId, recordOffset)) {
+                        if (oldest) {
+                            release(tombstones.remove(id));
+                        }
+                        else {
+                            setTombstone(id, append(raw));
+                        }
+                    }
+                }
+                else {
+                    Counter counter = counters.get(record.name);
+                    if ((counter != null) && (counter.location != null) && counter.location.isAt(segmentId, recordOffset)) {
+                        Location location = append(raw);
+                        release(counter.location);
+                        counter.location = location;
+                        addLive(location);
+                    }
+                }
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+        // the copies must be on disk before the originals go
+        sync();
+        segments.remove(segmentId);
+        forceLock.lock();
+        try {
+            segment.close();
+            Files.deleteIfExists(segment.getPath());
+        }
+        finally {
+            forceLock.unlock();
+        }
+        log.debug("Compacted log segment {}", segmentId);
+    }
+
+    /**
+     * Stops the compaction, forces the log to disk and closes it.
+     */
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            forceLock.lock();
+            try {
+                if (active != null) {
+                    active.force();
+                }
+            }
+            catch (IOException e) {
+                throw new PersistenceException("Cannot sync log in " + directory, e);
+            }
+            finally {
+                forceLock.unlock();
+                closeSegments();
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            }
+            catch (IOException e) {
+                log.warn("Cannot close log segment {}", segment.getPath(), e);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(p -> {
+                int id = Segment.parseId(p.getFileName().toString());
+                if (id >= 0) {
+                    ids.add(id);
+                }
+            });
+        }
+        ids.sort(null);
+
+        if (ids.isEmpty()) {
+            active = Segment.open(directory, 1);
+            segments.put(active.getId(), active);
+            syncDirectory();
+            return;
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = Segment.open(directory, ids.get(i));
+            segments.put(segment.getId(), segment);
+            replay(segment, i == ids.size() - 1);
+            active = segment;
+        }
+    }
+
+    private void replay(Segment segment, boolean last) throws IOException {
+        long size = segment.getSize();
+        long offset = 0;
+        while (offset < size) {
+            byte[] raw = readValidRecord(segment, offset, size);
+            if (raw == null) {
+                if (last == false) {
+                    throw new PersistenceException("Corrupt record in log segment " + segment.getPath() + " at " + offset);
+                }
+                log.warn("Cutting off torn record at the end of log segment {} at {}", segment.getPath(), offset);
+                segment.truncate(offset);
+                break;
+            }
+
+            Location location = new Location(segment.getId(), offset, raw.length);
+            Record record = decode(raw);
+            if (record.type == PUT) {
+                ConcurrentHashMap<Serializable, Location> locations = index.computeIfAbsent(record.name, k -> new ConcurrentHashMap<>());
+                setIndexed(record.name, locations, (Serializable)deserialize(record.id), location);
+            }
+            else if (record.type == DELETE) {
+                setTombstone((Serializable)deserialize(record.id), location);
+            }
+            else {
+                Counter counter = counters.computeIfAbsent(record.name, k -> new Counter());
+                counter.value = record.value;
+                release(counter.location);
+                counter.location = location;
+                addLive(location);
+            }
+            offset += raw.length;
+        }
+    }
+
+    // returns the record at the offset, null if it is torn or corrupt
+    private static byte[] readValidRecord(Segment segment, long offset, long size) throws IOException {
+        if (size - offset < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        segment.read(header, offset);
+        int length = header.getInt();
+        int crc = header.getInt();
+        if ((length < 1) || (length > size - offset - HEADER_BYTES)) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + length);
+        segment.read(buffer, offset);
+        byte[] raw = buffer.array();
+        return (checksum(raw) == crc) ? raw : null;
+    }
+
+    // reads a record known to be valid
+    private static byte[] readRaw(Segment segment, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        segment.read(header, offset);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + header.getInt());
+        segment.read(buffer, offset);
+        return buffer.array();
+    }
+
+    private Object read(String className, Serializable id) {
+        ConcurrentHashMap<Serializable, Location> locations = index.get(className);
+        if (locations == null) {
+            return null;
+        }
+
+        while (true) {
+            Location location = locations.get(id);
+            if (location == null) {
+                return null;
+            }
+
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(location.length);
+                    segment.read(buffer, location.offset);
+                    byte[] raw = buffer.array();
+                    if (checksum(raw) != ByteBuffer.wrap(raw).getInt(4)) {
+                        throw new PersistenceException("Corrupt record in log segment " + segment.getPath() + " at " + location.offset);
+                    }
+                    return deserialize(decode(raw).object);
+                }
+                catch (ClosedChannelException e) {
+                    // compacted meanwhile, the index has the new location
+                }
+                catch (IOException e) {
+                    throw new PersistenceException("Cannot read log segment " + segment.getPath(), e);
+                }
+            }
+
+            if (locations.get(id) == location) {
+                throw new PersistenceException("Log segment " + location.segment + " of id " + id + " is missing");
+            }
+        }
+    }
+
+    // the object of the id, whatever its class
+    private Object readAny(Serializable id) {
+        for (String className : index.keySet()) {
+            Object object = read(className, id);
+            if (object != null) {
+                return object;
+            }
+        }
+        return null;
+    }
+
+    // under the write lock
+    private Location append(byte[] record) {
+        try {
+            if ((active.getSize() > 0) && (active.getSize() + record.length > maxSegmentBytes)) {
+                roll();
+            }
+            long offset = active.append(record);
+            appendedPosition += record.length;
+            return new Location(active.getId(), offset, record.length);
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot write log segment " + active.getPath(), e);
+        }
+    }
+
+    // under the write lock
+    private void roll() throws IOException {
+        Segment next = Segment.open(directory, active.getId() + 1);
+        forceLock.lock();
+        try {
+            // what was written to the old segment is on disk, so syncs only need the active one
+            active.force();
+        }
+        finally {
+            forceLock.unlock();
+        }
+        segments.put(next.getId(), next);
+        active = next;
+        syncDirectory();
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // not supported on every platform
+        }
+    }
+
+    private void awaitDurable(long position) {
+        if (syncOnWrite) {
+            groupSync(position);
+        }
+    }
+
+    /*
+     * Waits until the log is on disk up to the position. If no thread is syncing, the caller syncs
+     * everything appended so far on behalf of all the waiting threads
+     */
+    private void groupSync(long position) {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && (syncedPosition < position)) {
+                    try {
+                        syncMonitor.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new PersistenceException("Interrupted while waiting for the log to be synced", e);
+                    }
+                }
+                if (syncedPosition >= position) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long target = 0;
+            try {
+                target = force();
+            }
+            finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (target > syncedPosition) {
+                        syncedPosition = target;
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    // forces the active segment and returns the position up to which the log is on disk
+    private long force() {
+        long target = 0;
+        Segment segment = null;
+        writeLock.lock();
+        try {
+            target = appendedPosition;
+            segment = active;
+        }
+        finally {
+            writeLock.unlock();
+        }
+
+        forceLock.lock();
+        try {
+            segment.force();
+        }
+        catch (ClosedChannelException e) {
+            // rolled and compacted since, it was forced when rolled
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot sync log in " + directory, e);
+        }
+        finally {
+            forceLock.unlock();
+        }
+        return target;
+    }
+
+    private void setLocation(ConcurrentHashMap<Serializable, Location> locations, Serializable id, Location location) {
+        release(locations.put(id, location));
+        addLive(location);
+    }
+
+    // the location of the latest record of the id, which supersedes its records of other classes and its delete record
+    private void setIndexed(String className, ConcurrentHashMap<Serializable, Location> locations, Serializable id, Location location) {
+        setLocation(locations, id, location);
+        for (Map.Entry<String, ConcurrentHashMap<Serializable, Location>> entry : index.entrySet()) {
+            if (entry.getKey().equals(className) == false) {
+                release(entry.getValue().remove(id));
+            }
+        }
+        release(tombstones.remove(id));
+    }
+
+    // the location of the delete record of the id, which supersedes its other records
+    private void setTombstone(Serializable id, Location location) {
+        for (ConcurrentHashMap<Serializable, Location> locations : index.values()) {
+            release(locations.remove(id));
+        }
+        release(tombstones.put(id, location));
+        addLive(location);
+    }
+
+    private void addLive(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.getLiveBytes().addAndGet(location.length);
+        }
+    }
+
+    private void release(Location location) {
+        if (location != null) {
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                segment.getLiveBytes().addAndGet(-location.length);
+            }
+        }
+    }
+
+    private boolean isIndexed(Serializable id) {
+        for (ConcurrentHashMap<Serializable, Location> locations : index.values()) {
+            if (locations.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Whether the objects stored with the class name are of the type. The class of the objects written
+     * since the log was opened is known, the others are resolved as they are deserialized, with the
+     * context class loader first, and not with the loader of the type, which is the bootstrap one for
+     * Object and the jdk interfaces.
+     */
+    private boolean isAssignable(Class<?> type, String className) {
+        Class<?> c = classes.get(className);
+        if (c == null) {
+            c = resolve(className);
+            if (c == null) {
+                return false;
+            }
+        }
+        return type.isAssignableFrom(c);
+    }
+
+    private Class<?> resolve(String className) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = LogStructuredCommonService.class.getClassLoader();
+        }
+        ConcurrentHashMap<String, Class<?>> loaded = resolved.computeIfAbsent(loader, k -> new ConcurrentHashMap<>());
+        Class<?> c = loaded.get(className);
+        if (c != null) {
+            return c;
+        }
+        for (ClassLoader candidate : new ClassLoader[] { loader, LogStructuredCommonService.class.getClassLoader() }) {
+            try {
+                c = Class.forName(className, false, candidate);
+                loaded.put(className, c);
+                return c;
+            }
+            catch (ClassNotFoundException e) {
+                // tries the next loader
+            }
+        }
+        return null;
+    }
+
+    private static byte[] encode(byte type, byte[] id, String name, byte[] object, long value) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_BYTES + 64 + ((object == null) ? 0 : object.length));
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeLong(0);
+            out.writeByte(type);
+            if (id != null) {
+                out.writeInt(id.length);
+                out.write(id);
+            }
+            if (name != null) {
+                out.writeUTF(name);
+            }
+            if (object != null) {
+                out.write(object);
+            }
+            if (type == COUNTER) {
+                out.writeLong(value);
+            }
+            out.flush();
+
+            byte[] record = bos.toByteArray();
+            ByteBuffer header = ByteBuffer.wrap(record);
+            header.putInt(0, record.length - HEADER_BYTES);
+            header.putInt(4, checksum(record));
+            return record;
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot encode log record", e);
+        }
+    }
+
+    private static Record decode(byte[] raw) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw, HEADER_BYTES, raw.length - HEADER_BYTES));
+            Record record = new Record();
+            record.type = in.readByte();
+            if (record.type == COUNTER) {
+                record.name = in.readUTF();
+                record.value = in.readLong();
+                return record;
+            }
+
+            record.id = new byte[in.readInt()];
+            in.readFully(record.id);
+            if (record.type == PUT) {
+                record.name = in.readUTF();
+                record.object = in.readAllBytes();
+            }
+            return record;
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot decode log record", e);
+        }
+    }
+
+    // checksum of the body of the record
+    private static int checksum(byte[] record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+        return (int)crc.getValue();
+    }
+
+    private static byte[] serialize(Object object) {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(object);
+            oos.flush();
+            return bos.toByteArray();
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot serialize object of type " + object.getClass().getName(), e);
+        }
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        try (ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Cannot deserialize object", e);
+        }
+    }
+
+    // resolves classes with the context class loader first, as in an application server
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        private ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+                catch (ClassNotFoundException e) {
+                    // fall back to the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new PersistenceException("Log in " + directory + " is closed");
+        }
+    }
+
+    private Serializable getId(Serializable id, Object object) {
+        if (id != null) {
+            return id;
+        }
+
+        if (object instanceof Persistable) {
+            Persistable p = (Persistable)object;
+            id = p.getId();
+            if ((id == null) && (idFactory != null)) {
+                id = idFactory.newId();
+                p.setId(id);
+            }
+        }
+
+        if (id == null) {
+            throw new IllegalArgumentException("No id for object of type " + object.getClass().getName());
+        }
+        return id;
+    }
+
+    private static boolean containsKey(List<ConcurrentHashMap<Serializable, Location>> typeLocations, Serializable id) {
+        for (ConcurrentHashMap<Serializable, Location> locations : typeLocations) {
+            if (locations.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkId(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+    }
+
+    private static void checkObject(Object object) {
+        if (object == null) {
+            throw new IllegalArgumentException("Object must not be null");
+        }
+    }
+
+    private static void checkClass(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("Class must not be null");
+        }
+    }
+
+    private static void checkCollection(Collection objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            throw new IllegalArgumentException("Collection must not be null or empty");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.anode.tool.service.log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file of the log. Records are appended to the last segment only, all segments are read with
+ * positional reads which do not need locking.
+ *
+ * <p>A thread interrupted during an operation on a file channel closes it for all the threads, so
+ * the channel is reopened unless the segment was closed on purpose, and the interrupted thread gets
+ * an {@link InterruptedIOException}. Once closed on purpose, operations throw a
+ * {@link ClosedChannelException}.
+ */
+final class Segment {
+
+    private static final String PREFIX = "segment-";
+
+    private static final String SUFFIX = ".log";
+
+    private final int id;
+
+    private final Path path;
+
+    private volatile FileChannel channel;
+
+    private volatile boolean closed = false;
+
+    // the bytes of the records still referenced by the index
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    private volatile long size;
+
+    private Segment(int id, Path path, FileChannel channel, long size) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    static Segment open(Path directory, int id) throws IOException {
+        Path path = directory.resolve(fileName(id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, channel.size());
+    }
+
+    static String fileName(int id) {
+        return String.format("%s%08d%s", PREFIX, id, SUFFIX);
+    }
+
+    /**
+     * Returns the id of the segment of the file name, -1 if it is not the name of a segment.
+     */
+    static int parseId(String fileName) {
+        if ((fileName.startsWith(PREFIX) == false) || (fileName.endsWith(SUFFIX) == false)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    AtomicLong getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Appends the bytes and returns their offset. Only called by the writer holding the write lock.
+     */
+    long append(byte[] bytes) throws IOException {
+        long offset = size;
+        while (true) {
+            FileChannel c = channel;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    position += c.write(buffer, position);
+                }
+                size = position;
+                return offset;
+            }
+            catch (ClosedChannelException e) {
+                reopen(c, e);
+            }
+        }
+    }
+
+    void read(ByteBuffer buffer, long offset) throws IOException {
+        while (true) {
+            FileChannel c = channel;
+            try {
+                buffer.clear();
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    int n = c.read(buffer, position);
+                    if (n < 0) {
+                        throw new IOException("End of segment " + id + " at " + position);
+                    }
+                    position += n;
+                }
+                buffer.flip();
+                return;
+            }
+            catch (ClosedChannelException e) {
+                reopen(c, e);
+            }
+        }
+    }
+
+    /**
+     * Cuts off a torn record at the end of the segment, after a crash.
+     */
+    void truncate(long newSize) throws IOException {
+        channel.truncate(newSize);
+        channel.force(true);
+        size = newSize;
+    }
+
+    void force() throws IOException {
+        while (true) {
+            FileChannel c = channel;
+            try {
+                c.force(false);
+                return;
+            }
+            catch (ClosedChannelException e) {
+                reopen(c, e);
+            }
+        }
+    }
+
+    void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    // returns normally if the operation can be retried on the reopened channel
+    private synchronized void reopen(FileChannel closedChannel, ClosedChannelException e) throws IOException {
+        if (closed) {
+            throw e;
+        }
+        if (channel == closedChannel) {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        if (e instanceof ClosedByInterruptException) {
+            InterruptedIOException ie = new InterruptedIOException("Interrupted during an operation on log segment " + id);
+            ie.initCause(e);
+            throw ie;
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package com.anode.tool.service.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.clone.GraphCloner;
+import com.anode.tool.service.counter.CounterStore;
+
+/**
+ * In-memory {@link CommonService} for transient workflows and tests.
+ *
+ * <h2>Storage</h2>
+ * Objects are kept by reference in one {@link ConcurrentHashMap} per concrete class, keyed by id.
+ * Reads and writes of different types never touch the same map and reads never lock. Lookups by
+ * class also see objects of its subclasses. Objects are not copied, so an object returned by
+ * {@link #get} is the stored object: changes to it are visible to other readers before it is saved.
+ *
+ * <h2>Ids</h2>
+ * A null id, and the objects of {@link #saveCollection} and {@link #saveOrUpdateCollection}, take
+ * their id from {@link Persistable#getId()}. If that is null too, a new id is taken from the
+ * {@link IdFactory} given at construction and set on the object.
+ *
+ * <h2>Unique indexes</h2>
+ * {@link #addUniqueIndex} declares a unique index of a type by a property. The index is updated with
+ * every write and makes {@link #getUniqueItem} a lookup. While there is an index, the writes of an id
+ * are serialized so that the index always matches the objects.
+ *
+ * <h2>Ordered indexes</h2>
+ * {@link #addOrderedIndex} declares an index of all the ids sorted by a comparator, updated with every
+ * write. {@link #getMinimalId} and {@link #getPage} with that comparator then take O(log n) instead
+ * of a scan of all the ids, e.g. for a scheduler repeatedly taking the next item.
+ *
+ * <h2>Locking</h2>
+ * {@link #getLocked} locks the id for the calling thread until it calls {@link #endTransaction()}.
+ * Writes hold the lock of the id while they run, so while an id is locked, writes of it from other
+ * threads wait for the lock, as a row update waits for a {@code select for update} in a database. A
+ * lock not acquired within the lock timeout raises
+ * {@link com.anode.tool.service.LockTimeoutException}.
+ *
+ * <h2>Counters</h2>
+ * Each counter is its own {@link AtomicLong}, so increments of different counters do not contend and
+ * increments of the same counter cost a single compare and swap while staying gapless.
+ */
+public class InMemoryCommonService implements CommonService, CounterStore {
+
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 30000;
+
+    // one map per concrete class
+    private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<Serializable, Object>> stores = new ConcurrentHashMap<>();
+
+    // incremented when a class is added to the stores, to refresh the views
+    private final AtomicInteger storesVersion = new AtomicInteger();
+
+    // for a class, the maps of the class and its subclasses
+    private final ConcurrentHashMap<Class<?>, TypeView> views = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private final LockTable locks;
+
+    private final IndexTable indexes = new IndexTable();
+
+    private final IdFactory<? extends Serializable> idFactory;
+
+    public InMemoryCommonService() {
+        this(null, DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idFactory         the factory of the ids of objects saved without one, may be null
+     * @param lockTimeoutMillis the time to wait for a lock before giving up
+     */
+    public InMemoryCommonService(IdFactory<? extends Serializable> idFactory, long lockTimeoutMillis) {
+        this.idFactory = idFactory;
+        this.locks = new LockTable(lockTimeoutMillis);
+    }
+
+    private static final class TypeView {
+
+        private final int version;
+
+        private final List<ConcurrentHashMap<Serializable, Object>> stores;
+
+        private TypeView(int version, List<ConcurrentHashMap<Serializable, Object>> stores) {
+            this.version = version;
+            this.stores = stores;
+        }
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    @Override
+    public void endTransaction() {
+        locks.releaseAll();
+    }
+
+    /**
+     * Declares a unique index of the objects of the type and its subclasses by a property, so that
+     * {@link #getUniqueItem} with the property is a lookup, and so that two objects with the same
+     * value cannot be saved. The index should be declared before the objects of the type are written
+     * concurrently.
+     *
+     * @throws DuplicateKeyException if objects already stored have the same value
+     */
+    public void addUniqueIndex(Class<?> type, String keyName) {
+        checkClass(type);
+        List<Map.Entry<Serializable, Object>> objects = new ArrayList<>();
+        for (ConcurrentHashMap<Serializable, Object> store : getStores(type)) {
+            objects.addAll(store.entrySet());
+        }
+        indexes.addIndex(type, keyName, objects);
+    }
+
+    /**
+     * Declares an ordered index of the ids of all the objects by the comparator, so that
+     * {@link #getMinimalId} and {@link #getPage} with this comparator, or an equal one, do not scan
+     * the ids. The index should be declared before the objects are written concurrently.
+     */
+    public void addOrderedIndex(Comparator<Serializable> comparator) {
+        List<Serializable> ids = new ArrayList<>();
+        for (ConcurrentHashMap<Serializable, Object> store : stores.values()) {
+            ids.addAll(store.keySet());
+        }
+        indexes.addOrderedIndex(comparator, ids);
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        checkObject(object);
+        id = getId(id, object);
+        locks.lockWrite(id);
+        try {
+            doSaveOrUpdate(id, object);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    private void doSaveOrUpdate(Serializable id, Object object) {
+        ConcurrentHashMap<Serializable, Object> store = getStore(object.getClass());
+        if (indexes.isEmpty()) {
+            store.put(id, object);
+            removeFromOtherStores(id, store);
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            indexes.update(id, object);
+            store.put(id, object);
+            removeFromOtherStores(id, store);
+        }
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        checkObject(object);
+        id = getId(id, object);
+        locks.lockWrite(id);
+        try {
+            doSave(id, object);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    private void doSave(Serializable id, Object object) {
+        ConcurrentHashMap<Serializable, Object> store = getStore(object.getClass());
+        if (indexes.isEmpty()) {
+            if (isInOtherStores(id, store) || (store.putIfAbsent(id, object) != null)) {
+                throw new DuplicateKeyException("Object of type " + object.getClass().getName() + " with id " + id + " already exists");
+            }
+            return;
+        }
+
+        // the writes of the id hold the stripe, so the object cannot be created meanwhile
+        synchronized (indexes.stripe(id)) {
+            if (store.containsKey(id) || isInOtherStores(id, store)) {
+                throw new DuplicateKeyException("Object of type " + object.getClass().getName() + " with id " + id + " already exists");
+            }
+            indexes.update(id, object);
+            store.put(id, object);
+        }
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        checkId(id);
+        checkObject(object);
+        locks.lockWrite(id);
+        try {
+            doUpdate(id, object);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    private void doUpdate(Serializable id, Object object) {
+        ConcurrentHashMap<Serializable, Object> store = getStore(object.getClass());
+        if (indexes.isEmpty()) {
+            if (store.replace(id, object) == null) {
+                // an object of another class is replaced
+                if (isInOtherStores(id, store) == false) {
+                    throw new PersistenceException("Object of type " + object.getClass().getName() + " with id " + id + " not found");
+                }
+                store.put(id, object);
+                removeFromOtherStores(id, store);
+            }
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            if ((store.containsKey(id) == false) && (isInOtherStores(id, store) == false)) {
+                throw new PersistenceException("Object of type " + object.getClass().getName() + " with id " + id + " not found");
+            }
+            indexes.update(id, object);
+            store.put(id, object);
+            removeFromOtherStores(id, store);
+        }
+    }
+
+    /*
+     * An id has one object, whatever its class, so a write of an object of another class than the one
+     * stored replaces it. The writes of an id hold its write lock, and the new object is put before the
+     * old one is removed, so that readers always find one of them.
+     */
+    private boolean isInOtherStores(Serializable id, ConcurrentHashMap<Serializable, Object> store) {
+        for (ConcurrentHashMap<Serializable, Object> s : stores.values()) {
+            if ((s != store) && s.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeFromOtherStores(Serializable id, ConcurrentHashMap<Serializable, Object> store) {
+        for (ConcurrentHashMap<Serializable, Object> s : stores.values()) {
+            if (s != store) {
+                s.remove(id);
+            }
+        }
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        checkCollection(objects);
+        for (Object object : objects) {
+            save(null, object);
+        }
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        checkCollection(objects);
+        for (Object object : objects) {
+            saveOrUpdate(null, object);
+        }
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        checkId(id);
+        locks.lockWrite(id);
+        try {
+            doDelete(id);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    private void doDelete(Serializable id) {
+        if (indexes.isEmpty()) {
+            for (ConcurrentHashMap<Serializable, Object> store : stores.values()) {
+                store.remove(id);
+            }
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            for (ConcurrentHashMap<Serializable, Object> store : stores.values()) {
+                store.remove(id);
+            }
+            indexes.remove(id);
+        }
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        checkClass(objectClass);
+        checkId(id);
+
+        // the common case of an object of exactly the class asked for
+        ConcurrentHashMap<Serializable, Object> store = stores.get(objectClass);
+        if (store != null) {
+            Object object = store.get(id);
+            if (object != null) {
+                return objectClass.cast(object);
+            }
+        }
+
+        for (ConcurrentHashMap<Serializable, Object> s : getStores(objectClass)) {
+            if (s != store) {
+                Object object = s.get(id);
+                if (object != null) {
+                    return objectClass.cast(object);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        checkClass(type);
+        List<T> list = new ArrayList<>();
+        for (ConcurrentHashMap<Serializable, Object> store : getStores(type)) {
+            for (Object object : store.values()) {
+                list.add(type.cast(object));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Streams the objects straight from the maps of the type and its subclasses, without copying them.
+     * The stream is weakly consistent and splits the maps between threads when parallel. The fetch
+     * size does not matter in memory.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        checkClass(type);
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+
+        Stream<Object> objects = Stream.empty();
+        for (ConcurrentHashMap<Serializable, Object> store : getStores(type)) {
+            // concatenated rather than flat mapped, so that a parallel stream splits each map
+            objects = Stream.concat(objects, store.values().stream());
+        }
+        return objects.map(type::cast);
+    }
+
+    /**
+     * Walks the ordered index of the comparator from {@code afterId} if one was declared with
+     * {@link #addOrderedIndex}, otherwise selects the ids of the page in one scan of the keys, keeping
+     * only the page in memory.
+     */
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        checkClass(type);
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        List<ConcurrentHashMap<Serializable, Object>> typeStores = getStores(type);
+        List<Serializable> ids;
+        NavigableSet<Serializable> ordered = indexes.getOrderedIndex(comparator);
+        if (ordered != null) {
+            ids = new ArrayList<>(pageSize + 1);
+            for (Serializable id : (afterId == null) ? ordered : ordered.tailSet(afterId, false)) {
+                // the index has the ids of all the types
+                if (containsKey(typeStores, id)) {
+                    ids.add(id);
+                    if (ids.size() > pageSize) {
+                        break;
+                    }
+                }
+            }
+        }
+        else {
+            Iterator<Serializable> keys = typeStores.stream().flatMap(store -> store.keySet().stream()).iterator();
+            ids = Page.keysAfter(keys, afterId, pageSize + 1, comparator);
+        }
+        boolean hasNext = ids.size() > pageSize;
+        if (hasNext) {
+            ids = ids.subList(0, pageSize);
+        }
+        List<T> items = new ArrayList<>(ids.size());
+        for (Serializable id : ids) {
+            // skips the objects deleted since the scan
+            for (ConcurrentHashMap<Serializable, Object> store : typeStores) {
+                Object object = store.get(id);
+                if (object != null) {
+                    items.add(type.cast(object));
+                    break;
+                }
+            }
+        }
+        return new Page<>(items, ids.isEmpty() ? null : ids.get(ids.size() - 1), hasNext);
+    }
+
+    /**
+     * Looks the value up in the unique index of the property if one was declared with
+     * {@link #addUniqueIndex}, otherwise scans the objects of the type. The value of the property is
+     * compared as a string.
+     *
+     * @throws PersistenceException if more than one object matches
+     */
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        checkClass(type);
+        if ((uniqueKeyName == null) || (uniqueKeyValue == null)) {
+            throw new IllegalArgumentException("Unique key name and value must not be null");
+        }
+
+        IndexTable.UniqueIndex index = indexes.getIndex(type, uniqueKeyName);
+        if (index != null) {
+            Serializable id = index.getId(uniqueKeyValue);
+            return (id == null) ? null : get(type, id);
+        }
+
+        T found = null;
+        for (ConcurrentHashMap<Serializable, Object> store : getStores(type)) {
+            for (Object object : store.values()) {
+                Object value = PropertyAccessor.get(object, uniqueKeyName);
+                if ((value != null) && uniqueKeyValue.equals(value.toString())) {
+                    if (found != null) {
+                        throw new PersistenceException("More than one object of type " + type.getName() + " with " + uniqueKeyName + " " + uniqueKeyValue);
+                    }
+                    found = type.cast(object);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #endTransaction()}, then reads the object. The
+     * id stays locked even if there is no object, so that it cannot be created by another thread.
+     */
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        checkClass(objectClass);
+        checkId(id);
+        locks.lock(id);
+        return get(objectClass, id);
+    }
+
+    /**
+     * Copies the object graph with a {@link GraphCloner}. Every {@link Persistable} of the copy is given
+     * a new id from the factory and saved, so the clone can be read back by its new ids.
+     */
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        checkObject(object);
+        if (idFactory == null) {
+            throw new IllegalArgumentException("Id factory must not be null");
+        }
+
+        Map<Serializable, Serializable> ids = new HashMap<>();
+        List<Persistable> clones = GraphCloner.cloneGraph(object, idFactory, ids);
+        for (Persistable clone : clones) {
+            saveOrUpdate(clone.getId(), clone);
+        }
+        return ids;
+    }
+
+    /**
+     * Takes the first id of the ordered index of the comparator if one was declared with
+     * {@link #addOrderedIndex}, otherwise scans the ids.
+     */
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        if (comparator == null) {
+            throw new IllegalArgumentException("Comparator must not be null");
+        }
+
+        NavigableSet<Serializable> ordered = indexes.getOrderedIndex(comparator);
+        if (ordered != null) {
+            // rather than first(), which throws if the last id is deleted meanwhile
+            Iterator<Serializable> ids = ordered.iterator();
+            return ids.hasNext() ? ids.next() : null;
+        }
+
+        Serializable min = null;
+        for (ConcurrentHashMap<Serializable, Object> store : stores.values()) {
+            for (Serializable id : store.keySet()) {
+                if ((min == null) || (comparator.compare(id, min) < 0)) {
+                    min = id;
+                }
+            }
+        }
+        return min;
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        if ((key == null) || key.isEmpty()) {
+            throw new IllegalArgumentException("Counter key must not be null or empty");
+        }
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        return counter.incrementAndGet();
+    }
+
+    @Override
+    public Map<String, Long> addToCounters(Map<String, Long> deltas) {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+            values.put(entry.getKey(), counters.computeIfAbsent(entry.getKey(), k -> new AtomicLong()).addAndGet(entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Passes every object with its id to the action, without copying or locking, e.g. to snapshot
+     * the service. The maps are weakly consistent, so objects written meanwhile may or may not be
+     * passed, and each object is passed as it was at some point of the call.
+     */
+    public void forEachObject(BiConsumer<Serializable, Object> action) {
+        if (action == null) {
+            throw new IllegalArgumentException("Action must not be null");
+        }
+        for (ConcurrentHashMap<Serializable, Object> store : stores.values()) {
+            store.forEach(action);
+        }
+    }
+
+    /**
+     * @return the current value of every counter
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new HashMap<>();
+        counters.forEach((key, counter) -> values.put(key, counter.get()));
+        return values;
+    }
+
+    private ConcurrentHashMap<Serializable, Object> getStore(Class<?> type) {
+        ConcurrentHashMap<Serializable, Object> store = stores.get(type);
+        if (store == null) {
+            store = stores.computeIfAbsent(type, k -> new ConcurrentHashMap<>());
+            storesVersion.incrementAndGet();
+        }
+        return store;
+    }
+
+    private List<ConcurrentHashMap<Serializable, Object>> getStores(Class<?> type) {
+        int version = storesVersion.get();
+        TypeView view = views.get(type);
+        if ((view == null) || (view.version != version)) {
+            // a class added while the view is built bumps the version so the view is built again
+            List<ConcurrentHashMap<Serializable, Object>> list = new ArrayList<>();
+            for (Map.Entry<Class<?>, ConcurrentHashMap<Serializable, Object>> entry : stores.entrySet()) {
+                if (type.isAssignableFrom(entry.getKey())) {
+                    list.add(entry.getValue());
+                }
+            }
+            view = new TypeView(version, Collections.unmodifiableList(list));
+            views.put(type, view);
+        }
+        return view.stores;
+    }
+
+    private Serializable getId(Serializable id, Object object) {
+        if (id != null) {
+            return id;
+        }
+
+        if (object instanceof Persistable) {
+            Persistable p = (Persistable)object;
+            id = p.getId();
+            if ((id == null) && (idFactory != null)) {
+                id = idFactory.newId();
+                p.setId(id);
+            }
+        }
+
+        if (id == null) {
+            throw new IllegalArgumentException("No id for object of type " + object.getClass().getName());
+        }
+        return id;
+    }
+
+    private static boolean containsKey(List<ConcurrentHashMap<Serializable, Object>> stores, Serializable id) {
+        for (ConcurrentHashMap<Serializable, Object> store : stores) {
+            if (store.containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkId(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+    }
+
+    private static void checkObject(Object object) {
+        if (object == null) {
+            throw new IllegalArgumentException("Object must not be null");
+        }
+    }
+
+    private static void checkClass(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("Class must not be null");
+        }
+    }
+
+    private static void checkCollection(Collection objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            throw new IllegalArgumentException("Collection must not be null or empty");
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.anode.tool.service.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonRepository;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * In-memory {@link CommonRepository} of one entity type, with the storage and locking of
+ * {@link InMemoryCommonService}. Entities are kept by reference in a {@link ConcurrentHashMap}
+ * keyed by the id given by the id function.
+ */
+public class InMemoryRepository<T, ID extends Serializable> implements CommonRepository<T, ID> {
+
+    private final ConcurrentHashMap<ID, T> store = new ConcurrentHashMap<>();
+
+    private final Function<? super T, ID> idFunction;
+
+    private final LockTable locks;
+
+    private final IndexTable indexes = new IndexTable();
+
+    public InMemoryRepository(Function<? super T, ID> idFunction) {
+        this(idFunction, InMemoryCommonService.DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idFunction        returns the id of an entity, never null
+     * @param lockTimeoutMillis the time to wait for a lock before giving up
+     */
+    public InMemoryRepository(Function<? super T, ID> idFunction, long lockTimeoutMillis) {
+        if (idFunction == null) {
+            throw new IllegalArgumentException("Id function must not be null");
+        }
+        this.idFunction = idFunction;
+        this.locks = new LockTable(lockTimeoutMillis);
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    public void endTransaction() {
+        locks.releaseAll();
+    }
+
+    @Override
+    public Optional<T> get(ID id) {
+        checkId(id);
+        return Optional.ofNullable(store.get(id));
+    }
+
+    /**
+     * Declares a unique index of the entities by a property, so that {@link #getUniqueItem} with the
+     * property is a lookup, and so that two entities with the same value cannot be saved. The index
+     * should be declared before the entities are written concurrently.
+     *
+     * @throws DuplicateKeyException if entities already stored have the same value
+     */
+    public void addUniqueIndex(String keyName) {
+        indexes.addIndex(Object.class, keyName, store.entrySet());
+    }
+
+    @Override
+    public <S extends T> S save(S entity) {
+        ID id = getId(entity);
+        locks.lockWrite(id);
+        try {
+            doSave(id, entity);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        return entity;
+    }
+
+    private void doSave(ID id, T entity) {
+        if (indexes.isEmpty()) {
+            if (store.putIfAbsent(id, entity) != null) {
+                throw new DuplicateKeyException("Entity with id " + id + " already exists");
+            }
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            if (store.containsKey(id)) {
+                throw new DuplicateKeyException("Entity with id " + id + " already exists");
+            }
+            indexes.update(id, entity);
+            store.put(id, entity);
+        }
+    }
+
+    @Override
+    public <S extends T> S saveOrUpdate(S entity) {
+        ID id = getId(entity);
+        locks.lockWrite(id);
+        try {
+            doSaveOrUpdate(id, entity);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        return entity;
+    }
+
+    private void doSaveOrUpdate(ID id, T entity) {
+        if (indexes.isEmpty()) {
+            store.put(id, entity);
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            indexes.update(id, entity);
+            store.put(id, entity);
+        }
+    }
+
+    @Override
+    public <S extends T> S update(S entity) {
+        ID id = getId(entity);
+        locks.lockWrite(id);
+        try {
+            doUpdate(id, entity);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        return entity;
+    }
+
+    private void doUpdate(ID id, T entity) {
+        if (indexes.isEmpty()) {
+            if (store.replace(id, entity) == null) {
+                throw new PersistenceException("Entity with id " + id + " not found");
+            }
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            if (store.containsKey(id) == false) {
+                throw new PersistenceException("Entity with id " + id + " not found");
+            }
+            indexes.update(id, entity);
+            store.put(id, entity);
+        }
+    }
+
+    @Override
+    public <S extends T> void saveCollection(Collection<S> objects) {
+        checkCollection(objects);
+        for (S entity : objects) {
+            save(entity);
+        }
+    }
+
+    @Override
+    public <S extends T> void saveOrUpdateCollection(Collection<S> objects) {
+        checkCollection(objects);
+        for (S entity : objects) {
+            saveOrUpdate(entity);
+        }
+    }
+
+    @Override
+    public void delete(ID id) {
+        checkId(id);
+        locks.lockWrite(id);
+        try {
+            doDelete(id);
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+    }
+
+    private void doDelete(ID id) {
+        if (indexes.isEmpty()) {
+            store.remove(id);
+            return;
+        }
+
+        synchronized (indexes.stripe(id)) {
+            store.remove(id);
+            indexes.remove(id);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S extends T> List<S> getAll() {
+        return new ArrayList<>((Collection<S>)store.values());
+    }
+
+    /**
+     * Streams the entities straight from the map, without copying them. The stream is weakly
+     * consistent and splits the map between threads when parallel. The fetch size does not matter in
+     * memory.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S extends T> Stream<S> stream(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        return (Stream<S>)store.values().stream();
+    }
+
+    /**
+     * Selects the ids of the page in one scan of the keys, keeping only the page in memory.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S extends T> Page<S> getPage(ID afterId, int pageSize, Comparator<? super ID> comparator) {
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        List<ID> ids = Page.keysAfter(store.keySet().iterator(), afterId, pageSize + 1, comparator);
+        boolean hasNext = ids.size() > pageSize;
+        if (hasNext) {
+            ids = ids.subList(0, pageSize);
+        }
+        List<S> items = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            // skips the entities deleted since the scan
+            T entity = store.get(id);
+            if (entity != null) {
+                items.add((S)entity);
+            }
+        }
+        return new Page<>(items, ids.isEmpty() ? null : ids.get(ids.size() - 1), hasNext);
+    }
+
+    /**
+     * Looks the value up in the unique index of the property if one was declared with
+     * {@link #addUniqueIndex}, otherwise scans the entities. The value of the property is compared as
+     * a string.
+     *
+     * @throws PersistenceException if more than one entity matches
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S extends T> S getUniqueItem(String uniqueKeyName, String uniqueKeyValue) {
+        if ((uniqueKeyName == null) || (uniqueKeyValue == null)) {
+            throw new IllegalArgumentException("Unique key name and value must not be null");
+        }
+
+        IndexTable.UniqueIndex index = indexes.getIndex(Object.class, uniqueKeyName);
+        if (index != null) {
+            Serializable id = index.getId(uniqueKeyValue);
+            return (id == null) ? null : (S)store.get(id);
+        }
+
+        T found = null;
+        for (T entity : store.values()) {
+            Object value = PropertyAccessor.get(entity, uniqueKeyName);
+            if ((value != null) && uniqueKeyValue.equals(value.toString())) {
+                if (found != null) {
+                    throw new PersistenceException("More than one entity with " + uniqueKeyName + " " + uniqueKeyValue);
+                }
+                found = entity;
+            }
+        }
+        return (S)found;
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #endTransaction()}, then reads the entity.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S extends T> S getLocked(ID id) {
+        checkId(id);
+        locks.lock(id);
+        return (S)store.get(id);
+    }
+
+    private ID getId(T entity) {
+        if (entity == null) {
+            throw new IllegalArgumentException("Entity must not be null");
+        }
+        ID id = idFunction.apply(entity);
+        if (id == null) {
+            throw new IllegalArgumentException("No id for entity of type " + entity.getClass().getName());
+        }
+        return id;
+    }
+
+    private static void checkId(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+    }
+
+    private static void checkCollection(Collection<?> objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            throw new IllegalArgumentException("Collection must not be null or empty");
+        }
+    }
+}
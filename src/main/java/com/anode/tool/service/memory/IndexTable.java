@@ -0,0 +1,273 @@
+package com.anode.tool.service.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.anode.tool.service.DuplicateKeyException;
+
+/**
+ * The secondary indexes of a store: unique indexes, declared per type and property, so that
+ * {@code getUniqueItem} is a map lookup instead of a scan, and ordered indexes of the ids, so that
+ * {@code getMinimalId} and pages of ids are not scans either.
+ *
+ * <p>A unique index of a type covers the objects of the type and its subclasses, by the value of the
+ * property as a string, as {@code getUniqueItem} compares it. Objects whose property is null are not
+ * indexed. Two objects with the same value raise a {@link DuplicateKeyException} and the second one
+ * is not written.
+ *
+ * <p>The store calls {@link #update} before writing an object and {@link #remove} when deleting
+ * one, and must not run two of these calls for the same id at the same time, e.g. by holding
+ * {@link #stripe} of the id. Calls for different ids may run concurrently: the values are claimed
+ * with an atomic put, so two ids never get the same value.
+ *
+ * <h2>Ordered indexes</h2>
+ * An ordered index keeps the ids of all the objects of the store sorted by a comparator, in a
+ * {@link ConcurrentSkipListSet}, so that the smallest id, and the ids after a given one, are found in
+ * O(log n) instead of by a scan. It is maintained by the same {@link #update} and {@link #remove}
+ * calls, and looked up by the comparator it was declared with.
+ */
+public class IndexTable {
+
+    private static final int STRIPES = 64;
+
+    private final CopyOnWriteArrayList<UniqueIndex> indexes = new CopyOnWriteArrayList<>();
+
+    private final CopyOnWriteArrayList<OrderedIndex> orderedIndexes = new CopyOnWriteArrayList<>();
+
+    private final Object[] stripes = new Object[STRIPES];
+
+    public IndexTable() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * A unique index of a type by a property.
+     */
+    public static final class UniqueIndex {
+
+        private final Class<?> type;
+
+        private final String keyName;
+
+        // value -> id
+        private final ConcurrentHashMap<String, Serializable> ids = new ConcurrentHashMap<>();
+
+        // id -> value, to release the value of an id when it changes
+        private final ConcurrentHashMap<Serializable, String> values = new ConcurrentHashMap<>();
+
+        private UniqueIndex(Class<?> type, String keyName) {
+            this.type = type;
+            this.keyName = keyName;
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        public String getKeyName() {
+            return keyName;
+        }
+
+        /**
+         * @return the id of the object with the value, null if none
+         */
+        public Serializable getId(String value) {
+            return ids.get(value);
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+        // the value of the object in this index, null if it is not indexed
+        private String valueOf(Object object) {
+            if ((object == null) || (type.isInstance(object) == false)) {
+                return null;
+            }
+            Object value = PropertyAccessor.get(object, keyName);
+            return (value == null) ? null : value.toString();
+        }
+
+        private void claim(Serializable id, String value) {
+            Serializable owner = ids.putIfAbsent(value, id);
+            if ((owner != null) && (owner.equals(id) == false)) {
+                throw new DuplicateKeyException("Object of type " + type.getName() + " with " + keyName + " " + value + " already exists with id " + owner);
+            }
+        }
+    }
+
+    // the ids of the store in the order of a comparator
+    private static final class OrderedIndex {
+
+        private final Comparator<Serializable> comparator;
+
+        private final ConcurrentSkipListSet<Serializable> ids;
+
+        private final NavigableSet<Serializable> view;
+
+        private OrderedIndex(Comparator<Serializable> comparator) {
+            this.comparator = comparator;
+            this.ids = new ConcurrentSkipListSet<>(comparator);
+            this.view = Collections.unmodifiableNavigableSet(ids);
+        }
+    }
+
+    /**
+     * @return the lock to hold while updating the indexes and writing the object of the id
+     */
+    public Object stripe(Serializable id) {
+        return stripes[(id.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * @return true if no index was declared, unique or ordered
+     */
+    public boolean isEmpty() {
+        return indexes.isEmpty() && orderedIndexes.isEmpty();
+    }
+
+    /**
+     * Declares a unique index, built from the existing objects, which should not be written
+     * meanwhile. Declaring an index again does nothing.
+     *
+     * @param objects the existing objects of the type by id
+     * @throws DuplicateKeyException if existing objects have the same value, the index is not added
+     */
+    public synchronized void addIndex(Class<?> type, String keyName, Iterable<? extends Map.Entry<? extends Serializable, ?>> objects) {
+        if ((type == null) || (keyName == null)) {
+            throw new IllegalArgumentException("Type and key name must not be null");
+        }
+        for (UniqueIndex index : indexes) {
+            if ((index.type == type) && index.keyName.equals(keyName)) {
+                return;
+            }
+        }
+
+        UniqueIndex index = new UniqueIndex(type, keyName);
+        for (Map.Entry<? extends Serializable, ?> entry : objects) {
+            String value = index.valueOf(entry.getValue());
+            if (value != null) {
+                index.claim(entry.getKey(), value);
+                index.values.put(entry.getKey(), value);
+            }
+        }
+        indexes.add(index);
+    }
+
+    /**
+     * @return the index of the property declared on the type or one of its superclasses, null if
+     *         none
+     */
+    public UniqueIndex getIndex(Class<?> type, String keyName) {
+        for (UniqueIndex index : indexes) {
+            if (index.type.isAssignableFrom(type) && index.keyName.equals(keyName)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Declares an ordered index of the ids by the comparator, built from the existing ids, which
+     * should not be written meanwhile. Declaring an index again with the same comparator does nothing.
+     *
+     * @param ids the existing ids of the store
+     */
+    public synchronized void addOrderedIndex(Comparator<Serializable> comparator, Iterable<? extends Serializable> ids) {
+        if (comparator == null) {
+            throw new IllegalArgumentException("Comparator must not be null");
+        }
+        if (getOrderedIndex(comparator) != null) {
+            return;
+        }
+
+        OrderedIndex index = new OrderedIndex(comparator);
+        for (Serializable id : ids) {
+            index.ids.add(id);
+        }
+        orderedIndexes.add(index);
+    }
+
+    /**
+     * @return a read only view of the ids in the order of the comparator, null if no ordered index
+     *         was declared with an equal comparator
+     */
+    public NavigableSet<Serializable> getOrderedIndex(Comparator<?> comparator) {
+        for (OrderedIndex index : orderedIndexes) {
+            if (index.comparator.equals(comparator)) {
+                return index.view;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexes the object as the new value of the id. Either all the indexes are updated, or none is.
+     *
+     * @throws DuplicateKeyException if another object has the same value in an index
+     */
+    public void update(Serializable id, Object object) {
+        List<UniqueIndex> changed = new ArrayList<>();
+        List<String> newValues = new ArrayList<>();
+        try {
+            for (UniqueIndex index : indexes) {
+                String value = index.valueOf(object);
+                String old = index.values.get(id);
+                if ((value == null) ? (old == null) : value.equals(old)) {
+                    continue;
+                }
+                if (value != null) {
+                    index.claim(id, value);
+                }
+                changed.add(index);
+                newValues.add(value);
+            }
+        }
+        catch (DuplicateKeyException e) {
+            // gives back the values claimed so far
+            for (int i = 0; i < changed.size(); i++) {
+                if (newValues.get(i) != null) {
+                    changed.get(i).ids.remove(newValues.get(i), id);
+                }
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < changed.size(); i++) {
+            UniqueIndex index = changed.get(i);
+            String value = newValues.get(i);
+            String old = (value == null) ? index.values.remove(id) : index.values.put(id, value);
+            if (old != null) {
+                index.ids.remove(old, id);
+            }
+        }
+        for (OrderedIndex index : orderedIndexes) {
+            index.ids.add(id);
+        }
+    }
+
+    /**
+     * Removes the id from the indexes.
+     */
+    public void remove(Serializable id) {
+        for (UniqueIndex index : indexes) {
+            String old = index.values.remove(id);
+            if (old != null) {
+                index.ids.remove(old, id);
+            }
+        }
+        for (OrderedIndex index : orderedIndexes) {
+            index.ids.remove(id);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.anode.tool.service.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.anode.tool.service.LockTimeoutException;
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * Per id pessimistic locks for the stores that implement getLocked themselves.
+ *
+ * <p>A lock is taken by {@code getLocked} and held by the calling thread until it calls
+ * {@link #releaseAll()} at the end of its transaction. Writers hold the lock of an id for the length
+ * of the write, with {@link #lockWrite} and {@link #unlockWrite}, so that they wait for the
+ * transaction holding it and no {@code getLocked} reads the object in the middle of the write.
+ * Readers never look at the table. An id only has an entry while it is locked or waited for, so the
+ * table stays as small as the number of ids in use.
+ */
+public final class LockTable {
+
+    private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<>();
+
+    // the ids locked by the thread, in the order they were locked
+    private final ThreadLocal<List<Object>> held = ThreadLocal.withInitial(ArrayList::new);
+
+    private final long timeoutMillis;
+
+    public LockTable(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static final class Entry {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // number of threads holding or waiting for the lock, only changed inside compute
+        private int users = 0;
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #releaseAll()}. Reentrant.
+     */
+    public void lock(Object id) {
+        acquire(id);
+        held.get().add(id);
+    }
+
+    /**
+     * Waits until no other thread holds the lock of the id. Returns at once if the id is not locked.
+     */
+    public void awaitUnlocked(Object id) {
+        Entry entry = entries.get(id);
+        if ((entry == null) || entry.lock.isHeldByCurrentThread()) {
+            return;
+        }
+        Entry acquired = acquire(id);
+        release(id, acquired);
+    }
+
+    /**
+     * Locks the id for a write, waiting for the thread that holds it. Reentrant, so a thread writes the
+     * ids it locked with {@link #lock}. To be paired with {@link #unlockWrite}.
+     */
+    public void lockWrite(Object id) {
+        acquire(id);
+    }
+
+    public void unlockWrite(Object id) {
+        release(id, entries.get(id));
+    }
+
+    public boolean isLocked(Object id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * @return whether a thread other than the calling one holds or waits for the lock of the id
+     */
+    public boolean isLockedByOther(Object id) {
+        Entry entry = entries.get(id);
+        return (entry != null) && (entry.lock.isHeldByCurrentThread() == false);
+    }
+
+    /**
+     * Releases all the locks held by the calling thread, in the reverse order they were taken.
+     */
+    public void releaseAll() {
+        List<Object> ids = held.get();
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            Object id = ids.get(i);
+            release(id, entries.get(id));
+        }
+        ids.clear();
+    }
+
+    private Entry acquire(Object id) {
+        Entry entry = entries.compute(id, (k, v) -> {
+            if (v == null) {
+                v = new Entry();
+            }
+            v.users++;
+            return v;
+        });
+
+        boolean acquired = false;
+        try {
+            acquired = entry.lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unreference(id);
+            throw new PersistenceException("Interrupted while waiting for the lock on id " + id, e);
+        }
+
+        if (acquired == false) {
+            unreference(id);
+            throw new LockTimeoutException("Lock on id " + id + " not acquired within " + timeoutMillis + " ms");
+        }
+        return entry;
+    }
+
+    private void release(Object id, Entry entry) {
+        entry.lock.unlock();
+        unreference(id);
+    }
+
+    private void unreference(Object id) {
+        entries.computeIfPresent(id, (k, v) -> {
+            v.users--;
+            return (v.users == 0) ? null : v;
+        });
+    }
+}
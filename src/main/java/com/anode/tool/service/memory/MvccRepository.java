@@ -0,0 +1,672 @@
+package com.anode.tool.service.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonRepository;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.clone.GraphCloner;
+
+/**
+ * In-memory {@link CommonRepository} with multi-version concurrency control, so that readers never
+ * wait for writers, nor see an entity in the middle of a write.
+ *
+ * <h2>Versions</h2>
+ * Every write publishes a new version of the entity, a deep copy made with {@link GraphCloner}, at
+ * the head of the chain of versions of its id, and a delete publishes an empty version. Versions are
+ * never changed once published: the entities read are the versions themselves, shared by all the
+ * readers, and must not be changed. {@link #getLocked} returns a copy, to be changed and written
+ * back. Every commit takes the next timestamp of a clock. The versions of a collection written with
+ * {@link #saveCollection} or {@link #saveOrUpdateCollection} share one timestamp, so that they are
+ * seen together or not at all, and the collection is written whole or not at all.
+ *
+ * <h2>Reads</h2>
+ * {@link #get} returns the latest version without locking. A {@link Snapshot} reads the versions of
+ * any number of ids as of the time it was opened, the newest version of each id whose timestamp is
+ * not after that of the snapshot. {@link #getAll}, {@link #stream}, {@link #getPage} and
+ * {@link #getUniqueItem} read from a snapshot of their own, so that they see one point in time. A
+ * version is linked at the head of its chain before its timestamp is taken, and readers wait for the
+ * timestamp of a version being committed, which is a matter of a few instructions. So a commit is
+ * either seen by a snapshot or has a timestamp after it.
+ *
+ * <h2>Reclamation</h2>
+ * The older versions of an id are dropped as soon as no open snapshot can read them: a write keeps
+ * the versions after the oldest open snapshot, and the newest version before it. The chains left with
+ * old versions are pruned again when the oldest snapshot is closed, and the ids whose only version is
+ * a delete are removed. Snapshots must be closed, a snapshot left open keeps every version written
+ * after it. Opening a snapshot lowers the horizon of the writers before taking its timestamp, so that
+ * a writer that reads the previous horizon commits before the snapshot and drops nothing it needs.
+ *
+ * <h2>Locking</h2>
+ * Writers of the same id lock its chain, and writers of a collection lock their chains in the order
+ * they were created. {@link #getLocked} locks the id until {@link #endTransaction()} as
+ * {@link InMemoryRepository} does, and the writes of the id from other threads wait for it.
+ */
+public class MvccRepository<T, ID extends Serializable> implements CommonRepository<T, ID> {
+
+    // the timestamp of a version being committed
+    private static final long PENDING = Long.MAX_VALUE;
+
+    private enum Write {
+        SAVE,
+        SAVE_OR_UPDATE,
+        UPDATE,
+        DELETE
+    }
+
+    private final ConcurrentHashMap<ID, Chain<ID, T>> chains = new ConcurrentHashMap<>();
+
+    // the chains that keep old versions for the open snapshots
+    private final ConcurrentLinkedQueue<Chain<ID, T>> retained = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    // the order the chains are locked in by the writers of a collection
+    private final AtomicLong chainOrder = new AtomicLong();
+
+    // the number of open snapshots by timestamp, guarded by its monitor
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+
+    // the timestamp of the oldest open snapshot, or lower while one is opened
+    private volatile long horizon = Long.MAX_VALUE;
+
+    private final Function<? super T, ID> idFunction;
+
+    private final LockTable locks;
+
+    private final AtomicLong versionCount = new AtomicLong();
+
+    private final AtomicLong reclaimedVersions = new AtomicLong();
+
+    public MvccRepository(Function<? super T, ID> idFunction) {
+        this(idFunction, InMemoryCommonService.DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idFunction        returns the id of an entity, never null
+     * @param lockTimeoutMillis the time to wait for a lock before giving up
+     */
+    public MvccRepository(Function<? super T, ID> idFunction, long lockTimeoutMillis) {
+        if (idFunction == null) {
+            throw new IllegalArgumentException("Id function must not be null");
+        }
+        this.idFunction = idFunction;
+        this.locks = new LockTable(lockTimeoutMillis);
+    }
+
+    // a committed state of an entity, null when deleted
+    private static final class Version<T> {
+
+        private final T entity;
+
+        private volatile long timestamp = PENDING;
+
+        // the version before, cut when no snapshot can read it
+        private volatile Version<T> previous;
+
+        private Version(T entity, Version<T> previous) {
+            this.entity = entity;
+            this.previous = previous;
+        }
+    }
+
+    // the versions of an id, newest first, written under the lock
+    private static final class Chain<ID, T> {
+
+        private final ID id;
+
+        private final long order;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile Version<T> head;
+
+        // removed from the map, to be looked up again by writers
+        private boolean removed = false;
+
+        // in the retained queue
+        private boolean queued = false;
+
+        private Chain(ID id, long order) {
+            this.id = id;
+            this.order = order;
+        }
+    }
+
+    /**
+     * A consistent read of the repository as of the time it was opened. Snapshots are thread safe,
+     * and must be closed so that the versions they read can be reclaimed.
+     */
+    public final class Snapshot implements AutoCloseable {
+
+        private final long timestamp;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Snapshot(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Optional<T> get(ID id) {
+            checkId(id);
+            checkOpen();
+            Chain<ID, T> chain = chains.get(id);
+            return Optional.ofNullable((chain == null) ? null : read(chain, timestamp));
+        }
+
+        /**
+         * @return the entities of the ids that existed as of the snapshot, in the order of the ids
+         */
+        public Map<ID, T> get(Collection<ID> ids) {
+            if (ids == null) {
+                throw new IllegalArgumentException("Ids must not be null");
+            }
+            checkOpen();
+            Map<ID, T> entities = new LinkedHashMap<>();
+            for (ID id : ids) {
+                checkId(id);
+                Chain<ID, T> chain = chains.get(id);
+                T entity = (chain == null) ? null : read(chain, timestamp);
+                if (entity != null) {
+                    entities.put(id, entity);
+                }
+            }
+            return entities;
+        }
+
+        public <S extends T> List<S> getAll() {
+            checkOpen();
+            List<S> entities = new ArrayList<>();
+            for (Chain<ID, T> chain : chains.values()) {
+                S entity = cast(read(chain, timestamp));
+                if (entity != null) {
+                    entities.add(entity);
+                }
+            }
+            return entities;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                closeSnapshot(timestamp);
+            }
+        }
+
+        private void checkOpen() {
+            if (closed.get()) {
+                throw new PersistenceException("Snapshot is closed");
+            }
+        }
+    }
+
+    /**
+     * Opens a snapshot of the committed versions, to be closed after use.
+     */
+    public Snapshot openSnapshot() {
+        synchronized (openSnapshots) {
+            // lowers the horizon before taking the timestamp, see the class comment
+            long floor = clock.get();
+            if (floor < horizon) {
+                horizon = floor;
+            }
+            long timestamp = clock.get();
+            openSnapshots.merge(timestamp, 1, Integer::sum);
+            return new Snapshot(timestamp);
+        }
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    public void endTransaction() {
+        locks.releaseAll();
+    }
+
+    /**
+     * Reads the latest committed version, without locking.
+     */
+    @Override
+    public Optional<T> get(ID id) {
+        checkId(id);
+        Chain<ID, T> chain = chains.get(id);
+        return Optional.ofNullable((chain == null) ? null : read(chain, PENDING));
+    }
+
+    @Override
+    public <S extends T> S save(S entity) {
+        write(Write.SAVE, single(entity));
+        return entity;
+    }
+
+    @Override
+    public <S extends T> S saveOrUpdate(S entity) {
+        write(Write.SAVE_OR_UPDATE, single(entity));
+        return entity;
+    }
+
+    @Override
+    public <S extends T> S update(S entity) {
+        write(Write.UPDATE, single(entity));
+        return entity;
+    }
+
+    /**
+     * Saves the entities in one commit.
+     *
+     * @throws DuplicateKeyException if one of the ids exists or is given twice, in which case none is
+     *                               saved
+     */
+    @Override
+    public <S extends T> void saveCollection(Collection<S> objects) {
+        checkCollection(objects);
+        Map<ID, T> entities = new LinkedHashMap<>();
+        for (S entity : objects) {
+            ID id = getId(entity);
+            if (entities.put(id, GraphCloner.copy(entity)) != null) {
+                throw new DuplicateKeyException("Entity with id " + id + " given twice");
+            }
+        }
+        write(Write.SAVE, entities);
+    }
+
+    /**
+     * Saves or updates the entities in one commit, the last one of an id given twice.
+     */
+    @Override
+    public <S extends T> void saveOrUpdateCollection(Collection<S> objects) {
+        checkCollection(objects);
+        Map<ID, T> entities = new LinkedHashMap<>();
+        for (S entity : objects) {
+            entities.put(getId(entity), GraphCloner.copy(entity));
+        }
+        write(Write.SAVE_OR_UPDATE, entities);
+    }
+
+    @Override
+    public void delete(ID id) {
+        checkId(id);
+        Map<ID, T> entities = new LinkedHashMap<>();
+        entities.put(id, null);
+        write(Write.DELETE, entities);
+    }
+
+    /**
+     * Reads the entities from a snapshot.
+     */
+    @Override
+    public <S extends T> List<S> getAll() {
+        try (Snapshot snapshot = openSnapshot()) {
+            return snapshot.getAll();
+        }
+    }
+
+    /**
+     * Streams the entities of a snapshot, which is held until the stream is closed.
+     */
+    @Override
+    public <S extends T> Stream<S> stream(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        Snapshot snapshot = openSnapshot();
+        return chains.values().stream()
+                .map(chain -> this.<S>cast(read(chain, snapshot.timestamp)))
+                .filter(Objects::nonNull)
+                .onClose(snapshot::close);
+    }
+
+    /**
+     * Selects the ids of the page in one scan of the keys, then reads the entities of the page from a
+     * snapshot.
+     */
+    @Override
+    public <S extends T> Page<S> getPage(ID afterId, int pageSize, Comparator<? super ID> comparator) {
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        try (Snapshot snapshot = openSnapshot()) {
+            List<ID> ids = Page.keysAfter(chains.keySet().iterator(), afterId, pageSize + 1, comparator);
+            boolean hasNext = ids.size() > pageSize;
+            if (hasNext) {
+                ids = ids.subList(0, pageSize);
+            }
+            List<S> items = new ArrayList<>(ids.size());
+            // skips the entities deleted since the snapshot
+            for (T entity : snapshot.get(ids).values()) {
+                items.add(cast(entity));
+            }
+            return new Page<>(items, ids.isEmpty() ? null : ids.get(ids.size() - 1), hasNext);
+        }
+    }
+
+    /**
+     * Scans the entities of a snapshot. The value of the property is compared as a string.
+     *
+     * @throws PersistenceException if more than one entity matches
+     */
+    @Override
+    public <S extends T> S getUniqueItem(String uniqueKeyName, String uniqueKeyValue) {
+        if ((uniqueKeyName == null) || (uniqueKeyValue == null)) {
+            throw new IllegalArgumentException("Unique key name and value must not be null");
+        }
+
+        T found = null;
+        for (T entity : getAll()) {
+            Object value = PropertyAccessor.get(entity, uniqueKeyName);
+            if ((value != null) && uniqueKeyValue.equals(value.toString())) {
+                if (found != null) {
+                    throw new PersistenceException("More than one entity with " + uniqueKeyName + " " + uniqueKeyValue);
+                }
+                found = entity;
+            }
+        }
+        return cast(found);
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #endTransaction()}, then returns a copy of the
+     * latest version, to be changed and updated.
+     */
+    @Override
+    public <S extends T> S getLocked(ID id) {
+        checkId(id);
+        locks.lock(id);
+        // read under the lock of the chain, so that a write that did not see the lock is over
+        List<Chain<ID, T>> locked = lockChains(Collections.singletonList(id), true);
+        T entity;
+        try {
+            entity = read(locked.get(0), PENDING);
+        }
+        finally {
+            unlockChains(locked);
+        }
+        return (entity == null) ? null : cast(GraphCloner.copy(entity));
+    }
+
+    /**
+     * Drops the versions that no open snapshot can read any more from the chains that kept some.
+     * Called when the oldest snapshot is closed.
+     */
+    public void reclaim() {
+        for (int n = retained.size(); n > 0; n--) {
+            Chain<ID, T> chain = retained.poll();
+            if (chain == null) {
+                return;
+            }
+            chain.lock.lock();
+            try {
+                chain.queued = false;
+                if (chain.removed == false) {
+                    prune(chain, horizon);
+                }
+            }
+            finally {
+                chain.lock.unlock();
+            }
+        }
+    }
+
+    public int getOpenSnapshots() {
+        synchronized (openSnapshots) {
+            int count = 0;
+            for (int n : openSnapshots.values()) {
+                count += n;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return the versions kept, deletes included
+     */
+    public long getVersionCount() {
+        return versionCount.get();
+    }
+
+    public long getReclaimedVersions() {
+        return reclaimedVersions.get();
+    }
+
+    private void closeSnapshot(long timestamp) {
+        long previous;
+        long current;
+        synchronized (openSnapshots) {
+            openSnapshots.merge(timestamp, -1, (a, b) -> (a + b == 0) ? null : a + b);
+            previous = horizon;
+            current = openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+            horizon = current;
+        }
+        if (current > previous) {
+            reclaim();
+        }
+    }
+
+    /*
+     * Commits one version per id, null entities for deletes, once none of the ids is locked by the
+     * transaction of another thread. The lock is checked under the locks of the chains, under which
+     * getLocked reads, so that the write is either seen by getLocked or waits for its transaction.
+     */
+    private void write(Write write, Map<ID, T> entities) {
+        while (true) {
+            List<Chain<ID, T>> locked = lockChains(entities.keySet(), write != Write.DELETE);
+            ID lockedId = null;
+            try {
+                for (Chain<ID, T> chain : locked) {
+                    if (locks.isLockedByOther(chain.id)) {
+                        lockedId = chain.id;
+                        break;
+                    }
+                }
+                if (lockedId == null) {
+                    commit(write, entities, locked);
+                    return;
+                }
+            }
+            finally {
+                unlockChains(locked);
+            }
+            locks.awaitUnlocked(lockedId);
+        }
+    }
+
+    // under the locks of the chains, which are all checked before any is written
+    private void commit(Write write, Map<ID, T> entities, List<Chain<ID, T>> locked) {
+        List<Chain<ID, T>> written = new ArrayList<>(locked.size());
+        for (Chain<ID, T> chain : locked) {
+            Version<T> latest = chain.head;
+            boolean exists = (latest != null) && (latest.entity != null);
+            if ((write == Write.SAVE) && exists) {
+                throw new DuplicateKeyException("Entity with id " + chain.id + " already exists");
+            }
+            if ((write == Write.UPDATE) && (exists == false)) {
+                throw new PersistenceException("Entity with id " + chain.id + " not found");
+            }
+            if ((write != Write.DELETE) || exists) {
+                written.add(chain);
+            }
+        }
+        if (written.isEmpty()) {
+            return;
+        }
+
+        List<Version<T>> versions = new ArrayList<>(written.size());
+        for (Chain<ID, T> chain : written) {
+            Version<T> version = new Version<>(entities.get(chain.id), chain.head);
+            chain.head = version;
+            versions.add(version);
+        }
+        long timestamp = clock.incrementAndGet();
+        for (Version<T> version : versions) {
+            version.timestamp = timestamp;
+        }
+        versionCount.addAndGet(versions.size());
+
+        // read after the timestamp is taken, see the class comment
+        long keep = Math.min(horizon, timestamp);
+        for (Chain<ID, T> chain : written) {
+            prune(chain, keep);
+        }
+    }
+
+    private void unlockChains(List<Chain<ID, T>> locked) {
+        for (Chain<ID, T> chain : locked) {
+            // the chains created for a write that failed, or for a getLocked of a missing id
+            if ((chain.head == null) && (chain.removed == false)) {
+                chains.remove(chain.id, chain);
+                chain.removed = true;
+            }
+            chain.lock.unlock();
+        }
+    }
+
+    // locks the chains of the ids in their order, looking up again those removed meanwhile
+    private List<Chain<ID, T>> lockChains(Collection<ID> ids, boolean create) {
+        while (true) {
+            List<Chain<ID, T>> found = new ArrayList<>(ids.size());
+            for (ID id : ids) {
+                Chain<ID, T> chain = create ? chains.computeIfAbsent(id, k -> new Chain<>(k, chainOrder.incrementAndGet())) : chains.get(id);
+                if (chain != null) {
+                    found.add(chain);
+                }
+            }
+            if (found.size() > 1) {
+                found.sort(Comparator.comparingLong(chain -> chain.order));
+            }
+
+            int count = 0;
+            boolean removed = false;
+            for (Chain<ID, T> chain : found) {
+                chain.lock.lock();
+                count++;
+                if (chain.removed) {
+                    removed = true;
+                    break;
+                }
+            }
+            if (removed == false) {
+                return found;
+            }
+            for (int i = 0; i < count; i++) {
+                found.get(i).lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Under the lock of the chain. Keeps the versions after the horizon and the newest one before it,
+     * and removes the chain when that one is a delete with nothing after it.
+     */
+    private void prune(Chain<ID, T> chain, long keep) {
+        Version<T> kept = chain.head;
+        while ((kept != null) && (kept.timestamp > keep)) {
+            kept = kept.previous;
+        }
+
+        if (kept != null) {
+            int dropped = 0;
+            for (Version<T> version = kept.previous; version != null; version = version.previous) {
+                dropped++;
+            }
+            kept.previous = null;
+            if ((kept == chain.head) && (kept.entity == null)) {
+                chains.remove(chain.id, chain);
+                chain.removed = true;
+                dropped++;
+            }
+            if (dropped > 0) {
+                versionCount.addAndGet(-dropped);
+                reclaimedVersions.addAndGet(dropped);
+            }
+        }
+
+        // pruned again later if it keeps old versions or a delete, even when all are after the horizon
+        Version<T> head = chain.head;
+        boolean retains = (head.previous != null) || (head.entity == null);
+        if ((chain.removed == false) && retains && (chain.queued == false)) {
+            chain.queued = true;
+            retained.add(chain);
+        }
+    }
+
+    // the newest version of the chain committed at or before the timestamp
+    private static <T> T read(Chain<?, T> chain, long timestamp) {
+        for (Version<T> version = chain.head; version != null; version = version.previous) {
+            if (awaitCommit(version) <= timestamp) {
+                return version.entity;
+            }
+        }
+        return null;
+    }
+
+    private static long awaitCommit(Version<?> version) {
+        long timestamp = version.timestamp;
+        for (int spins = 0; timestamp == PENDING; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            }
+            else {
+                Thread.yield();
+            }
+            timestamp = version.timestamp;
+        }
+        return timestamp;
+    }
+
+    private Map<ID, T> single(T entity) {
+        Map<ID, T> entities = new LinkedHashMap<>();
+        entities.put(getId(entity), GraphCloner.copy(entity));
+        return entities;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <S extends T> S cast(T entity) {
+        return (S)entity;
+    }
+
+    private ID getId(T entity) {
+        if (entity == null) {
+            throw new IllegalArgumentException("Entity must not be null");
+        }
+        ID id = idFunction.apply(entity);
+        if (id == null) {
+            throw new IllegalArgumentException("No id for entity of type " + entity.getClass().getName());
+        }
+        return id;
+    }
+
+    private static void checkId(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+    }
+
+    private static void checkCollection(Collection<?> objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            throw new IllegalArgumentException("Collection must not be null or empty");
+        }
+    }
+}
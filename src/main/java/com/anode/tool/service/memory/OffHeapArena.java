@@ -0,0 +1,215 @@
+package com.anode.tool.service.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * Memory outside of the Java heap, in direct or memory mapped {@link ByteBuffer} slabs, allocated
+ * in blocks for byte arrays.
+ *
+ * <h2>Blocks</h2>
+ * A block has the size of the power of two at or above the length asked for, from 64 bytes to 1 MB,
+ * and is carved from a slab of 4 MB of its size class. A freed block is reused by the next
+ * allocation of its class, so the memory does not fragment, at the cost of up to half of each block.
+ * Longer arrays get a slab of their own, released when they are freed.
+ *
+ * <h2>Mapped files</h2>
+ * With a directory, the slabs are memory mapped from files of the directory, deleted as soon as they
+ * are mapped, so that the operating system can page the blocks that are not used out to disk instead
+ * of them taking memory. Otherwise the slabs are direct buffers, limited by
+ * {@code -XX:MaxDirectMemorySize}.
+ *
+ * <p>The address of a block is the index of its slab and its offset in it. A block must be written
+ * before it is read, and must not be read or written once freed, which the caller ensures.
+ */
+public final class OffHeapArena {
+
+    private static final int MIN_CLASS = 6;
+
+    private static final int MAX_CLASS = 20;
+
+    private static final int SLAB_BYTES = 4 << 20;
+
+    private final Path directory;
+
+    // grown under the monitor of the arena
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+
+    private int slabCount = 0;
+
+    private final SizeClass[] classes = new SizeClass[MAX_CLASS + 1];
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * @param directory the directory of the mapped files of the slabs, null for direct buffers
+     */
+    public OffHeapArena(Path directory) {
+        this.directory = directory;
+        for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+            classes[i] = new SizeClass(i);
+        }
+    }
+
+    // the blocks of a size, under its monitor
+    private final class SizeClass {
+
+        private final int blockBytes;
+
+        private long[] free = new long[16];
+
+        private int freeCount = 0;
+
+        private int slab = -1;
+
+        private int next = SLAB_BYTES;
+
+        private SizeClass(int bits) {
+            this.blockBytes = 1 << bits;
+        }
+
+        private synchronized long allocate() {
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            if (next + blockBytes > SLAB_BYTES) {
+                slab = addSlab(SLAB_BYTES);
+                next = 0;
+            }
+            long address = address(slab, next);
+            next += blockBytes;
+            return address;
+        }
+
+        private synchronized void free(long address) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = address;
+        }
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long)slab << 32) | offset;
+    }
+
+    // the class of the blocks of the length, 0 for a slab of its own
+    private static int sizeClass(int length) {
+        int bits = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+        return (bits > MAX_CLASS) ? 0 : bits;
+    }
+
+    private synchronized int addSlab(int bytes) {
+        ByteBuffer slab;
+        if (directory == null) {
+            slab = ByteBuffer.allocateDirect(bytes);
+        }
+        else {
+            slab = map(bytes);
+        }
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabCount * 2);
+        }
+        slabs[slabCount] = slab;
+        reservedBytes.addAndGet(bytes);
+        return slabCount++;
+    }
+
+    private MappedByteBuffer map(int bytes) {
+        try {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "slab", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the mapping outlives the channel and the file name
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            finally {
+                Files.deleteIfExists(file);
+            }
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot map slab in " + directory, e);
+        }
+    }
+
+    /**
+     * @return the address of a block of at least the length
+     */
+    public long allocate(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative");
+        }
+        int c = sizeClass(length);
+        long address = (c == 0) ? address(addSlab(length), 0) : classes[c].allocate();
+        usedBytes.addAndGet((c == 0) ? length : (1 << c));
+        return address;
+    }
+
+    /**
+     * Frees the block of the address, allocated with the length.
+     */
+    public void free(long address, int length) {
+        int c = sizeClass(length);
+        if (c == 0) {
+            synchronized (this) {
+                slabs[(int)(address >>> 32)] = null;
+            }
+            reservedBytes.addAndGet(-length);
+            usedBytes.addAndGet(-length);
+        }
+        else {
+            classes[c].free(address);
+            usedBytes.addAndGet(-(1 << c));
+        }
+    }
+
+    public void write(long address, byte[] bytes) {
+        ByteBuffer b = slab(address);
+        b.position((int)address);
+        b.put(bytes);
+    }
+
+    /**
+     * @return a buffer over the bytes of the block, from its position to its limit
+     */
+    public ByteBuffer read(long address, int length) {
+        ByteBuffer b = slab(address);
+        b.position((int)address);
+        b.limit((int)address + length);
+        return b;
+    }
+
+    // a view of the slab of the address, with its own position
+    private ByteBuffer slab(long address) {
+        ByteBuffer slab = slabs[(int)(address >>> 32)];
+        if (slab == null) {
+            throw new PersistenceException("Block at " + address + " was freed");
+        }
+        return slab.duplicate();
+    }
+
+    /**
+     * @return the bytes of the slabs
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @return the bytes of the blocks in use
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+}
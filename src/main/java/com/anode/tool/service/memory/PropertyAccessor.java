@@ -0,0 +1,92 @@
+package com.anode.tool.service.memory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * Reads a named property of an object through its getter, or its field if there is no getter.
+ *
+ * <p>The getter or field of a property is looked up once per class and property name.
+ */
+public final class PropertyAccessor {
+
+    private static final ClassValue<Map<String, PropertyAccessor>> accessors = new ClassValue<Map<String, PropertyAccessor>>() {
+        @Override
+        protected Map<String, PropertyAccessor> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final Method getter;
+
+    private final Field field;
+
+    private PropertyAccessor(Method getter, Field field) {
+        this.getter = getter;
+        this.field = field;
+    }
+
+    /**
+     * Returns the value of the property of the object.
+     *
+     * @throws IllegalArgumentException if the class of the object has no such property
+     */
+    public static Object get(Object object, String name) {
+        Map<String, PropertyAccessor> map = accessors.get(object.getClass());
+        PropertyAccessor accessor = map.get(name);
+        if (accessor == null) {
+            accessor = create(object.getClass(), name);
+            map.put(name, accessor);
+        }
+        return accessor.read(object);
+    }
+
+    private static PropertyAccessor create(Class<?> type, String name) {
+        String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String prefix : new String[] { "get", "is" }) {
+            try {
+                Method method = type.getMethod(prefix + suffix);
+                if (method.getReturnType() != void.class) {
+                    method.setAccessible(true);
+                    return new PropertyAccessor(method, null);
+                }
+            }
+            catch (NoSuchMethodException e) {
+                // try the next prefix, then the field
+            }
+        }
+
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                if (Modifier.isStatic(field.getModifiers()) == false) {
+                    field.setAccessible(true);
+                    return new PropertyAccessor(null, field);
+                }
+            }
+            catch (NoSuchFieldException e) {
+                // look in the super class
+            }
+        }
+
+        throw new IllegalArgumentException("No property " + name + " in " + type.getName());
+    }
+
+    private Object read(Object object) {
+        try {
+            if (getter != null) {
+                return getter.invoke(object);
+            }
+            return field.get(object);
+        }
+        catch (IllegalAccessException | InvocationTargetException e) {
+            throw new PersistenceException("Cannot read property of " + object.getClass().getName(), e);
+        }
+    }
+}
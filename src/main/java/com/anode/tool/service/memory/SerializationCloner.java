@@ -0,0 +1,89 @@
+package com.anode.tool.service.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * Copies an object graph by serialization. The stores use the faster
+ * {@link com.anode.tool.service.clone.GraphCloner}, this is kept for graphs that rely on custom
+ * serialization methods.
+ */
+public final class SerializationCloner {
+
+    private SerializationCloner() {
+    }
+
+    /**
+     * Copies the graph of the object. Every {@link Persistable} of the copy is given a new id from the
+     * factory.
+     *
+     * @param ids receives the old id to new id mapping of the copied Persistables
+     * @return the Persistables of the copy, to be saved by the caller
+     * @throws PersistenceException if the graph is not serializable
+     */
+    public static List<Persistable> cloneGraph(Object object, IdFactory idFactory, Map<Serializable, Serializable> ids) {
+        byte[] bytes = null;
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(object);
+            oos.flush();
+            bytes = bos.toByteArray();
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot clone object of type " + object.getClass().getName(), e);
+        }
+
+        List<Persistable> clones = new ArrayList<>();
+        try (ObjectInputStream ois = new CloneInputStream(new ByteArrayInputStream(bytes), idFactory, ids, clones)) {
+            ois.readObject();
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Cannot clone object of type " + object.getClass().getName(), e);
+        }
+        return clones;
+    }
+
+    // gives each Persistable a new id as it is read
+    private static final class CloneInputStream extends ObjectInputStream {
+
+        private final IdFactory idFactory;
+
+        private final Map<Serializable, Serializable> ids;
+
+        private final List<Persistable> clones;
+
+        private CloneInputStream(InputStream in, IdFactory idFactory, Map<Serializable, Serializable> ids, List<Persistable> clones) throws IOException {
+            super(in);
+            this.idFactory = idFactory;
+            this.ids = ids;
+            this.clones = clones;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object object) {
+            if (object instanceof Persistable) {
+                Persistable p = (Persistable)object;
+                Serializable oldId = p.getId();
+                Serializable newId = idFactory.newId();
+                p.setId(newId);
+                if (oldId != null) {
+                    ids.put(oldId, newId);
+                }
+                clones.add(p);
+            }
+            return object;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package com.anode.tool.service.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonRepository;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory {@link CommonRepository} keeping the entities in use on the heap and the others
+ * serialized outside of it, so that millions of idle entities take little heap.
+ *
+ * <h2>Tiers</h2>
+ * The hot tier holds up to {@code maxHotEntities} entities by reference, read without locking or
+ * copying, as in {@link InMemoryRepository}. The cold tier holds the other entities serialized in an
+ * {@link OffHeapArena}, in direct buffers or memory mapped files, and reads deserialize them, so that
+ * changes to an entity read from the cold tier are only kept when it is saved. Only the id and a
+ * small slot of every entity stay on the heap. Entities must be {@link Serializable}.
+ *
+ * <h2>Promotion and demotion</h2>
+ * Writes put the entity in the hot tier. A cold entity read {@code promotionHits} times since it was
+ * demoted is promoted back. When there are too many hot entities, the writer or reader that went
+ * over demotes some, by a CLOCK with frequencies: the hot entities are visited in turn, an entity read
+ * since its last visit has its count of reads halved and stays, the others are serialized to the cold
+ * tier. Entities read often stay hot, entities read once in a while go cold. {@link #getAll},
+ * {@link #stream} and the scans of {@link #getUniqueItem} do not count as reads, so that they do not
+ * flush the hot tier. An entity that cannot be serialized is logged and stays hot, out of the CLOCK,
+ * until it is written again.
+ *
+ * <h2>Locking</h2>
+ * {@link #getLocked} and the writes lock as {@link InMemoryRepository} does.
+ */
+@Slf4j
+public class TieredRepository<T, ID extends Serializable> implements CommonRepository<T, ID> {
+
+    public static final int DEFAULT_PROMOTION_HITS = 2;
+
+    private final ConcurrentHashMap<ID, Slot> slots = new ConcurrentHashMap<>();
+
+    // the hot slots, in the order of the CLOCK
+    private final ConcurrentLinkedQueue<Slot> hot = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger hotCount = new AtomicInteger();
+
+    // the deleted slots left in the CLOCK, removed in a sweep when there are many
+    private final AtomicInteger deletedInClock = new AtomicInteger();
+
+    private final ReentrantLock demotionLock = new ReentrantLock();
+
+    private final Function<? super T, ID> idFunction;
+
+    private final int maxHotEntities;
+
+    private final OffHeapArena arena;
+
+    private final LockTable locks;
+
+    private volatile int promotionHits = DEFAULT_PROMOTION_HITS;
+
+    private final AtomicLong promotions = new AtomicLong();
+
+    private final AtomicLong demotions = new AtomicLong();
+
+    private final AtomicLong coldReads = new AtomicLong();
+
+    /**
+     * Keeps the cold tier in direct buffers.
+     */
+    public TieredRepository(Function<? super T, ID> idFunction, int maxHotEntities) {
+        this(idFunction, maxHotEntities, null, InMemoryCommonService.DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idFunction        returns the id of an entity, never null
+     * @param maxHotEntities    the maximum number of entities on the heap
+     * @param directory         the directory of the memory mapped files of the cold tier, null for
+     *                          direct buffers
+     * @param lockTimeoutMillis the time to wait for a lock before giving up
+     */
+    public TieredRepository(Function<? super T, ID> idFunction, int maxHotEntities, Path directory, long lockTimeoutMillis) {
+        if (idFunction == null) {
+            throw new IllegalArgumentException("Id function must not be null");
+        }
+        if (maxHotEntities < 0) {
+            throw new IllegalArgumentException("Max hot entities must not be negative");
+        }
+        this.idFunction = idFunction;
+        this.maxHotEntities = maxHotEntities;
+        this.arena = new OffHeapArena(directory);
+        this.locks = new LockTable(lockTimeoutMillis);
+    }
+
+    // an entity, hot or cold, its fields guarded by its monitor except for the hot entity
+    private static final class Slot {
+
+        // the entity when hot, read without locking
+        private volatile Object entity;
+
+        // the block of the serialized entity when cold, -1 when hot
+        private long address = -1;
+
+        private int length;
+
+        // reads since the last visit of the CLOCK, or since demotion when cold; updates may be lost
+        private int hits;
+
+        private boolean deleted = false;
+
+        // hot but out of the CLOCK, as the entity could not be serialized
+        private boolean pinned = false;
+
+        private boolean isEmpty() {
+            return (entity == null) && (address < 0);
+        }
+    }
+
+    /**
+     * Sets the number of reads of a cold entity that promote it to the hot tier.
+     */
+    public void setPromotionHits(int promotionHits) {
+        if (promotionHits < 1) {
+            throw new IllegalArgumentException("Promotion hits must be at least 1");
+        }
+        this.promotionHits = promotionHits;
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    public void endTransaction() {
+        locks.releaseAll();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Optional<T> get(ID id) {
+        checkId(id);
+        Slot slot = slots.get(id);
+        if (slot == null) {
+            return Optional.empty();
+        }
+        Object entity = slot.entity;
+        if (entity != null) {
+            slot.hits++;
+            return Optional.of((T)entity);
+        }
+
+        boolean promoted = false;
+        synchronized (slot) {
+            if (slot.deleted || slot.isEmpty()) {
+                return Optional.empty();
+            }
+            entity = slot.entity;
+            if (entity == null) {
+                entity = readCold(slot);
+                coldReads.incrementAndGet();
+                if (++slot.hits >= promotionHits) {
+                    makeHot(slot, entity);
+                    promotions.incrementAndGet();
+                    promoted = true;
+                }
+            }
+        }
+        if (promoted) {
+            demoteIfFull();
+        }
+        return Optional.of((T)entity);
+    }
+
+    // the entity of the slot without counting a read, null if none
+    @SuppressWarnings("unchecked")
+    private T peek(Slot slot) {
+        Object entity = slot.entity;
+        if (entity != null) {
+            return (T)entity;
+        }
+        synchronized (slot) {
+            if (slot.deleted || slot.isEmpty()) {
+                return null;
+            }
+            entity = slot.entity;
+            return (T)((entity != null) ? entity : readCold(slot));
+        }
+    }
+
+    @Override
+    public <S extends T> S save(S entity) {
+        ID id = getId(entity);
+        locks.lockWrite(id);
+        try {
+            Slot slot = new Slot();
+            synchronized (slot) {
+                Slot existing = slots.putIfAbsent(id, slot);
+                if (existing != null) {
+                    throw new DuplicateKeyException("Entity with id " + id + " already exists");
+                }
+                makeHot(slot, entity);
+            }
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        demoteIfFull();
+        return entity;
+    }
+
+    @Override
+    public <S extends T> S saveOrUpdate(S entity) {
+        ID id = getId(entity);
+        locks.lockWrite(id);
+        try {
+            while (true) {
+                Slot slot = slots.computeIfAbsent(id, k -> new Slot());
+                synchronized (slot) {
+                    if (slot.deleted) {
+                        // deleted meanwhile, a new slot is created
+                        continue;
+                    }
+                    makeHot(slot, entity);
+                    break;
+                }
+            }
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        demoteIfFull();
+        return entity;
+    }
+
+    @Override
+    public <S extends T> S update(S entity) {
+        ID id = getId(entity);
+        locks.lockWrite(id);
+        try {
+            Slot slot = slots.get(id);
+            if (slot == null) {
+                throw new PersistenceException("Entity with id " + id + " not found");
+            }
+            synchronized (slot) {
+                if (slot.deleted || slot.isEmpty()) {
+                    throw new PersistenceException("Entity with id " + id + " not found");
+                }
+                makeHot(slot, entity);
+            }
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        demoteIfFull();
+        return entity;
+    }
+
+    @Override
+    public <S extends T> void saveCollection(Collection<S> objects) {
+        checkCollection(objects);
+        for (S entity : objects) {
+            save(entity);
+        }
+    }
+
+    @Override
+    public <S extends T> void saveOrUpdateCollection(Collection<S> objects) {
+        checkCollection(objects);
+        for (S entity : objects) {
+            saveOrUpdate(entity);
+        }
+    }
+
+    @Override
+    public void delete(ID id) {
+        checkId(id);
+        boolean inClock;
+        locks.lockWrite(id);
+        try {
+            Slot slot = slots.remove(id);
+            if (slot == null) {
+                return;
+            }
+            synchronized (slot) {
+                slot.deleted = true;
+                inClock = (slot.entity != null) && (slot.pinned == false);
+                if (slot.entity != null) {
+                    slot.entity = null;
+                    hotCount.decrementAndGet();
+                }
+                else if (slot.address >= 0) {
+                    arena.free(slot.address, slot.length);
+                    slot.address = -1;
+                }
+            }
+        }
+        finally {
+            locks.unlockWrite(id);
+        }
+        // the CLOCK drops deleted slots as it visits them, which it does not below the maximum
+        if (inClock && (deletedInClock.incrementAndGet() > Math.max(hotCount.get(), 1024))) {
+            deletedInClock.set(0);
+            hot.removeIf(s -> s.deleted);
+        }
+    }
+
+    @Override
+    public <S extends T> List<S> getAll() {
+        List<S> entities = new ArrayList<>();
+        for (Slot slot : slots.values()) {
+            S entity = cast(peek(slot));
+            if (entity != null) {
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Streams the entities, deserializing the cold ones as the stream is consumed.
+     */
+    @Override
+    public <S extends T> Stream<S> stream(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        return slots.values().stream().map(slot -> this.<S>cast(peek(slot))).filter(Objects::nonNull);
+    }
+
+    /**
+     * Selects the ids of the page in one scan of the keys, then reads only the entities of the page.
+     */
+    @Override
+    public <S extends T> Page<S> getPage(ID afterId, int pageSize, Comparator<? super ID> comparator) {
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        List<ID> ids = Page.keysAfter(slots.keySet().iterator(), afterId, pageSize + 1, comparator);
+        boolean hasNext = ids.size() > pageSize;
+        if (hasNext) {
+            ids = ids.subList(0, pageSize);
+        }
+        List<S> items = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            // skips the entities deleted since the scan
+            Slot slot = slots.get(id);
+            S entity = (slot == null) ? null : cast(peek(slot));
+            if (entity != null) {
+                items.add(entity);
+            }
+        }
+        return new Page<>(items, ids.isEmpty() ? null : ids.get(ids.size() - 1), hasNext);
+    }
+
+    /**
+     * Scans the entities, deserializing the cold ones. The value of the property is compared as a
+     * string.
+     *
+     * @throws PersistenceException if more than one entity matches
+     */
+    @Override
+    public <S extends T> S getUniqueItem(String uniqueKeyName, String uniqueKeyValue) {
+        if ((uniqueKeyName == null) || (uniqueKeyValue == null)) {
+            throw new IllegalArgumentException("Unique key name and value must not be null");
+        }
+
+        T found = null;
+        for (Slot slot : slots.values()) {
+            T entity = peek(slot);
+            if (entity == null) {
+                continue;
+            }
+            Object value = PropertyAccessor.get(entity, uniqueKeyName);
+            if ((value != null) && uniqueKeyValue.equals(value.toString())) {
+                if (found != null) {
+                    throw new PersistenceException("More than one entity with " + uniqueKeyName + " " + uniqueKeyValue);
+                }
+                found = entity;
+            }
+        }
+        return cast(found);
+    }
+
+    /**
+     * Locks the id for the calling thread until {@link #endTransaction()}, then reads the entity.
+     */
+    @Override
+    public <S extends T> S getLocked(ID id) {
+        checkId(id);
+        locks.lock(id);
+        return this.<S>cast(get(id).orElse(null));
+    }
+
+    public int getHotCount() {
+        return hotCount.get();
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    public long getPromotions() {
+        return promotions.get();
+    }
+
+    public long getDemotions() {
+        return demotions.get();
+    }
+
+    public long getColdReads() {
+        return coldReads.get();
+    }
+
+    /**
+     * @return the bytes of the cold tier in use, the serialized entities rounded up to their blocks
+     */
+    public long getColdBytes() {
+        return arena.getUsedBytes();
+    }
+
+    // under the monitor of the slot
+    private void makeHot(Slot slot, Object entity) {
+        if (slot.entity == null) {
+            if (slot.address >= 0) {
+                arena.free(slot.address, slot.length);
+                slot.address = -1;
+            }
+            hotCount.incrementAndGet();
+            hot.add(slot);
+        }
+        else if (slot.pinned) {
+            // the new entity may be serializable
+            slot.pinned = false;
+            hot.add(slot);
+        }
+        slot.hits = Math.max(slot.hits, 1);
+        slot.entity = entity;
+    }
+
+    // demotes hot entities while there are too many, unless another thread is doing it
+    private void demoteIfFull() {
+        if ((hotCount.get() <= maxHotEntities) || (demotionLock.tryLock() == false)) {
+            return;
+        }
+        try {
+            while (hotCount.get() > maxHotEntities) {
+                Slot slot = hot.poll();
+                if (slot == null) {
+                    return;
+                }
+                synchronized (slot) {
+                    if (slot.deleted || (slot.entity == null)) {
+                        continue;
+                    }
+                    if (slot.hits > 0) {
+                        // a second chance, shorter the fewer reads
+                        slot.hits >>= 1;
+                        hot.add(slot);
+                        continue;
+                    }
+                    try {
+                        writeCold(slot);
+                    }
+                    catch (RuntimeException e) {
+                        // the write that went over the maximum succeeded, the entity stays hot
+                        slot.pinned = true;
+                        log.warn("Cannot demote entity of type {}, kept in the hot tier", slot.entity.getClass().getName(), e);
+                    }
+                }
+            }
+        }
+        finally {
+            demotionLock.unlock();
+        }
+    }
+
+    // under the monitor of the slot
+    private void writeCold(Slot slot) {
+        byte[] bytes = serialize(slot.entity);
+        long address = arena.allocate(bytes.length);
+        try {
+            arena.write(address, bytes);
+        }
+        catch (RuntimeException e) {
+            arena.free(address, bytes.length);
+            throw e;
+        }
+        slot.address = address;
+        slot.length = bytes.length;
+        slot.hits = 0;
+        slot.entity = null;
+        hotCount.decrementAndGet();
+        demotions.incrementAndGet();
+    }
+
+    // under the monitor of the slot
+    private Object readCold(Slot slot) {
+        try (ObjectInputStream ois = new ContextObjectInputStream(new BufferInputStream(arena.read(slot.address, slot.length)))) {
+            return ois.readObject();
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Cannot deserialize entity", e);
+        }
+    }
+
+    private static byte[] serialize(Object entity) {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(entity);
+            oos.flush();
+            return bos.toByteArray();
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot serialize entity of type " + entity.getClass().getName(), e);
+        }
+    }
+
+    // reads a buffer without copying it to an array first
+    private static final class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (buffer.hasRemaining() == false) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    // resolves classes with the context class loader first, as in an application server
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        private ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+                catch (ClassNotFoundException e) {
+                    // fall back to the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <S extends T> S cast(T entity) {
+        return (S)entity;
+    }
+
+    private ID getId(T entity) {
+        if (entity == null) {
+            throw new IllegalArgumentException("Entity must not be null");
+        }
+        if ((entity instanceof Serializable) == false) {
+            throw new IllegalArgumentException("Entity of type " + entity.getClass().getName() + " is not Serializable");
+        }
+        ID id = idFunction.apply(entity);
+        if (id == null) {
+            throw new IllegalArgumentException("No id for entity of type " + entity.getClass().getName());
+        }
+        return id;
+    }
+
+    private static void checkId(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+    }
+
+    private static void checkCollection(Collection<?> objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            throw new IllegalArgumentException("Collection must not be null or empty");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.anode.tool.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non negative values, e.g. latencies in nanoseconds, with the log-linear
+ * buckets of an HDR histogram.
+ *
+ * <h2>Buckets</h2>
+ * Values below 32 have a bucket each. Above, every power of two is split into 32 buckets of the same
+ * width, so a value is known within 1/32, about 3%, whatever its magnitude, from nanoseconds to
+ * hours, with 1888 buckets. A value is recorded with a shift and an atomic increment, without
+ * allocation or locking.
+ *
+ * <h2>Snapshots</h2>
+ * {@link #snapshot()} copies the buckets, so the percentiles of the snapshot are computed without
+ * slowing down the recording. Values recorded during the copy may or may not be in it.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // the exponents from SUB_BUCKET_BITS to 62, plus the values below SUB_BUCKETS
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value, negative values being recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    // the smallest value of the bucket
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int mantissa = bucket % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    // the largest value of the bucket
+    static long highestValue(int bucket) {
+        return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), (total == 0) ? 0 : min.get(), max.get());
+    }
+
+    /**
+     * The values of a histogram at a point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private final long min;
+
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return (count == 0) ? 0 : (double)sum / count;
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return the largest value of the bucket of the percentile, within 1/32 of the recorded
+         *         values, 0 if there are none
+         */
+        public long getValueAtPercentile(double percentile) {
+            if ((percentile < 0) || (percentile > 100)) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, highestValue(i)));
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + (long)getMean() + " p50=" + getValueAtPercentile(50) + " p99=" + getValueAtPercentile(99) + " max=" + max;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.anode.tool.service.metrics;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+
+/**
+ * {@link CommonService} decorator recording the calls to the delegate in {@link PersistenceMetrics}.
+ *
+ * <h2>Types</h2>
+ * A call is recorded under the class it is given, or the class of the object it writes, or of the
+ * first object of a collection. The calls by id alone, {@link #delete}, {@link #getMinimalId} and
+ * {@link #incrCounter}, are recorded under {@code Object.class}.
+ *
+ * <h2>Latencies</h2>
+ * The latency of a call is measured around the delegate, so {@link #getLocked} includes the time
+ * waiting for the lock, and {@link #stream} only the time to open the stream, the objects being read
+ * as it is consumed.
+ */
+public class MetricsCommonService implements CommonService {
+
+    private final CommonService delegate;
+
+    private final PersistenceMetrics metrics;
+
+    public MetricsCommonService(CommonService delegate) {
+        this(delegate, new PersistenceMetrics());
+    }
+
+    public MetricsCommonService(CommonService delegate, PersistenceMetrics metrics) {
+        if ((delegate == null) || (metrics == null)) {
+            throw new IllegalArgumentException("Delegate and metrics must not be null");
+        }
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public PersistenceMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.saveOrUpdate(id, object);
+            failed = false;
+        }
+        finally {
+            metrics.record(Operation.SAVE_OR_UPDATE, typeOf(object), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.save(id, object);
+            failed = false;
+        }
+        finally {
+            metrics.record(Operation.SAVE, typeOf(object), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.update(id, object);
+            failed = false;
+        }
+        finally {
+            metrics.record(Operation.UPDATE, typeOf(object), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.saveCollection(objects);
+            failed = false;
+        }
+        finally {
+            metrics.recordBatch(Operation.SAVE_COLLECTION, typeOfFirst(objects), System.nanoTime() - start, failed, sizeOf(objects));
+        }
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.saveOrUpdateCollection(objects);
+            failed = false;
+        }
+        finally {
+            metrics.recordBatch(Operation.SAVE_OR_UPDATE_COLLECTION, typeOfFirst(objects), System.nanoTime() - start, failed, sizeOf(objects));
+        }
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.delete(id);
+            failed = false;
+        }
+        finally {
+            metrics.record(Operation.DELETE, null, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T object = delegate.get(objectClass, id);
+            failed = false;
+            return object;
+        }
+        finally {
+            metrics.record(Operation.GET, objectClass, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<T> objects = delegate.getAll(type);
+            failed = false;
+            return objects;
+        }
+        finally {
+            metrics.record(Operation.GET_ALL, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Stream<T> objects = delegate.stream(type, fetchSize);
+            failed = false;
+            return objects;
+        }
+        finally {
+            metrics.record(Operation.STREAM, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Page<T> page = delegate.getPage(type, afterId, pageSize, comparator);
+            failed = false;
+            return page;
+        }
+        finally {
+            metrics.record(Operation.GET_PAGE, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T object = delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+            failed = false;
+            return object;
+        }
+        finally {
+            metrics.record(Operation.GET_UNIQUE_ITEM, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T object = delegate.getLocked(objectClass, id);
+            failed = false;
+            return object;
+        }
+        finally {
+            metrics.record(Operation.GET_LOCKED, objectClass, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void endTransaction() {
+        delegate.endTransaction();
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Map<Serializable, Serializable> ids = delegate.makeClone(object, idFactory);
+            failed = false;
+            return ids;
+        }
+        finally {
+            metrics.record(Operation.MAKE_CLONE, typeOf(object), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Serializable id = delegate.getMinimalId(comparator);
+            failed = false;
+            return id;
+        }
+        finally {
+            metrics.record(Operation.GET_MINIMAL_ID, null, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long value = delegate.incrCounter(key);
+            failed = false;
+            return value;
+        }
+        finally {
+            metrics.record(Operation.INCR_COUNTER, null, System.nanoTime() - start, failed);
+        }
+    }
+
+    private static Class<?> typeOf(Object object) {
+        return (object == null) ? null : object.getClass();
+    }
+
+    static Class<?> typeOfFirst(Collection<?> objects) {
+        if (objects == null) {
+            return null;
+        }
+        Iterator<?> i = objects.iterator();
+        return i.hasNext() ? typeOf(i.next()) : null;
+    }
+
+    static int sizeOf(Collection<?> objects) {
+        return (objects == null) ? 0 : objects.size();
+    }
+}
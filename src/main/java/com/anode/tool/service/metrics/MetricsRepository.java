@@ -0,0 +1,211 @@
+package com.anode.tool.service.metrics;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import com.anode.tool.service.CommonRepository;
+import com.anode.tool.service.Page;
+
+/**
+ * {@link CommonRepository} decorator recording the calls to the delegate in
+ * {@link PersistenceMetrics}, under the entity type of the repository, as
+ * {@link MetricsCommonService} does.
+ */
+public class MetricsRepository<T, ID extends Serializable> implements CommonRepository<T, ID> {
+
+    private final CommonRepository<T, ID> delegate;
+
+    private final Class<T> type;
+
+    private final PersistenceMetrics metrics;
+
+    public MetricsRepository(CommonRepository<T, ID> delegate, Class<T> type) {
+        this(delegate, type, new PersistenceMetrics());
+    }
+
+    /**
+     * @param type    the entity type the calls are recorded under
+     * @param metrics the metrics, which may be shared with other decorators
+     */
+    public MetricsRepository(CommonRepository<T, ID> delegate, Class<T> type, PersistenceMetrics metrics) {
+        if ((delegate == null) || (type == null) || (metrics == null)) {
+            throw new IllegalArgumentException("Delegate, type and metrics must not be null");
+        }
+        this.delegate = delegate;
+        this.type = type;
+        this.metrics = metrics;
+    }
+
+    public PersistenceMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public Optional<T> get(ID id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Optional<T> entity = delegate.get(id);
+            failed = false;
+            return entity;
+        }
+        finally {
+            metrics.record(Operation.GET, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> S save(S entity) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S saved = delegate.save(entity);
+            failed = false;
+            return saved;
+        }
+        finally {
+            metrics.record(Operation.SAVE, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> S saveOrUpdate(S entity) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S saved = delegate.saveOrUpdate(entity);
+            failed = false;
+            return saved;
+        }
+        finally {
+            metrics.record(Operation.SAVE_OR_UPDATE, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> S update(S entity) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S updated = delegate.update(entity);
+            failed = false;
+            return updated;
+        }
+        finally {
+            metrics.record(Operation.UPDATE, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> void saveCollection(Collection<S> objects) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.saveCollection(objects);
+            failed = false;
+        }
+        finally {
+            metrics.recordBatch(Operation.SAVE_COLLECTION, type, System.nanoTime() - start, failed, MetricsCommonService.sizeOf(objects));
+        }
+    }
+
+    @Override
+    public <S extends T> void saveOrUpdateCollection(Collection<S> objects) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.saveOrUpdateCollection(objects);
+            failed = false;
+        }
+        finally {
+            metrics.recordBatch(Operation.SAVE_OR_UPDATE_COLLECTION, type, System.nanoTime() - start, failed, MetricsCommonService.sizeOf(objects));
+        }
+    }
+
+    @Override
+    public void delete(ID id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.delete(id);
+            failed = false;
+        }
+        finally {
+            metrics.record(Operation.DELETE, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> List<S> getAll() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<S> entities = delegate.getAll();
+            failed = false;
+            return entities;
+        }
+        finally {
+            metrics.record(Operation.GET_ALL, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> Stream<S> stream(int fetchSize) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Stream<S> entities = delegate.stream(fetchSize);
+            failed = false;
+            return entities;
+        }
+        finally {
+            metrics.record(Operation.STREAM, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> Page<S> getPage(ID afterId, int pageSize, Comparator<? super ID> comparator) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Page<S> page = delegate.getPage(afterId, pageSize, comparator);
+            failed = false;
+            return page;
+        }
+        finally {
+            metrics.record(Operation.GET_PAGE, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> S getUniqueItem(String uniqueKeyName, String uniqueKeyValue) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S entity = delegate.getUniqueItem(uniqueKeyName, uniqueKeyValue);
+            failed = false;
+            return entity;
+        }
+        finally {
+            metrics.record(Operation.GET_UNIQUE_ITEM, type, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <S extends T> S getLocked(ID id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S entity = delegate.getLocked(id);
+            failed = false;
+            return entity;
+        }
+        finally {
+            metrics.record(Operation.GET_LOCKED, type, System.nanoTime() - start, failed);
+        }
+    }
+}
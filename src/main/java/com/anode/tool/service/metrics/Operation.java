@@ -0,0 +1,31 @@
+package com.anode.tool.service.metrics;
+
+/**
+ * The calls of {@link com.anode.tool.service.CommonService} and
+ * {@link com.anode.tool.service.CommonRepository} measured by {@link PersistenceMetrics}.
+ */
+public enum Operation {
+
+    GET,
+    GET_ALL,
+    STREAM,
+    GET_PAGE,
+    GET_UNIQUE_ITEM,
+    GET_LOCKED,
+    SAVE,
+    SAVE_OR_UPDATE,
+    UPDATE,
+    SAVE_COLLECTION,
+    SAVE_OR_UPDATE_COLLECTION,
+    DELETE,
+    MAKE_CLONE,
+    GET_MINIMAL_ID,
+    INCR_COUNTER;
+
+    /**
+     * @return true for the collection writes, whose batch sizes are recorded
+     */
+    public boolean isBatch() {
+        return (this == SAVE_COLLECTION) || (this == SAVE_OR_UPDATE_COLLECTION);
+    }
+}
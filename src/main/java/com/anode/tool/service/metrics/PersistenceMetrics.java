@@ -0,0 +1,178 @@
+package com.anode.tool.service.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counts, errors and latencies of persistence calls, per {@link Operation} and type of object,
+ * recorded by {@link MetricsCommonService} and {@link MetricsRepository}, which may share an
+ * instance.
+ *
+ * <h2>Overhead</h2>
+ * Recording a call costs a map lookup by type, a few {@link LongAdder} increments and a histogram
+ * increment, without allocation or locking, on top of the two {@link System#nanoTime()} calls of
+ * the decorator.
+ *
+ * <h2>Snapshots</h2>
+ * Nothing is pushed anywhere: {@link #snapshot()} returns the metrics so far of every operation and
+ * type that was called, e.g. for a periodic export or a diagnostic endpoint. The metrics are never
+ * reset, the rates are the differences between two snapshots.
+ */
+public class PersistenceMetrics {
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    // type -> metrics by operation ordinal, created on first call
+    private final ConcurrentHashMap<Class<?>, OperationMetrics[]> metrics = new ConcurrentHashMap<>();
+
+    private static final class OperationMetrics {
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        // for the batch operations only
+        private final LatencyHistogram batchSizes;
+
+        private OperationMetrics(Operation operation) {
+            this.batchSizes = operation.isBatch() ? new LatencyHistogram() : null;
+        }
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param type         the type of the objects of the call, null if unknown
+     * @param elapsedNanos the duration of the call
+     * @param failed       true if the call threw an exception
+     */
+    public void record(Operation operation, Class<?> type, long elapsedNanos, boolean failed) {
+        OperationMetrics m = get(operation, type);
+        m.latencies.record(elapsedNanos);
+        if (failed) {
+            m.errors.increment();
+        }
+    }
+
+    /**
+     * Records a batch call with its number of objects.
+     */
+    public void recordBatch(Operation operation, Class<?> type, long elapsedNanos, boolean failed, int size) {
+        OperationMetrics m = get(operation, type);
+        m.latencies.record(elapsedNanos);
+        if (failed) {
+            m.errors.increment();
+        }
+        if (m.batchSizes != null) {
+            m.batchSizes.record(size);
+        }
+    }
+
+    private OperationMetrics get(Operation operation, Class<?> type) {
+        if (type == null) {
+            type = Object.class;
+        }
+        OperationMetrics[] byOperation = metrics.get(type);
+        if (byOperation == null) {
+            byOperation = metrics.computeIfAbsent(type, k -> new OperationMetrics[OPERATIONS.length]);
+        }
+        OperationMetrics m = byOperation[operation.ordinal()];
+        if (m == null) {
+            synchronized (byOperation) {
+                m = byOperation[operation.ordinal()];
+                if (m == null) {
+                    m = new OperationMetrics(operation);
+                    byOperation[operation.ordinal()] = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the metrics of the operations and types called so far
+     */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<Class<?>, OperationMetrics[]> entry : metrics.entrySet()) {
+            OperationMetrics[] byOperation = entry.getValue();
+            for (Operation operation : OPERATIONS) {
+                OperationMetrics m;
+                synchronized (byOperation) {
+                    m = byOperation[operation.ordinal()];
+                }
+                if (m != null) {
+                    snapshots.add(new Snapshot(operation, entry.getKey(), m.errors.sum(), m.latencies.snapshot(), (m.batchSizes == null) ? null : m.batchSizes.snapshot()));
+                }
+            }
+        }
+        return Collections.unmodifiableList(snapshots);
+    }
+
+    /**
+     * The metrics of an operation on a type at a point in time.
+     */
+    public static final class Snapshot {
+
+        private final Operation operation;
+
+        private final Class<?> type;
+
+        private final long errors;
+
+        private final LatencyHistogram.Snapshot latencies;
+
+        private final LatencyHistogram.Snapshot batchSizes;
+
+        private Snapshot(Operation operation, Class<?> type, long errors, LatencyHistogram.Snapshot latencies, LatencyHistogram.Snapshot batchSizes) {
+            this.operation = operation;
+            this.type = type;
+            this.errors = errors;
+            this.latencies = latencies;
+            this.batchSizes = batchSizes;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the type of the objects, {@code Object.class} if unknown, e.g. for a delete by id
+         */
+        public Class<?> getType() {
+            return type;
+        }
+
+        public long getCalls() {
+            return latencies.getCount();
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the durations of the calls in nanoseconds, including the lock wait of
+         *         {@link Operation#GET_LOCKED}
+         */
+        public LatencyHistogram.Snapshot getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * @return the numbers of objects of the calls of a batch operation, null for the others
+         */
+        public LatencyHistogram.Snapshot getBatchSizes() {
+            return batchSizes;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + type.getSimpleName() + " errors=" + errors + " latency[" + latencies + "]" + ((batchSizes == null) ? "" : " batch[" + batchSizes + "]");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.anode.tool.service.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable consistent hash ring mapping keys to shards, each shard owning {@code virtualNodes}
+ * points of the ring.
+ *
+ * <p>A key belongs to the shard of the first point at or after the hash of the key. Adding a shard
+ * only moves to it the keys falling just before its points, about {@code 1/n} of the keys, and no key
+ * moves between the other shards. The virtual nodes spread the keys of a shard over the ring, so
+ * that the shards get about the same number of keys.
+ *
+ * <p>The points depend only on the names of the shards, and a key is hashed from its
+ * {@link Object#hashCode()}, so that the same keys go to the same shards from one run to the next as
+ * long as their hash codes are stable, as those of strings and numbers are.
+ */
+public class ConsistentHashRing {
+
+    private final List<String> shards;
+
+    private final int virtualNodes;
+
+    // the points of the ring, sorted, and the index of the shard of each
+    private final long[] points;
+
+    private final int[] owners;
+
+    /**
+     * @param shards       the names of the shards, whose indexes are returned by {@link #shardOf}
+     * @param virtualNodes the number of points of each shard
+     */
+    public ConsistentHashRing(List<String> shards, int virtualNodes) {
+        if ((shards == null) || shards.isEmpty()) {
+            throw new IllegalArgumentException("Shards must not be null or empty");
+        }
+        if (shards.size() > 0xffff) {
+            throw new IllegalArgumentException("At most 65535 shards");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes must be at least 1");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.virtualNodes = virtualNodes;
+
+        int n = shards.size() * virtualNodes;
+        long[] keys = new long[n];
+        for (int shard = 0, i = 0; shard < shards.size(); shard++) {
+            long seed = (long)shards.get(shard).hashCode() << 32;
+            for (int node = 0; node < virtualNodes; node++, i++) {
+                // the index of the shard in the low bits, to find it back after sorting
+                keys[i] = (mix(seed | node) & ~0xffffL) | shard;
+            }
+        }
+        Arrays.sort(keys);
+        this.points = keys;
+        this.owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            owners[i] = (int)(keys[i] & 0xffffL);
+        }
+    }
+
+    /**
+     * @return a ring with one more shard, with the same virtual nodes
+     */
+    public ConsistentHashRing withShard(String shard) {
+        if (shards.contains(shard)) {
+            throw new IllegalArgumentException("Shard " + shard + " already exists");
+        }
+        List<String> names = new ArrayList<>(shards);
+        names.add(shard);
+        return new ConsistentHashRing(names, virtualNodes);
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * @return the index of the shard of the key in {@link #getShards()}
+     */
+    public int shardOf(Object key) {
+        long hash = mix(key.hashCode());
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        // past the last point, the ring wraps around to the first one
+        return owners[(i == points.length) ? 0 : i];
+    }
+
+    // the finalizer of MurmurHash3, spreading close values over the ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,760 @@
+package com.anode.tool.service.shard;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.async.AsyncCommonServiceAdapter;
+import com.anode.tool.service.clone.GraphCloner;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link CommonService} spreading the objects over several delegate services, the shards, by
+ * consistent hashing of their ids, see {@link ConsistentHashRing}.
+ *
+ * <h2>Routing</h2>
+ * The calls by id go to the shard of the id. An object saved without an id is routed by its
+ * {@link Persistable#getId()}, which must be set. The calls over all the objects, {@link #getAll},
+ * {@link #getPage}, {@link #getUniqueItem}, {@link #getMinimalId}, run on all the shards in parallel
+ * on the executor and their results are merged; {@link #stream} concatenates the streams of the
+ * shards. The collection writes are split by shard and run in parallel. The counters all live on the
+ * first shard, so that they are not reset when a shard is added.
+ *
+ * <h2>Adding a shard</h2>
+ * {@link #addShard} routes the ids of the new shard to it right away, and {@link #migrate} then moves
+ * their objects from the other shards, {@code batchSize} at a time, only about {@code 1/n} of the
+ * objects moving. Until the migration is over, an id not yet moved is read from its previous shard,
+ * and a write of it moves it. The migration needs the ids of the objects, so they must be
+ * {@link Persistable}. While it runs, an object being moved may be seen twice by {@link #getAll} and
+ * {@link #stream}.
+ *
+ * <h2>Locking</h2>
+ * {@link #getLocked} locks the id on its shard, and {@link #endTransaction()} ends the transactions
+ * of all the shards.
+ */
+@Slf4j
+public class ShardedCommonService implements CommonService, Closeable {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final int STRIPES = 64;
+
+    private final ExecutorService executor;
+
+    private final boolean ownsExecutor;
+
+    private volatile Topology topology;
+
+    // held by the writes of an id and the move of its object while migrating
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final Object migrationLock = new Object();
+
+    // held shared by the writes, so that no write of the topology before a shard is added is still
+    // running when its migration starts
+    private final ReentrantReadWriteLock topologyLock = new ReentrantReadWriteLock();
+
+    // the shards and their rings, replaced as a whole when a shard is added
+    private static final class Topology {
+
+        private final List<CommonService> shards;
+
+        private final ConsistentHashRing ring;
+
+        // the ring before the shard being migrated to was added, null if no migration is running
+        private final ConsistentHashRing previous;
+
+        private Topology(List<CommonService> shards, ConsistentHashRing ring, ConsistentHashRing previous) {
+            this.shards = shards;
+            this.ring = ring;
+            this.previous = previous;
+        }
+
+        private CommonService shardOf(Serializable id) {
+            return shards.get(ring.shardOf(id));
+        }
+
+        // the shard the id is still on if it was not migrated yet, null if it does not move
+        private CommonService previousShardOf(Serializable id) {
+            if (previous == null) {
+                return null;
+            }
+            int from = previous.shardOf(id);
+            return (from == ring.shardOf(id)) ? null : shards.get(from);
+        }
+    }
+
+    /**
+     * Runs the calls over all the shards on virtual threads, or on a pool of platform threads before
+     * Java 21.
+     *
+     * @param shards the services by name, the first one holding the counters
+     */
+    public ShardedCommonService(Map<String, ? extends CommonService> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES, AsyncCommonServiceAdapter.newVirtualThreadExecutor(), true);
+    }
+
+    /**
+     * @param shards       the services by name, the first one holding the counters
+     * @param virtualNodes the number of points of each shard on the ring
+     * @param executor     the executor of the calls over all the shards, not shut down on
+     *                     {@link #close()}
+     */
+    public ShardedCommonService(Map<String, ? extends CommonService> shards, int virtualNodes, ExecutorService executor) {
+        this(shards, virtualNodes, executor, false);
+    }
+
+    private ShardedCommonService(Map<String, ? extends CommonService> shards, int virtualNodes, ExecutorService executor, boolean ownsExecutor) {
+        if ((shards == null) || shards.isEmpty() || shards.containsValue(null)) {
+            throw new IllegalArgumentException("Shards must not be null or empty");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.topology = new Topology(new ArrayList<>(shards.values()), new ConsistentHashRing(new ArrayList<>(shards.keySet()), virtualNodes), null);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the shards by name, in the order they were added
+     */
+    public Map<String, CommonService> getShards() {
+        Topology t = topology;
+        Map<String, CommonService> shards = new LinkedHashMap<>();
+        for (int i = 0; i < t.shards.size(); i++) {
+            shards.put(t.ring.getShards().get(i), t.shards.get(i));
+        }
+        return shards;
+    }
+
+    /**
+     * @return the name of the shard of the id
+     */
+    public String getShardName(Serializable id) {
+        checkId(id);
+        Topology t = topology;
+        return t.ring.getShards().get(t.ring.shardOf(id));
+    }
+
+    public boolean isMigrating() {
+        return topology.previous != null;
+    }
+
+    /**
+     * Adds a shard, to which the objects of its ids are moved by {@link #migrate}. A single shard can
+     * be migrated at a time.
+     *
+     * @throws PersistenceException if the migration to the previous shard is not over
+     */
+    public void addShard(String name, CommonService shard) {
+        if ((name == null) || (shard == null)) {
+            throw new IllegalArgumentException("Name and shard must not be null");
+        }
+        synchronized (migrationLock) {
+            Topology t = topology;
+            if (t.previous != null) {
+                throw new PersistenceException("Cannot add shard " + name + " before the migration to shard " + t.ring.getShards().get(t.shards.size() - 1) + " is over");
+            }
+            List<CommonService> shards = new ArrayList<>(t.shards);
+            shards.add(shard);
+            Topology added = new Topology(shards, t.ring.withShard(name), t.ring);
+            topologyLock.writeLock().lock();
+            try {
+                topology = added;
+            }
+            finally {
+                topologyLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the objects of the ids of the added shard from the other shards, reading them
+     * {@code batchSize} at a time, while the service is in use. Does nothing if no shard was added.
+     *
+     * <p>The previous ring is only dropped once the other shards are scanned again and hold no object
+     * of the added shard, so that no object is left where it cannot be read.
+     *
+     * @return the number of objects moved
+     * @throws PersistenceException if an object to move is not {@link Persistable}, or if objects could
+     *                              not be moved, the migration can be run again once the cause is
+     *                              removed
+     */
+    public long migrate(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        synchronized (migrationLock) {
+            Topology t = topology;
+            if (t.previous == null) {
+                return 0;
+            }
+
+            int target = t.shards.size() - 1;
+            CommonService to = t.shards.get(target);
+            long moved = 0;
+            for (int source = 0; source < target; source++) {
+                CommonService from = t.shards.get(source);
+                List<Persistable> batch = new ArrayList<>(batchSize);
+                try (Stream<Object> objects = from.stream(Object.class, batchSize)) {
+                    Iterator<Object> i = objects.iterator();
+                    while (i.hasNext()) {
+                        Persistable p = toMove(i.next(), t.ring, target);
+                        if (p != null) {
+                            batch.add(p);
+                        }
+                        if (batch.size() == batchSize) {
+                            moved += move(batch, from, to);
+                            batch.clear();
+                        }
+                    }
+                }
+                moved += move(batch, from, to);
+            }
+
+            // the writes of the ids of the added shard no longer leave them on the other shards
+            long left = 0;
+            for (int source = 0; source < target; source++) {
+                try (Stream<Object> objects = t.shards.get(source).stream(Object.class, batchSize)) {
+                    left += objects.filter(object -> toMove(object, t.ring, target) != null).count();
+                }
+            }
+            String name = t.ring.getShards().get(target);
+            if (left > 0) {
+                throw new PersistenceException(left + " objects of shard " + name + " could not be moved from the other shards, " + moved + " were");
+            }
+
+            topology = new Topology(t.shards, t.ring, null);
+            log.info("Migrated {} objects to shard {}", moved, name);
+            return moved;
+        }
+    }
+
+    // the object if it is to be moved to the target shard, null otherwise
+    private static Persistable toMove(Object object, ConsistentHashRing ring, int target) {
+        if ((object instanceof Persistable) == false) {
+            throw new PersistenceException("Cannot migrate object of type " + object.getClass().getName() + " that is not Persistable");
+        }
+        Persistable p = (Persistable)object;
+        return ((p.getId() != null) && (ring.shardOf(p.getId()) == target)) ? p : null;
+    }
+
+    // copies the objects still on the shard they are moved from, unless written since, then deletes them
+    private long move(List<Persistable> objects, CommonService from, CommonService to) {
+        long moved = 0;
+        for (Persistable object : objects) {
+            Serializable id = object.getId();
+            synchronized (stripe(id)) {
+                Object current = from.get(Object.class, id);
+                if (current == null) {
+                    continue;
+                }
+                if (to.get(Object.class, id) == null) {
+                    to.save(id, current);
+                    moved++;
+                }
+                from.delete(id);
+            }
+        }
+        return moved;
+    }
+
+    private Object stripe(Serializable id) {
+        return stripes[(id.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        topologyLock.readLock().lock();
+        try {
+            doSaveOrUpdate(id, object);
+        }
+        finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    private void doSaveOrUpdate(Serializable id, Object object) {
+        checkObject(object);
+        id = getId(id, object);
+        Topology t = topology;
+        CommonService from = t.previousShardOf(id);
+        if (from == null) {
+            t.shardOf(id).saveOrUpdate(id, object);
+            return;
+        }
+
+        synchronized (stripe(id)) {
+            t.shardOf(id).saveOrUpdate(id, object);
+            from.delete(id);
+        }
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        topologyLock.readLock().lock();
+        try {
+            doSave(id, object);
+        }
+        finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    private void doSave(Serializable id, Object object) {
+        checkObject(object);
+        id = getId(id, object);
+        Topology t = topology;
+        CommonService from = t.previousShardOf(id);
+        if (from == null) {
+            t.shardOf(id).save(id, object);
+            return;
+        }
+
+        synchronized (stripe(id)) {
+            if (from.get(Object.class, id) != null) {
+                throw new DuplicateKeyException("Object of type " + object.getClass().getName() + " with id " + id + " already exists");
+            }
+            t.shardOf(id).save(id, object);
+        }
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        topologyLock.readLock().lock();
+        try {
+            doUpdate(id, object);
+        }
+        finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    private void doUpdate(Serializable id, Object object) {
+        checkId(id);
+        checkObject(object);
+        Topology t = topology;
+        CommonService from = t.previousShardOf(id);
+        if (from == null) {
+            t.shardOf(id).update(id, object);
+            return;
+        }
+
+        synchronized (stripe(id)) {
+            if (from.get(Object.class, id) == null) {
+                t.shardOf(id).update(id, object);
+            }
+            else {
+                // moves the object
+                t.shardOf(id).saveOrUpdate(id, object);
+                from.delete(id);
+            }
+        }
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        checkCollection(objects);
+        writeAll(objects, CommonService::saveCollection, this::doSave);
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        checkCollection(objects);
+        writeAll(objects, CommonService::saveOrUpdateCollection, this::doSaveOrUpdate);
+    }
+
+    private interface CollectionWrite {
+
+        void write(CommonService shard, Collection objects);
+    }
+
+    private interface Write {
+
+        void write(Serializable id, Object object);
+    }
+
+    // writes the objects of each shard in parallel, or one by one while migrating
+    private void writeAll(Collection<?> objects, CollectionWrite shardWrite, Write write) {
+        topologyLock.readLock().lock();
+        try {
+            doWriteAll(objects, shardWrite, write);
+        }
+        finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    private void doWriteAll(Collection<?> objects, CollectionWrite shardWrite, Write write) {
+        Topology t = topology;
+        if (t.previous != null) {
+            for (Object object : objects) {
+                write.write(null, object);
+            }
+            return;
+        }
+
+        Map<CommonService, List<Object>> byShard = new LinkedHashMap<>();
+        for (Object object : objects) {
+            checkObject(object);
+            byShard.computeIfAbsent(t.shardOf(getId(null, object)), k -> new ArrayList<>()).add(object);
+        }
+        if (byShard.size() == 1) {
+            Map.Entry<CommonService, List<Object>> entry = byShard.entrySet().iterator().next();
+            shardWrite.write(entry.getKey(), entry.getValue());
+            return;
+        }
+
+        List<Future<Object>> futures = new ArrayList<>();
+        for (Map.Entry<CommonService, List<Object>> entry : byShard.entrySet()) {
+            futures.add(executor.submit(() -> {
+                shardWrite.write(entry.getKey(), entry.getValue());
+                return null;
+            }));
+        }
+        await(futures);
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        topologyLock.readLock().lock();
+        try {
+            doDelete(id);
+        }
+        finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    private void doDelete(Serializable id) {
+        checkId(id);
+        Topology t = topology;
+        CommonService from = t.previousShardOf(id);
+        if (from == null) {
+            t.shardOf(id).delete(id);
+            return;
+        }
+
+        synchronized (stripe(id)) {
+            t.shardOf(id).delete(id);
+            from.delete(id);
+        }
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        checkClass(objectClass);
+        checkId(id);
+        while (true) {
+            Topology t = topology;
+            CommonService shard = t.shardOf(id);
+            T object = shard.get(objectClass, id);
+            if (object == null) {
+                CommonService from = t.previousShardOf(id);
+                if (from != null) {
+                    object = getMoving(objectClass, id, shard, from);
+                }
+            }
+            // a miss is read again if a migration was started meanwhile, the object may have left both shards
+            if ((object != null) || (topology == t)) {
+                return object;
+            }
+        }
+    }
+
+    /*
+     * Reads an id not found on its shard from its previous shard, then from its shard again, as it may
+     * have been moved in between: the moves write the shard of the id before deleting from the previous
+     * one
+     */
+    private static <T> T getMoving(Class<T> objectClass, Serializable id, CommonService shard, CommonService from) {
+        T object = from.get(objectClass, id);
+        return (object != null) ? object : shard.get(objectClass, id);
+    }
+
+    /**
+     * Locks the id on its shard. While migrating, an id not moved yet is read from its previous
+     * shard.
+     */
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        checkClass(objectClass);
+        checkId(id);
+        while (true) {
+            Topology t = topology;
+            CommonService shard = t.shardOf(id);
+            T object = shard.getLocked(objectClass, id);
+            if (object == null) {
+                CommonService from = t.previousShardOf(id);
+                if (from != null) {
+                    object = getMoving(objectClass, id, shard, from);
+                }
+            }
+            if ((object != null) || (topology == t)) {
+                return object;
+            }
+        }
+    }
+
+    /**
+     * Ends the transactions of all the shards, those the calling thread did not lock included.
+     */
+    @Override
+    public void endTransaction() {
+        for (CommonService shard : topology.shards) {
+            shard.endTransaction();
+        }
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        checkClass(type);
+        List<T> objects = new ArrayList<>();
+        for (List<T> shardObjects : fanOut(shard -> shard.getAll(type))) {
+            objects.addAll(shardObjects);
+        }
+        return objects;
+    }
+
+    /**
+     * Concatenates the streams of the shards, opened as they are reached. A parallel stream splits
+     * the shards between threads.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        checkClass(type);
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        return topology.shards.stream().flatMap(shard -> shard.stream(type, fetchSize));
+    }
+
+    /**
+     * Reads a page from every shard and merges them by the ids of the objects, which must be
+     * {@link Persistable}.
+     */
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        checkClass(type);
+        if ((pageSize < 1) || (comparator == null)) {
+            throw new IllegalArgumentException("Page size must be at least 1 and comparator must not be null");
+        }
+
+        List<Page<T>> pages = fanOut(shard -> shard.getPage(type, afterId, pageSize, comparator));
+        boolean hasNext = false;
+        Map<Serializable, T> objects = new HashMap<>();
+        for (Page<T> page : pages) {
+            hasNext |= page.hasNext();
+            for (T object : page.getItems()) {
+                if ((object instanceof Persistable) == false) {
+                    throw new PersistenceException("Cannot page objects of type " + object.getClass().getName() + " that are not Persistable");
+                }
+                objects.putIfAbsent(((Persistable)object).getId(), object);
+            }
+        }
+
+        List<Serializable> ids = objects.keySet().stream().sorted(comparator).collect(Collectors.toList());
+        if (ids.size() > pageSize) {
+            hasNext = true;
+            ids = ids.subList(0, pageSize);
+        }
+        List<T> items = new ArrayList<>(ids.size());
+        for (Serializable id : ids) {
+            items.add(objects.get(id));
+        }
+        return new Page<>(items, ids.isEmpty() ? null : ids.get(ids.size() - 1), hasNext);
+    }
+
+    /**
+     * @throws PersistenceException if objects of more than one shard match
+     */
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        checkClass(type);
+        if ((uniqueKeyName == null) || (uniqueKeyValue == null)) {
+            throw new IllegalArgumentException("Unique key name and value must not be null");
+        }
+
+        T found = null;
+        for (T object : fanOut(shard -> shard.getUniqueItem(type, uniqueKeyName, uniqueKeyValue))) {
+            if (object == null) {
+                continue;
+            }
+            // the same object on two shards while it is migrated
+            if ((found != null) && (isSameId(found, object) == false)) {
+                throw new PersistenceException("More than one object of type " + type.getName() + " with " + uniqueKeyName + " " + uniqueKeyValue);
+            }
+            found = object;
+        }
+        return found;
+    }
+
+    private static boolean isSameId(Object o1, Object o2) {
+        return (o1 instanceof Persistable) && (o2 instanceof Persistable) && (((Persistable)o1).getId() != null) && ((Persistable)o1).getId().equals(((Persistable)o2).getId());
+    }
+
+    /**
+     * Copies the object graph with a {@link GraphCloner} and saves the copies, each on the shard of
+     * its new id.
+     */
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        checkObject(object);
+        if (idFactory == null) {
+            throw new IllegalArgumentException("Id factory must not be null");
+        }
+
+        Map<Serializable, Serializable> ids = new HashMap<>();
+        List<Persistable> clones = GraphCloner.cloneGraph(object, idFactory, ids);
+        if (clones.isEmpty() == false) {
+            saveOrUpdateCollection(clones);
+        }
+        return ids;
+    }
+
+    /**
+     * Merges the minimal ids of the shards.
+     */
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        if (comparator == null) {
+            throw new IllegalArgumentException("Comparator must not be null");
+        }
+
+        Serializable min = null;
+        for (Serializable id : fanOut(shard -> shard.getMinimalId(comparator))) {
+            if ((id != null) && ((min == null) || (comparator.compare(id, min) < 0))) {
+                min = id;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Increments the counter on the first shard.
+     */
+    @Override
+    public long incrCounter(String key) {
+        return topology.shards.get(0).incrCounter(key);
+    }
+
+    // runs the call on all the shards in parallel, the results in the order of the shards
+    private <R> List<R> fanOut(Function<CommonService, R> call) {
+        List<CommonService> shards = topology.shards;
+        if (shards.size() == 1) {
+            List<R> results = new ArrayList<>(1);
+            results.add(call.apply(shards.get(0)));
+            return results;
+        }
+
+        List<Future<R>> futures = new ArrayList<>(shards.size());
+        for (CommonService shard : shards) {
+            futures.add(executor.submit(() -> call.apply(shard)));
+        }
+        return await(futures);
+    }
+
+    private static <R> List<R> await(List<Future<R>> futures) {
+        List<R> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for the shards");
+        }
+        catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new PersistenceException("Shard call failed", cause);
+        }
+    }
+
+    /**
+     * Shuts the executor down if it was created by the service. The shards are not closed.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES) == false) {
+                    log.warn("Shard calls still running after close");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Serializable getId(Serializable id, Object object) {
+        if ((id == null) && (object instanceof Persistable)) {
+            id = ((Persistable)object).getId();
+        }
+        if (id == null) {
+            throw new IllegalArgumentException("No id to route object of type " + object.getClass().getName());
+        }
+        return id;
+    }
+
+    private static void checkId(Serializable id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null");
+        }
+    }
+
+    private static void checkObject(Object object) {
+        if (object == null) {
+            throw new IllegalArgumentException("Object must not be null");
+        }
+    }
+
+    private static void checkClass(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("Class must not be null");
+        }
+    }
+
+    private static void checkCollection(Collection objects) {
+        if ((objects == null) || objects.isEmpty()) {
+            throw new IllegalArgumentException("Collection must not be null or empty");
+        }
+    }
+}
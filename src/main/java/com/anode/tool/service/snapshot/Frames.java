@@ -0,0 +1,178 @@
+package com.anode.tool.service.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+import com.anode.tool.service.PersistenceException;
+
+/**
+ * The frames of the redo logs and snapshot files: the length of the body, its CRC32C checksum and
+ * the body, and the records of the redo logs.
+ */
+final class Frames {
+
+    static final int HEADER_BYTES = 8;
+
+    // returned by read for a frame cut short or whose checksum does not match
+    static final byte[] TORN = new byte[0];
+
+    static final byte PUT = 1;
+
+    static final byte DELETE = 2;
+
+    static final byte COUNTER = 3;
+
+    private Frames() {
+    }
+
+    // a redo log record
+    static final class Record {
+
+        byte type;
+
+        Serializable id;
+
+        Object object;
+
+        String key;
+
+        long value;
+    }
+
+    /**
+     * @return a stream to write the body of a frame to, after room for its header
+     */
+    static ByteArrayOutputStream newFrame(int size) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_BYTES + size);
+        bos.write(new byte[HEADER_BYTES], 0, HEADER_BYTES);
+        return bos;
+    }
+
+    /**
+     * @return the frame of the stream, with its header
+     */
+    static byte[] seal(ByteArrayOutputStream bos) {
+        byte[] frame = bos.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(frame, HEADER_BYTES, frame.length - HEADER_BYTES);
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        header.putInt(0, frame.length - HEADER_BYTES);
+        header.putInt(4, (int)crc.getValue());
+        return frame;
+    }
+
+    /**
+     * @return the body of the next frame, null at the end of the stream, {@link #TORN} if the frame is
+     *         cut short or corrupt
+     */
+    static byte[] read(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        int n = in.readNBytes(header, 0, HEADER_BYTES);
+        if (n == 0) {
+            return null;
+        }
+        if (n < HEADER_BYTES) {
+            return TORN;
+        }
+        int length = ByteBuffer.wrap(header).getInt(0);
+        if (length < 1) {
+            return TORN;
+        }
+        // read in chunks, so a corrupt length does not allocate it all
+        byte[] body = in.readNBytes(length);
+        if (body.length < length) {
+            return TORN;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return ((int)crc.getValue() == ByteBuffer.wrap(header).getInt(4)) ? body : TORN;
+    }
+
+    static byte[] encodePut(Serializable id, Object object) {
+        return encode(PUT, id, object, null, 0);
+    }
+
+    static byte[] encodeDelete(Serializable id) {
+        return encode(DELETE, id, null, null, 0);
+    }
+
+    static byte[] encodeCounter(String key, long value) {
+        return encode(COUNTER, null, null, key, value);
+    }
+
+    private static byte[] encode(byte type, Serializable id, Object object, String key, long value) {
+        ByteArrayOutputStream bos = newFrame(256);
+        bos.write(type);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            if (type == COUNTER) {
+                oos.writeUTF(key);
+                oos.writeLong(value);
+            }
+            else {
+                oos.writeObject(id);
+                if (type == PUT) {
+                    oos.writeObject(object);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot serialize object of type " + ((object == null) ? id : object).getClass().getName(), e);
+        }
+        return seal(bos);
+    }
+
+    static Record decode(byte[] body) {
+        Record record = new Record();
+        record.type = body[0];
+        try (ObjectInputStream ois = newObjectInputStream(body, 1)) {
+            if (record.type == COUNTER) {
+                record.key = ois.readUTF();
+                record.value = ois.readLong();
+            }
+            else {
+                record.id = (Serializable)ois.readObject();
+                if (record.type == PUT) {
+                    record.object = ois.readObject();
+                }
+            }
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new PersistenceException("Cannot decode redo log record", e);
+        }
+        return record;
+    }
+
+    static ObjectInputStream newObjectInputStream(byte[] body, int offset) throws IOException {
+        return new ContextObjectInputStream(new ByteArrayInputStream(body, offset, body.length - offset));
+    }
+
+    // resolves classes with the context class loader first, as in an application server
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        private ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+                catch (ClassNotFoundException e) {
+                    // fall back to the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
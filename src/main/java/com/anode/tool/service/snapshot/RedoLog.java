@@ -0,0 +1,123 @@
+package com.anode.tool.service.snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The redo log files, appended to in turn: a new file is started at every snapshot, which holds the
+ * records of the writes from the start of the snapshot.
+ *
+ * <p>A thread interrupted while appending closes the channel for all the threads, so the channel is
+ * reopened, the part of the record written is cut off, and the interrupted thread gets an
+ * {@link InterruptedIOException}.
+ */
+final class RedoLog implements Closeable {
+
+    private static final String PREFIX = "redo-";
+
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+
+    // under the monitor of the log
+    private int id;
+
+    private FileChannel channel;
+
+    private long size = 0;
+
+    private RedoLog(Path directory, int id, FileChannel channel) {
+        this.directory = directory;
+        this.id = id;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates the file of the id, which must not exist.
+     */
+    static RedoLog create(Path directory, int id) throws IOException {
+        return new RedoLog(directory, id, FileChannel.open(directory.resolve(fileName(id)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+    }
+
+    static String fileName(int id) {
+        return String.format("%s%08d%s", PREFIX, id, SUFFIX);
+    }
+
+    /**
+     * Returns the id of the redo log of the file name, -1 if it is not the name of a redo log.
+     */
+    static int parseId(String fileName) {
+        if ((fileName.startsWith(PREFIX) == false) || (fileName.endsWith(SUFFIX) == false)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    synchronized void append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            size += record.length;
+        }
+        catch (ClosedByInterruptException e) {
+            channel = FileChannel.open(directory.resolve(fileName(id)), StandardOpenOption.WRITE);
+            channel.truncate(size);
+            channel.position(size);
+            throw new InterruptedIOException("Interrupted while appending to redo log " + fileName(id));
+        }
+    }
+
+    /**
+     * Forces the current file and starts the next one.
+     *
+     * @return the id of the next file
+     */
+    synchronized int roll() throws IOException {
+        channel.force(false);
+        FileChannel next = FileChannel.open(directory.resolve(fileName(id + 1)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        channel.close();
+        channel = next;
+        size = 0;
+        return ++id;
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     */
+    void sync() throws IOException {
+        FileChannel c;
+        synchronized (this) {
+            c = channel;
+        }
+        try {
+            c.force(false);
+        }
+        catch (ClosedChannelException e) {
+            // rolled meanwhile, and forced before
+        }
+    }
+
+    synchronized int getId() {
+        return id;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+}
@@ -0,0 +1,895 @@
+package com.anode.tool.service.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.IdFactory;
+import com.anode.tool.service.Page;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.counter.CounterStore;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link InMemoryCommonService} decorator that keeps the objects in a local directory, in periodic
+ * snapshots and a redo log of the writes in between, so that a restarted process gets its objects
+ * back without rebuilding them.
+ *
+ * <h2>Redo log</h2>
+ * After every write, the object of the id as it now is in memory, or its deletion, is appended to
+ * the redo log, serialized with Java serialization, so the objects must be {@link Serializable}. The
+ * record is taken from memory rather than from the write, under a lock of the id, so that the last
+ * record of an id always matches memory whatever the order of concurrent writes, without holding the
+ * lock while a write waits for an id locked by {@link #getLocked}. The record of the written object is
+ * encoded before the write, and used if memory still holds that object, so that an object that cannot
+ * be serialized fails the write without changing memory. Records reach the operating system
+ * with the write and the disk every second, or on {@link #sync()}, so a crash of the process loses no
+ * write, and a crash of the machine loses up to the last second.
+ *
+ * <h2>Snapshots</h2>
+ * Every {@code snapshotIntervalMillis}, or on {@link #snapshot()}, a new redo log file is started and
+ * the objects are written to {@code partitions} files at the same time, by one thread each, without
+ * stopping the writes. The snapshot is fuzzy: an object written during the snapshot may be in it
+ * before or after the write, and the redo log from the start of the snapshot brings it up to date on
+ * restore. A snapshot is only used once its manifest, written last, is on disk. The older snapshots
+ * and redo log files are then deleted.
+ *
+ * <h2>Format</h2>
+ * Snapshot files are made of blocks of up to 1 MB, each a single Java serialization stream of ids and
+ * objects, so that the descriptions of the classes are written once per block rather than once per
+ * object. Blocks, redo log records and manifests are framed with their length and a CRC32C checksum.
+ * A torn record at the end of the last redo log, left by a crash, is cut off. Any other corrupt
+ * frame fails the restore, rather than silently losing objects.
+ *
+ * <h2>Restore</h2>
+ * On construction, the partitions of the latest snapshot are read and put into the delegate in
+ * parallel, then the redo log is replayed in order. The delegate should be empty. Counters are
+ * restored to their highest value in the snapshot and the log.
+ *
+ * <pre>{@code
+ * SnapshotCommonService service = new SnapshotCommonService(new InMemoryCommonService(), Paths.get("/var/lib/workflows"));
+ * ...
+ * service.close();
+ * }</pre>
+ */
+@Slf4j
+public class SnapshotCommonService implements CommonService, CounterStore, Closeable {
+
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 600000;
+
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private static final int BLOCK_BYTES = 1 << 20;
+
+    private static final int STRIPES = 64;
+
+    private static final int MANIFEST_VERSION = 1;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final String PARTITION_SUFFIX = ".bin";
+
+    private final InMemoryCommonService delegate;
+
+    private final Path directory;
+
+    private final int partitions;
+
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    private final RedoLog redo;
+
+    private volatile boolean closed = false;
+
+    private volatile long restoredObjects = 0;
+
+    private volatile long replayedRecords = 0;
+
+    private volatile long restoreNanos = 0;
+
+    private volatile int snapshotId = 0;
+
+    private volatile long snapshotObjects = 0;
+
+    private volatile long snapshotNanos = 0;
+
+    public SnapshotCommonService(InMemoryCommonService delegate, Path directory) {
+        this(delegate, directory, DEFAULT_SNAPSHOT_INTERVAL_MILLIS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Restores the objects of the directory, creating it if needed, into the delegate.
+     *
+     * @param delegate               the service holding the objects, empty
+     * @param directory              the directory of the snapshots and redo logs
+     * @param snapshotIntervalMillis the time between snapshots, 0 for none but those of {@link #snapshot()}
+     * @param partitions             the number of files of a snapshot, written and read in parallel
+     */
+    public SnapshotCommonService(InMemoryCommonService delegate, Path directory, long snapshotIntervalMillis, int partitions) {
+        if ((delegate == null) || (directory == null)) {
+            throw new IllegalArgumentException("Delegate and directory must not be null");
+        }
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Partitions must be at least 1");
+        }
+        this.delegate = delegate;
+        this.directory = directory;
+        this.partitions = partitions;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+
+        AtomicInteger threads = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(partitions, r -> {
+            Thread t = new Thread(r, "snapshot-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Files.createDirectories(directory);
+            redo = RedoLog.create(directory, restore() + 1);
+        }
+        catch (IOException | RuntimeException e) {
+            workers.shutdownNow();
+            throw (e instanceof PersistenceException) ? (PersistenceException)e : new PersistenceException("Cannot restore snapshot in " + directory, e);
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::backgroundSync, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (snapshotIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::backgroundSnapshot, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Releases the locks taken by the calling thread with {@link #getLocked}.
+     */
+    @Override
+    public void endTransaction() {
+        delegate.endTransaction();
+    }
+
+    @Override
+    public void saveOrUpdate(Serializable id, Object object) {
+        checkOpen();
+        Serializable objectId = idOf(id, object);
+        byte[] record = encodePut(objectId, object);
+        delegate.saveOrUpdate(id, object);
+        log(objectId, object, record);
+    }
+
+    @Override
+    public void save(Serializable id, Object object) {
+        checkOpen();
+        Serializable objectId = idOf(id, object);
+        byte[] record = encodePut(objectId, object);
+        delegate.save(id, object);
+        log(objectId, object, record);
+    }
+
+    @Override
+    public void update(Serializable id, Object object) {
+        checkOpen();
+        byte[] record = encodePut(id, object);
+        delegate.update(id, object);
+        log(id, object, record);
+    }
+
+    @Override
+    public void saveCollection(Collection objects) {
+        checkOpen();
+        List<byte[]> records = encodePuts(objects);
+        delegate.saveCollection(objects);
+        logAll(objects, records);
+    }
+
+    @Override
+    public void saveOrUpdateCollection(Collection objects) {
+        checkOpen();
+        List<byte[]> records = encodePuts(objects);
+        delegate.saveOrUpdateCollection(objects);
+        logAll(objects, records);
+    }
+
+    @Override
+    public void delete(Serializable id) {
+        checkOpen();
+        delegate.delete(id);
+        log(id);
+    }
+
+    @Override
+    public <T> T get(Class<T> objectClass, Serializable id) {
+        return delegate.get(objectClass, id);
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        return delegate.getAll(type);
+    }
+
+    @Override
+    public <T> Stream<T> stream(Class<T> type, int fetchSize) {
+        return delegate.stream(type, fetchSize);
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> type, Serializable afterId, int pageSize, Comparator<Serializable> comparator) {
+        return delegate.getPage(type, afterId, pageSize, comparator);
+    }
+
+    @Override
+    public <T> T getUniqueItem(Class<T> type, String uniqueKeyName, String uniqueKeyValue) {
+        return delegate.getUniqueItem(type, uniqueKeyName, uniqueKeyValue);
+    }
+
+    @Override
+    public <T> T getLocked(Class<T> objectClass, Serializable id) {
+        return delegate.getLocked(objectClass, id);
+    }
+
+    @Override
+    public Map<Serializable, Serializable> makeClone(Object object, IdFactory idFactory) {
+        checkOpen();
+        Map<Serializable, Serializable> ids = delegate.makeClone(object, idFactory);
+        try {
+            for (Serializable id : ids.values()) {
+                log(id);
+            }
+        }
+        catch (RuntimeException e) {
+            // the clones are new objects, dropped so that memory does not hold objects the log misses
+            for (Serializable id : ids.values()) {
+                delegate.delete(id);
+                log(id);
+            }
+            throw e;
+        }
+        return ids;
+    }
+
+    @Override
+    public Serializable getMinimalId(Comparator<Serializable> comparator) {
+        return delegate.getMinimalId(comparator);
+    }
+
+    @Override
+    public long incrCounter(String key) {
+        checkOpen();
+        long value = delegate.incrCounter(key);
+        append(Frames.encodeCounter(key, value));
+        return value;
+    }
+
+    @Override
+    public Map<String, Long> addToCounters(Map<String, Long> deltas) {
+        checkOpen();
+        Map<String, Long> values = delegate.addToCounters(deltas);
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            append(Frames.encodeCounter(entry.getKey(), entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Takes a snapshot now and waits for it, or for the one running.
+     */
+    public void snapshot() {
+        checkOpen();
+        snapshotLock.lock();
+        try {
+            takeSnapshot();
+        }
+        finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the redo log to disk, so that the writes so far survive a crash of the machine.
+     */
+    public void sync() {
+        checkOpen();
+        try {
+            redo.sync();
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot sync redo log in " + directory, e);
+        }
+    }
+
+    /**
+     * @return the number of objects read from the snapshot on construction
+     */
+    public long getRestoredObjects() {
+        return restoredObjects;
+    }
+
+    /**
+     * @return the number of redo log records replayed on construction
+     */
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    /**
+     * @return the time taken by the restore on construction
+     */
+    public long getRestoreNanos() {
+        return restoreNanos;
+    }
+
+    /**
+     * @return the id of the latest snapshot, restored or taken, 0 if none
+     */
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * @return the number of objects of the last snapshot taken since construction
+     */
+    public long getSnapshotObjects() {
+        return snapshotObjects;
+    }
+
+    /**
+     * @return the time taken by the last snapshot taken since construction
+     */
+    public long getSnapshotNanos() {
+        return snapshotNanos;
+    }
+
+    /**
+     * Stops the snapshots and closes the redo log, without taking a last snapshot.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        scheduler.shutdown();
+        snapshotLock.lock();
+        try {
+            redo.close();
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot close redo log in " + directory, e);
+        }
+        finally {
+            snapshotLock.unlock();
+            workers.shutdownNow();
+        }
+    }
+
+    private Serializable idOf(Serializable id, Object object) {
+        if ((id == null) && (object instanceof Persistable)) {
+            return ((Persistable)object).getId();
+        }
+        return id;
+    }
+
+    // the record of a write, encoded before the write so that an object that cannot be serialized is not written
+    private static byte[] encodePut(Serializable id, Object object) {
+        return ((id == null) || (object == null)) ? null : Frames.encodePut(id, object);
+    }
+
+    private List<byte[]> encodePuts(Collection<?> objects) {
+        if (objects == null) {
+            return null;
+        }
+        List<byte[]> records = new ArrayList<>(objects.size());
+        for (Object object : objects) {
+            records.add(encodePut(idOf(null, object), object));
+        }
+        return records;
+    }
+
+    private void logAll(Collection<?> objects, List<byte[]> records) {
+        int i = 0;
+        for (Object object : objects) {
+            log(idOf(null, object), object, records.get(i++));
+        }
+    }
+
+    // appends the object of the id as it is in memory, or its deletion
+    private void log(Serializable id) {
+        log(id, null, null);
+    }
+
+    // the record of the written object is used if memory still holds it
+    private void log(Serializable id, Object written, byte[] record) {
+        if (id == null) {
+            return;
+        }
+        synchronized (stripes[(id.hashCode() & 0x7fffffff) % STRIPES]) {
+            Object object = delegate.get(Object.class, id);
+            if (object == null) {
+                append(Frames.encodeDelete(id));
+            }
+            else {
+                append(((object == written) && (record != null)) ? record : Frames.encodePut(id, object));
+            }
+        }
+    }
+
+    private void append(byte[] record) {
+        try {
+            redo.append(record);
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot append to redo log in " + directory, e);
+        }
+    }
+
+    private void backgroundSync() {
+        try {
+            redo.sync();
+        }
+        catch (IOException e) {
+            log.warn("Cannot sync redo log in {}", directory, e);
+        }
+    }
+
+    private void backgroundSnapshot() {
+        if (snapshotLock.tryLock() == false) {
+            return;
+        }
+        try {
+            if (closed == false) {
+                takeSnapshot();
+            }
+        }
+        catch (RuntimeException e) {
+            // the previous snapshot and the redo log are still complete
+            log.warn("Snapshot in {} failed", directory, e);
+        }
+        finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // under the snapshot lock
+    private void takeSnapshot() {
+        long start = System.nanoTime();
+        int id;
+        try {
+            id = redo.roll();
+        }
+        catch (IOException e) {
+            throw new PersistenceException("Cannot start redo log in " + directory, e);
+        }
+        // read after the roll, so that the increments before it are in the values
+        Map<String, Long> counters = delegate.getCounters();
+
+        List<Future<Long>> writers = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            int partition = p;
+            writers.add(workers.submit(() -> writePartition(id, partition)));
+        }
+        long[] counts = new long[partitions];
+        try {
+            for (int p = 0; p < partitions; p++) {
+                counts[p] = writers.get(p).get();
+            }
+            writeManifest(id, counts, counters);
+        }
+        catch (InterruptedException e) {
+            writers.forEach(w -> w.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while taking snapshot in " + directory);
+        }
+        catch (ExecutionException | IOException e) {
+            writers.forEach(w -> w.cancel(true));
+            deleteFiles(id, false);
+            Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+            throw (cause instanceof PersistenceException) ? (PersistenceException)cause : new PersistenceException("Cannot write snapshot in " + directory, cause);
+        }
+
+        deleteFiles(id, true);
+        long objects = 0;
+        for (long count : counts) {
+            objects += count;
+        }
+        snapshotId = id;
+        snapshotObjects = objects;
+        snapshotNanos = System.nanoTime() - start;
+        log.info("Snapshot {} of {} objects in {} ms", id, objects, TimeUnit.NANOSECONDS.toMillis(snapshotNanos));
+    }
+
+    // writes the objects of the partition, returns their number
+    private long writePartition(int id, int partition) throws IOException {
+        Path file = directory.resolve(partitionName(id, partition));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16)) {
+            BlockWriter block = new BlockWriter(out);
+            delegate.forEachObject((objectId, object) -> {
+                if (partitionOf(objectId) == partition) {
+                    block.add(objectId, object);
+                }
+            });
+            block.flush();
+            out.flush();
+            force(file);
+            return block.count;
+        }
+    }
+
+    // the blocks of a partition, each a serialization stream of up to BLOCK_BYTES
+    private static final class BlockWriter {
+
+        private final OutputStream out;
+
+        private ByteArrayOutputStream bos;
+
+        private ObjectOutputStream oos;
+
+        private long count = 0;
+
+        private BlockWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        private void add(Serializable id, Object object) {
+            try {
+                if (oos == null) {
+                    bos = Frames.newFrame(BLOCK_BYTES);
+                    oos = new ObjectOutputStream(bos);
+                }
+                oos.writeBoolean(true);
+                oos.writeObject(id);
+                oos.writeObject(object);
+                count++;
+                if (bos.size() >= BLOCK_BYTES) {
+                    flush();
+                }
+            }
+            catch (IOException e) {
+                throw new PersistenceException("Cannot serialize object of type " + object.getClass().getName(), e);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (oos == null) {
+                return;
+            }
+            oos.writeBoolean(false);
+            oos.close();
+            out.write(Frames.seal(bos));
+            oos = null;
+            bos = null;
+        }
+    }
+
+    private void writeManifest(int id, long[] counts, Map<String, Long> counters) throws IOException {
+        ByteArrayOutputStream bos = Frames.newFrame(256);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(MANIFEST_VERSION);
+        out.writeInt(counts.length);
+        for (long count : counts) {
+            out.writeLong(count);
+        }
+        out.writeInt(counters.size());
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        out.flush();
+
+        Path tmp = directory.resolve(manifestName(id) + ".tmp");
+        Files.write(tmp, Frames.seal(bos));
+        force(tmp);
+        Files.move(tmp, directory.resolve(manifestName(id)), StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // not supported on every platform
+        }
+    }
+
+    // the snapshot of the manifest
+    private static final class Manifest {
+
+        private long[] counts;
+
+        private final Map<String, Long> counters = new HashMap<>();
+    }
+
+    private static Manifest readManifest(Path file) throws IOException {
+        byte[] body;
+        try (InputStream in = Files.newInputStream(file)) {
+            body = Frames.read(in);
+        }
+        if ((body == null) || (body == Frames.TORN)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        if (in.readInt() != MANIFEST_VERSION) {
+            throw new PersistenceException("Unknown snapshot manifest version in " + file);
+        }
+        Manifest manifest = new Manifest();
+        manifest.counts = new long[in.readInt()];
+        for (int i = 0; i < manifest.counts.length; i++) {
+            manifest.counts[i] = in.readLong();
+        }
+        int counters = in.readInt();
+        for (int i = 0; i < counters; i++) {
+            manifest.counters.put(in.readUTF(), in.readLong());
+        }
+        return manifest;
+    }
+
+    // restores the latest snapshot and replays the redo logs, returns the id of the last log
+    private int restore() throws IOException {
+        long start = System.nanoTime();
+        List<Integer> manifests = new ArrayList<>();
+        List<Integer> logs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                int id = parseManifestId(name);
+                if (id >= 0) {
+                    manifests.add(id);
+                }
+                id = RedoLog.parseId(name);
+                if (id >= 0) {
+                    logs.add(id);
+                }
+            });
+        }
+        manifests.sort(Comparator.reverseOrder());
+        logs.sort(null);
+
+        // the latest snapshot whose manifest is whole, older ones may lack their redo logs
+        int id = 0;
+        Manifest manifest = null;
+        for (int m : manifests) {
+            manifest = readManifest(directory.resolve(manifestName(m)));
+            if (manifest != null) {
+                id = m;
+                break;
+            }
+            log.warn("Ignoring torn snapshot manifest {}", manifestName(m));
+        }
+
+        Map<String, Long> counters = new HashMap<>();
+        if (manifest != null) {
+            restoredObjects = readSnapshot(id, manifest);
+            counters.putAll(manifest.counters);
+        }
+
+        int last = id;
+        long records = 0;
+        List<Integer> replayed = new ArrayList<>();
+        for (int l : logs) {
+            if (l >= id) {
+                replayed.add(l);
+            }
+        }
+        for (int i = 0; i < replayed.size(); i++) {
+            records += replay(replayed.get(i), i == replayed.size() - 1, counters);
+            last = replayed.get(i);
+        }
+        replayedRecords = records;
+
+        Map<String, Long> current = delegate.getCounters();
+        Map<String, Long> deltas = new HashMap<>();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            long delta = entry.getValue() - current.getOrDefault(entry.getKey(), 0L);
+            if (delta > 0) {
+                deltas.put(entry.getKey(), delta);
+            }
+        }
+        if (deltas.isEmpty() == false) {
+            delegate.addToCounters(deltas);
+        }
+
+        snapshotId = id;
+        restoreNanos = System.nanoTime() - start;
+        log.info("Restored {} objects from snapshot {} and {} redo log records in {} ms", restoredObjects, id, records, TimeUnit.NANOSECONDS.toMillis(restoreNanos));
+        return last;
+    }
+
+    // reads the partitions of the snapshot in parallel, returns the number of objects
+    private long readSnapshot(int id, Manifest manifest) throws IOException {
+        List<Future<Long>> readers = new ArrayList<>(manifest.counts.length);
+        for (int p = 0; p < manifest.counts.length; p++) {
+            Path file = directory.resolve(partitionName(id, p));
+            readers.add(workers.submit(() -> readPartition(file)));
+        }
+        long objects = 0;
+        try {
+            for (int p = 0; p < manifest.counts.length; p++) {
+                long count = readers.get(p).get();
+                if (count != manifest.counts[p]) {
+                    throw new PersistenceException("Snapshot file " + partitionName(id, p) + " has " + count + " objects instead of " + manifest.counts[p]);
+                }
+                objects += count;
+            }
+        }
+        catch (InterruptedException e) {
+            readers.forEach(r -> r.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while restoring snapshot in " + directory);
+        }
+        catch (ExecutionException e) {
+            readers.forEach(r -> r.cancel(true));
+            if (e.getCause() instanceof PersistenceException) {
+                throw (PersistenceException)e.getCause();
+            }
+            throw new PersistenceException("Cannot read snapshot in " + directory, e.getCause());
+        }
+        return objects;
+    }
+
+    private long readPartition(Path file) throws IOException, ClassNotFoundException {
+        long count = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            byte[] body;
+            while ((body = Frames.read(in)) != null) {
+                if (body == Frames.TORN) {
+                    throw new PersistenceException("Corrupt block in snapshot file " + file + " after " + count + " objects");
+                }
+                try (ObjectInputStream ois = Frames.newObjectInputStream(body, 0)) {
+                    while (ois.readBoolean()) {
+                        Serializable id = (Serializable)ois.readObject();
+                        delegate.saveOrUpdate(id, ois.readObject());
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // applies the records of the redo log, returns their number
+    private long replay(int id, boolean last, Map<String, Long> counters) throws IOException {
+        Path file = directory.resolve(RedoLog.fileName(id));
+        long records = 0;
+        long valid = 0;
+        boolean torn = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            byte[] body;
+            while ((body = Frames.read(in)) != null) {
+                if (body == Frames.TORN) {
+                    torn = true;
+                    break;
+                }
+                Frames.Record record = Frames.decode(body);
+                if (record.type == Frames.PUT) {
+                    delegate.saveOrUpdate(record.id, record.object);
+                }
+                else if (record.type == Frames.DELETE) {
+                    delegate.delete(record.id);
+                }
+                else {
+                    counters.merge(record.key, record.value, Math::max);
+                }
+                records++;
+                valid += Frames.HEADER_BYTES + body.length;
+            }
+        }
+
+        if (torn) {
+            if (last == false) {
+                throw new PersistenceException("Corrupt record in redo log " + file + " at " + valid);
+            }
+            log.warn("Cutting off torn record at the end of redo log {} at {}", file, valid);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return records;
+    }
+
+    // deletes the files of the snapshots and redo logs older than the id, or those of the id
+    private void deleteFiles(int id, boolean older) {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                int snapshot = parseSnapshotId(name);
+                int redoLog = RedoLog.parseId(name);
+                boolean delete = older ? (((snapshot >= 0) && (snapshot < id)) || ((redoLog >= 0) && (redoLog < id))) : (snapshot == id);
+                if (delete) {
+                    try {
+                        Files.deleteIfExists(file);
+                    }
+                    catch (IOException e) {
+                        log.warn("Cannot delete {}", file, e);
+                    }
+                }
+            });
+        }
+        catch (IOException e) {
+            log.warn("Cannot list {}", directory, e);
+        }
+    }
+
+    private int partitionOf(Serializable id) {
+        return (id.hashCode() & 0x7fffffff) % partitions;
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static String manifestName(int id) {
+        return String.format("%s%08d%s", SNAPSHOT_PREFIX, id, MANIFEST_SUFFIX);
+    }
+
+    private static String partitionName(int id, int partition) {
+        return String.format("%s%08d-%03d%s", SNAPSHOT_PREFIX, id, partition, PARTITION_SUFFIX);
+    }
+
+    private static int parseManifestId(String fileName) {
+        return fileName.endsWith(MANIFEST_SUFFIX) ? parseSnapshotId(fileName) : -1;
+    }
+
+    // the id of a snapshot manifest, partition or temporary manifest, -1 for other files
+    private static int parseSnapshotId(String fileName) {
+        if ((fileName.startsWith(SNAPSHOT_PREFIX) == false) || (fileName.length() < SNAPSHOT_PREFIX.length() + 8)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(SNAPSHOT_PREFIX.length(), SNAPSHOT_PREFIX.length() + 8));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new PersistenceException("Snapshots in " + directory + " are closed");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.anode.tool.document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class DocumentConverterTest {
+
+    private static ByteArrayInputStream in(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String xmlToJson(String xml) {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        DocumentConverter.xmlToJson(in(xml), json);
+        return json.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void convertsJsonToXmlAndBack() {
+        String json = "{\"a\":\"1\",\"b\":[\"x\",\"y\"],\"c\":{\"d\":\"2\",\"e\":[{\"f\":\"3\"},{\"f\":\"4\"}]}}";
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        DocumentConverter.jsonToXml(in(json), xml);
+        String s = xml.toString(StandardCharsets.UTF_8);
+        assertTrue(s.contains("<b>x</b><b>y</b>"), s);
+
+        assertEquals(new JDocument(json).getJson(), new JDocument(xmlToJson(s)).getJson());
+        assertEquals(new JDocument(json).getJson(), DocumentConverter.readXml(in(s)).getJson());
+    }
+
+    @Test
+    public void wrapsTheElementsOfARootArray() {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        DocumentConverter.jsonToXml(in("[{\"a\":\"1\"},{\"a\":\"2\"}]"), xml, "list");
+        String s = xml.toString(StandardCharsets.UTF_8);
+        assertTrue(s.contains("<list><item><a>1</a></item><item><a>2</a></item></list>"), s);
+    }
+
+    @Test
+    public void writesDocumentsFromTheirTree() {
+        Document d = new JDocument("{\"a\":\"1\",\"b\":[\"x\",\"y\"]}");
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        DocumentConverter.writeXml(d, xml);
+        assertEquals(d.getJson(), new JDocument(xmlToJson(xml.toString(StandardCharsets.UTF_8))).getJson());
+    }
+
+    @Test
+    public void rejectsARepeatedElementTooLargeToHoldBack() {
+        StringBuilder xml = new StringBuilder("<root><a>");
+        for (int i = 0; i < 40000; i++) {
+            xml.append("<v>").append(i).append("</v>");
+        }
+        xml.append("</a><a><v>0</v></a></root>");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> xmlToJson(xml.toString()));
+        assertEquals("jdoc_err_75a", e.getMessage());
+    }
+}
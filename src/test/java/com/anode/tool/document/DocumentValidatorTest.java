@@ -0,0 +1,78 @@
+package com.anode.tool.document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DocumentValidatorTest {
+
+    private static final String MODEL = "{"
+        + "\"name\":\"{\\\"type\\\":\\\"string\\\"}\","
+        + "\"items\":[{\"id\":\"{\\\"type\\\":\\\"integer\\\"}\",\"label\":\"{\\\"type\\\":\\\"string\\\"}\"}]"
+        + "}";
+
+    private final int threshold = JDocument.getParallelValidationThreshold();
+
+    @AfterEach
+    public void tearDown() {
+        JDocument.setParallelValidationThreshold(threshold);
+    }
+
+    // items of which the ones of the indexes have a field not in the model, and the one of badId an id that is not an integer
+    private static JDocument document(int items, int badId, int... others) {
+        StringBuilder json = new StringBuilder("{\"name\":\"n\",\"items\":[");
+        for (int i = 0; i < items; i++) {
+            json.append((i == 0) ? "" : ",").append("{\"id\":").append((i == badId) ? "\"x\"" : String.valueOf(i)).append(",\"label\":\"l\"");
+            for (int other : others) {
+                json.append((i == other) ? ",\"other\":1" : "");
+            }
+            json.append("}");
+        }
+        return new JDocument(json.append("]}").toString());
+    }
+
+    private static String validate(JDocument d, int threshold) {
+        JDocument.setParallelValidationThreshold(threshold);
+        return assertThrows(RuntimeException.class, () -> d.validateAllPaths("validator_test")).getMessage();
+    }
+
+    @Test
+    public void parallelValidationReportsTheErrorsOfTheSequentialOne() {
+        JDocument.loadDocumentModel("validator_test", MODEL);
+
+        JDocument paths = document(1000, -1, 300, 700);
+        String sequential = validate(paths, Integer.MAX_VALUE);
+        assertTrue(sequential.contains("$.items[300].other"));
+        assertTrue(sequential.contains("$.items[700].other"));
+        assertEquals(sequential, validate(paths, 1));
+
+        // the failing leaf stops the validation, the errors after it are not reported
+        JDocument format = document(1000, 500, 300, 700);
+        sequential = validate(format, Integer.MAX_VALUE);
+        assertTrue(sequential.startsWith("jdoc_err_37$.items[500].id"));
+        assertEquals(sequential, validate(format, 1));
+    }
+
+    @Test
+    public void parallelValidationAcceptsValidDocuments() {
+        JDocument.loadDocumentModel("validator_test", MODEL);
+        JDocument.setParallelValidationThreshold(1);
+        document(1000, -1).validateAllPaths("validator_test");
+    }
+
+    @Test
+    public void countsEachNodeOnce() throws JsonProcessingException {
+        // the root, a, b, c and the two items of c
+        JsonNode node = new ObjectMapper().readTree("{\"a\":{\"b\":1},\"c\":[1,2]}");
+        assertTrue(DocumentValidator.isLarge(node, 6));
+        assertFalse(DocumentValidator.isLarge(node, 7));
+    }
+}
@@ -0,0 +1,59 @@
+package com.anode.tool.document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class DocumentViewTest {
+
+    @Test
+    public void readsThroughViewOfObject() {
+        JDocument d = new JDocument("{\"a\":{\"b\":{\"c\":\"x\"}}}");
+        Document view = d.getView("$.a");
+        assertEquals("x", view.getString("$.b.c"));
+        d.setString("$.a.b.c", "y");
+        assertEquals("y", view.getString("$.b.c"));
+    }
+
+    @Test
+    public void readsThroughViewOfArray() {
+        JDocument d = new JDocument("{\"a\":[{\"n\":\"1\"},{\"n\":\"2\"}]}");
+        Document view = d.getView("$.a");
+        assertEquals("2", view.getString("$[1].n"));
+        assertEquals("1", view.getString("$.[0].n"));
+        assertEquals("2", view.getString("$[%].n", "1"));
+    }
+
+    @Test
+    public void substitutesVargsOutsideOfPrefix() {
+        JDocument d = new JDocument("{\"a%\":{\"b\":\"x\",\"c\":\"y\"}}");
+        Document view = d.getView("$.%", "a%");
+        assertEquals("y", view.getString("$.%", "c"));
+        assertEquals("x", view.getString("$.b"));
+    }
+
+    @Test
+    public void movesContent() {
+        JDocument d = new JDocument("{\"a\":{\"b\":\"x\"},\"c\":{}}");
+        d.moveContent(d, "$.a", "$.c");
+        assertEquals("x", d.getString("$.c.b"));
+        assertFalse(d.pathExists("$.a"));
+    }
+
+    @Test
+    public void rejectsMoveIntoDescendantOrAncestor() {
+        JDocument d = new JDocument("{\"a\":{\"b\":{\"c\":\"x\"}}}");
+        assertThrows(RuntimeException.class, () -> d.moveContent(d, "$.a", "$.a.b"));
+        assertThrows(RuntimeException.class, () -> d.moveContent(d, "$.a.b", "$.a"));
+        assertThrows(RuntimeException.class, () -> d.moveContent(d, "$", "$.a"));
+        assertEquals("x", d.getString("$.a.b.c"));
+        assertTrue(d.pathExists("$.a.b"));
+
+        // onto itself is allowed and changes nothing
+        d.moveContent(d, "$.a", "$.a");
+        assertEquals("x", d.getString("$.a.b.c"));
+    }
+}
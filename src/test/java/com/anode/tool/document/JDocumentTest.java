@@ -0,0 +1,66 @@
+package com.anode.tool.document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class JDocumentTest {
+
+    private static final String MODEL = "{"
+        + "\"name\":\"{\\\"type\\\":\\\"string\\\"}\","
+        + "\"count\":\"{\\\"type\\\":\\\"integer\\\"}\","
+        + "\"tags\":[\"{\\\"type\\\":\\\"string\\\"}\"],"
+        + "\"items\":[{\"id\":\"{\\\"type\\\":\\\"integer\\\"}\",\"label\":\"{\\\"type\\\":\\\"string\\\"}\"}]"
+        + "}";
+
+    @Test
+    public void validateAllPathsReportsPathsNotInModel() {
+        JDocument.loadDocumentModel("test_all", MODEL);
+        JDocument d = new JDocument("{\"name\":\"a\",\"items\":[{\"id\":1,\"other\":\"x\"}]}");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> d.validateAllPaths("test_all"));
+        assertTrue(e.getMessage().contains("$.items[0].other -> path not found in data model"));
+        d.validateModelPaths("test_all");
+    }
+
+    @Test
+    public void validateModelPathsChecksFormatsOfModelLeaves() {
+        JDocument.loadDocumentModel("test_model", MODEL);
+        JDocument d = new JDocument("{\"count\":1,\"tags\":[\"a\",\"b\"],\"items\":[{\"id\":1},{\"id\":\"2\"}]}");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> d.validateModelPaths("test_model"));
+        assertTrue(e.getMessage().startsWith("jdoc_err_37$.items[1].id"));
+
+        new JDocument("{\"count\":1,\"tags\":[\"a\"],\"items\":[{\"id\":1}]}").validateAllPaths("test_model");
+    }
+
+    @Test
+    public void validationUsesReplacedModel() {
+        JDocument.loadDocumentModel("test_replaced", MODEL);
+        JDocument d = new JDocument("{\"count\":\"1\"}");
+        assertThrows(RuntimeException.class, () -> d.validateAllPaths("test_replaced"));
+        JDocument.loadDocumentModel("test_replaced", MODEL.replace("\"count\":\"{\\\"type\\\":\\\"integer\\\"}\"", "\"count\":\"{\\\"type\\\":\\\"string\\\"}\""));
+        d.validateAllPaths("test_replaced");
+    }
+
+    @Test
+    public void flattensTypedDocumentWithModelDataTypes() {
+        JDocument.loadDocumentModel("test_flatten", MODEL);
+        Document d = new JDocument("test_flatten", "{\"name\":\"a\",\"count\":2,\"tags\":[\"t\"],\"items\":[{\"id\":1},{\"id\":2,\"label\":\"l\"}]}");
+        Map<String, DataType> types = new HashMap<>();
+        List<PathValue> values = d.flattenWithValues();
+        for (PathValue value : values) {
+            types.put(value.getPath(), value.getDataType());
+        }
+        assertEquals(DataType.STRING, types.get("$.name"));
+        assertEquals(DataType.INTEGER, types.get("$.count"));
+        assertEquals(DataType.STRING, types.get("$.tags[0]"));
+        assertEquals(DataType.INTEGER, types.get("$.items[1].id"));
+        assertEquals(DataType.STRING, types.get("$.items[1].label"));
+        assertEquals(6, values.size());
+    }
+}
@@ -0,0 +1,71 @@
+package com.anode.tool.document;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class ModelCodecTest {
+
+    private static final String MODEL = "{"
+        + "\"name\":\"{\\\"type\\\":\\\"string\\\"}\","
+        + "\"count\":\"{\\\"type\\\":\\\"integer\\\"}\","
+        + "\"items\":[{\"id\":\"{\\\"type\\\":\\\"integer\\\"}\",\"label\":\"{\\\"type\\\":\\\"string\\\"}\"}]"
+        + "}";
+
+    @Test
+    public void readsTheDocumentOfTheTreeParse() {
+        JDocument.loadDocumentModel("codec_read", MODEL);
+        String json = "{\"name\":\"a\",\"count\":2,\"items\":[{\"id\":1,\"label\":\"x\"},{\"id\":2}]}";
+        ModelCodec codec = ModelCodec.forType("codec_read");
+
+        JDocument read = codec.read(json, validationTypes.ALL_DATA_PATHS);
+        assertEquals("codec_read", read.getType());
+        assertEquals(new JDocument("codec_read", json, validationTypes.ALL_DATA_PATHS).getJson(), read.getJson());
+
+        JDocument streamed = codec.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), validationTypes.ALL_DATA_PATHS);
+        assertEquals(read.getJson(), streamed.getJson());
+    }
+
+    @Test
+    public void raisesTheErrorsOfTheTreeParse() {
+        JDocument.loadDocumentModel("codec_errors", MODEL);
+        ModelCodec codec = ModelCodec.forType("codec_errors");
+        for (String json : new String[] { "{\"count\":\"x\"}", "{\"items\":[{\"id\":1},{\"id\":\"2\"}]}", "{\"other\":1}" }) {
+            RuntimeException expected = assertThrows(RuntimeException.class, () -> new JDocument("codec_errors", json, validationTypes.ALL_DATA_PATHS));
+            RuntimeException e = assertThrows(RuntimeException.class, () -> codec.read(json, validationTypes.ALL_DATA_PATHS));
+            assertEquals(expected.getMessage(), e.getMessage());
+        }
+    }
+
+    @Test
+    public void writesTheFieldsInModelOrder() {
+        JDocument.loadDocumentModel("codec_write", MODEL);
+        ModelCodec codec = ModelCodec.forType("codec_write");
+        Document d = new JDocument("codec_write", "{\"items\":[{\"label\":\"x\",\"id\":1}],\"count\":2,\"name\":\"a\"}");
+
+        String expected = "{\"name\":\"a\",\"count\":2,\"items\":[{\"id\":1,\"label\":\"x\"}]}";
+        assertEquals(expected, codec.write(d));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(d, out);
+        assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void compilesTheModelAgainOnceReloaded() {
+        JDocument.loadDocumentModel("codec_reload", MODEL);
+        ModelCodec codec = ModelCodec.forType("codec_reload");
+        assertSame(codec, ModelCodec.forType("codec_reload"));
+
+        JDocument.loadDocumentModel("codec_reload", MODEL.replace("\"count\":\"{\\\"type\\\":\\\"integer\\\"}\"", "\"count\":\"{\\\"type\\\":\\\"string\\\"}\""));
+        ModelCodec reloaded = ModelCodec.forType("codec_reload");
+        assertNotSame(codec, reloaded);
+        assertEquals("x", reloaded.read("{\"count\":\"x\"}", validationTypes.ALL_DATA_PATHS).getString("$.count"));
+    }
+}
@@ -0,0 +1,131 @@
+package com.anode.tool.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class CachingCommonServiceTest {
+
+    public static class Named {
+
+        private final String name;
+
+        public Named(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Other {
+
+        private final String name;
+
+        public Other(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class SubNamed extends Named {
+
+        public SubNamed(String name) {
+            super(name);
+        }
+    }
+
+    @Test
+    public void writesInvalidateCachedObjects() {
+        InMemoryCommonService backend = new InMemoryCommonService();
+        CachingCommonService service = new CachingCommonService(backend, 100);
+        assertNull(service.get(String.class, "a"));
+        backend.save("a", "first");
+        // the miss is cached
+        assertNull(service.get(String.class, "a"));
+
+        service.saveOrUpdate("a", "second");
+        assertEquals("second", service.get(String.class, "a"));
+        backend.saveOrUpdate("a", "third");
+        assertEquals("second", service.get(String.class, "a"));
+    }
+
+    @Test
+    public void endTransactionReleasesBackendLocks() throws InterruptedException {
+        CachingCommonService service = new CachingCommonService(new InMemoryCommonService(null, 1000), 100);
+        service.save("a", "first");
+        assertEquals("first", service.getLocked(String.class, "a"));
+        service.endTransaction();
+
+        AtomicReference<Object> read = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                read.set(service.getLocked(String.class, "a"));
+                service.endTransaction();
+            }
+            catch (RuntimeException e) {
+                read.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertSame("first", read.get());
+    }
+
+    @Test
+    public void writesDropCachedUniqueItems() {
+        InMemoryCommonService backend = new InMemoryCommonService();
+        CachingCommonService service = new CachingCommonService(backend, 100);
+        service.save("a", new Named("x"));
+        Named found = service.getUniqueItem(Named.class, "name", "x");
+        assertEquals("x", found.name);
+
+        backend.delete("a");
+        assertSame(found, service.getUniqueItem(Named.class, "name", "x"));
+        assertEquals(1, service.getHitCount());
+
+        // any write may change which object matches
+        service.save("b", new Named("y"));
+        assertNull(service.getUniqueItem(Named.class, "name", "x"));
+    }
+
+    @Test
+    public void writesDropOnlyTheUniqueItemsOfTheirClasses() {
+        InMemoryCommonService backend = new InMemoryCommonService();
+        CachingCommonService service = new CachingCommonService(backend, 100);
+        service.save("a", new Named("x"));
+        Named found = service.getUniqueItem(Named.class, "name", "x");
+        backend.delete("a");
+
+        service.save("b", new Other("x"));
+        assertSame(found, service.getUniqueItem(Named.class, "name", "x"));
+
+        // an object of a subclass may be found by a lookup of its superclass
+        service.save("c", new SubNamed("y"));
+        assertNull(service.getUniqueItem(Named.class, "name", "x"));
+    }
+
+    @Test
+    public void writesOfOtherThreadsProceedAfterEndTransaction() throws InterruptedException {
+        CachingCommonService service = new CachingCommonService(new InMemoryCommonService(null, 1000), 100);
+        service.save("a", "first");
+        service.getLocked(String.class, "a");
+        service.endTransaction();
+
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                service.saveOrUpdate("a", "second");
+            }
+            catch (RuntimeException e) {
+                failure.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure.get());
+        assertEquals("second", service.get(String.class, "a"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.anode.tool.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.memory.InMemoryRepository;
+
+public class CachingRepositoryTest {
+
+    public static class Entity {
+
+        private final String id;
+
+        private String name;
+
+        public Entity(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void writesDropTheUniqueItemsOfTheirEntityAndTheMisses() {
+        InMemoryRepository<Entity, String> backend = new InMemoryRepository<>(e -> e.id);
+        CachingRepository<Entity, String> repository = new CachingRepository<>(backend, e -> e.id, 100);
+        repository.save(new Entity("a", "x"));
+        Entity found = repository.getUniqueItem("name", "x");
+        assertNull(repository.getUniqueItem("name", "z"));
+
+        // a write of another entity keeps the lookups that found one
+        backend.delete("a");
+        repository.save(new Entity("b", "z"));
+        assertSame(found, repository.getUniqueItem("name", "x"));
+        assertEquals("b", repository.<Entity>getUniqueItem("name", "z").id);
+
+        Entity b = repository.get("b").get();
+        b.name = "w";
+        repository.update(b);
+        assertNull(repository.getUniqueItem("name", "z"));
+    }
+}
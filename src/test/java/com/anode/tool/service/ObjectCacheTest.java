@@ -0,0 +1,103 @@
+package com.anode.tool.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ObjectCacheTest {
+
+    private static ObjectCache<Integer, String> cache(int maxEntries) {
+        return new ObjectCache<>(maxEntries, Long.MAX_VALUE, v -> 1, null);
+    }
+
+    @Test
+    public void keepsPopularEntriesThroughAScan() {
+        ObjectCache<Integer, String> cache = cache(100);
+        for (int key = 0; key < 100; key++) {
+            cache.put(key, "v" + key, 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            for (int key = 0; key < 10; key++) {
+                cache.get(key);
+            }
+        }
+
+        // keys read once each, as by a scan of the whole store
+        for (int key = 1000; key < 2000; key++) {
+            cache.get(key);
+            cache.put(key, "v" + key, 0);
+        }
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getEvictionCount() >= 1000);
+        for (int key = 0; key < 10; key++) {
+            assertEquals("v" + key, cache.get(key));
+        }
+    }
+
+    @Test
+    public void evictsOverTheMaxWeight() {
+        ObjectCache<Integer, String> cache = new ObjectCache<>(100, 10, String::length, null);
+        cache.put(1, "aaaa", 0);
+        cache.put(2, "bbbb", 0);
+        cache.put(3, "cccc", 0);
+        assertTrue(cache.getWeight() <= 10);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void expiresEntriesAfterTheirTimeToLive() throws InterruptedException {
+        ObjectCache<Integer, String> cache = cache(100);
+        cache.put(1, "a", TimeUnit.MILLISECONDS.toNanos(1));
+        cache.put(2, "b", 0);
+        Thread.sleep(5);
+
+        assertNull(cache.get(1));
+        assertEquals("b", cache.get(2));
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void dropsValuesLoadedBeforeAnInvalidationOfTheirKey() {
+        ObjectCache<Integer, String> cache = cache(100);
+        long stamp = cache.getStamp(1);
+        cache.invalidate(1);
+        cache.putIfNotInvalidated(1, "stale", 0, stamp);
+        assertNull(cache.get(1));
+
+        cache.putIfNotInvalidated(1, "fresh", 0, cache.getStamp(1));
+        assertEquals("fresh", cache.get(1));
+    }
+
+    @Test
+    public void keepsValuesLoadedDuringInvalidationsOfOtherGroups() {
+        ObjectCache<String, String> cache = new ObjectCache<>(100, Long.MAX_VALUE, v -> 1, (k, v) -> k.substring(0, 1));
+        long stamp = cache.getStamp("a");
+        cache.invalidateGroup("b");
+        cache.invalidate("c1");
+        cache.putIfNotInvalidated("a1", "x", 0, stamp);
+        assertEquals("x", cache.get("a1"));
+
+        stamp = cache.getStamp("a");
+        cache.invalidateGroup("a");
+        cache.putIfNotInvalidated("a2", "stale", 0, stamp);
+        assertNull(cache.get("a2"));
+    }
+
+    @Test
+    public void invalidatesTheKeysOfAGroup() {
+        ObjectCache<String, String> cache = new ObjectCache<>(100, Long.MAX_VALUE, v -> 1, (k, v) -> k.substring(0, 1));
+        cache.put("a1", "x", 0);
+        cache.put("a2", "y", 0);
+        cache.put("b1", "z", 0);
+
+        cache.invalidateGroup("a");
+        assertNull(cache.get("a1"));
+        assertNull(cache.get("a2"));
+        assertEquals("z", cache.get("b1"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.anode.tool.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class WriteBehindCommonServiceTest {
+
+    public static class Value implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long count;
+
+        public Value(long count) {
+            this.count = count;
+        }
+    }
+
+    // fails the first write after fail is set, once released
+    private static class FailingCommonService extends InMemoryCommonService {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile boolean fail = false;
+
+        @Override
+        public void saveOrUpdate(Serializable id, Object object) {
+            if (fail) {
+                fail = false;
+                entered.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new PersistenceException("Backend down");
+            }
+            super.saveOrUpdate(id, object);
+        }
+    }
+
+    @Test
+    public void coalescesWritesOfTheSameId() {
+        InMemoryCommonService backend = new InMemoryCommonService();
+        WriteBehindCommonService service = new WriteBehindCommonService(backend, 10, 0);
+        for (long i = 1; i <= 5; i++) {
+            service.saveOrUpdate("a", new Value(i));
+        }
+        assertNull(backend.get(Value.class, "a"));
+        assertEquals(5L, service.get(Value.class, "a").count);
+        service.close();
+        assertEquals(5L, backend.get(Value.class, "a").count);
+        assertEquals(4L, service.getCoalescedCount());
+    }
+
+    @Test
+    public void flushLeavesIdsLockedByOtherThreads() throws InterruptedException {
+        InMemoryCommonService backend = new InMemoryCommonService(null, 1000);
+        WriteBehindCommonService service = new WriteBehindCommonService(backend, 10, 0);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            service.getLocked(Value.class, "a");
+            locked.countDown();
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            service.endTransaction();
+        });
+        holder.start();
+        locked.await();
+
+        service.saveOrUpdate("a", new Value(1));
+        service.saveOrUpdate("b", new Value(2));
+        service.flush();
+        assertNull(backend.get(Value.class, "a"));
+        assertEquals(2L, backend.get(Value.class, "b").count);
+        assertEquals(1, service.getPendingCount());
+
+        done.countDown();
+        holder.join();
+        service.flush();
+        assertEquals(1L, backend.get(Value.class, "a").count);
+    }
+
+    @Test
+    public void failedFlushKeepsMaxPending() throws InterruptedException {
+        FailingCommonService backend = new FailingCommonService();
+        WriteBehindCommonService service = new WriteBehindCommonService(backend, 4, 0);
+        for (long i = 0; i < 4; i++) {
+            service.saveOrUpdate("id" + i, new Value(i));
+        }
+
+        backend.fail = true;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread flusher = new Thread(() -> {
+            try {
+                service.flush();
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        flusher.start();
+        backend.entered.await();
+
+        // an id being flushed takes no more room, a new one waits for the flush
+        service.saveOrUpdate("id0", new Value(10));
+        Thread writer = new Thread(() -> service.saveOrUpdate("id4", new Value(4)));
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        assertEquals(1, service.getPendingCount());
+
+        backend.release.countDown();
+        flusher.join();
+        assertTrue(failure.get() instanceof PersistenceException);
+        writer.join();
+        service.flush();
+        assertEquals(10L, backend.get(Value.class, "id0").count);
+        for (long i = 1; i <= 4; i++) {
+            assertEquals(i, backend.get(Value.class, "id" + i).count);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.anode.tool.service.async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class AsyncCommonServiceAdapterTest {
+
+    // blocks the reads until released
+    private static class BlockingCommonService extends InMemoryCommonService {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public <T> T get(Class<T> objectClass, Serializable id) {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return super.get(objectClass, id);
+        }
+    }
+
+    @Test
+    public void completesWithTheResultOrTheExceptionOfTheCall() throws Exception {
+        AsyncCommonServiceAdapter async = new AsyncCommonServiceAdapter(new InMemoryCommonService(), 4, 0);
+        async.save("a", "first").get();
+        assertEquals("first", async.get(String.class, "a").get());
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> async.save("a", "again").get());
+        assertTrue(e.getCause() instanceof DuplicateKeyException);
+
+        async.close();
+        assertEquals(2, async.getCompletedCalls());
+        assertEquals(1, async.getFailedCalls());
+    }
+
+    @Test
+    public void queuesTheCallsOverMaxInFlight() throws Exception {
+        BlockingCommonService service = new BlockingCommonService();
+        service.save("a", "first");
+        AsyncCommonServiceAdapter async = new AsyncCommonServiceAdapter(service, 2, 0);
+
+        List<CompletableFuture<String>> reads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            reads.add(async.get(String.class, "a"));
+        }
+        assertEquals(2, async.getInFlight());
+        assertEquals(3, async.getWaiting());
+
+        service.release.countDown();
+        for (CompletableFuture<String> read : reads) {
+            assertEquals("first", read.get());
+        }
+        async.close();
+        assertEquals(0, async.getInFlight());
+        assertEquals(0, async.getWaiting());
+        assertEquals(5, async.getCompletedCalls());
+    }
+
+    @Test
+    public void timesOutCallsOfATimeoutView() throws Exception {
+        BlockingCommonService service = new BlockingCommonService();
+        AsyncCommonServiceAdapter async = new AsyncCommonServiceAdapter(service, 1, 0);
+
+        CompletableFuture<String> running = async.withTimeout(50, TimeUnit.MILLISECONDS).get(String.class, "a");
+        CompletableFuture<String> waiting = async.withTimeout(50, TimeUnit.MILLISECONDS).get(String.class, "b");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> running.get());
+        assertTrue(e.getCause() instanceof TimeoutException);
+        e = assertThrows(ExecutionException.class, () -> waiting.get());
+        assertTrue(e.getCause() instanceof TimeoutException);
+
+        // the slots of the timed out calls are given back
+        service.release.countDown();
+        assertNull(async.get(String.class, "a").get());
+        async.close();
+        assertEquals(2, async.getTimedOutCalls());
+    }
+
+    @Test
+    public void givesBackTheSlotsOfCallsCancelledBeforeTheyRun() throws Exception {
+        BlockingCommonService service = new BlockingCommonService();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncCommonServiceAdapter async = new AsyncCommonServiceAdapter(service, executor, 2, 50);
+
+        // the second call is started but waits for the thread of the executor until it is cancelled
+        CompletableFuture<String> running = async.get(String.class, "a");
+        CompletableFuture<String> queued = async.get(String.class, "b");
+        assertThrows(ExecutionException.class, () -> running.get());
+        assertThrows(ExecutionException.class, () -> queued.get());
+
+        service.release.countDown();
+        for (int i = 0; i < 5; i++) {
+            assertNull(async.get(String.class, "a").get());
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(0, async.getInFlight());
+        assertEquals(2, async.getTimedOutCalls());
+    }
+}
@@ -0,0 +1,113 @@
+package com.anode.tool.service.bulk;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class BulkLoaderTest {
+
+    public static class Item implements Persistable {
+
+        private Serializable id;
+
+        public Item(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    // fails the first collection writes
+    private static class FlakyCommonService extends InMemoryCommonService {
+
+        private final AtomicInteger failures;
+
+        private FlakyCommonService(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void saveOrUpdateCollection(Collection objects) {
+            if (failures.getAndDecrement() > 0) {
+                throw new PersistenceException("Backend unavailable");
+            }
+            super.saveOrUpdateCollection(objects);
+        }
+    }
+
+    @Test
+    public void writesAllTheObjectsInChunks() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        BulkLoader<Item> loader = new BulkLoader<>(service, 100, 4);
+        AtomicInteger listened = new AtomicInteger();
+        loader.setListener(chunk -> listened.incrementAndGet());
+
+        BulkLoadResult result = loader.load(LongStream.range(0, 1050).mapToObj(Item::new), BulkLoader.Mode.SAVE);
+        assertTrue(result.isSuccessful());
+        assertEquals(11, result.getChunks().size());
+        assertEquals(11, listened.get());
+        assertEquals(1050, result.getWritten());
+        assertEquals(0, result.getRetries());
+        assertEquals(1050, service.getAll(Item.class).size());
+    }
+
+    @Test
+    public void retriesFailedChunks() {
+        FlakyCommonService service = new FlakyCommonService(2);
+        BulkLoader<Item> loader = new BulkLoader<>(service, 10, 1);
+        loader.setRetryBackoffMillis(0);
+
+        BulkLoadResult result = loader.load(LongStream.range(0, 30).mapToObj(Item::new).toList(), BulkLoader.Mode.SAVE_OR_UPDATE);
+        assertTrue(result.isSuccessful());
+        assertEquals(2, result.getRetries());
+        assertEquals(3, result.getChunks().get(0).getAttempts());
+        assertEquals(30, service.getAll(Item.class).size());
+    }
+
+    @Test
+    public void reportsChunksFailingAllTheirAttempts() {
+        FlakyCommonService service = new FlakyCommonService(Integer.MAX_VALUE);
+        BulkLoader<Item> loader = new BulkLoader<>(service, 10, 1);
+        loader.setRetryBackoffMillis(0);
+        loader.setMaxRetries(1);
+        loader.setStopOnFailure(true);
+
+        BulkLoadResult result = loader.load(LongStream.range(0, 30).mapToObj(Item::new).toList(), BulkLoader.Mode.SAVE_OR_UPDATE);
+        assertFalse(result.isSuccessful());
+        assertEquals(1, result.getChunks().size());
+        assertEquals(2, result.getFailedChunks().get(0).getAttempts());
+        assertEquals(10, result.getFailed());
+    }
+
+    @Test
+    public void doesNotRetryDuplicateKeys() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        service.save(null, new Item(5));
+        BulkLoader<Item> loader = new BulkLoader<>(service, 10, 2);
+
+        BulkLoadResult result = loader.load(List.of(new Item(5)), BulkLoader.Mode.SAVE);
+        assertEquals(1, result.getFailedChunks().get(0).getAttempts());
+        assertTrue(result.getFailedChunks().get(0).getFailure() instanceof DuplicateKeyException);
+    }
+}
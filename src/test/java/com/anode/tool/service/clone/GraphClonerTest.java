@@ -0,0 +1,147 @@
+package com.anode.tool.service.clone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class GraphClonerTest {
+
+    // hashed by the content of a nested collection
+    public static class Tagged {
+
+        private List<String> tags = new ArrayList<>();
+
+        private Set<Tagged> children = new HashSet<>();
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Tagged) && tags.equals(((Tagged)o).tags) && children.equals(((Tagged)o).children);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tags, children);
+        }
+    }
+
+    public static class Holder {
+
+        private Set<Tagged> set = new HashSet<>();
+
+        private Map<Tagged, String> map = new HashMap<>();
+
+        private Tagged tagged;
+    }
+
+    private static Tagged tagged(String... tags) {
+        Tagged tagged = new Tagged();
+        for (String tag : tags) {
+            tagged.tags.add(tag);
+        }
+        return tagged;
+    }
+
+    @Test
+    public void copiesGraph() {
+        Holder holder = new Holder();
+        holder.tagged = tagged("a");
+        holder.set.add(holder.tagged);
+
+        Holder copy = GraphCloner.copy(holder);
+        assertNotSame(holder.tagged, copy.tagged);
+        assertEquals(holder.tagged, copy.tagged);
+        // shared references are kept
+        assertSame(copy.tagged, copy.set.iterator().next());
+    }
+
+    @Test
+    public void fillsSetsAfterTheCollectionsOfTheirElements() {
+        Holder holder = new Holder();
+        holder.tagged = tagged("a", "b");
+        holder.set.add(holder.tagged);
+        holder.map.put(holder.tagged, "value");
+
+        Holder copy = GraphCloner.copy(holder);
+        assertTrue(copy.set.contains(copy.tagged));
+        assertEquals("value", copy.map.get(copy.tagged));
+    }
+
+    @Test
+    public void fillsNestedSetsInnerFirst() {
+        Holder holder = new Holder();
+        // elements equal until their nested sets are filled
+        for (int i = 0; i < 20; i++) {
+            Tagged child = tagged("child" + i);
+            Tagged parent = tagged();
+            parent.children.add(child);
+            holder.set.add(parent);
+            holder.map.put(parent, "value" + i);
+        }
+        holder.tagged = holder.set.iterator().next();
+
+        Holder copy = GraphCloner.copy(holder);
+        assertEquals(20, copy.set.size());
+        assertEquals(20, copy.map.size());
+        assertTrue(copy.set.contains(copy.tagged));
+        for (Tagged parent : copy.set) {
+            assertTrue(copy.set.contains(parent));
+            assertTrue(copy.map.containsKey(parent));
+            for (Tagged child : parent.children) {
+                assertTrue(parent.children.contains(child));
+            }
+        }
+        assertEquals(holder.set, copy.set);
+    }
+
+    @Test
+    public void copiesCycles() {
+        List<Object> list = new ArrayList<>();
+        list.add(list);
+        List<Object> copy = GraphCloner.copy(list);
+        assertNotSame(list, copy);
+        assertSame(copy, copy.get(0));
+    }
+
+    public static class Wrapped {
+
+        private List<String> synchronizedList = Collections.synchronizedList(new ArrayList<>(List.of("a")));
+
+        private Map<String, String> synchronizedMap = Collections.synchronizedMap(new HashMap<>(Map.of("a", "b")));
+
+        private List<String> array = Arrays.asList("a", "b");
+
+        private List<String> immutable = List.of("a");
+
+        private Map<String, String> unmodifiable = Collections.unmodifiableMap(new HashMap<>(Map.of("a", "b")));
+    }
+
+    @Test
+    public void keepsWrappedCollectionsAsModifiableAsTheOriginals() {
+        Wrapped copy = GraphCloner.copy(new Wrapped());
+
+        copy.synchronizedList.add("b");
+        assertEquals(List.of("a", "b"), copy.synchronizedList);
+        copy.synchronizedMap.put("c", "d");
+        assertEquals(Map.of("a", "b", "c", "d"), copy.synchronizedMap);
+        copy.array.set(0, "c");
+        assertEquals(List.of("c", "b"), copy.array);
+
+        assertEquals(List.of("a"), copy.immutable);
+        assertThrows(UnsupportedOperationException.class, () -> copy.immutable.add("b"));
+        assertThrows(UnsupportedOperationException.class, () -> copy.unmodifiable.put("c", "d"));
+    }
+}
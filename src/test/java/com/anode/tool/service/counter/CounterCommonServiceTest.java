@@ -0,0 +1,103 @@
+package com.anode.tool.service.counter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.CachingCommonService;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class CounterCommonServiceTest {
+
+    @Test
+    public void gaplessCountersFollowEachOther() {
+        CounterCommonService service = new CounterCommonService(new InMemoryCommonService(), null, 10, 0);
+        for (long i = 1; i <= 5; i++) {
+            assertEquals(i, service.incrCounter("key"));
+        }
+        assertEquals(5L, service.getBackendCalls());
+    }
+
+    @Test
+    public void leasedValuesAreUniqueAcrossServices() throws InterruptedException {
+        // two processes sharing a backend
+        InMemoryCommonService backend = new InMemoryCommonService();
+        CounterCommonService first = new CounterCommonService(backend, null, 100, 0);
+        CounterCommonService second = new CounterCommonService(backend, null, 100, 0);
+        first.setMode("key", CounterMode.LEASED);
+        second.setMode("key", CounterMode.LEASED);
+
+        Set<Long> values = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            CounterCommonService service = (t % 2 == 0) ? first : second;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    assertTrue(values.add(service.incrCounter("key")));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, values.size());
+        assertTrue(first.getBackendCalls() + second.getBackendCalls() < 1000);
+    }
+
+    @Test
+    public void batchedModesNeedCounterStore() {
+        CounterCommonService service = new CounterCommonService(new CachingCommonService(new InMemoryCommonService(), 10), null, 100, 0);
+        for (CounterMode mode : new CounterMode[] { CounterMode.LEASED, CounterMode.STATISTIC }) {
+            assertThrows(IllegalArgumentException.class, () -> service.setMode("key", mode));
+            assertThrows(IllegalArgumentException.class, () -> service.setDefaultMode(mode));
+        }
+        service.setMode("key", CounterMode.GAPLESS);
+        assertEquals(1, service.incrCounter("key"));
+    }
+
+    @Test
+    public void statisticCountersAreFlushed() {
+        InMemoryCommonService backend = new InMemoryCommonService();
+        CounterCommonService service = new CounterCommonService(backend, null, 100, 0);
+        service.setDefaultMode(CounterMode.STATISTIC);
+        for (int i = 0; i < 1000; i++) {
+            service.incrCounter("key");
+        }
+        service.close();
+        assertEquals(1001L, backend.incrCounter("key"));
+    }
+
+    @Test
+    public void endTransactionReleasesBackendLocks() throws InterruptedException {
+        CounterCommonService service = new CounterCommonService(new InMemoryCommonService(null, 1000), null, 10, 0);
+        service.save("a", "first");
+        service.getLocked(String.class, "a");
+        service.endTransaction();
+
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                service.getLocked(String.class, "a");
+            }
+            catch (RuntimeException e) {
+                failure.set(e);
+            }
+            finally {
+                service.endTransaction();
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure.get());
+    }
+}
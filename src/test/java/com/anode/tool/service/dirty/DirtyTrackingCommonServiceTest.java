@@ -0,0 +1,123 @@
+package com.anode.tool.service.dirty;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class DirtyTrackingCommonServiceTest {
+
+    public static class Node implements Persistable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Serializable id;
+
+        private String name;
+
+        private Node next;
+
+        public Node(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    @Test
+    public void skipsObjectsThatDidNotChange() {
+        DirtyTrackingCommonService service = new DirtyTrackingCommonService(new InMemoryCommonService());
+        service.save("a", new Node("a", "first"));
+
+        Node node = service.get(Node.class, "a");
+        service.update("a", node);
+        assertEquals(1, service.getSkippedWrites());
+        assertEquals(1, service.getFullWrites());
+
+        node.name = "second";
+        service.update("a", node);
+        assertEquals(1, service.getSkippedWrites());
+        assertEquals(2, service.getFullWrites());
+        assertEquals("second", service.get(Node.class, "a").name);
+    }
+
+    @Test
+    public void hashesCyclicGraphs() {
+        DirtyTrackingCommonService service = new DirtyTrackingCommonService(new InMemoryCommonService());
+        Node a = new Node("a", "a");
+        Node b = new Node("b", "b");
+        a.next = b;
+        b.next = a;
+        service.save("a", a);
+
+        service.saveOrUpdate("a", service.get(Node.class, "a"));
+        assertEquals(1, service.getSkippedWrites());
+
+        // a change of an object referenced through the cycle changes the hash of a
+        b.name = "changed";
+        service.saveOrUpdate("a", a);
+        assertEquals(1, service.getSkippedWrites());
+        assertEquals(2, service.getFullWrites());
+
+        // which object closes the cycle is part of the hash
+        b.next = b;
+        service.saveOrUpdate("a", a);
+        assertEquals(1, service.getSkippedWrites());
+        assertEquals(3, service.getFullWrites());
+    }
+
+    @Test
+    public void endTransactionReleasesBackendLocks() throws InterruptedException {
+        DirtyTrackingCommonService service = new DirtyTrackingCommonService(new InMemoryCommonService(null, 1000));
+        service.save("a", new Node("a", "first"));
+        service.getLocked(Node.class, "a");
+        service.endTransaction();
+
+        AtomicReference<Object> read = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                read.set(service.getLocked(Node.class, "a"));
+                service.endTransaction();
+            }
+            catch (RuntimeException e) {
+                read.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertTrue(read.get() instanceof Node);
+    }
+
+    @Test
+    public void writesDeepGraphsInFull() {
+        DirtyTrackingCommonService service = new DirtyTrackingCommonService(new InMemoryCommonService());
+        Node head = new Node("a", "0");
+        Node node = head;
+        for (int i = 1; i < 100000; i++) {
+            node.next = new Node(null, String.valueOf(i));
+            node = node.next;
+        }
+        service.save("a", head);
+
+        // too deep to hash, so never skipped
+        service.update("a", head);
+        service.update("a", head);
+        assertEquals(0, service.getSkippedWrites());
+        assertEquals(3, service.getFullWrites());
+    }
+}
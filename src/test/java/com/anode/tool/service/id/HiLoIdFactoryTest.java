@@ -0,0 +1,61 @@
+package com.anode.tool.service.id;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class HiLoIdFactoryTest {
+
+    @Test
+    public void factoriesSharingACounterReserveDisjointBlocks() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        HiLoIdFactory first = new HiLoIdFactory(service, "ids", 10);
+        HiLoIdFactory second = new HiLoIdFactory(service, "ids", 10);
+
+        assertEquals(1L, (long)first.newId());
+        assertEquals(11L, (long)second.newId());
+        assertEquals(2L, (long)first.newId());
+        assertEquals(2, service.incrCounter("ids") - 1);
+    }
+
+    @Test
+    public void consumeIdSkipsTheIdsOfTheBlock() {
+        HiLoIdFactory factory = new HiLoIdFactory(new InMemoryCommonService(), "ids", 10);
+        assertEquals(1L, (long)factory.newId());
+        factory.consumeId(5L);
+        assertEquals(6L, (long)factory.newId());
+        // an id of another block is left alone
+        factory.consumeId(50L);
+        assertEquals(7L, (long)factory.newId());
+    }
+
+    @Test
+    public void givesUniqueIdsToConcurrentThreads() throws InterruptedException {
+        for (boolean perThread : new boolean[] { false, true }) {
+            HiLoIdFactory factory = new HiLoIdFactory(new InMemoryCommonService(), "ids", 16, perThread);
+            Set<Long> ids = ConcurrentHashMap.newKeySet();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        assertTrue(ids.add(factory.newId()));
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(4000, ids.size());
+        }
+    }
+}
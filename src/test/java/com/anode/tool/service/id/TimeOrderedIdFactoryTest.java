@@ -0,0 +1,52 @@
+package com.anode.tool.service.id;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TimeOrderedIdFactoryTest {
+
+    @Test
+    public void idsAreIncreasingAndCarryTheNodeAndTime() {
+        TimeOrderedIdFactory factory = new TimeOrderedIdFactory(7);
+        long start = System.currentTimeMillis();
+        long previous = 0;
+        // more than a millisecond worth of sequence numbers
+        for (int i = 0; i < 10000; i++) {
+            long id = factory.newId();
+            assertTrue(id > previous);
+            assertEquals(7, TimeOrderedIdFactory.getNode(id));
+            previous = id;
+        }
+        assertTrue(TimeOrderedIdFactory.getTimestamp(previous) >= start);
+    }
+
+    @Test
+    public void nodesNeverCollide() {
+        TimeOrderedIdFactory first = new TimeOrderedIdFactory(1);
+        TimeOrderedIdFactory second = new TimeOrderedIdFactory(2);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(first.newId().equals(second.newId()) == false);
+        }
+    }
+
+    @Test
+    public void idsGoOnAfterAConsumedIdFromTheFuture() {
+        // an id of the node stored by a process whose clock was a minute ahead
+        TimeOrderedIdFactory factory = new TimeOrderedIdFactory(3);
+        long future = new TimeOrderedIdFactory(3).newId() + (60_000L << (TimeOrderedIdFactory.NODE_BITS + TimeOrderedIdFactory.SEQUENCE_BITS));
+
+        factory.consumeId(future);
+        long id = factory.newId();
+        assertTrue(id > future);
+        assertEquals(3, TimeOrderedIdFactory.getNode(id));
+    }
+
+    @Test
+    public void rejectsNodesOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new TimeOrderedIdFactory(TimeOrderedIdFactory.MAX_NODE + 1));
+        assertThrows(IllegalArgumentException.class, () -> new TimeOrderedIdFactory(-1));
+    }
+}
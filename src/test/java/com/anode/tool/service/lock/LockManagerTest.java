@@ -0,0 +1,235 @@
+package com.anode.tool.service.lock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.DeadlockException;
+import com.anode.tool.service.LockTimeoutException;
+import com.anode.tool.service.OptimisticLockException;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class LockManagerTest {
+
+    public static class Doc implements Persistable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Serializable id;
+
+        public Doc(Serializable id) {
+            this.id = id;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    // a thread holding the lock of the id until released
+    private static Thread holder(LockManager locks, String id, CountDownLatch release) throws InterruptedException {
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            locks.lock(id, null);
+            locked.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                locks.releaseAll();
+            }
+        });
+        thread.start();
+        locked.await();
+        return thread;
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        while ((thread.getState() != Thread.State.WAITING) && (thread.getState() != Thread.State.TIMED_WAITING)) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void reentrantLockIsHeldUntilUnlockedAsManyTimes() {
+        LockManager locks = new LockManager();
+        locks.lock("x", null);
+        locks.lock("x", null);
+        locks.unlock("x");
+        assertTrue(locks.isHeldByCurrentThread("x"));
+        locks.unlock("x");
+        assertFalse(locks.isHeldByCurrentThread("x"));
+    }
+
+    @Test
+    public void throwsInsteadOfDeadlocking() throws InterruptedException {
+        LockManager locks = new LockManager();
+        locks.lock("y", null);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            try {
+                locks.lock("x", null);
+                locked.countDown();
+                locks.lock("y", null);
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+            finally {
+                locks.releaseAll();
+            }
+        });
+        other.start();
+        locked.await();
+        awaitParked(other);
+
+        assertThrows(DeadlockException.class, () -> locks.lock("x", null));
+        assertEquals(1, locks.getStatistics().get(Object.class).getDeadlocks());
+
+        // the other thread gets the lock once it is released
+        locks.releaseAll();
+        other.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void timesOutWaitingForAHeldLock() throws InterruptedException {
+        LockManager locks = new LockManager(100, LockManager.DEFAULT_LEASE_MILLIS);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread other = holder(locks, "x", release);
+
+        assertThrows(LockTimeoutException.class, () -> locks.lock("x", String.class));
+        assertEquals(1, locks.getStatistics().get(String.class).getTimeouts());
+        assertFalse(locks.isHeldByCurrentThread("x"));
+
+        release.countDown();
+        other.join();
+        locks.lock("x", String.class);
+        assertTrue(locks.isHeldByCurrentThread("x"));
+    }
+
+    @Test
+    public void handsTheLockToTheWaiterOnceTheLeaseExpires() throws InterruptedException {
+        LockManager locks = new LockManager(10000, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread other = holder(locks, "x", release);
+
+        locks.lock("x", null);
+        assertTrue(locks.isHeldByCurrentThread("x"));
+        assertEquals(1, locks.getStatistics().get(Object.class).getExpiredLeases());
+
+        // the late unlock of the former holder does nothing
+        release.countDown();
+        other.join();
+        assertTrue(locks.isHeldByCurrentThread("x"));
+        locks.releaseAll();
+    }
+
+    @Test
+    public void rejectsUpdatesOfAnOlderVersion() {
+        LockingCommonService service = new LockingCommonService(new InMemoryCommonService());
+        service.save("a", "first");
+
+        Versioned<String> read = service.getVersioned(String.class, "a");
+        Versioned<String> stale = service.getVersioned(String.class, "a");
+        service.updateVersioned("a", "second", read.getVersion());
+
+        assertThrows(OptimisticLockException.class, () -> service.updateVersioned("a", "third", stale.getVersion()));
+        assertEquals("second", service.get(String.class, "a"));
+        assertEquals(read.getVersion() + 1, service.getVersion("a"));
+    }
+
+    @Test
+    public void dropsTheVersionsOfDeletedIds() {
+        LockingCommonService service = new LockingCommonService(new InMemoryCommonService());
+        service.save("a", "first");
+        Versioned<String> read = service.getVersioned(String.class, "a");
+        service.delete("a");
+        assertEquals(0, service.getVersionCount());
+
+        // an update with the version read before the delete still fails
+        service.save("a", "again");
+        assertThrows(OptimisticLockException.class, () -> service.updateVersioned("a", "stale", read.getVersion()));
+        Versioned<String> again = service.getVersioned(String.class, "a");
+        service.updateVersioned("a", "second", again.getVersion());
+        assertEquals("second", service.get(String.class, "a"));
+    }
+
+    @Test
+    public void keepsAtMostMaxVersions() {
+        LockingCommonService service = new LockingCommonService(new InMemoryCommonService());
+        service.setMaxVersions(10);
+        for (int i = 0; i < 100; i++) {
+            service.save("id" + i, "v");
+            service.getVersioned(String.class, "id" + i);
+        }
+        assertTrue(service.getVersionCount() <= 10);
+    }
+
+    @Test
+    public void locksTheIdsOfACollectionInOrder() throws InterruptedException {
+        LockManager locks = new LockManager(10000, 60000);
+        LockingCommonService service = new LockingCommonService(new InMemoryCommonService(), locks);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread other = holder(locks, "a", release);
+
+        Thread writer = new Thread(() -> service.saveCollection(Arrays.asList(new Doc("b"), new Doc("a"))));
+        writer.start();
+        awaitParked(writer);
+
+        // the writer waits for "a" before locking "b"
+        boolean bLocked = locks.isLockedByOther("b");
+        release.countDown();
+        other.join();
+        writer.join();
+        assertFalse(bLocked);
+        assertEquals("b", service.get(Doc.class, "b").getId());
+    }
+
+    @Test
+    public void endTransactionEndsTheBackendTransaction() throws InterruptedException {
+        InMemoryCommonService backend = new InMemoryCommonService(null, 1000);
+        LockingCommonService service = new LockingCommonService(backend);
+        service.setBackendLocking(true);
+        service.save("a", "first");
+        service.getLocked(String.class, "a");
+        service.endTransaction();
+        assertFalse(service.getLockManager().isHeldByCurrentThread("a"));
+
+        // the backend lock is released too
+        AtomicReference<Object> read = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                read.set(backend.getLocked(String.class, "a"));
+                backend.endTransaction();
+            }
+            catch (RuntimeException e) {
+                read.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals("first", read.get());
+    }
+}
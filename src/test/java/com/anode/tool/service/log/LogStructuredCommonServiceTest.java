@@ -0,0 +1,195 @@
+package com.anode.tool.service.log;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LogStructuredCommonServiceTest {
+
+    public static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+
+        public Item(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private Path directory;
+
+    private LogStructuredCommonService service;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("log-test");
+        service = open();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        service.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private LogStructuredCommonService open() {
+        return open(LogStructuredCommonService.DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    private LogStructuredCommonService open(long maxSegmentBytes) {
+        return new LogStructuredCommonService(directory, maxSegmentBytes, false, 0, null);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> Segment.parseId(p.getFileName().toString()) >= 0).count();
+        }
+    }
+
+    @Test
+    public void readsWithSupertype() {
+        for (long i = 0; i < 10; i++) {
+            service.save(i, new Item("item" + i));
+        }
+        assertReadableAsSupertypes();
+    }
+
+    @Test
+    public void readsWithSupertypeAfterReopening() throws IOException {
+        for (long i = 0; i < 10; i++) {
+            service.save(i, new Item("item" + i));
+        }
+        service.close();
+        service = open();
+        assertReadableAsSupertypes();
+    }
+
+    private void assertReadableAsSupertypes() {
+        Object object = service.get(Object.class, 3L);
+        assertNotNull(object);
+        assertEquals("item3", ((Item)object).getName());
+        assertNotNull(service.get(Serializable.class, 3L));
+        assertEquals(10, service.getAll(Object.class).size());
+        assertEquals(10, service.getAll(Serializable.class).size());
+        try (Stream<Object> objects = service.stream(Object.class, 3)) {
+            assertEquals(10L, objects.count());
+        }
+        assertEquals(4, service.getPage(Object.class, 5L, 10, Comparator.comparing(id -> (Long)id)).getItems().size());
+    }
+
+    @Test
+    public void readsWrittenObjects() throws IOException {
+        service.save(1L, new Item("a"));
+        service.saveOrUpdate(1L, new Item("b"));
+        service.save(2L, new Item("c"));
+        service.delete(2L);
+        service.close();
+        service = open();
+        assertEquals("b", service.get(Item.class, 1L).getName());
+        assertEquals(null, service.get(Item.class, 2L));
+    }
+
+    @Test
+    public void compactionKeepsTheLatestRecords() throws IOException {
+        service.close();
+        service = open(4096);
+        service.save(0L, new Item("deleted"));
+        for (int round = 0; round < 50; round++) {
+            for (long i = 1; i <= 10; i++) {
+                service.saveOrUpdate(i, new Item("item" + i + "-" + round));
+            }
+            if (round == 0) {
+                service.delete(0L);
+            }
+            service.incrCounter("rounds");
+        }
+        long segments = segmentCount();
+
+        service.compact();
+        assertTrue(segmentCount() < segments);
+        service.close();
+        service = open(4096);
+        for (long i = 1; i <= 10; i++) {
+            assertEquals("item" + i + "-49", service.get(Item.class, i).getName());
+        }
+        assertNull(service.get(Item.class, 0L));
+        assertEquals(51, service.incrCounter("rounds"));
+    }
+
+    @Test
+    public void anIdHasOneObjectWhateverItsClass() throws IOException {
+        service.save(1L, new Item("a"));
+        service.saveOrUpdate(1L, "b");
+        assertNull(service.get(Item.class, 1L));
+        assertEquals("b", service.get(String.class, 1L));
+        assertEquals(1, service.getAll(Object.class).size());
+
+        service.update(1L, new Item("c"));
+        service.close();
+        service = open();
+        assertNull(service.get(String.class, 1L));
+        assertEquals("c", service.get(Item.class, 1L).getName());
+        assertEquals(1, service.getAll(Object.class).size());
+    }
+
+    @Test
+    public void compactionDropsTheDeleteRecordsOfIdsWrittenAgain() throws IOException {
+        service.close();
+        service = open(4096);
+        for (long i = 0; i < 100; i++) {
+            service.save(i, new Item("first"));
+        }
+        for (long i = 0; i < 100; i++) {
+            service.delete(i);
+        }
+        long deleted = segmentCount();
+        for (long i = 0; i < 100; i++) {
+            service.save(i, new Item("second"));
+        }
+        long written = segmentCount() - deleted;
+
+        // only the segments of the last writes are left, with the records moved to the end of the log
+        service.compact();
+        assertTrue(segmentCount() <= written + 2);
+        service.close();
+        service = open(4096);
+        for (long i = 0; i < 100; i++) {
+            assertEquals("second", service.get(Item.class, i).getName());
+        }
+    }
+
+    @Test
+    public void cutsOffATornRecordAtTheEndOfTheLog() throws IOException {
+        service.save(1L, new Item("a"));
+        service.close();
+        Files.write(directory.resolve(Segment.fileName(1)), new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+        service = open();
+        assertEquals("a", service.get(Item.class, 1L).getName());
+        service.save(2L, new Item("b"));
+        service.close();
+        service = open();
+        assertEquals("b", service.get(Item.class, 2L).getName());
+        assertEquals(2, service.getAll(Item.class).size());
+    }
+}
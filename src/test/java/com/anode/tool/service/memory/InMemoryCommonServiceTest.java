@@ -0,0 +1,170 @@
+package com.anode.tool.service.memory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.Page;
+
+public class InMemoryCommonServiceTest {
+
+    private static final Comparator<Serializable> BY_ID = (a, b) -> Long.compare((Long)a, (Long)b);
+
+    public static class Value implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long count;
+
+        public Value(long count) {
+            this.count = count;
+        }
+    }
+
+    @Test
+    public void saveWaitsForTheTransactionLockingTheId() throws InterruptedException {
+        InMemoryCommonService service = new InMemoryCommonService();
+        assertNull(service.getLocked(Value.class, "a"));
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                service.save("a", new Value(2));
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        other.start();
+        other.join(200);
+        assertTrue(other.isAlive());
+
+        service.save("a", new Value(1));
+        service.endTransaction();
+        other.join();
+        assertTrue(failure.get() instanceof DuplicateKeyException);
+        assertEquals(1L, service.get(Value.class, "a").count);
+    }
+
+    @Test
+    public void updateAndDeleteWaitForTheTransactionLockingTheId() throws InterruptedException {
+        InMemoryCommonService service = new InMemoryCommonService();
+        service.save("a", new Value(0));
+
+        Value locked = service.getLocked(Value.class, "a");
+        Thread updater = new Thread(() -> service.update("a", new Value(2)));
+        updater.start();
+        updater.join(200);
+        assertTrue(updater.isAlive());
+        service.update("a", new Value(locked.count + 1));
+        service.endTransaction();
+        updater.join();
+        assertEquals(2L, service.get(Value.class, "a").count);
+
+        service.getLocked(Value.class, "a");
+        Thread deleter = new Thread(() -> service.delete("a"));
+        deleter.start();
+        deleter.join(200);
+        assertTrue(deleter.isAlive());
+        assertEquals(2L, service.get(Value.class, "a").count);
+        service.endTransaction();
+        deleter.join();
+        assertNull(service.get(Value.class, "a"));
+    }
+
+    @Test
+    public void pagesThroughTheObjectsOfTheTypeInIdOrder() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        for (long id = 10; id > 0; id--) {
+            service.save(id, new Value(id));
+            service.save(100 + id, "other type");
+        }
+
+        List<Long> counts = new ArrayList<>();
+        Serializable after = null;
+        Page<Value> page;
+        do {
+            page = service.getPage(Value.class, after, 3, BY_ID);
+            page.getItems().forEach(v -> counts.add(v.count));
+            after = page.getLastId();
+        } while (page.hasNext());
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), counts);
+        assertEquals(10L, after);
+
+        try (Stream<Value> values = service.stream(Value.class, 4)) {
+            assertEquals(10, values.map(v -> v.count).collect(Collectors.toSet()).size());
+        }
+    }
+
+    @Test
+    public void uniqueIndexFollowsTheWrites() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        service.save("a", new Value(1));
+        service.addUniqueIndex(Value.class, "count");
+
+        assertThrows(DuplicateKeyException.class, () -> service.save("b", new Value(1)));
+        assertNull(service.get(Value.class, "b"));
+        assertEquals(1L, service.getUniqueItem(Value.class, "count", "1").count);
+
+        service.update("a", new Value(2));
+        assertNull(service.getUniqueItem(Value.class, "count", "1"));
+        assertEquals(2L, service.getUniqueItem(Value.class, "count", "2").count);
+        service.save("b", new Value(1));
+        assertEquals(1L, service.getUniqueItem(Value.class, "count", "1").count);
+
+        service.delete("a");
+        assertNull(service.getUniqueItem(Value.class, "count", "2"));
+    }
+
+    @Test
+    public void orderedIndexFollowsTheWrites() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        service.save(5L, new Value(5));
+        service.addOrderedIndex(BY_ID);
+        for (long id = 4; id > 0; id--) {
+            service.save(id, new Value(id));
+        }
+        service.save(0L, "other type");
+
+        assertEquals(0L, service.getMinimalId(BY_ID));
+        service.delete(0L);
+        assertEquals(1L, service.getMinimalId(BY_ID));
+
+        Page<Value> page = service.getPage(Value.class, 2L, 2, BY_ID);
+        assertEquals(2, page.getItems().size());
+        assertEquals(3L, page.getItems().get(0).count);
+        assertEquals(4L, page.getLastId());
+        assertTrue(page.hasNext());
+        assertFalse(service.getPage(Value.class, 4L, 2, BY_ID).hasNext());
+    }
+
+    @Test
+    public void anIdHasOneObjectWhateverItsClass() {
+        InMemoryCommonService service = new InMemoryCommonService();
+        service.save("a", new Value(1));
+        assertThrows(DuplicateKeyException.class, () -> service.save("a", "value"));
+
+        service.saveOrUpdate("a", "first");
+        assertNull(service.get(Value.class, "a"));
+        assertEquals("first", service.get(Object.class, "a"));
+        assertTrue(service.getAll(Value.class).isEmpty());
+
+        service.update("a", new Value(2));
+        assertNull(service.get(String.class, "a"));
+        assertEquals(2, service.get(Value.class, "a").count);
+        assertEquals(1, service.getAll(Object.class).size());
+    }
+}
@@ -0,0 +1,132 @@
+package com.anode.tool.service.memory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.DuplicateKeyException;
+
+public class MvccRepositoryTest {
+
+    public static class Account {
+
+        private String id;
+
+        private long balance;
+
+        public Account() {
+        }
+
+        public Account(String id, long balance) {
+            this.id = id;
+            this.balance = balance;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    @Test
+    public void saveWaitsForTheTransactionLockingTheId() throws InterruptedException {
+        MvccRepository<Account, String> repository = new MvccRepository<>(Account::getId);
+        assertNull(repository.getLocked("a"));
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                repository.save(new Account("a", 2));
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        other.start();
+        other.join(200);
+        assertTrue(other.isAlive());
+
+        repository.save(new Account("a", 1));
+        repository.endTransaction();
+        other.join();
+        assertTrue(failure.get() instanceof DuplicateKeyException);
+        assertEquals(1L, repository.get("a").get().balance);
+    }
+
+    @Test
+    public void updateAndDeleteWaitForTheTransactionLockingTheId() throws InterruptedException {
+        MvccRepository<Account, String> repository = new MvccRepository<>(Account::getId);
+        repository.save(new Account("a", 0));
+
+        Account locked = repository.getLocked("a");
+        Thread updater = new Thread(() -> repository.update(new Account("a", 2)));
+        updater.start();
+        updater.join(200);
+        assertTrue(updater.isAlive());
+        locked.balance++;
+        repository.update(locked);
+        repository.endTransaction();
+        updater.join();
+        assertEquals(2L, repository.get("a").get().balance);
+
+        repository.getLocked("a");
+        Thread deleter = new Thread(() -> repository.delete("a"));
+        deleter.start();
+        deleter.join(200);
+        assertTrue(deleter.isAlive());
+        assertTrue(repository.get("a").isPresent());
+        repository.endTransaction();
+        deleter.join();
+        assertTrue(repository.get("a").isEmpty());
+    }
+
+    @Test
+    public void snapshotReadsTheVersionsOfItsOpening() {
+        MvccRepository<Account, String> repository = new MvccRepository<>(Account::getId);
+        repository.save(new Account("a", 1));
+        repository.save(new Account("b", 1));
+
+        try (MvccRepository<Account, String>.Snapshot snapshot = repository.openSnapshot()) {
+            repository.update(new Account("a", 2));
+            repository.delete("b");
+            repository.saveCollection(List.of(new Account("c", 1), new Account("d", 1)));
+
+            assertEquals(1L, snapshot.get("a").get().balance);
+            assertTrue(snapshot.get("b").isPresent());
+            assertFalse(snapshot.get("c").isPresent());
+            assertEquals(2, snapshot.getAll().size());
+
+            assertEquals(2L, repository.get("a").get().balance);
+            assertFalse(repository.get("b").isPresent());
+            assertEquals(3, repository.getAll().size());
+        }
+    }
+
+    @Test
+    public void dropsTheVersionsNoSnapshotReads() {
+        MvccRepository<Account, String> repository = new MvccRepository<>(Account::getId);
+        repository.save(new Account("a", 0));
+        for (long i = 1; i <= 3; i++) {
+            repository.update(new Account("a", i));
+        }
+        assertEquals(1, repository.getVersionCount());
+
+        MvccRepository<Account, String>.Snapshot snapshot = repository.openSnapshot();
+        for (long i = 4; i <= 6; i++) {
+            repository.update(new Account("a", i));
+        }
+        // the version the snapshot reads and the three written after it
+        assertEquals(4, repository.getVersionCount());
+        assertEquals(3L, snapshot.get("a").get().balance);
+
+        snapshot.close();
+        assertEquals(0, repository.getOpenSnapshots());
+        assertEquals(1, repository.getVersionCount());
+        assertEquals(6L, repository.get("a").get().balance);
+    }
+}
@@ -0,0 +1,68 @@
+package com.anode.tool.service.memory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.PersistenceException;
+
+public class OffHeapArenaTest {
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte)i;
+        }
+        return bytes;
+    }
+
+    private static byte[] read(OffHeapArena arena, long address, int length) {
+        ByteBuffer buffer = arena.read(address, length);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void readsTheBytesWrittenToABlock() {
+        OffHeapArena arena = new OffHeapArena(null);
+        long first = arena.allocate(100);
+        long second = arena.allocate(100);
+        arena.write(first, bytes(100));
+        arena.write(second, new byte[100]);
+
+        assertArrayEquals(bytes(100), read(arena, first, 100));
+        // rounded up to the power of two
+        assertEquals(256, arena.getUsedBytes());
+    }
+
+    @Test
+    public void reusesFreedBlocksOfTheSameSize() {
+        OffHeapArena arena = new OffHeapArena(null);
+        long address = arena.allocate(1000);
+        long reserved = arena.getReservedBytes();
+        arena.free(address, 1000);
+        assertEquals(0, arena.getUsedBytes());
+
+        assertEquals(address, arena.allocate(1000));
+        assertEquals(reserved, arena.getReservedBytes());
+    }
+
+    @Test
+    public void releasesTheSlabOfALargeBlock() {
+        OffHeapArena arena = new OffHeapArena(null);
+        int length = 3 << 20;
+        long address = arena.allocate(length);
+        arena.write(address, bytes(length));
+        assertArrayEquals(bytes(length), read(arena, address, length));
+        long reserved = arena.getReservedBytes();
+
+        arena.free(address, length);
+        assertEquals(reserved - length, arena.getReservedBytes());
+        assertThrows(PersistenceException.class, () -> arena.read(address, length));
+    }
+}
@@ -0,0 +1,131 @@
+package com.anode.tool.service.memory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+
+import org.junit.jupiter.api.Test;
+
+public class TieredRepositoryTest {
+
+    public static class Entity implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+
+        private long value;
+
+        public Entity(String id, long value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    public static class Unserializable extends Entity {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object lock = new Object();
+
+        public Unserializable(String id, long value) {
+            super(id, value);
+        }
+    }
+
+    private static TieredRepository<Entity, String> filled(int count, int maxHot) {
+        TieredRepository<Entity, String> repository = new TieredRepository<>(Entity::getId, maxHot);
+        for (int i = 0; i < count; i++) {
+            repository.save(new Entity("e" + i, i));
+        }
+        return repository;
+    }
+
+    // an id of the cold tier, read once
+    private static String readCold(TieredRepository<Entity, String> repository, int count) {
+        for (int i = 0; i < count; i++) {
+            long coldReads = repository.getColdReads();
+            repository.get("e" + i);
+            if (repository.getColdReads() > coldReads) {
+                return "e" + i;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void keepsAtMostMaxHotEntitiesOnTheHeap() {
+        TieredRepository<Entity, String> repository = filled(100, 10);
+        assertTrue(repository.getHotCount() <= 10);
+        assertEquals(100, repository.size());
+        assertTrue(repository.getDemotions() >= 90);
+        assertTrue(repository.getColdBytes() > 0);
+
+        long coldReads = repository.getColdReads();
+        assertEquals(100, repository.getAll().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, repository.get("e" + i).get().value);
+        }
+        assertTrue(repository.getColdReads() > coldReads);
+    }
+
+    @Test
+    public void promotesColdEntitiesReadOften() {
+        TieredRepository<Entity, String> repository = filled(100, 10);
+        repository.setPromotionHits(3);
+        String id = readCold(repository, 100);
+        assertNotNull(id);
+
+        // a cold read is a copy, changes to it are not kept
+        Entity copy = repository.get(id).get();
+        assertEquals(0, repository.getPromotions());
+        copy.value = -1;
+
+        Entity hot = repository.get(id).get();
+        assertEquals(1, repository.getPromotions());
+        assertNotSame(copy, hot);
+        assertTrue(hot.value >= 0);
+        assertSame(hot, repository.get(id).get());
+        assertTrue(repository.getHotCount() <= 10);
+    }
+
+    @Test
+    public void deletesFreeTheColdTier() {
+        TieredRepository<Entity, String> repository = filled(100, 10);
+        for (int i = 0; i < 100; i++) {
+            repository.delete("e" + i);
+        }
+        assertEquals(0, repository.size());
+        assertEquals(0, repository.getColdBytes());
+        assertTrue(repository.get("e0").isEmpty());
+    }
+
+    @Test
+    public void keepsEntitiesThatCannotBeSerializedHot() {
+        TieredRepository<Entity, String> repository = new TieredRepository<>(Entity::getId, 1);
+        Unserializable pinned = new Unserializable("pinned", 0);
+        repository.save(pinned);
+        for (int i = 0; i < 10; i++) {
+            repository.save(new Entity("e" + i, i));
+        }
+        assertSame(pinned, repository.get("pinned").get());
+        assertEquals(10, repository.getDemotions());
+        assertEquals(1, repository.getHotCount());
+
+        // once replaced by a serializable entity, it can be demoted again
+        repository.update(new Entity("pinned", 1));
+        for (int i = 10; i < 20; i++) {
+            repository.save(new Entity("e" + i, i));
+        }
+        assertTrue(repository.getHotCount() <= 2);
+        assertEquals(1, repository.get("pinned").get().value);
+    }
+}
@@ -0,0 +1,50 @@
+package com.anode.tool.service.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsHoldTheirValuesWithinOneThirtySecond() {
+        for (long value : new long[] { 0, 1, 31, 32, 33, 63, 64, 1000, 123456789, 1L << 40, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucket(value);
+            long lowest = LatencyHistogram.lowestValue(bucket);
+            long highest = LatencyHistogram.highestValue(bucket);
+            assertTrue((lowest <= value) && (value <= highest), "bucket of " + value);
+            assertTrue(highest - lowest <= lowest / 32, "width of the bucket of " + value);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketOfTheRank() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500500, snapshot.getSum());
+
+        long p50 = snapshot.getValueAtPercentile(50);
+        assertTrue((p50 >= 500) && (p50 <= 500 + 500 / 32), "p50 " + p50);
+        long p99 = snapshot.getValueAtPercentile(99);
+        assertTrue((p99 >= 990) && (p99 <= 1000), "p99 " + p99);
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void emptySnapshotHasNoValues() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,101 @@
+package com.anode.tool.service.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.DuplicateKeyException;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class MetricsCommonServiceTest {
+
+    public static class Item implements Persistable {
+
+        private Serializable id;
+
+        public Item(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+    }
+
+    private static PersistenceMetrics.Snapshot find(PersistenceMetrics metrics, Operation operation, Class<?> type) {
+        for (PersistenceMetrics.Snapshot snapshot : metrics.snapshot()) {
+            if ((snapshot.getOperation() == operation) && (snapshot.getType() == type)) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void recordsTheCallsByOperationAndType() {
+        MetricsCommonService service = new MetricsCommonService(new InMemoryCommonService());
+        service.save("a", "first");
+        service.saveOrUpdate("b", 2L);
+        assertThrows(DuplicateKeyException.class, () -> service.save("a", "again"));
+        service.get(String.class, "a");
+        service.delete("b");
+
+        PersistenceMetrics metrics = service.getMetrics();
+        PersistenceMetrics.Snapshot saves = find(metrics, Operation.SAVE, String.class);
+        assertEquals(2, saves.getCalls());
+        assertEquals(1, saves.getErrors());
+        assertEquals(1, find(metrics, Operation.SAVE_OR_UPDATE, Long.class).getCalls());
+        assertEquals(1, find(metrics, Operation.GET, String.class).getCalls());
+        assertEquals(1, find(metrics, Operation.DELETE, Object.class).getCalls());
+        assertNull(find(metrics, Operation.UPDATE, String.class));
+        assertNull(saves.getBatchSizes());
+    }
+
+    @Test
+    public void recordsTheSizesOfBatches() {
+        MetricsCommonService service = new MetricsCommonService(new InMemoryCommonService());
+        service.saveOrUpdateCollection(List.of(new Item("a"), new Item("b"), new Item("c")));
+        service.saveOrUpdateCollection(List.of(new Item("d")));
+
+        PersistenceMetrics.Snapshot batches = find(service.getMetrics(), Operation.SAVE_OR_UPDATE_COLLECTION, Item.class);
+        assertEquals(2, batches.getCalls());
+        assertEquals(4, batches.getBatchSizes().getSum());
+        assertEquals(3, batches.getBatchSizes().getMax());
+    }
+
+    @Test
+    public void endTransactionReleasesBackendLocks() throws InterruptedException {
+        MetricsCommonService service = new MetricsCommonService(new InMemoryCommonService(null, 1000));
+        service.save("a", "first");
+        service.getLocked(String.class, "a");
+        service.endTransaction();
+
+        // another thread can write the id
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                service.update("a", "second");
+            }
+            catch (RuntimeException e) {
+                failure.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure.get());
+        assertEquals("second", service.get(String.class, "a"));
+    }
+}
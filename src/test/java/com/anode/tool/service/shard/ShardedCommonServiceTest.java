@@ -0,0 +1,240 @@
+package com.anode.tool.service.shard;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.persistance.Persistable;
+import com.anode.tool.service.CommonService;
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.log.LogStructuredCommonService;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class ShardedCommonServiceTest {
+
+    private static final int SIZE = 200;
+
+    public static class Item implements Persistable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Serializable id;
+
+        private String name;
+
+        public Item(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public Serializable getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(Serializable id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    // a shard that cannot read its objects by a supertype
+    private static class ExactTypeCommonService extends InMemoryCommonService {
+
+        @Override
+        public <T> T get(Class<T> objectClass, Serializable id) {
+            return (objectClass == Object.class) ? null : super.get(objectClass, id);
+        }
+    }
+
+    private final List<Path> directories = new ArrayList<>();
+
+    private ShardedCommonService service;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (service != null) {
+            for (CommonService shard : service.getShards().values()) {
+                if (shard instanceof LogStructuredCommonService) {
+                    ((LogStructuredCommonService)shard).close();
+                }
+            }
+            service.close();
+        }
+        for (Path directory : directories) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private ShardedCommonService inMemory(int shards) {
+        Map<String, CommonService> services = new LinkedHashMap<>();
+        for (int i = 0; i < shards; i++) {
+            services.put("shard" + i, new InMemoryCommonService());
+        }
+        return new ShardedCommonService(services);
+    }
+
+    private LogStructuredCommonService logShard() throws IOException {
+        Path directory = Files.createTempDirectory("shard-test");
+        directories.add(directory);
+        return new LogStructuredCommonService(directory, LogStructuredCommonService.DEFAULT_MAX_SEGMENT_BYTES, false, 0, null);
+    }
+
+    private void saveItems() {
+        for (long i = 0; i < SIZE; i++) {
+            service.save(null, new Item(i, "item" + i));
+        }
+    }
+
+    private void assertAllReadable() {
+        for (long i = 0; i < SIZE; i++) {
+            Item item = service.get(Item.class, i);
+            assertNotNull(item, "item " + i);
+            assertEquals("item" + i, item.getName());
+        }
+        assertEquals(SIZE, service.getAll(Item.class).size());
+    }
+
+    @Test
+    public void readsObjectsOfAllShards() {
+        service = inMemory(3);
+        saveItems();
+        assertAllReadable();
+        assertEquals(SIZE, service.getPage(Item.class, null, SIZE, Comparator.comparing(id -> (Long)id)).getItems().size());
+    }
+
+    @Test
+    public void migrateMovesObjectsToAddedShard() {
+        service = inMemory(3);
+        saveItems();
+        InMemoryCommonService added = new InMemoryCommonService();
+        service.addShard("shard3", added);
+        assertTrue(service.isMigrating());
+        assertAllReadable();
+
+        long moved = service.migrate(16);
+        assertFalse(service.isMigrating());
+        assertEquals(moved, (long)added.getAll(Item.class).size());
+        assertTrue(moved > 0);
+        assertAllReadable();
+    }
+
+    @Test
+    public void migrateMovesObjectsBetweenLogShards() throws IOException {
+        Map<String, CommonService> services = new LinkedHashMap<>();
+        services.put("shard0", logShard());
+        services.put("shard1", logShard());
+        service = new ShardedCommonService(services);
+        saveItems();
+        service.addShard("shard2", logShard());
+        service.migrate(16);
+        assertFalse(service.isMigrating());
+        assertAllReadable();
+    }
+
+    @Test
+    public void migrateKeepsPreviousRingWhenObjectsCannotBeMoved() {
+        Map<String, CommonService> services = new LinkedHashMap<>();
+        services.put("shard0", new ExactTypeCommonService());
+        services.put("shard1", new ExactTypeCommonService());
+        service = new ShardedCommonService(services);
+        saveItems();
+        service.addShard("shard2", new InMemoryCommonService());
+        assertThrows(PersistenceException.class, () -> service.migrate(16));
+        assertTrue(service.isMigrating());
+        assertAllReadable();
+    }
+
+    @Test
+    public void readsObjectsWhileTheyAreMoved() throws InterruptedException {
+        service = inMemory(2);
+        saveItems();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong missed = new AtomicLong();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread(() -> {
+                while (stop.get() == false) {
+                    for (long i = 0; i < SIZE; i++) {
+                        if (service.get(Item.class, i) == null) {
+                            missed.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        readers.forEach(Thread::start);
+        try {
+            for (int i = 2; i < 6; i++) {
+                service.addShard("shard" + i, new InMemoryCommonService());
+                service.migrate(1);
+            }
+        }
+        finally {
+            stop.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertEquals(0L, missed.get());
+        assertAllReadable();
+    }
+
+    @Test
+    public void endTransactionReleasesTheLocksOfAllShards() throws InterruptedException {
+        Map<String, CommonService> services = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            services.put("shard" + i, new InMemoryCommonService(null, 1000));
+        }
+        service = new ShardedCommonService(services);
+        saveItems();
+        for (long i = 0; i < SIZE; i++) {
+            service.getLocked(Item.class, i);
+        }
+        service.endTransaction();
+
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                for (long i = 0; i < SIZE; i++) {
+                    service.getLocked(Item.class, i);
+                }
+            }
+            catch (RuntimeException e) {
+                failure.set(e);
+            }
+            finally {
+                service.endTransaction();
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure.get());
+    }
+}
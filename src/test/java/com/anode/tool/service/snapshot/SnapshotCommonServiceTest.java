@@ -0,0 +1,136 @@
+package com.anode.tool.service.snapshot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.anode.tool.service.PersistenceException;
+import com.anode.tool.service.memory.InMemoryCommonService;
+
+public class SnapshotCommonServiceTest {
+
+    public static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        public Item(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Unserializable implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        // not serializable
+        private final Object lock = new Object();
+    }
+
+    private Path directory;
+
+    private SnapshotCommonService service;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshot-test");
+        service = open();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        service.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private SnapshotCommonService open() {
+        return new SnapshotCommonService(new InMemoryCommonService(), directory, 0, 2);
+    }
+
+    private SnapshotCommonService reopen() {
+        service.close();
+        return open();
+    }
+
+    @Test
+    public void restoresTheRedoLog() {
+        service.save(1L, new Item("one"));
+        service.save(2L, new Item("two"));
+        service.update(1L, new Item("first"));
+        service.delete(2L);
+
+        service = reopen();
+        assertEquals(0, service.getSnapshotId());
+        assertEquals(4, service.getReplayedRecords());
+        assertEquals("first", service.get(Item.class, 1L).name);
+        assertNull(service.get(Item.class, 2L));
+    }
+
+    @Test
+    public void doesNotWriteObjectsThatCannotBeLogged() {
+        service.save(1L, new Item("one"));
+        assertThrows(PersistenceException.class, () -> service.save(2L, new Unserializable()));
+        assertThrows(PersistenceException.class, () -> service.saveOrUpdate(1L, new Unserializable()));
+        assertNull(service.get(Object.class, 2L));
+        assertEquals("one", service.get(Item.class, 1L).name);
+
+        service = reopen();
+        assertEquals("one", service.get(Item.class, 1L).name);
+        assertEquals(1, service.getAll(Object.class).size());
+    }
+
+    @Test
+    public void restoresTheSnapshotThenTheRedoLogAfterIt() {
+        for (long i = 0; i < 100; i++) {
+            service.save(i, new Item("item" + i));
+        }
+        service.incrCounter("items");
+        service.snapshot();
+        int snapshotId = service.getSnapshotId();
+        assertEquals(100, service.getSnapshotObjects());
+
+        service.update(0L, new Item("changed"));
+        service.delete(1L);
+        service.incrCounter("items");
+
+        service = reopen();
+        assertEquals(snapshotId, service.getSnapshotId());
+        assertEquals(100, service.getRestoredObjects());
+        assertEquals(3, service.getReplayedRecords());
+        assertEquals(99, service.getAll(Item.class).size());
+        assertEquals("changed", service.get(Item.class, 0L).name);
+        assertNull(service.get(Item.class, 1L));
+        assertEquals(3, service.incrCounter("items"));
+    }
+
+    @Test
+    public void cutsOffATornRecordAtTheEndOfTheRedoLog() throws IOException {
+        service.save(1L, new Item("one"));
+        service.close();
+        Files.write(directory.resolve(RedoLog.fileName(1)), new byte[] { 0, 0, 1, 0, 7 }, StandardOpenOption.APPEND);
+
+        service = open();
+        assertEquals(1, service.getReplayedRecords());
+        assertEquals("one", service.get(Item.class, 1L).name);
+
+        // the writes after the restore are not lost behind the torn record
+        service.save(2L, new Item("two"));
+        service = reopen();
+        assertEquals("two", service.get(Item.class, 2L).name);
+    }
+}